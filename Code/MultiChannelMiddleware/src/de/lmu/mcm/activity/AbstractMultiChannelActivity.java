@@ -17,9 +17,11 @@ import de.lmu.mcm.helper.InterfaceAvailabilityChecker;
 import de.lmu.mcm.helper.LogHelper;
 import de.lmu.mcm.network.DaemonListener;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.Enums.SecurityLevel;
 import de.lmu.mcm.network.MultiNetworkAddress;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
+import de.lmu.mcm.network.SendPipeline.SendHandle;
 import de.lmu.mcm.security.byteproto.BasicMessage;
 import de.lmu.mm.R;
 
@@ -194,6 +196,27 @@ public abstract class AbstractMultiChannelActivity extends Activity implements D
         }
     }
 
+    /**
+     * Sends the given message with the currently selected interface and the cheapest message type that provides the
+     * given security level for the communication partner. The message is encrypted in the background, so this method
+     * can be called from the UI thread.
+     * 
+     * @return a handle to wait until the frame was handed to the interface or null if the message was not sent
+     * */
+    public SendHandle sendDataWithSelectedInterface(BasicMessage message, SecurityLevel level) {
+        if (message == null) {
+            LogHelper.getInstance().e("AbstractUI", "Did not execute send call because data was null!");
+        } else if (!isInterfaceSetUp()) {
+            LogHelper.getInstance().e("AbstractUI",
+                    "Did not execute send call because no interface selected or interface not ready!");
+        } else if (getDaemon() == null) {
+            LogHelper.getInstance().e("AbstractUI", "Did not execute send call because DAEMON was null!");
+        } else {
+            return getDaemon().sendDataAsync(message, level, selectedInterface, this);
+        }
+        return null;
+    }
+
     /**
      * Changes the interface.
      * */
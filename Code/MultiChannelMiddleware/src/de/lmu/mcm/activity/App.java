@@ -19,6 +19,13 @@ public class App extends Application {
     // Also keep the keyHolder, which can be accessed by calling getInstance
     private KeyHolder keyHolder = KeyHolder.getInstance();
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Read the keys once now instead of on the first message:
+        keyHolder.warmUpKeyCacheInBackground(getApplicationContext());
+    }
+
     /**
      * @return a singleton instance of the NetworkDaemon. Use this getter in your activities to receive always the same
      *         daemon.
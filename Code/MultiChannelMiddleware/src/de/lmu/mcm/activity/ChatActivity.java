@@ -1,7 +1,6 @@
 package de.lmu.mcm.activity;
 
 import java.io.Serializable;
-import java.util.UUID;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -12,15 +11,14 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 import de.lmu.mcm.helper.LogHelper;
-import de.lmu.mcm.helper.PrefsHelper;
 import de.lmu.mcm.helper.TestSetup;
 import de.lmu.mcm.network.DaemonListener;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.Enums.SecurityLevel;
 import de.lmu.mcm.network.MultiNetworkAddress;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
 import de.lmu.mcm.network.ServiceDescription;
-import de.lmu.mcm.security.MessageEncryptionHandler;
 import de.lmu.mcm.security.byteproto.BasicMessage;
 import de.lmu.mcm.security.byteproto.CustomMessage;
 import de.lmu.mm.R;
@@ -38,8 +36,8 @@ public class ChatActivity extends AbstractMultiChannelActivity implements Daemon
     private final int handlerCodeClearInput = 8349;
     private ServiceDescription service = null;
     private final static String TAG = "ChatActivity";
-    private MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
-    private byte messageType = 6;
+    // A symmetric session is used as soon as it exists, signatures before that:
+    private SecurityLevel securityLevel = SecurityLevel.AUTHENTICATED;
 
     private Handler handler = new Handler() {
 
@@ -104,7 +102,7 @@ public class ChatActivity extends AbstractMultiChannelActivity implements Daemon
         if (msg != null && !msg.equals("")) {
             CustomMessage message = new CustomMessage(msg.getBytes());
             try {
-                sendDataWithSelectedInterface(message, messageType);
+                sendDataWithSelectedInterface(message, securityLevel);
             } catch (Exception e) {
                 LogHelper.getInstance().e(TAG, "Error while trying to send message", e);
                 displayNewLogMessage("Could not send message");
@@ -150,19 +148,11 @@ public class ChatActivity extends AbstractMultiChannelActivity implements Daemon
 
     @Override
     public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message) {
-        if (message != null) {
-            String uuidString = PrefsHelper.getOwnId(this);
-            UUID uuid = UUID.fromString(uuidString);
-            BasicMessage extractedMessage;
-            try {
-                extractedMessage = encryptionHandler.extractReceivedMessage(this, uuid, message.getRawMessageInBytes());
-                handleNewMessage(interfaceName, extractedMessage, false);
-            } catch (Exception e) {
-                // This should never happen:
-                displayNewLogMessage("Message was sent via " + interfaceName + " but it could not be parsed");
-                LogHelper.getInstance().e(TAG, "Message was sent via " + interfaceName + " but it could not be parsed",
-                        e);
-            }
+        if (message != null && message.getSentMessage() != null) {
+            handleNewMessage(interfaceName, message.getSentMessage(), false);
+        } else if (message != null) {
+            // The daemon did not know the message anymore, e.g. because the interface reported it very late:
+            displayNewLogMessage("Message was sent via " + interfaceName);
         } else {
             displayNewLogMessage("Could not send message via " + interfaceName + ". No connection established yet?");
         }
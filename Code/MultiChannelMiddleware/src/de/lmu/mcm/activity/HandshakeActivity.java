@@ -19,6 +19,8 @@ import de.lmu.mcm.network.Enums.HandshakeNextAction;
 import de.lmu.mcm.network.Enums.HandshakeRole;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
 import de.lmu.mcm.network.Enums.Role;
+import de.lmu.mcm.network.HandshakeDriver;
+import de.lmu.mcm.network.HandshakeDriver.HandshakeListener;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
 import de.lmu.mcm.network.ServiceDescription;
@@ -27,23 +29,23 @@ import de.lmu.mcm.security.byteproto.BasicMessage;
 import de.lmu.mm.R;
 
 /**
- * Activity to perform the 3-way-handshake and to exchange the symmetric key.
+ * Activity to perform the 3-way-handshake and to exchange the symmetric key. The messages are sent by a
+ * {@link HandshakeDriver} as soon as an interface is selected, the activity only displays the progress.
  * 
  * @author Thomas Bornschlegel
  * 
  */
-public class HandshakeActivity extends AbstractMultiChannelActivity {
+public class HandshakeActivity extends AbstractMultiChannelActivity implements HandshakeListener {
 
     private Button buttonSendReceive;
     private Button buttonContinue;
     private TextView textViewHandshakeStep;
     private TextView textViewSelectedInterface;
     private HandshakeStateHolder handshakeHelper;
+    private HandshakeDriver handshakeDriver;
     private NetworkDaemon daemon;
     private final static String TAG = "HandshakeActivity";
     private int handlerCodeToggleButtons = 45945602;
-    private BasicMessage lastSentMessage;
-    private byte messageTypeOfLastSentMessage;
 
     private Handler handlerForButtonToggle = new Handler() {
 
@@ -52,12 +54,15 @@ public class HandshakeActivity extends AbstractMultiChannelActivity {
             super.handleMessage(msg);
             if (msg.what == handlerCodeToggleButtons) {
                 if (handshakeHelper != null) {
-                    HandshakeNextAction nextAction = handshakeHelper.getNextAction();
-                    if (nextAction == HandshakeNextAction.SEND) {
-                        buttonSendReceive.setEnabled(true);
+                    // The driver sends the messages, the button only restarts a handshake that failed:
+                    boolean failed = handshakeDriver != null && handshakeDriver.isFinished()
+                            && !handshakeDriver.isSuccessful();
+                    buttonSendReceive.setEnabled(failed);
+                    if (failed) {
+                        buttonSendReceive.setText(R.string.button_handshake_restart);
+                    } else if (handshakeHelper.getNextAction() == HandshakeNextAction.SEND) {
                         buttonSendReceive.setText(R.string.button_handshake_send);
                     } else {
-                        buttonSendReceive.setEnabled(true);
                         buttonSendReceive.setText(R.string.button_handshake_receive);
                     }
 
@@ -90,6 +95,34 @@ public class HandshakeActivity extends AbstractMultiChannelActivity {
         buttonContinue = (Button) findViewById(R.id.buttonContinue);
         textViewHandshakeStep = (TextView) findViewById(R.id.textViewHandshakeCurrentMessage);
 
+        App app = (App) getApplication();
+        daemon = app.getNetworkDaemon();
+        daemon.checkInitialized(this);
+        initializeHandshake();
+
+        initializeListOfAvailableInterfaces();
+
+        ServiceDescription service = TestSetup.getServiceDescription(this);
+        if (service.getRole() == Role.SERVER) {
+            displayNewLogMessage("Trying to establish connection as server");
+        } else {
+            displayNewLogMessage("Trying to establish connection as client");
+            buttonContinue.setEnabled(false);
+        }
+        displayNewLogMessage("Own UUID: " + PrefsHelper.getOwnId(this));
+        getDaemon().establishConnection(this, service);
+
+    }
+
+    /**
+     * Creates a fresh handshake state and the driver that runs it. The driver is started when an interface is selected.
+     * */
+    private void initializeHandshake() {
+        if (handshakeDriver != null) {
+            handshakeDriver.stop();
+            handshakeDriver = null;
+        }
+        handshakeHelper = null;
         UUID uuidRemote = UUID.fromString(PrefsHelper.getIdOfCommunicationPartner(getApplicationContext()));
         UUID uuidOwn = UUID.fromString(PrefsHelper.getOwnId(getApplicationContext()));
 
@@ -110,25 +143,16 @@ public class HandshakeActivity extends AbstractMultiChannelActivity {
         if (handshakeHelper == null) {
             Toast.makeText(getApplicationContext(), R.string.error_handshake_init, Toast.LENGTH_LONG).show();
         } else {
-            App app = (App) getApplication();
-            daemon = app.getNetworkDaemon();
-            daemon.checkInitialized(this);
-
+            handshakeDriver = new HandshakeDriver(daemon, handshakeHelper, this, this, this);
             toggleButtons();
         }
+    }
 
-        initializeListOfAvailableInterfaces();
-
-        ServiceDescription service = TestSetup.getServiceDescription(this);
-        if (service.getRole() == Role.SERVER) {
-            displayNewLogMessage("Trying to establish connection as server");
-        } else {
-            displayNewLogMessage("Trying to establish connection as client");
-            buttonContinue.setEnabled(false);
+    private void startHandshakeDriver() {
+        if (handshakeDriver != null && selectedInterface != null) {
+            handshakeDriver.setInterface(selectedInterface);
+            handshakeDriver.start();
         }
-        displayNewLogMessage("Own UUID: " + PrefsHelper.getOwnId(this));
-        getDaemon().establishConnection(this, service);
-
     }
 
     public void onChangeInterfaceClicked(View v) {
@@ -150,27 +174,30 @@ public class HandshakeActivity extends AbstractMultiChannelActivity {
     }
 
     public void onButtonSendClicked(View v) {
-        if (buttonSendReceive.isEnabled() && handshakeHelper != null
-                && handshakeHelper.getNextAction() == HandshakeNextAction.SEND) {
-            BasicMessage msg = handshakeHelper.getNextMessageToSend(getApplicationContext());
-            if (msg != null) {
-                lastSentMessage = msg;
-                messageTypeOfLastSentMessage = handshakeHelper.getMessageTypeForMessageToSend();
-                sendDataWithSelectedInterface(msg, handshakeHelper.getMessageTypeForMessageToSend());
-            } else {
-                displayNewLogMessage("Error preparing next handshake message");
-            }
-        } else if (lastSentMessage != null) {
-            sendDataWithSelectedInterface(lastSentMessage, messageTypeOfLastSentMessage);
+        if (buttonSendReceive.isEnabled() && isInterfaceSetUp()) {
+            displayNewLogMessage("Restarting handshake");
+            initializeHandshake();
+            startHandshakeDriver();
         }
     }
 
     public void onButtonContinueClicked(View v) {
         if (buttonContinue.isEnabled()) {
+            if (handshakeDriver != null) {
+                handshakeDriver.stop();
+            }
             startNewActivity(ChatActivity.class);
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (handshakeDriver != null) {
+            handshakeDriver.stop();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onInterfaceChanged(String selectedInterfaceName) {
         if (selectedInterfaceName != null) {
@@ -180,32 +207,40 @@ public class HandshakeActivity extends AbstractMultiChannelActivity {
         }
 
         linearLayoutInterfaceSelection.setVisibility(View.GONE);
+        startHandshakeDriver();
     }
 
     @Override
     public void onDataReceived(InterfaceIdentifier interfaceName, BasicMessage message) {
-        int currentStep = handshakeHelper.getCurrentStep();
-        displayNewRemoteMessage("Received handshake message via " + interfaceName);
-        try {
-            boolean success = handshakeHelper.processReceivedMessage(getApplicationContext(), message);
-            displayNewLogMessage("Parsed handshake message " + currentStep + " with result=" + success);
-        } catch (Exception e) {
-            displayNewLogMessage("Error while parsing handshake message " + currentStep);
-        }
-        toggleButtons();
+        // Already processed by the driver:
+        displayNewRemoteMessage("Received handshake message via " + interfaceName + ", now in step "
+                + handshakeHelper.getCurrentStep());
     }
 
     @Override
     public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message) {
-        int currentStep = handshakeHelper.getCurrentStep();
-        currentStep--;
         if (message != null) {
-            displaySentMessage("Sent handshake message " + currentStep + " via " + interfaceName);
-            toggleButtons();
+            displaySentMessage("Sent handshake message via " + interfaceName);
         } else {
-            displayNewLogMessage("Could not send handshake message " + currentStep + " via " + interfaceName
+            displayNewLogMessage("Could not send handshake message via " + interfaceName
                     + ". No connection established yet?");
         }
     }
 
+    @Override
+    public void onHandshakeProgress(int step) {
+        toggleButtons();
+    }
+
+    @Override
+    public void onHandshakeFinished(boolean success) {
+        if (success) {
+            boolean resumed = handshakeHelper.isSessionResumed();
+            displayNewLogMessage(resumed ? "Resumed earlier session" : "Handshake completed");
+        } else {
+            displayNewLogMessage("Handshake failed, the other party did not answer.");
+        }
+        toggleButtons();
+    }
+
 }
@@ -17,7 +17,8 @@ import de.lmu.mcm.helper.PrefsHelper;
 import de.lmu.mcm.helper.InterfaceAvailabilityChecker.OnInterfacesActivatedListener;
 import de.lmu.mcm.helper.LogHelper.LogListener;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
-import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.KeyMaterialService;
+import de.lmu.mcm.security.KeyMaterialService.OwnKeysListener;
 import de.lmu.mm.R;
 
 /**
@@ -26,7 +27,8 @@ import de.lmu.mm.R;
  * @author Thomas Bornschlegel
  * 
  */
-public class InterfaceActivatorActivity extends Activity implements LogListener, OnInterfacesActivatedListener {
+public class InterfaceActivatorActivity extends Activity implements LogListener, OnInterfacesActivatedListener,
+        OwnKeysListener {
 
     private final String TAG = "InterfaceActivatorActivity ";
     private TextView textViewLog;
@@ -34,6 +36,7 @@ public class InterfaceActivatorActivity extends Activity implements LogListener,
     private Button button;
     private int handlerCodeActivateButton = 4343;
     private int handlerCodeInterfacesActivated = 7832;
+    private int handlerCodeKeysFailed = 9121;
 
     private Handler handler = new Handler() {
 
@@ -44,6 +47,10 @@ public class InterfaceActivatorActivity extends Activity implements LogListener,
                 Toast.makeText(InterfaceActivatorActivity.this, "Done checking interfaces!", Toast.LENGTH_SHORT).show();
             } else if (msg.what == handlerCodeActivateButton) {
                 button.setEnabled(true);
+            } else if (msg.what == handlerCodeKeysFailed) {
+                Toast.makeText(InterfaceActivatorActivity.this, R.string.error_initializing_rsa, Toast.LENGTH_LONG)
+                        .show();
+                finish();
             } else {
                 String str = msg.obj.toString();
                 updateTextView(str);
@@ -60,12 +67,9 @@ public class InterfaceActivatorActivity extends Activity implements LogListener,
         handler.sendEmptyMessageDelayed(handlerCodeActivateButton, 10000);
         textViewLog = (TextView) findViewById(R.id.textViewLog);
         LogHelper.getInstance().setLogListener(this);
-        boolean publicKeyInitialized = KeyHolder.getInstance().makeSureOwnKeyPairIsAvailable(this);
+        // The keys are generated in the background while the interfaces are checked:
+        KeyMaterialService.getInstance().start(getApplicationContext(), this);
         PrefsHelper.generateOwnIdIfNotPresent(this);
-        if (!publicKeyInitialized) {
-            Toast.makeText(this, R.string.error_initializing_rsa, Toast.LENGTH_LONG).show();
-            finish();
-        }
 
         Toast.makeText(this, "Checking if interfaces are enabled...", Toast.LENGTH_SHORT).show();
         availChecker = new InterfaceAvailabilityChecker();
@@ -111,6 +115,13 @@ public class InterfaceActivatorActivity extends Activity implements LogListener,
         handler.sendEmptyMessage(handlerCodeActivateButton);
     }
 
+    @Override
+    public void onOwnKeysAvailable(boolean success) {
+        if (!success) {
+            handler.sendEmptyMessage(handlerCodeKeysFailed);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
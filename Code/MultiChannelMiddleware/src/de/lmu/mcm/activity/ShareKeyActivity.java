@@ -93,10 +93,12 @@ public class ShareKeyActivity extends AbstractMultiChannelActivity implements Da
         }
 
         keyHolder.makeSureOwnKeyPairIsAvailable(this);
-        PublicKey publicKey = KeyHolder.getInstance().getSavedKeyPair(this).getPublic();
+        PublicKey publicKey = keyHolder.getOwnKeyPair(this, keyHolder.getDefaultKeySuite()).getPublic();
 
         PublicKeyExchangeMessage message = new PublicKeyExchangeMessage(ownId, telephoneNumber, bluetoothAddress,
                 publicKey);
+        // Barcodes have little space, received keys are decoded in both the compact and the X.509 encoding
+        message.setUseX509Encoding(false);
 
         try {
             sendDataWithSelectedInterface(message, (byte) 0);
@@ -0,0 +1,75 @@
+package de.lmu.mcm.helper;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A small pool of reusable heap buffers. The buffers are used to assemble the frames that are sent over the
+ * interfaces, so that sending many messages in a row does not allocate a new array for each step of the encoding.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class FrameBufferPool {
+
+    private static FrameBufferPool poolInstance = null;
+    // Buffers smaller than this size are never allocated, so that a buffer can be reused for most chat messages:
+    private final int MIN_BUFFER_SIZE = 1024;
+    // Larger buffers are not kept in the pool, they are left to the garbage collector:
+    private final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+    private final int MAX_POOLED_BUFFERS = 8;
+    private LinkedList<ByteBuffer> freeBuffers = new LinkedList<ByteBuffer>();
+
+    private FrameBufferPool() {
+    }
+
+    public static synchronized FrameBufferPool getInstance() {
+        if (poolInstance == null) {
+            poolInstance = new FrameBufferPool();
+        }
+        return poolInstance;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool or allocates a new one if no pooled buffer is large enough.
+     * 
+     * @param minCapacity
+     *            the number of bytes that have to fit into the buffer
+     * @return a buffer with a backing array and at least the given capacity
+     * */
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        Iterator<ByteBuffer> iterator = freeBuffers.iterator();
+        while (iterator.hasNext()) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= minCapacity) {
+                iterator.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(Math.max(minCapacity, MIN_BUFFER_SIZE));
+    }
+
+    /**
+     * Returns the given buffer to the pool. The buffer must not be used by the caller afterwards.
+     * 
+     * @param buffer
+     *            the buffer that was taken from {@link #acquire(int)}, can be null
+     * */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray() || buffer.capacity() > MAX_POOLED_BUFFER_SIZE
+                || freeBuffers.size() >= MAX_POOLED_BUFFERS) {
+            return;
+        }
+        for (ByteBuffer pooled : freeBuffers) {
+            if (pooled == buffer) {
+                // Already released
+                return;
+            }
+        }
+        buffer.clear();
+        freeBuffers.add(buffer);
+    }
+
+}
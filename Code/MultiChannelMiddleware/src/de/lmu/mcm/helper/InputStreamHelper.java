@@ -1,9 +1,12 @@
 package de.lmu.mcm.helper;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Helper class to support reading of data for the Bluetooth and the Wifi interface.
@@ -14,95 +17,144 @@ import java.util.Arrays;
 public class InputStreamHelper {
 
     private final String TAG;
-    private byte[] buffer;
+    // Directory for frames that are too large to be kept on the heap. If this is null the default temp dir is used.
+    private static File spillDirectory = null;
 
     public InputStreamHelper(String tagPrefic) {
         this.TAG = tagPrefic + " InputStreamHelper";
     }
 
+    // Frames with a larger content are not read into an array but into a memory mapped temporary file:
+    public static final int DEFAULT_SPILL_THRESHOLD = 64 * 1024;
+    // Frames with a larger content are skipped, so that a wrong length indicator does not fill up the storage:
+    public static final int DEFAULT_MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    private static volatile int defaultMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
     private boolean endOfStreamReached = false;
-    // We assume that messages are not larger than this constant. Otherwise we get an out of memory error. In future
-    // implementations it could help to use a different data structure that does not imply such limitations.
-    // For example we could write the InputStream directly to a FileOutputstream so that the received data is cached in
-    // a file on disk.
-    private int maxSize = 8000;
+    private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private int maxFrameSize = defaultMaxFrameSize;
+    private final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Sets the directory in which large frames are cached. Should be called with
+     * {@link android.content.Context#getCacheDir()}.
+     * */
+    public static void setSpillDirectory(File directory) {
+        spillDirectory = directory;
+    }
+
+    /**
+     * Sets the maximum size of the content of frames for all readers that are created afterwards. Has to be raised by
+     * applications that receive larger messages.
+     * 
+     * @param maxFrameSize
+     *            frames whose content is larger than this number of bytes are skipped. The default is
+     *            {@link #DEFAULT_MAX_FRAME_SIZE}.
+     * */
+    public static void setDefaultMaxFrameSize(int maxFrameSize) {
+        defaultMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return the maximum size of the content of frames that readers use unless it is changed for a single reader
+     * */
+    public static int getDefaultMaxFrameSize() {
+        return defaultMaxFrameSize;
+    }
+
+    /**
+     * @param spillThreshold
+     *            frames whose content is larger than this number of bytes are cached in a memory mapped file.
+     * */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @param maxFrameSize
+     *            frames whose content is larger than this number of bytes are skipped.
+     * */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
 
     /**
      * Reads the next bytes from an InputStream which contains data that is formed as specified in the middleware
      * definition. The first four bytes contain an Integer describing the message length indicator (MLI). The fifth byte
      * contains the message length as a Byte. Everything afterwards contains the content in raw bytes. The content has
      * to have exactly the size of the MLI.
+     * 
+     * @return the complete frame in one array. Use {@link #readNextFrame(InputStream)} for large frames.
      * */
     public byte[] readNextBytes(InputStream in) {
+        ReceivedFrame frame = readNextFrame(in);
+        if (frame == null) {
+            return null;
+        }
+        byte[] bytes = frame.toByteArray();
+        frame.release();
+        return bytes;
+    }
+
+    /**
+     * Reads the next frame from the given InputStream and blocks until the frame is complete, even if it arrives in
+     * several parts. Frames up to {@link #setSpillThreshold(int)} bytes are kept on the heap, larger frames are written
+     * to a memory mapped temporary file.
+     * 
+     * @return a handle to the frame or null if no complete frame could be read.
+     * */
+    public ReceivedFrame readNextFrame(InputStream in) {
 
         try {
-            buffer = new byte[4];
-            int read = in.read(buffer, 0, 4);
-
-            if (read == 4) {
-                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-                int lengthIndicator = byteBuffer.getInt();
-
-                if (lengthIndicator > maxSize) {
-                    LogHelper.getInstance().e(TAG,
-                            "Read message of size " + lengthIndicator + " is larger than the constant " + maxSize);
-
-                    // Flush the input stream:
-                    // buffer = new byte[1024];
-                    // int bytesRead = 4;
-                    // while (in.read() != -1) {
-                    // bytesRead++;
-                    // }
-                    // LogHelper.getInstance().e(TAG, "Read " + bytesRead + " bytes of junk bytes");
-
-                    // // / XXX REMOVE REMOVE REMOVE
-                    // buffer = Arrays.copyOf(buffer, 134);
-                    // int readBytes = 0;
-                    // for (int i = 4; readBytes != -1 && i < buffer.length; i++) {
-                    // readBytes = in.read();
-                    // if (readBytes != -1) {
-                    // buffer[i] = (byte) readBytes;
-                    // }
-                    // }
-                    // ByteConverter.printBytes("Read count: " + readBytes, buffer);
-
-                    return null;
-                }
-
-                if (lengthIndicator > 0) {
-                    // We add one because we also read the message type
-                    int completeMessageLength = lengthIndicator + 1;
-                    // And we also store the length indicator to have a complete formatting
-                    completeMessageLength += 4;
-                    buffer = Arrays.copyOf(buffer, completeMessageLength);
-                    // We already read the length indicator so we substract it:
-                    int bytesToRead = completeMessageLength - 4;
-                    // Read message type and content
-                    int readBytes = in.read(buffer, 4, bytesToRead);
-
-                    if (readBytes != bytesToRead) {
-                        LogHelper.getInstance().e(
-                                TAG,
-                                (read + 4) + " bytes read but we expected " + completeMessageLength
-                                        + " => wrong length indicator!");
-                    } else {
-                        LogHelper.getInstance().d(TAG, "correctly read " + completeMessageLength + " bytes");
-                    }
-
-                    return buffer;
-                } else {
-                }
-            } else if (read <= 0) {
+            byte[] header = new byte[MessageFrame.HEADER_LENGTH];
+            int read = readFully(in, header, 0, header.length);
+
+            if (read <= 0) {
                 LogHelper.getInstance().d(TAG, "0 bytes read => End of stream reached");
                 endOfStreamReached = true;
-            } else if (read > 4) {
-                LogHelper.getInstance().e(TAG, read + " bytes read but we expected 4 => something went wrong!");
+                return null;
+            } else if (read < header.length) {
+                LogHelper.getInstance().e(TAG, read + " bytes read but we expected a header of " + header.length);
+                endOfStreamReached = true;
+                return null;
             }
+
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            int lengthIndicator = headerBuffer.getInt();
+            byte messageType = headerBuffer.get();
+
+            if (lengthIndicator <= 0) {
+                LogHelper.getInstance().e(TAG, "Invalid length indicator " + lengthIndicator);
+                return null;
+            } else if (lengthIndicator > maxFrameSize) {
+                LogHelper.getInstance().e(TAG,
+                        "Read message of size " + lengthIndicator + " is larger than the maximum " + maxFrameSize);
+                skipFully(in, lengthIndicator);
+                return null;
+            }
+
+            ReceivedFrame frame;
+            if (lengthIndicator > spillThreshold) {
+                frame = readIntoMappedFile(in, messageType, lengthIndicator);
+            } else {
+                byte[] content = new byte[lengthIndicator];
+                read = readFully(in, content, 0, lengthIndicator);
+                frame = read == lengthIndicator ? new ReceivedFrame(messageType, ByteBuffer.wrap(content), false)
+                        : null;
+            }
+
+            if (frame == null) {
+                LogHelper.getInstance().e(TAG, "Stream ended before " + lengthIndicator + " bytes were read");
+                endOfStreamReached = true;
+            } else {
+                LogHelper.getInstance().d(TAG, "correctly read " + (lengthIndicator + header.length) + " bytes");
+            }
+            return frame;
         } catch (IOException e) {
-            if (e.getMessage().contains("closed")) {
+            if (e.getMessage() != null && e.getMessage().contains("closed")) {
                 LogHelper.getInstance().e(TAG, "Connection closed => End of stream reached");
                 endOfStreamReached = true;
-            } else if (e.getMessage().contains("abort")) {
+            } else if (e.getMessage() != null && e.getMessage().contains("abort")) {
                 LogHelper.getInstance().e(TAG, "Connection aborted => End of stream reached");
                 endOfStreamReached = true;
             } else {
@@ -116,6 +168,79 @@ public class InputStreamHelper {
         return null;
     }
 
+    /**
+     * Copies the content of the frame in chunks into a memory mapped temporary file.
+     * 
+     * @return the frame or null if the stream ended before the content was complete.
+     * */
+    private ReceivedFrame readIntoMappedFile(InputStream in, byte messageType, int length) throws IOException {
+        MappedByteBuffer mapped = mapTemporaryFile(length);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (mapped.hasRemaining()) {
+            int read = in.read(chunk, 0, Math.min(chunk.length, mapped.remaining()));
+            if (read < 0) {
+                return null;
+            }
+            mapped.put(chunk, 0, read);
+        }
+        mapped.flip();
+        LogHelper.getInstance().d(TAG, "Cached frame of " + length + " bytes in a memory mapped file");
+        return new ReceivedFrame(messageType, mapped, true);
+    }
+
+    /**
+     * Creates a temporary file in the spill directory and maps it into memory. The file is deleted right away, the
+     * mapping stays valid until it is garbage collected.
+     * 
+     * @param length
+     *            the size of the file in bytes
+     * @return an empty buffer with the given capacity that is backed by the file
+     * */
+    public static MappedByteBuffer mapTemporaryFile(int length) throws IOException {
+        File file = File.createTempFile("frame", ".tmp", spillDirectory);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            randomAccessFile.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reads from the stream until the given number of bytes is read or the end of the stream is reached.
+     * 
+     * @return the number of bytes that were read
+     * */
+    private int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Discards the given number of bytes so that the next frame can be read.
+     * */
+    private void skipFully(InputStream in, long count) throws IOException {
+        byte[] junk = new byte[CHUNK_SIZE];
+        while (count > 0) {
+            int read = in.read(junk, 0, (int) Math.min(junk.length, count));
+            if (read < 0) {
+                endOfStreamReached = true;
+                return;
+            }
+            count -= read;
+        }
+    }
+
     /**
      * @return true if the end of the stream was reached.
      * */
@@ -0,0 +1,127 @@
+package de.lmu.mcm.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A complete frame as it is written to the interfaces: the length indicator (int), the message type (byte) and the
+ * (encrypted) content. The frame is backed by a buffer of the {@link FrameBufferPool} and can be written to a stream
+ * without copying it. Call {@link #release()} when the frame is not needed any more.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class MessageFrame {
+
+    /** Length of the length indicator (int) and the message type (byte) in front of every frame. */
+    public static final int HEADER_LENGTH = Integer.SIZE / 8 + Byte.SIZE / 8;
+
+    private ByteBuffer buffer;
+    private FrameBufferPool pool;
+    // Identifies the send of this frame in the SentMessageTracker of the daemon, 0 if the frame is not tracked:
+    private volatile long sendId = 0;
+
+    /**
+     * @param buffer
+     *            a buffer that contains the frame from index 0 to its limit
+     * @param pool
+     *            the pool the buffer is returned to on {@link #release()} or null if the buffer is not pooled
+     * */
+    public MessageFrame(ByteBuffer buffer, FrameBufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Wraps an already encoded frame without copying it. The array is not returned to any pool.
+     * */
+    public static MessageFrame wrap(byte[] frame) {
+        return new MessageFrame(ByteBuffer.wrap(frame), null);
+    }
+
+    /**
+     * @return a slice that shares its content with this frame (position 0, limit = length of the frame) or null if the
+     *         frame was released.
+     * */
+    public ByteBuffer getSlice() {
+        if (buffer == null) {
+            return null;
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.limit(buffer.limit());
+        return duplicate.slice();
+    }
+
+    /**
+     * @return the number of bytes of the complete frame including the header.
+     * */
+    public int getLength() {
+        return buffer == null ? 0 : buffer.limit();
+    }
+
+    /**
+     * @return the message type of this frame or -1 if the frame was released or is too short.
+     * */
+    public byte getMessageType() {
+        if (buffer == null || buffer.limit() < HEADER_LENGTH) {
+            return -1;
+        }
+        return buffer.get(HEADER_LENGTH - 1);
+    }
+
+    /**
+     * Writes the complete frame to the given stream directly from the backing array.
+     * */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Frame was already released");
+        }
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+    }
+
+    /**
+     * Copies the frame to a new array. Only use this for interfaces that need an array anyway (e.g. SMS, NFC).
+     * 
+     * @return a copy of the complete frame or null if the frame was released.
+     * */
+    public byte[] toByteArray() {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] copy = new byte[buffer.limit()];
+        System.arraycopy(buffer.array(), buffer.arrayOffset(), copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Returns the backing buffer to its pool. The frame can not be used afterwards.
+     * */
+    public void release() {
+        if (buffer != null && pool != null) {
+            pool.release(buffer);
+        }
+        buffer = null;
+    }
+
+    /**
+     * @return the id the daemon tracks the send of this frame with or 0 if it is not tracked. The id stays valid after
+     *         {@link #release()}.
+     * */
+    public long getSendId() {
+        return sendId;
+    }
+
+    public void setSendId(long sendId) {
+        this.sendId = sendId;
+    }
+
+    /**
+     * @return true if {@link #release()} was called.
+     * */
+    public boolean isReleased() {
+        return buffer == null;
+    }
+
+}
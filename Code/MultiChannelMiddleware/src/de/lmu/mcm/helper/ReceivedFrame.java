@@ -0,0 +1,107 @@
+package de.lmu.mcm.helper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handle to a frame that was read from an interface. Small frames are kept in an array on the heap, large frames are
+ * kept in a memory mapped temporary file (see {@link InputStreamHelper#setSpillThreshold(int)}), so that the content
+ * does not have to be copied into one large array.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class ReceivedFrame {
+
+    private final byte messageType;
+    private final int contentLength;
+    private final boolean spilledToDisk;
+    private ByteBuffer content;
+
+    /**
+     * @param messageType
+     *            the message type from the header of the frame
+     * @param content
+     *            the (encrypted) content of the frame from its position to its limit, without the header
+     * @param spilledToDisk
+     *            true if the content is a memory mapped file
+     * */
+    public ReceivedFrame(byte messageType, ByteBuffer content, boolean spilledToDisk) {
+        this.messageType = messageType;
+        this.content = content.slice();
+        this.contentLength = this.content.remaining();
+        this.spilledToDisk = spilledToDisk;
+    }
+
+    /**
+     * Parses a complete frame (length indicator, message type and content).
+     * 
+     * @return the frame or null if the array is too short or the length indicator does not match the content.
+     * */
+    public static ReceivedFrame fromBytes(byte[] rawFrame) {
+        if (rawFrame == null || rawFrame.length < MessageFrame.HEADER_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(rawFrame);
+        int lengthIndicator = buffer.getInt();
+        byte messageType = buffer.get();
+        if (lengthIndicator != buffer.remaining()) {
+            return null;
+        }
+        return new ReceivedFrame(messageType, buffer, false);
+    }
+
+    /**
+     * @return the message type of this frame.
+     * */
+    public byte getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * @return the length of the content (the value of the length indicator).
+     * */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return a read only view of the content that starts at position 0 or null if the frame was released.
+     * */
+    public ByteBuffer getContent() {
+        if (content == null) {
+            return null;
+        }
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return true if the content is stored in a memory mapped file instead of the heap.
+     * */
+    public boolean isSpilledToDisk() {
+        return spilledToDisk;
+    }
+
+    /**
+     * Copies the complete frame including the header to a new array. Avoid this for large frames.
+     * 
+     * @return the frame or null if it was released.
+     * */
+    public byte[] toByteArray() {
+        if (content == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(MessageFrame.HEADER_LENGTH + contentLength);
+        buffer.putInt(contentLength);
+        buffer.put(messageType);
+        buffer.put(getContent());
+        return buffer.array();
+    }
+
+    /**
+     * Drops the reference to the content so that the heap array or the file mapping can be freed.
+     * */
+    public void release() {
+        content = null;
+    }
+
+}
@@ -2,6 +2,10 @@ package de.lmu.mcm.network;
 
 import android.app.Activity;
 import de.lmu.mcm.helper.CancelableThread;
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.MessageOrigin;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
 
 /**
  * Basic class for a communication interface. Provides common methods to communicate with the network daemon. Also
@@ -16,12 +20,149 @@ public abstract class AbstractCommunicationModule implements CommonInterface {
 
     protected String TAG = "NOT INITIALIZED";
     private NetworkDaemon daemon;
+    private SendQueue sendQueue;
+    private SendQueuePolicy sendQueuePolicy = SendQueuePolicy.BLOCK;
+    private int sendQueueCapacity = SendQueue.DEFAULT_CAPACITY;
 
     public AbstractCommunicationModule(Activity activity, NetworkDaemon daemon) {
         TAG = this.getClass().getSimpleName();
         this.daemon = daemon;
     }
 
+    /**
+     * Interfaces that can not write the frame directly (e.g. because they have to encode it first) send a copy of it
+     * with {@link #sendData(Activity, byte[], long)}. Interfaces that write to a stream should override this method.
+     * */
+    @Override
+    public boolean sendFrame(Activity activity, MessageFrame frame) {
+        long sendId = frame.getSendId();
+        byte[] data = frame.toByteArray();
+        frame.release();
+        return sendData(activity, data, sendId);
+    }
+
+    /**
+     * Sends a copy of a frame. Interfaces that override this method pass the send id to
+     * {@link ProtocolMessage#setSendId(long)} when they report the sent data, so that the daemon can pass the original
+     * message to its listener. The default implementation calls {@link #sendData(Activity, byte[])}.
+     * 
+     * @param sendId
+     *            the id of the frame (see {@link MessageFrame#getSendId()}), 0 if it is not tracked
+     * */
+    protected boolean sendData(Activity activity, byte[] data, long sendId) {
+        return sendData(activity, data);
+    }
+
+    /**
+     * Interfaces that are connected to only one communication partner send the frame with
+     * {@link #sendFrame(Activity, MessageFrame)}. Interfaces that are connected to several communication partners have
+     * to override this method.
+     * */
+    @Override
+    public boolean sendFrame(Activity activity, MultiNetworkAddress address, MessageFrame frame) {
+        return sendFrame(activity, frame);
+    }
+
+    /**
+     * Configures the send queue of this interface. A running queue is stopped and its frames are discarded.
+     * 
+     * @param policy
+     *            what happens if a frame is sent while the queue is full
+     * @param capacity
+     *            the maximum number of frames that wait to be written
+     * */
+    public synchronized void setSendQueuePolicy(SendQueuePolicy policy, int capacity) {
+        stopSendQueue();
+        this.sendQueuePolicy = policy;
+        this.sendQueueCapacity = capacity;
+    }
+
+    /**
+     * @return what happens if a frame is sent while the send queue is full
+     * */
+    protected synchronized SendQueuePolicy getSendQueuePolicy() {
+        return sendQueuePolicy;
+    }
+
+    /**
+     * @return the maximum number of frames that wait to be written
+     * */
+    protected synchronized int getSendQueueCapacity() {
+        return sendQueueCapacity;
+    }
+
+    /**
+     * @return the send queue of this interface, e.g. to read its depth and wait times, or null if nothing was queued
+     *         yet.
+     * */
+    public synchronized SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Adds the frame to the send queue of this interface. The frames are written one after another by
+     * {@link #writeFrameBlocking(MessageFrame)} on a single writer thread.
+     * 
+     * @return false if the frame was rejected because the queue is full.
+     * */
+    protected boolean enqueueFrame(MessageFrame frame) {
+        SendQueue queue;
+        synchronized (this) {
+            if (sendQueue == null) {
+                sendQueue = new SendQueue(TAG, new QueueWriter(), sendQueuePolicy, sendQueueCapacity);
+            }
+            queue = sendQueue;
+        }
+        return queue.enqueue(frame);
+    }
+
+    /**
+     * Writes a frame from the send queue. Called from the writer thread of the queue. Interfaces that use
+     * {@link #enqueueFrame(MessageFrame)} have to override this method and notify the daemon about the sent data. The
+     * frame is released after this method returned.
+     * 
+     * @return true if the frame was written.
+     * */
+    protected boolean writeFrameBlocking(MessageFrame frame) {
+        return false;
+    }
+
+    /**
+     * Discards all frames that wait to be written, e.g. because the connection was lost.
+     * */
+    protected synchronized void clearSendQueue() {
+        if (sendQueue != null) {
+            sendQueue.clear();
+        }
+    }
+
+    /**
+     * Discards all frames that wait to be written and stops the writer thread.
+     * */
+    protected synchronized void stopSendQueue() {
+        if (sendQueue != null) {
+            LogHelper.getInstance().d(TAG, "Stopping send queue: " + sendQueue);
+            sendQueue.stop();
+            sendQueue = null;
+        }
+    }
+
+    /**
+     * Forwards the frames of the send queue to this interface.
+     * */
+    private class QueueWriter implements SendQueue.FrameWriter {
+
+        @Override
+        public boolean writeFrame(MessageFrame frame) {
+            return writeFrameBlocking(frame);
+        }
+
+        @Override
+        public void onFrameDiscarded(MessageFrame frame) {
+            notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, null, frame), false);
+        }
+    }
+
     /**
      * 
      * Notifies the {@link de.lmu.mcm.network.NetworkDaemon NetworkDaemon} that a connection setup failed.
@@ -73,6 +214,38 @@ public abstract class AbstractCommunicationModule implements CommonInterface {
         }
     }
 
+    /**
+     * Notifies the {@link de.lmu.mcm.network.NetworkDaemon NetworkDaemon} that data was received. Called on the
+     * {@link InboundWorker}, drops the message if the daemon does not accept it within
+     * {@link InboundWorker#MAX_WAIT_FOR_PIPELINE_IN_MS}.
+     * 
+     * @param message
+     *            the message that was received by this interface.
+     * @return false if the message was dropped
+     */
+    protected boolean notifyDaemonAboutDataReceivedOnWorker(ProtocolMessage message) {
+        if (daemon != null) {
+            return daemon.onDataReceived(getInterfaceName(), message, InboundWorker.MAX_WAIT_FOR_PIPELINE_IN_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Notifies the {@link de.lmu.mcm.network.NetworkDaemon NetworkDaemon} that data was received, without blocking.
+     * 
+     * @param message
+     *            the message that was received by this interface.
+     * @param resumeReading
+     *            run when the interface may read from the sender again
+     * @return false if the interface has to stop reading from the sender until resumeReading is run
+     */
+    protected boolean notifyDaemonAboutReceivedData(ProtocolMessage message, Runnable resumeReading) {
+        if (daemon != null) {
+            return daemon.onDataReceived(getInterfaceName(), message, resumeReading);
+        }
+        return true;
+    }
+
     /**
      * Notifies the {@link de.lmu.mcm.network.NetworkDaemon NetworkDaemon} that the connection was terminated.
      */
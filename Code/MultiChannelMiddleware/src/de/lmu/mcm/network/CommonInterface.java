@@ -2,6 +2,7 @@ package de.lmu.mcm.network;
 
 import android.app.Activity;
 import android.content.Intent;
+import de.lmu.mcm.helper.MessageFrame;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
 
 /**
@@ -44,6 +45,25 @@ public interface CommonInterface {
      */
     public abstract boolean sendData(Activity activity, byte[] data);
 
+    /**
+     * Sends a frame that was prepared by the {@link de.lmu.mcm.security.MessageEncryptionHandler
+     * MessageEncryptionHandler}. The interface releases the frame after it was written.
+     * 
+     * @return true if the call succeeded and the CommunicationModule is sending the message.
+     */
+    public abstract boolean sendFrame(Activity activity, MessageFrame frame);
+
+    /**
+     * Sends a frame to a single communication partner. Interfaces that are connected to only one communication partner
+     * ignore the address. The interface releases the frame after it was written.
+     * 
+     * @param address
+     *            the address of the communication partner as passed to the daemon when the connection was set up or the
+     *            frame was received
+     * @return true if the call succeeded and the CommunicationModule is sending the message.
+     */
+    public abstract boolean sendFrame(Activity activity, MultiNetworkAddress address, MessageFrame frame);
+
     /**
      * Listens for new messages.
      * 
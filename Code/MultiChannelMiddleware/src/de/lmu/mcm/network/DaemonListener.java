@@ -47,7 +47,8 @@ public interface DaemonListener {
      * @param interfaceName
      *            the name of the interface
      * @param message
-     *            the message or null if the message was not well formed
+     *            the message or null if the message could not be sent. {@link ProtocolMessage#getSentMessage()}
+     *            returns the original message, so there is no need to decrypt the sent bytes.
      */
     public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message);
 
@@ -1,5 +1,7 @@
 package de.lmu.mcm.network;
 
+import java.security.Key;
+
 /**
  * Contains enums used in this project.
  * 
@@ -32,4 +34,37 @@ public class Enums {
         SEND, RECEIVE
     }
 
+    /**
+     * What happens if a frame is sent while the send queue of an interface is full: the caller waits for free space,
+     * the oldest waiting frame is dropped or the new frame is rejected.
+     * */
+    public static enum SendQueuePolicy {
+        BLOCK, DROP_OLDEST, FAIL_FAST
+    }
+
+    /**
+     * What a message needs to be protected against: NONE only detects transmission errors, AUTHENTICATED proves the
+     * sender and that the message was not modified, CONFIDENTIAL additionally hides the content from everyone but the
+     * receiver. The daemon picks the cheapest message type that provides the level (see
+     * MessageEncryptionHandler#selectMessageType).
+     * */
+    public static enum SecurityLevel {
+        NONE, AUTHENTICATED, CONFIDENTIAL
+    }
+
+    /**
+     * The algorithms of an identity key pair: RSA (encryption and signatures) or EC (ECDH key agreement and ECDSA
+     * signatures).
+     * */
+    public static enum KeySuite {
+        RSA, EC;
+
+        /**
+         * @return the suite the given key belongs to
+         * */
+        public static KeySuite fromKey(Key key) {
+            return key != null && "EC".equals(key.getAlgorithm()) ? EC : RSA;
+        }
+    }
+
 }
@@ -0,0 +1,510 @@
+package de.lmu.mcm.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.network.Enums.HandshakeNextAction;
+import de.lmu.mcm.network.Enums.HandshakeRole;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.security.HandshakeStateHolder;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.HandshakeMessage1;
+import de.lmu.mcm.security.byteproto.HandshakeMessage3;
+import de.lmu.mcm.security.byteproto.ResumptionRequestMessage;
+
+/**
+ * Runs a handshake without user interaction. The driver replaces the listener of the {@link NetworkDaemon}, passes
+ * every received message to the {@link HandshakeStateHolder} and sends the next message as soon as the previous one
+ * was processed. All callbacks are passed on to the previous listener afterwards, so that it can display the progress.
+ *
+ * Lost messages are handled like this: A sends its last message again if B did not answer within the retransmission
+ * timeout. B never retransmits on its own but answers a repeated message of A with its last message again, so that
+ * both parties never retransmit at the same time. Other messages are not answered. B stops after A was quiet for the
+ * quiet period, so that it does not stay registered forever.
+ *
+ * The state is guarded by the lock of the driver. Messages are sent and the listeners are called after the lock was
+ * released, so that a listener or the daemon can call back into the driver from another thread.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class HandshakeDriver implements DaemonListener {
+
+    /**
+     * Receives the progress of the handshake. The methods are called from the thread that received or sent the last
+     * message, not from the UI thread.
+     * */
+    public interface HandshakeListener {
+
+        /**
+         * Called after a message was sent or received and processed.
+         *
+         * @param step
+         *            the current step of the handshake (see {@link HandshakeStateHolder#getCurrentStep()})
+         * */
+        public void onHandshakeProgress(int step);
+
+        /**
+         * Called once when the handshake completed or failed because the other party did not answer.
+         * */
+        public void onHandshakeFinished(boolean success);
+    }
+
+    public static final long DEFAULT_RETRANSMISSION_TIMEOUT_IN_MS = 3000;
+    public static final int DEFAULT_MAX_RETRANSMISSIONS = 5;
+    // A gives up after this time, so B waits as long before it stops:
+    public static final long DEFAULT_QUIET_PERIOD_IN_MS = DEFAULT_RETRANSMISSION_TIMEOUT_IN_MS
+            * (DEFAULT_MAX_RETRANSMISSIONS + 1);
+
+    private static final String TAG = "HandshakeDriver";
+    private final NetworkDaemon daemon;
+    private final HandshakeStateHolder stateHolder;
+    private final Activity activity;
+    private final DaemonListener delegate;
+    private final HandshakeListener handshakeListener;
+    // The timer that was passed to the constructor, null if the driver creates its own:
+    private final ScheduledExecutorService externalTimer;
+    private InterfaceIdentifier interfaceName;
+    private long retransmissionTimeoutInMs = DEFAULT_RETRANSMISSION_TIMEOUT_IN_MS;
+    private int maxRetransmissions = DEFAULT_MAX_RETRANSMISSIONS;
+    private long quietPeriodInMs = DEFAULT_QUIET_PERIOD_IN_MS;
+
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> retransmission;
+    private ScheduledFuture<?> quietTimeout;
+    // Incremented whenever a timeout is scheduled or canceled, so that a timeout that already fired is ignored:
+    private int retransmissionGeneration = 0;
+    private int quietTimeoutGeneration = 0;
+    private BasicMessage lastSentMessage;
+    private Class<?> typeOfLastReceivedMessage;
+    private byte messageTypeOfLastSentMessage;
+    private int retransmissions = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean successful = false;
+    private final CountDownLatch finishedSignal = new CountDownLatch(1);
+
+    /**
+     * @param daemon
+     *            the daemon that sends and receives the messages
+     * @param stateHolder
+     *            the state of the handshake
+     * @param activity
+     *            the activity that is passed to the daemon when sending
+     * @param delegate
+     *            receives all callbacks of the daemon after the driver handled them, may be null
+     * @param handshakeListener
+     *            receives the progress of the handshake, may be null
+     * */
+    public HandshakeDriver(NetworkDaemon daemon, HandshakeStateHolder stateHolder, Activity activity,
+            DaemonListener delegate, HandshakeListener handshakeListener) {
+        this(daemon, stateHolder, activity, delegate, handshakeListener, null);
+    }
+
+    /**
+     * Creates a driver that schedules the retransmissions and the quiet period with the given timer, e.g. to control
+     * the time in tests.
+     * 
+     * @param timer
+     *            the timer, which is not shut down by the driver. If null the driver creates its own timer when it
+     *            starts and shuts it down when it stops.
+     * */
+    public HandshakeDriver(NetworkDaemon daemon, HandshakeStateHolder stateHolder, Activity activity,
+            DaemonListener delegate, HandshakeListener handshakeListener, ScheduledExecutorService timer) {
+        this.daemon = daemon;
+        this.stateHolder = stateHolder;
+        this.activity = activity;
+        this.delegate = delegate;
+        this.handshakeListener = handshakeListener;
+        this.externalTimer = timer;
+    }
+
+    /**
+     * @param timeoutInMs
+     *            the time A waits for an answer before it sends its last message again
+     * @param maxRetransmissions
+     *            the number of retransmissions after which the handshake fails
+     * */
+    public synchronized void setRetransmissionPolicy(long timeoutInMs, int maxRetransmissions) {
+        this.retransmissionTimeoutInMs = timeoutInMs;
+        this.maxRetransmissions = maxRetransmissions;
+    }
+
+    /**
+     * @param quietPeriodInMs
+     *            the time B waits for the next message of A before it stops. If the handshake was not complete yet it
+     *            fails.
+     * */
+    public synchronized void setQuietPeriod(long quietPeriodInMs) {
+        this.quietPeriodInMs = quietPeriodInMs;
+    }
+
+    /**
+     * Sets the interface the messages are sent with. Can be changed while the handshake is running.
+     * */
+    public synchronized void setInterface(InterfaceIdentifier interfaceName) {
+        this.interfaceName = interfaceName;
+    }
+
+    /**
+     * Registers the driver as listener of the daemon and sends the first message if this party has to start. Calling
+     * this method again has no effect.
+     * */
+    public void start() {
+        List<Runnable> callouts = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+            timer = externalTimer != null ? externalTimer : Executors.newSingleThreadScheduledExecutor();
+            daemon.setListener(this);
+            LogHelper.getInstance().d(TAG, "Starting handshake as " + stateHolder.getRole());
+            sendNextMessagesIfNecessary(callouts);
+        }
+        runCallouts(callouts);
+    }
+
+    /**
+     * Stops retransmitting and gives the daemon back to the delegate. Does not report the handshake as finished.
+     * */
+    public synchronized void stop() {
+        release();
+    }
+
+    /**
+     * Blocks until the handshake finished or the timeout elapsed.
+     *
+     * @return true if the handshake completed successfully
+     * */
+    public boolean awaitCompletion(long timeoutInMs) throws InterruptedException {
+        return finishedSignal.await(timeoutInMs, TimeUnit.MILLISECONDS) && isSuccessful();
+    }
+
+    /**
+     * @return true if the handshake completed or failed
+     * */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return true if the handshake completed successfully
+     * */
+    public synchronized boolean isSuccessful() {
+        return successful;
+    }
+
+    @Override
+    public void onDataReceived(InterfaceIdentifier interfaceName, BasicMessage message) {
+        List<Runnable> callouts = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (started) {
+                handleReceivedMessage(message, callouts);
+            }
+        }
+        runCallouts(callouts);
+        if (delegate != null) {
+            delegate.onDataReceived(interfaceName, message);
+        }
+    }
+
+    @Override
+    public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message) {
+        if (message == null) {
+            // A retransmits when the timeout elapses, B when A repeats its message:
+            LogHelper.getInstance().e(TAG, "Could not send handshake message via " + interfaceName);
+        }
+        if (delegate != null) {
+            delegate.onDataSent(interfaceName, message);
+        }
+    }
+
+    @Override
+    public void onInterfaceConnectionClosed(InterfaceIdentifier interfaceName) {
+        if (delegate != null) {
+            delegate.onInterfaceConnectionClosed(interfaceName);
+        }
+    }
+
+    @Override
+    public void onInterfaceDestroyed(InterfaceIdentifier interfaceName) {
+        if (delegate != null) {
+            delegate.onInterfaceDestroyed(interfaceName);
+        }
+    }
+
+    @Override
+    public void onConnectionSetupFailed(InterfaceIdentifier interfaceName, MultiNetworkAddress address) {
+        if (delegate != null) {
+            delegate.onConnectionSetupFailed(interfaceName, address);
+        }
+    }
+
+    @Override
+    public void onConnectionIsSetUp(InterfaceIdentifier interfaceName, MultiNetworkAddress address) {
+        List<Runnable> callouts = new ArrayList<Runnable>();
+        synchronized (this) {
+            // The first message may have been sent before the connection existed:
+            if (started && !finished && interfaceName == this.interfaceName && lastSentMessage != null
+                    && stateHolder.getRole() == HandshakeRole.A) {
+                sendLastMessageAgain(callouts);
+            }
+        }
+        runCallouts(callouts);
+        if (delegate != null) {
+            delegate.onConnectionIsSetUp(interfaceName, address);
+        }
+    }
+
+    /**
+     * Passes the message to the state holder. If it was expected the next message is sent. If A repeated the handshake
+     * message it sent last, B answers with its last message again because A obviously did not receive it. Has to be
+     * called while holding the lock of the driver.
+     * */
+    private void handleReceivedMessage(BasicMessage message, List<Runnable> callouts) {
+        boolean expected = !stateHolder.isHandshakeComplete()
+                && stateHolder.getNextAction() == HandshakeNextAction.RECEIVE;
+        try {
+            expected = expected && stateHolder.processReceivedMessage(activity, message);
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error while processing handshake message", e);
+            expected = false;
+        }
+        if (expected) {
+            typeOfLastReceivedMessage = message.getClass();
+            cancelRetransmission();
+            reportProgress(callouts);
+            sendNextMessagesIfNecessary(callouts);
+        } else if (stateHolder.getRole() == HandshakeRole.B && lastSentMessage != null && isRepeatedMessage(message)) {
+            LogHelper.getInstance().d(TAG, "Received repeated message, answering with last message again.");
+            sendLastMessageAgain(callouts);
+        }
+    }
+
+    /**
+     * @return true if the message is a handshake message of the same type as the last one that was received
+     * */
+    private boolean isRepeatedMessage(BasicMessage message) {
+        boolean handshakeMessage = message instanceof HandshakeMessage1 || message instanceof HandshakeMessage3
+                || message instanceof ResumptionRequestMessage;
+        return handshakeMessage && message.getClass() == typeOfLastReceivedMessage;
+    }
+
+    /**
+     * Sends messages until this party has to wait for the other one. Reports the completion of the handshake. Has to
+     * be called while holding the lock of the driver.
+     * */
+    private void sendNextMessagesIfNecessary(List<Runnable> callouts) {
+        while (!stateHolder.isHandshakeComplete() && stateHolder.getNextAction() == HandshakeNextAction.SEND) {
+            BasicMessage message = stateHolder.getNextMessageToSend(activity);
+            if (message == null) {
+                LogHelper.getInstance().e(TAG, "Could not prepare next handshake message.");
+                finish(false, callouts);
+                return;
+            }
+            lastSentMessage = message;
+            messageTypeOfLastSentMessage = stateHolder.getMessageTypeForMessageToSend();
+            retransmissions = 0;
+            send(lastSentMessage, messageTypeOfLastSentMessage, callouts);
+            reportProgress(callouts);
+        }
+        if (stateHolder.isHandshakeComplete()) {
+            finish(true, callouts);
+        } else if (stateHolder.getRole() == HandshakeRole.A && lastSentMessage != null) {
+            scheduleRetransmission();
+        }
+        if (stateHolder.getRole() == HandshakeRole.B && lastSentMessage != null) {
+            scheduleQuietTimeout();
+        }
+    }
+
+    private void sendLastMessageAgain(List<Runnable> callouts) {
+        send(lastSentMessage, messageTypeOfLastSentMessage, callouts);
+        if (stateHolder.getRole() == HandshakeRole.A) {
+            scheduleRetransmission();
+        } else {
+            scheduleQuietTimeout();
+        }
+    }
+
+    /**
+     * Adds a callout that sends the message via the current interface.
+     * */
+    private void send(final BasicMessage message, final byte messageType, List<Runnable> callouts) {
+        final InterfaceIdentifier interfaceName = this.interfaceName;
+        if (interfaceName == null) {
+            LogHelper.getInstance().e(TAG, "No interface set, can not send handshake message.");
+            return;
+        }
+        callouts.add(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    daemon.sendData(message, messageType, interfaceName, activity);
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Could not send handshake message via " + interfaceName, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the callouts that were collected while holding the lock. Must not be called while holding the lock.
+     * */
+    private void runCallouts(List<Runnable> callouts) {
+        for (Runnable callout : callouts) {
+            callout.run();
+        }
+    }
+
+    private void scheduleRetransmission() {
+        cancelRetransmission();
+        if (timer == null) {
+            return;
+        }
+        final int generation = retransmissionGeneration;
+        retransmission = timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                onRetransmissionTimeout(generation);
+            }
+        }, retransmissionTimeoutInMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetransmission() {
+        retransmissionGeneration++;
+        if (retransmission != null) {
+            retransmission.cancel(false);
+            retransmission = null;
+        }
+    }
+
+    /**
+     * Restarts the quiet period of B.
+     * */
+    private void scheduleQuietTimeout() {
+        cancelQuietTimeout();
+        if (timer == null) {
+            return;
+        }
+        final int generation = quietTimeoutGeneration;
+        quietTimeout = timer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                onQuietTimeout(generation);
+            }
+        }, quietPeriodInMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelQuietTimeout() {
+        quietTimeoutGeneration++;
+        if (quietTimeout != null) {
+            quietTimeout.cancel(false);
+            quietTimeout = null;
+        }
+    }
+
+    private void onQuietTimeout(int generation) {
+        List<Runnable> callouts = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (!started || generation != quietTimeoutGeneration) {
+                return;
+            }
+            LogHelper.getInstance().d(TAG, "No message of A within " + quietPeriodInMs + " ms, stopping.");
+            finish(false, callouts);
+            release();
+        }
+        runCallouts(callouts);
+    }
+
+    private void onRetransmissionTimeout(int generation) {
+        List<Runnable> callouts = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (!started || finished || lastSentMessage == null || generation != retransmissionGeneration) {
+                return;
+            }
+            if (retransmissions >= maxRetransmissions) {
+                LogHelper.getInstance().e(TAG, "No answer after " + retransmissions + " retransmissions.");
+                finish(false, callouts);
+            } else {
+                retransmissions++;
+                LogHelper.getInstance().d(TAG, "Retransmitting handshake message " + messageTypeOfLastSentMessage
+                        + " (" + retransmissions + "/" + maxRetransmissions + ")");
+                sendLastMessageAgain(callouts);
+            }
+        }
+        runCallouts(callouts);
+    }
+
+    private void reportProgress(List<Runnable> callouts) {
+        if (handshakeListener == null) {
+            return;
+        }
+        final int step = stateHolder.getCurrentStep();
+        callouts.add(new Runnable() {
+
+            @Override
+            public void run() {
+                handshakeListener.onHandshakeProgress(step);
+            }
+        });
+    }
+
+    /**
+     * Reports the result once. The driver stops afterwards, only B keeps it registered for the quiet period after a
+     * successful handshake, so that it can answer if A did not receive the last message. Has to be called while
+     * holding the lock of the driver.
+     * */
+    private void finish(final boolean success, List<Runnable> callouts) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        successful = success;
+        cancelRetransmission();
+        if (!success || stateHolder.getRole() == HandshakeRole.A) {
+            release();
+        }
+        LogHelper.getInstance().d(TAG, "Handshake finished with success=" + success);
+        finishedSignal.countDown();
+        if (handshakeListener != null) {
+            callouts.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    handshakeListener.onHandshakeFinished(success);
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancels the timeouts, shuts down the own timer and gives the daemon back to the delegate. Has to be called while
+     * holding the lock of the driver.
+     * */
+    private void release() {
+        cancelRetransmission();
+        cancelQuietTimeout();
+        if (timer != null && timer != externalTimer) {
+            timer.shutdownNow();
+        }
+        timer = null;
+        // Another activity may have replaced the driver in the meantime:
+        if (started && daemon.getListener() == this) {
+            daemon.setListener(delegate);
+        }
+        started = false;
+    }
+
+}
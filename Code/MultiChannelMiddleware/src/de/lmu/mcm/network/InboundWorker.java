@@ -0,0 +1,62 @@
+package de.lmu.mcm.network;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.lmu.mcm.helper.LogHelper;
+
+/**
+ * A single background thread for interfaces that receive data on the main thread (SMS, NFC and Barcodes). They hand
+ * the raw payload to this thread, which decodes it and passes it to the {@link ReceivePipeline} of the daemon. So
+ * neither decoding nor waiting for a full pipeline blocks the UI. As there is only one thread the payloads keep the
+ * order in which they arrived.
+ *
+ * Payloads that arrive while the thread waits are kept in its queue. If the pipeline stays full for
+ * {@link #MAX_WAIT_FOR_PIPELINE_IN_MS} the waiting payload is dropped.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class InboundWorker {
+
+    public static final long MAX_WAIT_FOR_PIPELINE_IN_MS = 10000;
+
+    private static final String TAG = "InboundWorker";
+    private static final InboundWorker instance = new InboundWorker();
+    private final ExecutorService worker;
+
+    private InboundWorker() {
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static InboundWorker getInstance() {
+        return instance;
+    }
+
+    /**
+     * Runs the task on the background thread after all tasks that were passed before.
+     * */
+    public void execute(final Runnable task) {
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LogHelper.getInstance().e(TAG, "Error while processing received data", e);
+                }
+            }
+        });
+    }
+
+}
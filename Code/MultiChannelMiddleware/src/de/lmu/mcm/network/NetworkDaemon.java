@@ -3,8 +3,11 @@ package de.lmu.mcm.network;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.crypto.BadPaddingException;
@@ -14,15 +17,21 @@ import javax.crypto.NoSuchPaddingException;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import de.lmu.mcm.helper.InputStreamHelper;
 import de.lmu.mcm.helper.InterfaceAvailabilityChecker;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
 import de.lmu.mcm.helper.PrefsHelper;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.Enums.SecurityLevel;
+import de.lmu.mcm.network.SendPipeline.SendHandle;
 import de.lmu.mcm.network.barcode.BarcodeCommunicator;
 import de.lmu.mcm.network.bluetooth.BluetoothCommunicator;
 import de.lmu.mcm.network.nfc.NfcCommunicator;
 import de.lmu.mcm.network.sms.SmsCommunicator;
 import de.lmu.mcm.network.wifi.WifiCommunicator;
+import de.lmu.mcm.security.HandshakeRegistry;
 import de.lmu.mcm.security.MessageEncryptionHandler;
 import de.lmu.mcm.security.byteproto.BasicMessage;
 
@@ -35,15 +44,53 @@ import de.lmu.mcm.security.byteproto.BasicMessage;
 public class NetworkDaemon {
 
     private static final String TAG = "DAEMON";
-    private boolean initialized = false;
     private Context context;
-    private List<CommonInterface> communicationLinks;
-    private DaemonListener listener;
+    /**
+     * Immutable snapshot of the initialized interfaces, or null if they are not initialized. Lookups read the snapshot
+     * without locking. Initializing and destroying replace the whole snapshot while holding the lock of the daemon, so
+     * threads that call back into the daemon see either all interfaces or none.
+     * */
+    private volatile Map<InterfaceIdentifier, CommonInterface> interfaces;
+    private volatile DaemonListener listener;
     public final static String EXTRA_LAST_SELECTED_INTERFACE = "last selected interface";
     private MessageEncryptionHandler messagePreparer = new MessageEncryptionHandler();
+    private SendPipeline<OutgoingMessage> sendPipeline;
+    private ReceivePipeline receivePipeline;
+    private int maxReceivedFramesPerPeer = ReceivePipeline.DEFAULT_MAX_QUEUED_FRAMES_PER_PEER;
+    private int maxReceivedFrames = ReceivePipeline.DEFAULT_MAX_QUEUED_FRAMES;
+    private SentMessageTracker sentMessageTracker = new SentMessageTracker(new SentMessageTracker.EvictionListener() {
+
+        @Override
+        public void onSendEvicted(InterfaceIdentifier interfaceName, BasicMessage message) {
+            // The interface never reported the frame, so it was most likely lost:
+            onDataSent(interfaceName, null);
+        }
+    });
+    private volatile HandshakeRegistry handshakeRegistry;
+    // The interface each handshake partner sent its last message with, least recently used first:
+    private final Map<String, InterfaceIdentifier> interfacesOfHandshakeAddresses =
+            new LinkedHashMap<String, InterfaceIdentifier>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, InterfaceIdentifier> eldest) {
+                    return size() > HandshakeRegistry.MAX_ENTRIES;
+                }
+            };
+    // The activity that is passed to the interfaces when the handshake registry sends a frame:
+    private volatile Activity currentActivity;
 
+    /**
+     * Creates the daemon together with a {@link HandshakeRegistry} that answers the handshakes of all users.
+     * */
     public NetworkDaemon(Context context) {
         this.context = context;
+        if (context != null) {
+            InputStreamHelper.setSpillDirectory(context.getCacheDir());
+            PrefsHelper.generateOwnIdIfNotPresent(context);
+            handshakeRegistry = new HandshakeRegistry(context, UUID.fromString(PrefsHelper.getOwnId(context)),
+                    new RegistryCallback(), HandshakeRegistry.DEFAULT_WORKER_THREADS);
+        }
     }
 
     /**
@@ -54,17 +101,166 @@ public class NetworkDaemon {
             throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException,
             BadPaddingException, InvalidAlgorithmParameterException {
         checkInitialized(activity);
-        String uuidString = PrefsHelper.getIdOfCommunicationPartner(activity);
-        UUID uuid = null;
-        if (uuidString != null) {
-            uuid = UUID.fromString(uuidString);
-        } else {
+        sendFrame(message, messageType, getIdOfCommunicationPartner(activity), interfaceName, activity);
+    }
+
+    /**
+     * Sends data on the given interface asynchronously with the cheapest message type that provides the given security
+     * level for the communication partner (see {@link MessageEncryptionHandler#selectMessageType}). When the call is
+     * finished the callback {@link #onDataSent(InterfaceIdentifier, ProtocolMessage)} gets executed.
+     * 
+     * @return the type of the frame that was sent, which can differ from the selected type if e.g. hybrid encryption
+     *         or signatures were used. {@link MessageEncryptionHandler#MESSAGE_TYPE_UNAVAILABLE} if the level could not
+     *         be provided or the message could not be prepared.
+     * */
+    public byte sendData(BasicMessage message, SecurityLevel level, InterfaceIdentifier interfaceName,
+            Activity activity) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        checkInitialized(activity);
+        UUID uuid = getIdOfCommunicationPartner(activity);
+        byte messageType = messagePreparer.selectMessageType(activity, uuid, level);
+        if (messageType == MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE) {
+            return messageType;
+        }
+        byte sentType = sendFrame(message, messageType, uuid, interfaceName, activity);
+        if (sentType != MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE) {
+            LogHelper.getInstance().d(TAG, "Sent message with security level " + level + " as: "
+                    + messagePreparer.getMessageTypeAsString(sentType));
+        }
+        return sentType;
+    }
+
+    /**
+     * @return the type of the frame or {@link MessageEncryptionHandler#MESSAGE_TYPE_UNAVAILABLE} if the message could
+     *         not be prepared
+     * */
+    private byte sendFrame(BasicMessage message, byte messageType, UUID uuid, InterfaceIdentifier interfaceName,
+            Activity activity) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        MessageFrame frame = messagePreparer.prepareFrameForSending(activity, uuid, message, messageType);
+        if (frame == null) {
+            LogHelper.getInstance().e(TAG, "Could not prepare message for sending via interface: " + interfaceName);
+            return MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE;
+        }
+        byte sentType = frame.getMessageType();
+        handFrameToInterface(frame, message, interfaceName, null, activity);
+        return sentType;
+    }
+
+    /**
+     * Sends an already prepared frame to a single communication partner. Interfaces that are connected to several
+     * partners (e.g. the wifi server) only write it to the partner with the given address. When the call is finished
+     * the callback {@link #onDataSent(InterfaceIdentifier, ProtocolMessage)} gets executed.
+     * 
+     * @param address
+     *            the address of the communication partner as reported by the interface
+     * */
+    public void sendFrame(InterfaceIdentifier interfaceName, MultiNetworkAddress address, MessageFrame frame,
+            Activity activity) {
+        handFrameToInterface(frame, null, interfaceName, address, activity);
+    }
+
+    /**
+     * Sends data on the given interface asynchronously like {@link #sendData(BasicMessage, SecurityLevel,
+     * InterfaceIdentifier, Activity)}, but returns immediately. The message is encrypted on a pool of worker threads
+     * and frames to the same communication partner via the same interface are sent in the order of the calls. If the
+     * message could not be prepared the callback {@link #onDataSent(InterfaceIdentifier, ProtocolMessage)} is
+     * executed with null.
+     * 
+     * @return a handle to wait until the frame was handed to the interface
+     * */
+    public SendHandle sendDataAsync(BasicMessage message, SecurityLevel level, InterfaceIdentifier interfaceName,
+            Activity activity) {
+        return sendDataAsync(new OutgoingMessage(message, MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE, level,
+                activity), interfaceName, activity);
+    }
+
+    /**
+     * Sends data with the given message type asynchronously, see
+     * {@link #sendDataAsync(BasicMessage, SecurityLevel, InterfaceIdentifier, Activity)}.
+     * */
+    public SendHandle sendDataAsync(BasicMessage message, byte messageType, InterfaceIdentifier interfaceName,
+            Activity activity) {
+        return sendDataAsync(new OutgoingMessage(message, messageType, null, activity), interfaceName, activity);
+    }
+
+    private SendHandle sendDataAsync(OutgoingMessage message, InterfaceIdentifier interfaceName, Activity activity) {
+        checkInitialized(activity);
+        SendPipeline<OutgoingMessage> pipeline;
+        synchronized (this) {
+            if (sendPipeline == null) {
+                sendPipeline = new SendPipeline<OutgoingMessage>(new EncryptionStage());
+            }
+            pipeline = sendPipeline;
+        }
+        return pipeline.submit(interfaceName, getIdOfCommunicationPartner(activity), message);
+    }
+
+    private void handFrameToInterface(MessageFrame frame, BasicMessage message, InterfaceIdentifier interfaceName,
+            MultiNetworkAddress address, Activity activity) {
+        CommonInterface comInterface = getInterface(interfaceName);
+        if (comInterface == null) {
+            LogHelper.getInstance().e(TAG, "Interface was destroyed, can not send via: " + interfaceName);
+            frame.release();
+            onDataSent(interfaceName, null);
+            return;
+        }
+        long sendId = sentMessageTracker.track(interfaceName, frame, message);
+        if (!comInterface.sendFrame(activity, address, frame)) {
+            sentMessageTracker.discard(sendId);
+        }
+        LogHelper.getInstance().d(TAG, "Sending data via interface: " + interfaceName);
+    }
+
+    private UUID getIdOfCommunicationPartner(Context context) {
+        String uuidString = PrefsHelper.getIdOfCommunicationPartner(context);
+        if (uuidString == null) {
             LogHelper.getInstance().d(TAG,
                     "UUID of communication partner was null. This is ok for public key exchange messages.");
+            return null;
+        }
+        return UUID.fromString(uuidString);
+    }
+
+    /**
+     * Limits the number of received frames that wait to be decrypted. If a limit is reached the interface that received
+     * the frame stops reading from the sender until a frame was passed to the listener.
+     * 
+     * @param perPeer
+     *            the maximum number of waiting frames of one sender
+     * @param total
+     *            the maximum number of waiting frames of all senders
+     * */
+    public synchronized void setReceiveQueueLimits(int perPeer, int total) {
+        this.maxReceivedFramesPerPeer = perPeer;
+        this.maxReceivedFrames = total;
+        if (receivePipeline != null) {
+            receivePipeline.setQueueLimits(perPeer, total);
         }
-        byte[] dataToSend = messagePreparer.prepareMessageForSending(activity, uuid, message, messageType);
-        getInterface(interfaceName).sendData(activity, dataToSend);
-        LogHelper.getInstance().d(TAG, "Sending data via interface: " + interfaceName);
+    }
+
+    /**
+     * Received handshake messages are passed to the given registry instead of the listener. The registry runs the
+     * handshakes with all senders at the same time and sends its answers with its own callback. The daemon creates a
+     * registry that answers with the interface and address of the sender, use this method to replace it. While a
+     * {@link HandshakeDriver} is the listener it receives the handshake messages itself.
+     * 
+     * @param registry
+     *            the registry or null to pass handshake messages to the listener again
+     * */
+    public void setHandshakeRegistry(HandshakeRegistry registry) {
+        HandshakeRegistry oldRegistry = handshakeRegistry;
+        this.handshakeRegistry = registry;
+        if (oldRegistry != null && oldRegistry != registry) {
+            oldRegistry.shutdown();
+        }
+    }
+
+    /**
+     * @return the registry that answers received handshake messages or null
+     * */
+    public HandshakeRegistry getHandshakeRegistry() {
+        return handshakeRegistry;
     }
 
     /**
@@ -72,8 +268,12 @@ public class NetworkDaemon {
      * {@link #onDataReceived(InterfaceIdentifier, ProtocolMessage)} is executed.
      * */
     public void waitForData(InterfaceIdentifier interfaceName, Activity activity) {
-        checkInitialized(activity);
-        getInterface(interfaceName).listenForMessages(activity);
+        CommonInterface comInterface = initializeInterfaces(activity).get(interfaceName);
+        if (comInterface == null) {
+            LogHelper.getInstance().e(TAG, "Interface is not available, can not wait for data on: " + interfaceName);
+            return;
+        }
+        comInterface.listenForMessages(activity);
         LogHelper.getInstance().d(TAG, "Waiting for data on interface: " + interfaceName);
     }
 
@@ -81,9 +281,9 @@ public class NetworkDaemon {
      * Establishes a connection to the given service asynchronously.
      * */
     public void establishConnection(Activity activity, ServiceDescription serviceDescription) {
-        checkInitialized(activity);
+        Map<InterfaceIdentifier, CommonInterface> currentInterfaces = initializeInterfaces(activity);
         LogHelper.getInstance().d(TAG, "Trying to establish connection for service: " + serviceDescription);
-        for (CommonInterface comInterface : communicationLinks) {
+        for (CommonInterface comInterface : currentInterfaces.values()) {
             comInterface.setupConnection(activity, serviceDescription);
         }
     }
@@ -92,51 +292,65 @@ public class NetworkDaemon {
      * Checks if all enabled interfaces are initialized and initializes them if this is not the case.
      * */
     public void checkInitialized(Activity activity) {
-        if (!initialized) {
-            communicationLinks = new ArrayList<CommonInterface>();
+        if (activity != null) {
+            currentActivity = activity;
+        }
+        initializeInterfaces(activity);
+    }
+
+    /**
+     * @return the current snapshot of the interfaces. Initializes them first if necessary.
+     * */
+    private Map<InterfaceIdentifier, CommonInterface> initializeInterfaces(Activity activity) {
+        Map<InterfaceIdentifier, CommonInterface> currentInterfaces = interfaces;
+        if (currentInterfaces != null) {
+            return currentInterfaces;
+        }
+        synchronized (this) {
+            if (interfaces != null) {
+                return interfaces;
+            }
+            Map<InterfaceIdentifier, CommonInterface> links = new EnumMap<InterfaceIdentifier, CommonInterface>(
+                    InterfaceIdentifier.class);
             InterfaceAvailabilityChecker availChecker = new InterfaceAvailabilityChecker();
             List<InterfaceIdentifier> enabledInterfaces = availChecker.getEnabledInterfaces(activity);
             for (InterfaceIdentifier comInterface : enabledInterfaces) {
+                CommonInterface newInterface = null;
                 switch (comInterface) {
                 case ARBITRARY:
                     break;
                 case BARCODES:
-                    if (getInterface(InterfaceIdentifier.BARCODES) == null)
-                        communicationLinks.add(new BarcodeCommunicator(activity, this));
+                    newInterface = new BarcodeCommunicator(activity, this);
                     break;
                 case BLUETOOTH:
-                    if (getInterface(InterfaceIdentifier.BLUETOOTH) == null)
-                        communicationLinks.add(new BluetoothCommunicator(activity, this));
+                    newInterface = new BluetoothCommunicator(activity, this);
                     break;
                 case MOBILE_INTERNET:
-                    if (getInterface(InterfaceIdentifier.MOBILE_INTERNET) == null
-                            && getInterface(InterfaceIdentifier.WIFI) == null) {
-                        // This is not accurate. But as both of these interfaces are IP-based they are regarded as the
-                        // same.
-                        communicationLinks.add(new WifiCommunicator(activity, this));
+                case WIFI:
+                    // This is not accurate. But as both of these interfaces are IP-based they are regarded as the
+                    // same.
+                    if (!links.containsKey(InterfaceIdentifier.MOBILE_INTERNET)
+                            && !links.containsKey(InterfaceIdentifier.WIFI)) {
+                        newInterface = new WifiCommunicator(activity, this);
                     }
                     break;
                 case NFC:
-                    if (getInterface(InterfaceIdentifier.NFC) == null)
-                        communicationLinks.add(new NfcCommunicator(activity, this));
+                    newInterface = new NfcCommunicator(activity, this);
                     break;
                 case SMS:
-                    if (getInterface(InterfaceIdentifier.SMS) == null)
-                        communicationLinks.add(new SmsCommunicator(activity, this));
-                    break;
-                case WIFI:
-                    if (getInterface(InterfaceIdentifier.MOBILE_INTERNET) == null
-                            && getInterface(InterfaceIdentifier.WIFI) == null) {
-                        communicationLinks.add(new WifiCommunicator(activity, this));
-                    }
+                    newInterface = new SmsCommunicator(activity, this);
                     break;
                 default:
                     break;
 
                 }
+                if (newInterface != null && !links.containsKey(newInterface.getInterfaceName())) {
+                    links.put(newInterface.getInterfaceName(), newInterface);
+                }
                 LogHelper.getInstance().d(TAG, "Interface initialized: " + comInterface);
             }
-            initialized = true;
+            interfaces = Collections.unmodifiableMap(links);
+            return interfaces;
         }
     }
 
@@ -182,7 +396,10 @@ public class NetworkDaemon {
     }
 
     /**
-     * Callback method that is invoked by the given interface when new data was received.
+     * Callback method that is invoked by the given interface when new data was received. The message is decrypted by
+     * the {@link ReceivePipeline} and passed to the listener on a worker thread, in the order the messages of each peer
+     * were received. Blocks the calling thread while too many received messages wait to be decrypted, see
+     * {@link #setReceiveQueueLimits(int, int)}. Used by interfaces that read each connection on its own thread.
      * 
      * @param message
      *            the received data
@@ -191,32 +408,47 @@ public class NetworkDaemon {
      * */
     public void onDataReceived(InterfaceIdentifier interfaceName, ProtocolMessage message) {
         LogHelper.getInstance().d(TAG, "Received bytes via " + interfaceName);
+        getReceivePipeline().submit(interfaceName, message);
+    }
 
-        if (context == null) {
-            LogHelper.getInstance().e(TAG, "Could not handle received message because the context is null!");
-        } else {
-            String uuidString = PrefsHelper.getIdOfCommunicationPartner(context);
-            UUID uuid = null;
-            if (uuidString != null) {
-                uuid = UUID.fromString(uuidString);
-            } else {
-                LogHelper.getInstance().d(TAG,
-                        "No UUID of communication partner present. This is ok for public key exchange messages.");
-            }
-            try {
-                BasicMessage receivedMsg = messagePreparer.extractReceivedMessage(context, uuid,
-                        message.getRawMessageInBytes());
-                if (listener != null && receivedMsg != null) {
-                    listener.onDataReceived(interfaceName, receivedMsg);
-                }
-            } catch (Exception e) {
-                LogHelper.getInstance().e(TAG, "Error while trying to extract message from interface " + interfaceName);
-            }
+    /**
+     * Like {@link #onDataReceived(InterfaceIdentifier, ProtocolMessage)}, but never blocks. Used by interfaces that
+     * read many connections on one thread. If too many messages of the sender wait to be decrypted, the interface has
+     * to stop reading from the sender until resumeReading is run.
+     * 
+     * @param resumeReading
+     *            run on a worker thread when the interface may read from the sender again
+     * @return false if the interface has to stop reading from the sender
+     * */
+    public boolean onDataReceived(InterfaceIdentifier interfaceName, ProtocolMessage message,
+            Runnable resumeReading) {
+        LogHelper.getInstance().d(TAG, "Received bytes via " + interfaceName);
+        return getReceivePipeline().submitWithoutBlocking(interfaceName, message, resumeReading);
+    }
+
+    /**
+     * Like {@link #onDataReceived(InterfaceIdentifier, ProtocolMessage)}, but drops the message if the pipeline does
+     * not accept it within the given time. Used by the {@link InboundWorker}, which must not be blocked by a single
+     * sender for long.
+     * 
+     * @return false if the message was dropped
+     * */
+    public boolean onDataReceived(InterfaceIdentifier interfaceName, ProtocolMessage message, long maxWaitInMs) {
+        LogHelper.getInstance().d(TAG, "Received bytes via " + interfaceName);
+        return getReceivePipeline().submit(interfaceName, message, maxWaitInMs);
+    }
+
+    private synchronized ReceivePipeline getReceivePipeline() {
+        if (receivePipeline == null) {
+            receivePipeline = new ReceivePipeline(new DecryptionStage());
+            receivePipeline.setQueueLimits(maxReceivedFramesPerPeer, maxReceivedFrames);
         }
+        return receivePipeline;
     }
 
     /**
-     * Callback method that is invoked by the given interface when new data was sent.
+     * Callback method that is invoked by the given interface when new data was sent. The original message and the
+     * transmit time are added to the {@link ProtocolMessage} before it is passed to the listener.
      * 
      * @param message
      *            the sent data
@@ -224,7 +456,12 @@ public class NetworkDaemon {
      *            the name of the interface that sent the data
      * */
     public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message) {
-        LogHelper.getInstance().d(TAG, "Sent bytes via " + interfaceName);
+        if (sentMessageTracker.attachSentMessage(interfaceName, message)) {
+            LogHelper.getInstance().d(TAG, "Sent bytes via " + interfaceName + " in " + message.getTransmitTimeInMs()
+                    + " ms");
+        } else {
+            LogHelper.getInstance().d(TAG, "Sent bytes via " + interfaceName);
+        }
         if (listener != null) {
             listener.onDataSent(interfaceName, message);
         }
@@ -233,15 +470,14 @@ public class NetworkDaemon {
     /**
      * @param interfaceName
      *            the name of the interface
-     * @return the interface with the given name
+     * @return the interface with the given name or null if it is not initialized
      * */
     private CommonInterface getInterface(Enums.InterfaceIdentifier interfaceName) {
-        for (CommonInterface comInterface : communicationLinks) {
-            if (comInterface.getInterfaceName().equals(interfaceName)) {
-                return comInterface;
-            }
+        Map<InterfaceIdentifier, CommonInterface> currentInterfaces = interfaces;
+        if (currentInterfaces == null) {
+            return null;
         }
-        return null;
+        return currentInterfaces.get(interfaceName);
     }
 
     /**
@@ -270,19 +506,27 @@ public class NetworkDaemon {
      * activity was closed without starting a new one.
      * */
     public synchronized void destroyInterfaces(Activity activity) {
-        if (initialized) {
-            for (CommonInterface comInterface : communicationLinks) {
-                if (comInterface != null) {
-                    comInterface.onPause(activity);
-                    comInterface.destroy(activity);
-                    LogHelper.getInstance().d(TAG, "Destroyed interface: " + comInterface.getInterfaceName());
-                    comInterface = null;
-                }
+        // Callbacks of the interfaces that arrive while they are destroyed do not find them anymore:
+        Map<InterfaceIdentifier, CommonInterface> destroyedInterfaces = interfaces;
+        interfaces = null;
+        if (currentActivity == activity) {
+            currentActivity = null;
+        }
+        if (destroyedInterfaces != null) {
+            for (CommonInterface comInterface : destroyedInterfaces.values()) {
+                comInterface.onPause(activity);
+                comInterface.destroy(activity);
+                LogHelper.getInstance().d(TAG, "Destroyed interface: " + comInterface.getInterfaceName());
             }
         }
-        communicationLinks.clear();
-        communicationLinks = null;
-        initialized = false;
+        if (sendPipeline != null) {
+            sendPipeline.shutdown();
+            sendPipeline = null;
+        }
+        if (receivePipeline != null) {
+            receivePipeline.shutdown();
+            receivePipeline = null;
+        }
         LogHelper.getInstance().d(TAG, "Finished destroying interfaces");
     }
 
@@ -290,11 +534,10 @@ public class NetworkDaemon {
      * Call this to stop all current connections. Not used at the moment.
      * */
     public void stopConnectionsOfAllInterfaces(Activity activity) {
-        if (initialized) {
-            for (CommonInterface comInterface : communicationLinks) {
-                if (comInterface != null) {
-                    comInterface.stopCurrentConnection(activity);
-                }
+        Map<InterfaceIdentifier, CommonInterface> currentInterfaces = interfaces;
+        if (currentInterfaces != null) {
+            for (CommonInterface comInterface : currentInterfaces.values()) {
+                comInterface.stopCurrentConnection(activity);
             }
         }
     }
@@ -305,8 +548,7 @@ public class NetworkDaemon {
      * @return true if the activities result was handled by a communication interface.
      * */
     public boolean onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
-        checkInitialized(activity);
-        for (CommonInterface comInterface : communicationLinks) {
+        for (CommonInterface comInterface : initializeInterfaces(activity).values()) {
             if (comInterface.onActivityResult(activity, requestCode, resultCode, data)) {
                 return true;
             }
@@ -318,8 +560,8 @@ public class NetworkDaemon {
      * Call this in the onResume method of your activity.
      * */
     public void onResume(Activity activity) {
-        checkInitialized(activity);
-        for (CommonInterface comInterface : communicationLinks) {
+        currentActivity = activity;
+        for (CommonInterface comInterface : initializeInterfaces(activity).values()) {
             comInterface.onResume(activity);
         }
     }
@@ -328,8 +570,7 @@ public class NetworkDaemon {
      * Call this in the onPause method of your activity.
      * */
     public void onPause(Activity activity) {
-        checkInitialized(activity);
-        for (CommonInterface comInterface : communicationLinks) {
+        for (CommonInterface comInterface : initializeInterfaces(activity).values()) {
             comInterface.onPause(activity);
         }
     }
@@ -339,8 +580,7 @@ public class NetworkDaemon {
      * */
     public void onNewIntent(Activity activity, Intent data) {
         LogHelper.getInstance().d(TAG, "onNewIntent in DAEMON called");
-        checkInitialized(activity);
-        for (CommonInterface comInterface : communicationLinks) {
+        for (CommonInterface comInterface : initializeInterfaces(activity).values()) {
             comInterface.onNewIntent(activity, data);
         }
     }
@@ -358,4 +598,148 @@ public class NetworkDaemon {
         }
 
     }
+
+    /**
+     * @return the listener that currently receives the callbacks or null
+     * */
+    public DaemonListener getListener() {
+        return listener;
+    }
+
+    /**
+     * A message that waits in the {@link SendPipeline}. Either the message type or the security level is given.
+     * */
+    private static class OutgoingMessage {
+        private final BasicMessage message;
+        private final byte messageType;
+        private final SecurityLevel level;
+        private final Activity activity;
+
+        private OutgoingMessage(BasicMessage message, byte messageType, SecurityLevel level, Activity activity) {
+            this.message = message;
+            this.messageType = messageType;
+            this.level = level;
+            this.activity = activity;
+        }
+    }
+
+    /**
+     * Encrypts the messages of the {@link SendPipeline} and hands them to the interfaces.
+     * */
+    private class EncryptionStage implements SendPipeline.FrameStage<OutgoingMessage> {
+
+        @Override
+        public MessageFrame prepareFrame(InterfaceIdentifier interfaceName, UUID peer, OutgoingMessage outgoing)
+                throws Exception {
+            byte messageType = outgoing.messageType;
+            if (outgoing.level != null) {
+                messageType = messagePreparer.selectMessageType(outgoing.activity, peer, outgoing.level);
+                if (messageType == MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE) {
+                    LogHelper.getInstance().e(TAG, "No keys for security level " + outgoing.level);
+                    return null;
+                }
+            }
+            return messagePreparer.prepareFrameForSending(outgoing.activity, peer, outgoing.message, messageType);
+        }
+
+        @Override
+        public void deliverFrame(InterfaceIdentifier interfaceName, UUID peer, OutgoingMessage outgoing,
+                MessageFrame frame) {
+            if (frame == null) {
+                LogHelper.getInstance().e(TAG, "Could not prepare message for sending via interface: " + interfaceName);
+                onDataSent(interfaceName, null);
+            } else {
+                handFrameToInterface(frame, outgoing.message, interfaceName, null, outgoing.activity);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the frames of the {@link ReceivePipeline} and passes the messages to the listener.
+     * */
+    private class DecryptionStage implements ReceivePipeline.MessageStage {
+
+        @Override
+        public BasicMessage decode(InterfaceIdentifier interfaceName, ProtocolMessage message) throws Exception {
+            ReceivedFrame frame = message.getReceivedFrame();
+            try {
+                if (context == null) {
+                    LogHelper.getInstance().e(TAG, "Could not handle received message because the context is null!");
+                    return null;
+                }
+                HandshakeRegistry registry = handshakeRegistry;
+                if (registry != null && frame != null && !(listener instanceof HandshakeDriver)
+                        && HandshakeRegistry.isHandshakeMessageType(frame.getMessageType())) {
+                    rememberInterfaceOfHandshakeAddress(message.getAddress(), interfaceName);
+                    registry.onFrameReceived(message.getAddress(), frame.toByteArray());
+                    return null;
+                }
+                String uuidString = PrefsHelper.getIdOfCommunicationPartner(context);
+                UUID uuid = null;
+                if (uuidString != null) {
+                    uuid = UUID.fromString(uuidString);
+                } else {
+                    LogHelper.getInstance().d(TAG,
+                            "No UUID of communication partner present. This is ok for public key exchange messages.");
+                }
+                return messagePreparer.extractReceivedMessage(context, uuid, frame);
+            } catch (Exception e) {
+                LogHelper.getInstance().e(TAG, "Error while trying to extract message from interface " + interfaceName);
+                return null;
+            } finally {
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }
+
+        @Override
+        public void deliver(InterfaceIdentifier interfaceName, BasicMessage message) {
+            DaemonListener currentListener = listener;
+            if (currentListener != null) {
+                currentListener.onDataReceived(interfaceName, message);
+            }
+        }
+    }
+
+    private void rememberInterfaceOfHandshakeAddress(MultiNetworkAddress address, InterfaceIdentifier interfaceName) {
+        if (address != null) {
+            synchronized (interfacesOfHandshakeAddresses) {
+                interfacesOfHandshakeAddresses.put(address.toString(), interfaceName);
+            }
+        }
+    }
+
+    private InterfaceIdentifier getInterfaceOfHandshakeAddress(MultiNetworkAddress address) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (interfacesOfHandshakeAddresses) {
+            return interfacesOfHandshakeAddresses.get(address.toString());
+        }
+    }
+
+    /**
+     * Sends the answers of the {@link HandshakeRegistry} with the interface the user sent its last message with and
+     * only to the address of the user.
+     * */
+    private class RegistryCallback implements HandshakeRegistry.HandshakeCallback {
+
+        @Override
+        public void sendFrame(UUID remoteId, MultiNetworkAddress address, MessageFrame frame) {
+            InterfaceIdentifier interfaceName = getInterfaceOfHandshakeAddress(address);
+            if (interfaceName == null) {
+                LogHelper.getInstance().e(TAG, "No interface known for handshake with " + remoteId + " at " + address);
+                frame.release();
+                return;
+            }
+            NetworkDaemon.this.sendFrame(interfaceName, address, frame, currentActivity);
+        }
+
+        @Override
+        public void onHandshakeFinished(UUID remoteId, boolean success) {
+            LogHelper.getInstance().d(TAG, "Handshake with " + remoteId + " finished with success=" + success);
+        }
+    }
+
 }
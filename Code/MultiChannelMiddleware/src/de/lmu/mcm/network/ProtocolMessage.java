@@ -1,6 +1,9 @@
 package de.lmu.mcm.network;
 
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.Enums.MessageOrigin;
+import de.lmu.mcm.security.byteproto.BasicMessage;
 
 /**
  * 
@@ -12,9 +15,14 @@ import de.lmu.mcm.network.Enums.MessageOrigin;
 public class ProtocolMessage {
 
     private byte[] rawMessageInBytes;
+    private MessageFrame frame;
+    private ReceivedFrame receivedFrame;
     private MultiNetworkAddress address;
     private long timeOfArrival;
     private MessageOrigin origin;
+    private BasicMessage sentMessage;
+    private long transmitTimeInMs = -1;
+    private long sendId = 0;
 
     private ProtocolMessage(MessageOrigin origin) {
         this.origin = origin;
@@ -40,13 +48,56 @@ public class ProtocolMessage {
         this.address = address;
     }
 
+    /**
+     * This constructor is used by interfaces that wrote a pooled frame. The frame is only copied if
+     * {@link #getRawMessageInBytes()} is called before the interface releases the frame, so listeners have to read the
+     * bytes within the callback. Afterwards {@link #getRawMessageInBytes()} throws an {@link IllegalStateException}.
+     * */
+    public ProtocolMessage(MessageOrigin origin, MultiNetworkAddress address, MessageFrame frame) {
+        this(origin);
+        this.frame = frame;
+        this.address = address;
+    }
+
+    /**
+     * This constructor is used by the interfaces Bluetooth and Internet that read frames from a stream. Large frames
+     * are not copied into an array unless {@link #getRawMessageInBytes()} is called.
+     * */
+    public ProtocolMessage(MessageOrigin origin, MultiNetworkAddress address, ReceivedFrame receivedFrame) {
+        this(origin);
+        this.receivedFrame = receivedFrame;
+        this.address = address;
+    }
+
     /**
      * @return the raw message in bytes
+     * @throws IllegalStateException
+     *             if the message was created from a frame that was released before the bytes were read, e.g. because
+     *             the message was kept after the callback of the daemon returned
      * */
     public byte[] getRawMessageInBytes() {
+        if (rawMessageInBytes == null && frame != null) {
+            rawMessageInBytes = frame.toByteArray();
+        } else if (rawMessageInBytes == null && receivedFrame != null) {
+            rawMessageInBytes = receivedFrame.toByteArray();
+        }
+        if (rawMessageInBytes == null && (frame != null || receivedFrame != null)) {
+            throw new IllegalStateException("The frame was released, read the bytes within the callback.");
+        }
         return rawMessageInBytes;
     }
 
+    /**
+     * @return a handle to the received frame. If the message was created from an array the array is wrapped. Returns
+     *         null if the array does not contain a valid frame.
+     * */
+    public ReceivedFrame getReceivedFrame() {
+        if (receivedFrame == null && rawMessageInBytes != null) {
+            receivedFrame = ReceivedFrame.fromBytes(rawMessageInBytes);
+        }
+        return receivedFrame;
+    }
+
     /**
      * @return the address of the sender or null if no sender was specified.
      * */
@@ -68,4 +119,50 @@ public class ProtocolMessage {
         return origin;
     }
 
+    /**
+     * @return the original message before it was encrypted if this message was sent by this device, null otherwise or
+     *         if the daemon did not know the message anymore.
+     * */
+    public BasicMessage getSentMessage() {
+        return sentMessage;
+    }
+
+    /**
+     * @return the time in ms between preparing the frame for sending and the interface reporting it as sent, or -1 if
+     *         unknown. Includes the time the frame waited in the send queue.
+     * */
+    public long getTransmitTimeInMs() {
+        return transmitTimeInMs;
+    }
+
+    /**
+     * Called by the {@link SentMessageTracker} before the message is passed to the listener of the daemon.
+     * */
+    void setSentMessage(BasicMessage sentMessage, long transmitTimeInMs) {
+        this.sentMessage = sentMessage;
+        this.transmitTimeInMs = transmitTimeInMs;
+    }
+
+    /**
+     * @return the id of the send this message reports (see {@link MessageFrame#getSendId()}) or 0 if it is unknown.
+     * */
+    public long getSendId() {
+        return frame != null ? frame.getSendId() : sendId;
+    }
+
+    /**
+     * Interfaces that sent a copy of a frame pass the send id of the frame, so that the daemon can look up the
+     * original message when the interface reports the sent data.
+     * */
+    public void setSendId(long sendId) {
+        this.sendId = sendId;
+    }
+
+    /**
+     * @return the frame this message was created from or null if it was created from bytes.
+     * */
+    MessageFrame getFrame() {
+        return frame;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,402 @@
+package de.lmu.mcm.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.ReceivedFrame;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+
+/**
+ * Decouples the threads that read from the interfaces from decrypting and parsing the received frames. The reading
+ * threads only hand the framed bytes to {@link #submit(InterfaceIdentifier, ProtocolMessage)}, the frames are decoded
+ * on a pool of worker threads and the messages of each peer are delivered in the order they were received.
+ *
+ * The number of frames that were submitted but not delivered yet is limited per peer and in total. If a limit is
+ * reached {@link #submit(InterfaceIdentifier, ProtocolMessage)} blocks, so that the reading thread stops reading and
+ * the sender is slowed down by the transport (e.g. the TCP window fills up). Threads that serve several peers and must
+ * not block use {@link #submitWithoutBlocking(InterfaceIdentifier, ProtocolMessage, Runnable)} instead and stop
+ * reading from the peer until they are told to resume.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class ReceivePipeline {
+
+    /**
+     * Does the actual work of the pipeline.
+     * */
+    public interface MessageStage {
+
+        /**
+         * Decrypts and parses the received frame. Called on a worker thread, possibly for several frames of the same
+         * peer at the same time. Has to release the frame of the message.
+         *
+         * @return the message or null if the frame was not well formed
+         * */
+        public BasicMessage decode(InterfaceIdentifier interfaceName, ProtocolMessage message) throws Exception;
+
+        /**
+         * Called for the decoded messages of a peer one after another in the order they were received. Messages that
+         * could not be decoded are skipped.
+         * */
+        public void deliver(InterfaceIdentifier interfaceName, BasicMessage message);
+    }
+
+    public static final int DEFAULT_MAX_QUEUED_FRAMES_PER_PEER = 16;
+    public static final int DEFAULT_MAX_QUEUED_FRAMES = 64;
+
+    private static final String TAG = "ReceivePipeline";
+    private final MessageStage stage;
+    private final ExecutorService workers;
+    // Guarded by this:
+    private final Map<LaneKey, Lane> lanes = new HashMap<LaneKey, Lane>();
+    private int maxQueuedFramesPerPeer = DEFAULT_MAX_QUEUED_FRAMES_PER_PEER;
+    private int maxQueuedFrames = DEFAULT_MAX_QUEUED_FRAMES;
+    private int queuedFrames = 0;
+    private boolean shutdown = false;
+    // Readers that stopped reading from a peer, resumed when the queue of the peer drained:
+    private final List<PausedReader> pausedReaders = new ArrayList<PausedReader>();
+
+    /**
+     * Creates a pipeline with one worker per available core.
+     * */
+    public ReceivePipeline(MessageStage stage) {
+        this(stage, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ReceivePipeline(MessageStage stage, int workerThreads) {
+        this.stage = stage;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads));
+    }
+
+    /**
+     * @param perPeer
+     *            the maximum number of frames of one peer that were received but not delivered yet
+     * @param total
+     *            the maximum number of frames of all peers that were received but not delivered yet
+     * */
+    public synchronized void setQueueLimits(int perPeer, int total) {
+        this.maxQueuedFramesPerPeer = Math.max(1, perPeer);
+        this.maxQueuedFrames = Math.max(1, total);
+        notifyAll();
+    }
+
+    /**
+     * @return the number of frames that were received but not delivered yet
+     * */
+    public synchronized int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    /**
+     * Hands a received frame to the workers. Blocks while the limits of queued frames are reached.
+     *
+     * @return false if the frame was dropped because the pipeline was shut down or the thread was interrupted while
+     *         waiting. The frame was released in this case.
+     * */
+    public boolean submit(InterfaceIdentifier interfaceName, ProtocolMessage message) {
+        return submit(interfaceName, message, 0);
+    }
+
+    /**
+     * Like {@link #submit(InterfaceIdentifier, ProtocolMessage)}, but waits at most the given time for the pipeline
+     * to accept the frame.
+     *
+     * @param maxWaitInMs
+     *            the maximum time to wait while the limits are reached, 0 to wait as long as necessary
+     * @return false if the frame was dropped because the pipeline stayed full, was shut down or the thread was
+     *         interrupted while waiting. The frame was released in this case.
+     * */
+    public boolean submit(final InterfaceIdentifier interfaceName, final ProtocolMessage message, long maxWaitInMs) {
+        final LaneKey key = new LaneKey(interfaceName, message.getAddress());
+        final long sequenceNumber;
+        synchronized (this) {
+            Lane lane = lanes.get(key);
+            long deadline = System.currentTimeMillis() + maxWaitInMs;
+            try {
+                while (!shutdown && isFull(lane)) {
+                    long remainingTime = deadline - System.currentTimeMillis();
+                    if (maxWaitInMs > 0 && remainingTime <= 0) {
+                        LogHelper.getInstance().e(TAG, "Pipeline stayed full, dropping frame of " + interfaceName);
+                        release(message);
+                        return false;
+                    }
+                    wait(maxWaitInMs > 0 ? remainingTime : 0);
+                    lane = lanes.get(key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LogHelper.getInstance().e(TAG, "Interrupted while waiting, dropping frame of " + interfaceName);
+                release(message);
+                return false;
+            }
+            if (shutdown) {
+                LogHelper.getInstance().e(TAG, "Pipeline was shut down, dropping frame of " + interfaceName);
+                release(message);
+                return false;
+            }
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(key, lane);
+            }
+            sequenceNumber = lane.nextSequenceNumber++;
+            queuedFrames++;
+        }
+        return decodeOnWorker(key, sequenceNumber, message);
+    }
+
+    /**
+     * Hands a received frame to the workers without blocking, e.g. from a thread that serves several peers. The frame
+     * is always accepted, even if a limit is reached. In this case the caller has to stop reading from the peer until
+     * the given task is run.
+     *
+     * @param resumeReading
+     *            run on a worker thread as soon as the peer is below its limit again, if this method returned false
+     * @return false if the caller has to stop reading from the peer. Frames are dropped and released if the pipeline
+     *         was shut down, this does not pause the reader.
+     * */
+    public boolean submitWithoutBlocking(InterfaceIdentifier interfaceName, ProtocolMessage message,
+            Runnable resumeReading) {
+        LaneKey key = new LaneKey(interfaceName, message.getAddress());
+        long sequenceNumber;
+        boolean full;
+        synchronized (this) {
+            if (shutdown) {
+                LogHelper.getInstance().e(TAG, "Pipeline was shut down, dropping frame of " + interfaceName);
+                release(message);
+                return true;
+            }
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(key, lane);
+            }
+            sequenceNumber = lane.nextSequenceNumber++;
+            queuedFrames++;
+            full = isFull(lane);
+            if (full) {
+                pausedReaders.add(new PausedReader(key, resumeReading));
+            }
+        }
+        decodeOnWorker(key, sequenceNumber, message);
+        return !full;
+    }
+
+    /**
+     * @return true if no further frame of the lane may be queued
+     * */
+    private boolean isFull(Lane lane) {
+        return queuedFrames >= maxQueuedFrames || (lane != null && lane.getQueuedFrames() >= maxQueuedFramesPerPeer);
+    }
+
+    private boolean decodeOnWorker(final LaneKey key, final long sequenceNumber, final ProtocolMessage message) {
+        final InterfaceIdentifier interfaceName = key.interfaceName;
+        try {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    BasicMessage decoded = null;
+                    try {
+                        decoded = stage.decode(interfaceName, message);
+                    } catch (Exception e) {
+                        LogHelper.getInstance().e(TAG, "Could not decode message of " + interfaceName, e);
+                    }
+                    onMessageDecoded(key, sequenceNumber, new DecodedMessage(decoded));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LogHelper.getInstance().e(TAG, "Pipeline was shut down, dropping frame of " + interfaceName);
+            release(message);
+            // Keeps the lane going for the frames that were submitted before:
+            onMessageDecoded(key, sequenceNumber, new DecodedMessage(null));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the workers after the submitted frames were decoded. Threads that wait in
+     * {@link #submit(InterfaceIdentifier, ProtocolMessage)} drop their frames.
+     * */
+    public void shutdown() {
+        List<Runnable> resumeTasks = new ArrayList<Runnable>();
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+            for (PausedReader reader : pausedReaders) {
+                resumeTasks.add(reader.resumeReading);
+            }
+            pausedReaders.clear();
+        }
+        workers.shutdown();
+        // The readers drop their next frames:
+        runAll(resumeTasks);
+    }
+
+    /**
+     * Stores the message in its lane and delivers all messages that are next in order, unless another thread already
+     * does so.
+     * */
+    private void onMessageDecoded(LaneKey key, long sequenceNumber, DecodedMessage decoded) {
+        Lane lane;
+        synchronized (this) {
+            lane = lanes.get(key);
+            lane.decodedMessages.put(sequenceNumber, decoded);
+            if (lane.delivering) {
+                return;
+            }
+            lane.delivering = true;
+        }
+        while (true) {
+            DecodedMessage next;
+            List<Runnable> resumeTasks;
+            synchronized (this) {
+                next = lane.decodedMessages.remove(lane.nextSequenceNumberToDeliver);
+                if (next == null) {
+                    lane.delivering = false;
+                    if (lane.getQueuedFrames() == 0) {
+                        lanes.remove(key);
+                    }
+                    return;
+                }
+                lane.nextSequenceNumberToDeliver++;
+                queuedFrames--;
+                notifyAll();
+                resumeTasks = takeResumableReaders();
+            }
+            runAll(resumeTasks);
+            if (next.message != null) {
+                try {
+                    stage.deliver(key.interfaceName, next.message);
+                } catch (RuntimeException e) {
+                    LogHelper.getInstance().e(TAG, "Error while delivering message of " + key.interfaceName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the paused readers whose peers are below the limits again. Has to be called while holding the lock.
+     *
+     * @return the tasks that resume the readers
+     * */
+    private List<Runnable> takeResumableReaders() {
+        if (pausedReaders.isEmpty()) {
+            return null;
+        }
+        List<Runnable> resumeTasks = null;
+        Iterator<PausedReader> iterator = pausedReaders.iterator();
+        while (iterator.hasNext()) {
+            PausedReader reader = iterator.next();
+            if (!isFull(lanes.get(reader.key))) {
+                iterator.remove();
+                if (resumeTasks == null) {
+                    resumeTasks = new ArrayList<Runnable>();
+                }
+                resumeTasks.add(reader.resumeReading);
+            }
+        }
+        return resumeTasks;
+    }
+
+    private void runAll(List<Runnable> tasks) {
+        if (tasks == null) {
+            return;
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LogHelper.getInstance().e(TAG, "Error while resuming a reader", e);
+            }
+        }
+    }
+
+    private void release(ProtocolMessage message) {
+        ReceivedFrame frame = message.getReceivedFrame();
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * The frames of one peer via one interface.
+     * */
+    private static class Lane {
+        private long nextSequenceNumber = 0;
+        private long nextSequenceNumberToDeliver = 0;
+        private boolean delivering = false;
+        private final Map<Long, DecodedMessage> decodedMessages = new HashMap<Long, DecodedMessage>();
+
+        private int getQueuedFrames() {
+            return (int) (nextSequenceNumber - nextSequenceNumberToDeliver);
+        }
+    }
+
+    private static class PausedReader {
+        private final LaneKey key;
+        private final Runnable resumeReading;
+
+        private PausedReader(LaneKey key, Runnable resumeReading) {
+            this.key = key;
+            this.resumeReading = resumeReading;
+        }
+    }
+
+    private static class DecodedMessage {
+        private final BasicMessage message;
+
+        private DecodedMessage(BasicMessage message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Identifies a peer by the address of the transport. Interfaces that do not know the sender (NFC, Barcodes) have
+     * one lane per interface.
+     * */
+    private static class LaneKey {
+        private final InterfaceIdentifier interfaceName;
+        private final String peer;
+
+        private LaneKey(InterfaceIdentifier interfaceName, MultiNetworkAddress address) {
+            this.interfaceName = interfaceName;
+            if (address == null) {
+                peer = null;
+            } else if (address.getBluetoothAddressAsString() != null) {
+                peer = address.getBluetoothAddressAsString();
+            } else if (address.getIpAddress() != null) {
+                peer = address.getIpAddress().getHostAddress() + ":" + address.getIpPort();
+            } else {
+                peer = address.getSmsAddress();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return interfaceName.hashCode() * 31 + (peer == null ? 0 : peer.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LaneKey)) {
+                return false;
+            }
+            LaneKey other = (LaneKey) o;
+            if (peer == null) {
+                return interfaceName == other.interfaceName && other.peer == null;
+            }
+            return interfaceName == other.interfaceName && peer.equals(other.peer);
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+package de.lmu.mcm.network;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.security.MessageEncryptionHandler;
+
+/**
+ * Prepares frames for sending on a pool of worker threads and hands them to the interfaces in the order the messages
+ * were submitted. Messages to different peers or via different interfaces are independent of each other, messages to
+ * the same peer via the same interface (a lane) keep their order even if a later message was encrypted faster.
+ *
+ * Each message gets the next sequence number of its lane. Finished frames wait in the lane until all earlier frames
+ * were handed to the interface. Only one thread at a time hands frames of a lane to the interface.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class SendPipeline<M> {
+
+    /**
+     * Does the actual work of the pipeline.
+     * */
+    public interface FrameStage<M> {
+
+        /**
+         * Prepares the frame. Called on a worker thread, possibly for several messages at the same time.
+         *
+         * @return the frame or null if the message could not be prepared
+         * */
+        public MessageFrame prepareFrame(InterfaceIdentifier interfaceName, UUID peer, M message) throws Exception;
+
+        /**
+         * Hands a prepared frame to the interface. Called for the frames of a lane one after another in submission
+         * order. A null frame means that the preparation failed.
+         * */
+        public void deliverFrame(InterfaceIdentifier interfaceName, UUID peer, M message, MessageFrame frame);
+    }
+
+    /**
+     * Returned for every submitted message to wait until its frame was handed to the interface.
+     * */
+    public static class SendHandle {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile byte messageType = MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE;
+
+        /**
+         * Blocks until the frame was handed to the interface or the timeout elapsed.
+         *
+         * @return the type of the frame or {@link MessageEncryptionHandler#MESSAGE_TYPE_UNAVAILABLE} if the message
+         *         could not be prepared or the timeout elapsed
+         * */
+        public byte await(long timeoutInMs) throws InterruptedException {
+            if (!done.await(timeoutInMs, TimeUnit.MILLISECONDS)) {
+                return MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE;
+            }
+            return messageType;
+        }
+
+        /**
+         * @return true if the frame was handed to the interface or the message could not be prepared
+         * */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private void complete(byte messageType) {
+            this.messageType = messageType;
+            done.countDown();
+        }
+    }
+
+    private static final String TAG = "SendPipeline";
+    private final FrameStage<M> stage;
+    private final ExecutorService workers;
+    // Guarded by this:
+    private final Map<LaneKey, Lane<M>> lanes = new HashMap<LaneKey, Lane<M>>();
+
+    /**
+     * Creates a pipeline with one worker per available core.
+     * */
+    public SendPipeline(FrameStage<M> stage) {
+        this(stage, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SendPipeline(FrameStage<M> stage, int workerThreads) {
+        this.stage = stage;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads));
+    }
+
+    /**
+     * Prepares the message on a worker thread and hands it to the interface after all messages that were submitted
+     * before for the same peer and interface. Returns immediately.
+     * */
+    public SendHandle submit(final InterfaceIdentifier interfaceName, final UUID peer, final M message) {
+        final SendHandle handle = new SendHandle();
+        final LaneKey key = new LaneKey(interfaceName, peer);
+        final long sequenceNumber;
+        synchronized (this) {
+            Lane<M> lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane<M>();
+                lanes.put(key, lane);
+            }
+            sequenceNumber = lane.nextSequenceNumber++;
+        }
+        try {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    MessageFrame frame = null;
+                    try {
+                        frame = stage.prepareFrame(interfaceName, peer, message);
+                    } catch (Exception e) {
+                        LogHelper.getInstance().e(TAG, "Could not prepare message for " + interfaceName, e);
+                    }
+                    onFramePrepared(key, sequenceNumber, new PreparedFrame<M>(message, frame, handle));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LogHelper.getInstance().e(TAG, "Pipeline was shut down, message is not sent via " + interfaceName);
+            // Keeps the lane going for the messages that were submitted before:
+            onFramePrepared(key, sequenceNumber, new PreparedFrame<M>(message, null, handle));
+        }
+        return handle;
+    }
+
+    /**
+     * Stops the workers after the submitted messages were prepared.
+     * */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Stores the frame in its lane and hands all frames that are next in order to the interface, unless another thread
+     * already does so.
+     * */
+    private void onFramePrepared(LaneKey key, long sequenceNumber, PreparedFrame<M> prepared) {
+        Lane<M> lane;
+        synchronized (this) {
+            lane = lanes.get(key);
+            lane.preparedFrames.put(sequenceNumber, prepared);
+            if (lane.delivering) {
+                return;
+            }
+            lane.delivering = true;
+        }
+        while (true) {
+            PreparedFrame<M> next;
+            synchronized (this) {
+                next = lane.preparedFrames.remove(lane.nextSequenceNumberToDeliver);
+                if (next == null) {
+                    lane.delivering = false;
+                    if (lane.nextSequenceNumberToDeliver == lane.nextSequenceNumber) {
+                        lanes.remove(key);
+                    }
+                    return;
+                }
+                lane.nextSequenceNumberToDeliver++;
+            }
+            byte messageType = MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE;
+            if (next.frame != null) {
+                messageType = next.frame.getMessageType();
+            }
+            try {
+                stage.deliverFrame(key.interfaceName, key.peer, next.message, next.frame);
+            } catch (RuntimeException e) {
+                LogHelper.getInstance().e(TAG, "Could not hand frame to " + key.interfaceName, e);
+                messageType = MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE;
+            }
+            next.handle.complete(messageType);
+        }
+    }
+
+    /**
+     * The messages to one peer via one interface.
+     * */
+    private static class Lane<M> {
+        private long nextSequenceNumber = 0;
+        private long nextSequenceNumberToDeliver = 0;
+        private boolean delivering = false;
+        private final Map<Long, PreparedFrame<M>> preparedFrames = new HashMap<Long, PreparedFrame<M>>();
+    }
+
+    private static class PreparedFrame<M> {
+        private final M message;
+        private final MessageFrame frame;
+        private final SendHandle handle;
+
+        private PreparedFrame(M message, MessageFrame frame, SendHandle handle) {
+            this.message = message;
+            this.frame = frame;
+            this.handle = handle;
+        }
+    }
+
+    private static class LaneKey {
+        private final InterfaceIdentifier interfaceName;
+        private final UUID peer;
+
+        private LaneKey(InterfaceIdentifier interfaceName, UUID peer) {
+            this.interfaceName = interfaceName;
+            this.peer = peer;
+        }
+
+        @Override
+        public int hashCode() {
+            return interfaceName.hashCode() * 31 + (peer == null ? 0 : peer.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LaneKey)) {
+                return false;
+            }
+            LaneKey other = (LaneKey) o;
+            if (peer == null) {
+                return interfaceName == other.interfaceName && other.peer == null;
+            }
+            return interfaceName == other.interfaceName && peer.equals(other.peer);
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package de.lmu.mcm.network;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.lmu.mcm.helper.CancelableThread;
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
+
+/**
+ * Bounded queue of frames that are written one after another by a single persistent writer thread. When the queue is
+ * full the {@link SendQueuePolicy} decides whether the caller waits, the oldest frame is dropped or the new frame is
+ * rejected. Callers that wait give up and have their frame rejected when the queue is stopped. The queue keeps
+ * statistics about its depth and the time frames waited before they were written.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class SendQueue {
+
+    /**
+     * Writes the frames that are taken from the queue. Both methods are called from the writer thread, except for
+     * {@link #onFrameDiscarded(MessageFrame)} which is called from the thread that caused the frame to be discarded.
+     * The queue releases the frames after these methods returned.
+     * */
+    public interface FrameWriter {
+
+        /**
+         * Writes the frame blocking.
+         *
+         * @return true if the frame was written successfully.
+         * */
+        public boolean writeFrame(MessageFrame frame);
+
+        /**
+         * Called for frames that are dropped or rejected because the queue is full or was cleared.
+         * */
+        public void onFrameDiscarded(MessageFrame frame);
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+    // How often a caller that waits for free space checks whether the queue was stopped:
+    private static final long BLOCKED_ENQUEUE_CHECK_INTERVAL_IN_MS = 100;
+
+    private final String TAG;
+    private final FrameWriter writer;
+    private final SendQueuePolicy policy;
+    private final LinkedBlockingDeque<QueuedFrame> queue;
+    private WriterThread writerThread;
+    // Incremented by every call of stop(), so that waiting callers notice it:
+    private volatile int stopCount = 0;
+
+    // Statistics:
+    private int maxDepth = 0;
+    private AtomicLong writtenFrames = new AtomicLong();
+    private AtomicLong discardedFrames = new AtomicLong();
+    private AtomicLong totalWaitTimeInMs = new AtomicLong();
+    private volatile long maxWaitTimeInMs = 0;
+    private volatile long lastWaitTimeInMs = 0;
+
+    /**
+     * @param tag
+     *            used as prefix for log messages
+     * @param writer
+     *            the writer that writes the frames to the interface
+     * @param policy
+     *            what happens if a frame is added to a full queue
+     * @param capacity
+     *            the maximum number of frames that wait to be written
+     * */
+    public SendQueue(String tag, FrameWriter writer, SendQueuePolicy policy, int capacity) {
+        this.TAG = tag + " SendQueue";
+        this.writer = writer;
+        this.policy = policy;
+        this.queue = new LinkedBlockingDeque<QueuedFrame>(capacity);
+    }
+
+    /**
+     * Adds the frame to the queue and starts the writer thread if it is not running yet.
+     *
+     * @return false if the frame was rejected. The frame was released in this case.
+     * */
+    public boolean enqueue(MessageFrame frame) {
+        int stopCountAtStart = stopCount;
+        startWriterIfNecessary();
+        QueuedFrame queuedFrame = new QueuedFrame(frame);
+        boolean added = queue.offer(queuedFrame);
+        if (!added) {
+            switch (policy) {
+            case BLOCK:
+                try {
+                    LogHelper.getInstance().d(TAG, "Queue is full, waiting for the writer...");
+                    while (!added && stopCount == stopCountAtStart) {
+                        added = queue.offer(queuedFrame, BLOCKED_ENQUEUE_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+                    }
+                    // Stopping clears the queue, which may have made room for the frame just now:
+                    if (added && stopCount != stopCountAtStart && queue.remove(queuedFrame)) {
+                        added = false;
+                    }
+                    if (!added) {
+                        LogHelper.getInstance().e(TAG, "Queue was stopped while waiting for free space.");
+                    }
+                } catch (InterruptedException e) {
+                    LogHelper.getInstance().e(TAG, "Interrupted while waiting for free space in the queue.");
+                }
+                break;
+            case DROP_OLDEST:
+                while (!added) {
+                    QueuedFrame oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        LogHelper.getInstance().e(TAG, "Queue is full, dropping oldest frame.");
+                        discard(oldest.frame);
+                    }
+                    added = queue.offer(queuedFrame);
+                }
+                break;
+            case FAIL_FAST:
+                LogHelper.getInstance().e(TAG, "Queue is full, rejecting frame.");
+                break;
+            }
+        }
+        if (!added) {
+            discard(frame);
+            return false;
+        }
+        updateMaxDepth();
+        return true;
+    }
+
+    /**
+     * Discards all frames that wait to be written, e.g. because the connection was lost. The writer keeps running.
+     * */
+    public void clear() {
+        QueuedFrame queuedFrame;
+        while ((queuedFrame = queue.poll()) != null) {
+            discard(queuedFrame.frame);
+        }
+    }
+
+    /**
+     * Discards all waiting frames and stops the writer thread. Callers that wait for free space return false.
+     * */
+    public synchronized void stop() {
+        stopCount++;
+        if (writerThread != null) {
+            writerThread.cancel();
+            writerThread = null;
+        }
+        clear();
+    }
+
+    /**
+     * @return the number of frames that currently wait to be written.
+     * */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the highest number of frames that waited at the same time.
+     * */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of frames that were dropped or rejected.
+     * */
+    public long getDiscardedFrames() {
+        return discardedFrames.get();
+    }
+
+    /**
+     * @return the average time in ms frames waited in the queue before they were written.
+     * */
+    public long getAverageWaitTimeInMs() {
+        long written = writtenFrames.get();
+        return written == 0 ? 0 : totalWaitTimeInMs.get() / written;
+    }
+
+    /**
+     * @return the longest time in ms a frame waited in the queue.
+     * */
+    public long getMaxWaitTimeInMs() {
+        return maxWaitTimeInMs;
+    }
+
+    /**
+     * @return the time in ms the last written frame waited in the queue.
+     * */
+    public long getLastWaitTimeInMs() {
+        return lastWaitTimeInMs;
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + getDepth() + " maxDepth=" + getMaxDepth() + " discarded=" + getDiscardedFrames()
+                + " avgWait=" + getAverageWaitTimeInMs() + "ms maxWait=" + getMaxWaitTimeInMs() + "ms";
+    }
+
+    private synchronized void startWriterIfNecessary() {
+        if (writerThread == null) {
+            writerThread = new WriterThread();
+            writerThread.start();
+        }
+    }
+
+    private synchronized void updateMaxDepth() {
+        maxDepth = Math.max(maxDepth, queue.size());
+    }
+
+    private void discard(MessageFrame frame) {
+        discardedFrames.incrementAndGet();
+        try {
+            writer.onFrameDiscarded(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void onTaken(QueuedFrame queuedFrame) {
+        long waitTime = System.currentTimeMillis() - queuedFrame.enqueueTime;
+        lastWaitTimeInMs = waitTime;
+        if (waitTime > maxWaitTimeInMs) {
+            maxWaitTimeInMs = waitTime;
+        }
+        totalWaitTimeInMs.addAndGet(waitTime);
+        writtenFrames.incrementAndGet();
+    }
+
+    /**
+     * A frame together with the time it was added to the queue.
+     * */
+    private static class QueuedFrame {
+
+        private final MessageFrame frame;
+        private final long enqueueTime = System.currentTimeMillis();
+
+        public QueuedFrame(MessageFrame frame) {
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Takes the frames from the queue and writes them until it is canceled.
+     * */
+    private class WriterThread extends CancelableThread {
+
+        private volatile boolean isCanceled = false;
+
+        @Override
+        public void run() {
+            while (!isCanceled) {
+                QueuedFrame queuedFrame;
+                try {
+                    queuedFrame = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (queuedFrame == null) {
+                    continue;
+                }
+                onTaken(queuedFrame);
+                try {
+                    writer.writeFrame(queuedFrame.frame);
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Error while writing frame.", e);
+                } finally {
+                    queuedFrame.frame.release();
+                }
+                if (queue.isEmpty()) {
+                    LogHelper.getInstance().d(TAG, "Queue drained: " + SendQueue.this);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            isCanceled = true;
+            hardCancel();
+        }
+    }
+
+}
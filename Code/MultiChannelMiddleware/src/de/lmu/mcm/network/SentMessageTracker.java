@@ -0,0 +1,142 @@
+package de.lmu.mcm.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+
+/**
+ * Remembers the original {@link BasicMessage} of every frame that was handed to an interface, so that the
+ * {@link NetworkDaemon} can pass it to the listener when the interface reports that the frame was sent. Listeners
+ * therefore never have to decrypt their own frames.
+ *
+ * Every tracked frame gets a unique send id (see {@link MessageFrame#getSendId()}). Interfaces that write the frame
+ * itself report the frame and with it the id. Interfaces that send a copy of the bytes (SMS, NFC, Barcodes) pass the
+ * id to the {@link ProtocolMessage} they report (see {@link ProtocolMessage#setSendId(long)}). Frames that are written
+ * to several clients are found again until the interface reports the next frame.
+ *
+ * Interfaces do not report every failure, so only the last {@link #MAX_PENDING_SENDS} sends are remembered. Older
+ * sends are reported as failed to the {@link EvictionListener}.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class SentMessageTracker {
+
+    /**
+     * Receives the sends that were never reported by their interface and were forgotten to make room for new ones.
+     * */
+    public interface EvictionListener {
+
+        /**
+         * Called without holding the lock of the tracker.
+         * */
+        public void onSendEvicted(InterfaceIdentifier interfaceName, BasicMessage message);
+    }
+
+    public static final int MAX_PENDING_SENDS = 256;
+
+    private static final String TAG = "SentMessageTracker";
+    private final EvictionListener evictionListener;
+    // Oldest send first:
+    private final LinkedHashMap<Long, PendingSend> pendingSends = new LinkedHashMap<Long, PendingSend>();
+    private final Map<InterfaceIdentifier, PendingSend> lastMatches = new HashMap<InterfaceIdentifier, PendingSend>();
+    private long lastSendId = 0;
+
+    /**
+     * @param evictionListener
+     *            receives the sends that were forgotten, may be null
+     * */
+    public SentMessageTracker(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Remembers the message of the given frame and stores a new send id in the frame. Has to be called before the
+     * frame is handed to the interface, because some interfaces report the sent frame before they return.
+     *
+     * @return the send id to remove the message with {@link #discard(long)} if the interface did not accept the frame.
+     * */
+    public long track(InterfaceIdentifier interfaceName, MessageFrame frame, BasicMessage message) {
+        PendingSend evicted = null;
+        long sendId;
+        synchronized (this) {
+            sendId = ++lastSendId;
+            frame.setSendId(sendId);
+            pendingSends.put(sendId, new PendingSend(sendId, interfaceName, message));
+            if (pendingSends.size() > MAX_PENDING_SENDS) {
+                Iterator<PendingSend> oldest = pendingSends.values().iterator();
+                evicted = oldest.next();
+                oldest.remove();
+            }
+        }
+        if (evicted != null) {
+            LogHelper.getInstance().e(TAG, "No report of a frame sent via " + evicted.interfaceName
+                    + ", reporting it as failed.");
+            if (evictionListener != null) {
+                evictionListener.onSendEvicted(evicted.interfaceName, evicted.message);
+            }
+        }
+        return sendId;
+    }
+
+    /**
+     * Forgets a message that was tracked with {@link #track(InterfaceIdentifier, MessageFrame, BasicMessage)}.
+     * */
+    public synchronized void discard(long sendId) {
+        pendingSends.remove(sendId);
+    }
+
+    /**
+     * Looks up the original message of the sent frame by its send id and stores it together with the time since the
+     * frame was tracked in the given {@link ProtocolMessage}.
+     *
+     * @return true if the message was found
+     * */
+    public boolean attachSentMessage(InterfaceIdentifier interfaceName, ProtocolMessage message) {
+        if (message == null || message.getSendId() == 0) {
+            return false;
+        }
+        PendingSend pendingSend = complete(interfaceName, message.getSendId());
+        if (pendingSend == null) {
+            return false;
+        }
+        message.setSentMessage(pendingSend.message, System.currentTimeMillis() - pendingSend.trackTime);
+        return true;
+    }
+
+    private synchronized PendingSend complete(InterfaceIdentifier interfaceName, long sendId) {
+        PendingSend lastMatch = lastMatches.get(interfaceName);
+        if (lastMatch != null && lastMatch.sendId == sendId) {
+            return lastMatch;
+        }
+        PendingSend pendingSend = pendingSends.remove(sendId);
+        if (pendingSend != null) {
+            lastMatches.put(interfaceName, pendingSend);
+        }
+        return pendingSend;
+    }
+
+    /**
+     * A frame that was handed to an interface but not reported as sent yet.
+     * */
+    private static class PendingSend {
+
+        private final long sendId;
+        private final InterfaceIdentifier interfaceName;
+        private final BasicMessage message;
+        private final long trackTime = System.currentTimeMillis();
+
+        private PendingSend(long sendId, InterfaceIdentifier interfaceName, BasicMessage message) {
+            this.sendId = sendId;
+            this.interfaceName = interfaceName;
+            this.message = message;
+        }
+    }
+
+}
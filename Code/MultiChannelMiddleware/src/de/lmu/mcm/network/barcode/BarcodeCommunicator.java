@@ -10,6 +10,7 @@ import de.lmu.mcm.helper.ByteConverter;
 import de.lmu.mcm.helper.LogHelper;
 import de.lmu.mcm.network.AbstractCommunicationModule;
 import de.lmu.mcm.network.Enums;
+import de.lmu.mcm.network.InboundWorker;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
 import de.lmu.mcm.network.ServiceDescription;
@@ -47,12 +48,18 @@ public class BarcodeCommunicator extends AbstractCommunicationModule {
 
     @Override
     public boolean sendData(Activity activity, byte[] data) {
+        return sendData(activity, data, 0);
+    }
+
+    @Override
+    protected boolean sendData(Activity activity, byte[] data, long sendId) {
         // At the moment we send data encoded in base64. To send the bytes directly we would have to do something
         // like this:
         // https://groups.google.com/forum/?fromgroups=#!topic/zxing/Tb2GtUdUph4
         String dataAsBase64 = ByteConverter.encodeAsBase64String(data);
         shareBarcode(activity, dataAsBase64);
         ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.SELF, data);
+        protocolMessage.setSendId(sendId);
         notifyDaemonAboutSentData(protocolMessage, true);
         return true;
     }
@@ -78,9 +85,7 @@ public class BarcodeCommunicator extends AbstractCommunicationModule {
             IntentResult scanResult = IntentIntegrator.parseActivityResult(requestCode, resultCode, data);
             if (scanResult != null) {
                 // handle scan result
-                String result = scanResult.getContents();
-                // byte[] resultInBytes = result.getBytes();
-                byte[] resultInBytes = ByteConverter.decodeBase64String(result);
+                final String result = scanResult.getContents();
                 // Check valid format?
                 // String format = scanResult.getFormatName();
                 // BarcodeFormat validFormats;
@@ -90,12 +95,16 @@ public class BarcodeCommunicator extends AbstractCommunicationModule {
                 data.putExtra(EXTRA_BARCODE_HANDLED, true);
                 activity.setIntent(data);
 
-                if (service != null) {
-                    ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.REMOTE, resultInBytes);
-                    notifyDaemonAboutReceivedData(protocolMessage);
-                } else {
-                    notifyDaemonAboutReceivedData(new ProtocolMessage(MessageOrigin.REMOTE, resultInBytes));
-                }
+                // Decoding and decrypting is done in the background to keep the UI responsive:
+                InboundWorker.getInstance().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // byte[] resultInBytes = result.getBytes();
+                        byte[] resultInBytes = ByteConverter.decodeBase64String(result);
+                        notifyDaemonAboutDataReceivedOnWorker(new ProtocolMessage(MessageOrigin.REMOTE, resultInBytes));
+                    }
+                });
             }
             return true;
             // } else if (requestCode == IntentIntegrator.REQUEST_CODE_SHARE_TEXT) {
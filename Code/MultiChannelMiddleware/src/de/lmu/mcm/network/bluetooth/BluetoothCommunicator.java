@@ -17,6 +17,8 @@ import android.util.Log;
 import de.lmu.mcm.helper.ByteConverter;
 import de.lmu.mcm.helper.CancelableThread;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.AbstractCommunicationModule;
 import de.lmu.mcm.network.Enums;
 import de.lmu.mcm.network.Enums.MessageOrigin;
@@ -51,7 +53,6 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
     // Variables and threads to read and write data:
     private BluetoothReaderWriter readerWriter;
     private ReadThread readThread;
-    private WriteThread writeThread;
 
     // The BroadcastReceiver that listens for discovered devices
     private BroadcastReceiverBluetoothDiscovery broadcastReceiverDiscovery = null;
@@ -86,7 +87,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
         }
 
         closeActiveSocket();
-        cancelThread(writeThread);
+        stopSendQueue();
         cancelThread(readThread);
 
         if (waitForClientConnectionThread != null && waitForClientConnectionThread.getSocket() != null) {
@@ -122,19 +123,40 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
 
     @Override
     public boolean sendData(Activity activity, byte[] data) {
+        return sendFrame(activity, MessageFrame.wrap(data));
+    }
+
+    @Override
+    public boolean sendFrame(Activity activity, MessageFrame frame) {
         if (getConnectionState() == STATE_CONNECTED) {
-            cancelThread(writeThread);
-            writeThread = new WriteThread(data);
-            writeThread.start();
-            return true;
+            return enqueueFrame(frame);
         } else {
             LogHelper.getInstance().e(TAG,
                     "Did not send data because no connection was established. State: " + getConnectionState());
+            frame.release();
             notifyDaemonAboutSentData(null, false);
             return false;
         }
     }
 
+    /**
+     * Writes a frame from the send queue to the connected socket.
+     * */
+    @Override
+    protected boolean writeFrameBlocking(MessageFrame frame) {
+        BluetoothReaderWriter currentReaderWriter = readerWriter;
+        if (isCanceled || currentReaderWriter == null) {
+            notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, null, frame), false);
+            return false;
+        }
+        boolean written = currentReaderWriter.writeBlocking(frame);
+        MultiNetworkAddress address = new MultiNetworkAddress();
+        address.setBluetoothDevice(currentReaderWriter.getRemoteDevice());
+        ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.SELF, address, frame);
+        notifyDaemonAboutSentData(protocolMessage, written);
+        return written;
+    }
+
     @Override
     public boolean listenForMessages(Activity activity) {
         if (isReadyToExchangeData()) {
@@ -150,7 +172,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
         LogHelper.getInstance().d(TAG, "Stopping current connection");
         closeActiveSocket();
         cancelThread(readThread);
-        cancelThread(writeThread);
+        clearSendQueue();
     }
 
     @Override
@@ -228,7 +250,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
 
         // Cancel any thread currently running a connection
         cancelThread(readThread);
-        cancelThread(writeThread);
+        clearSendQueue();
         closeActiveSocket();
 
         // Start the thread to connect with the given device
@@ -253,7 +275,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
 
         // Cancel any thread currently running a connection
         cancelThread(readThread);
-        cancelThread(writeThread);
+        clearSendQueue();
 
         // Cancel the accept thread because we only want to connect to one
         // device
@@ -539,7 +561,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
 
             while (!isCanceled && readerWriter != null && readerWriter.isConnected()
                     && !readerWriter.isEndOfStreamReached()) {
-                byte[] msg = readerWriter.readBlocking();
+                ReceivedFrame msg = readerWriter.readBlocking();
                 if (msg != null) {
                     if (isCanceled) {
                         LogHelper.getInstance().d(TAG,
@@ -564,35 +586,6 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
         }
     }
 
-    /**
-     * Thread that writes to the connected socket.
-     */
-    private class WriteThread extends CancelableThread {
-
-        private byte[] message;
-        private boolean isCanceled = false;
-
-        public WriteThread(byte[] message) {
-            this.message = message;
-        }
-
-        public void run() {
-            if (!isCanceled && readerWriter != null) {
-                boolean written = readerWriter.writeBlocking(message);
-                MultiNetworkAddress address = new MultiNetworkAddress();
-                address.setBluetoothDevice(readerWriter.getRemoteDevice());
-                ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.SELF, address, message);
-                notifyDaemonAboutSentData(protocolMessage, written);
-            }
-        }
-
-        public void cancel() {
-            LogHelper.getInstance().d(TAG, "Canceling WriteThread");
-            isCanceled = true;
-            hardCancel();
-        }
-    }
-
     /**
      * Set the current state of the bluetooth connection
      * 
@@ -671,7 +664,7 @@ public class BluetoothCommunicator extends AbstractCommunicationModule implement
     public void onConnectionLost() {
         closeActiveSocket();
         cancelThread(readThread);
-        cancelThread(writeThread);
+        clearSendQueue();
         LogHelper.getInstance().e(TAG, "Connection lost. Trying to reestablish connection...");
         setupConnection(activity, serviceDescription);
         notifyDaemonConnectionTerminated();
@@ -8,6 +8,8 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import de.lmu.mcm.helper.InputStreamHelper;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
 
 /**
  * Manages reading and writing to a bluetooth socket.
@@ -48,13 +50,13 @@ public class BluetoothReaderWriter {
     /**
      * Reads the next message from the connected socket and blocks until the message is read.
      * 
-     * @return the message that was read from the connected socket or null if something went wrong.
+     * @return the frame that was read from the connected socket or null if something went wrong.
      * */
-    public byte[] readBlocking() {
+    public ReceivedFrame readBlocking() {
         try {
             LogHelper.getInstance().d(TAG, "Waiting for message...");
             if (isConnected() && in != null) {
-                byte[] readBytes = inHelper.readNextBytes(in);
+                ReceivedFrame readBytes = inHelper.readNextFrame(in);
                 if (inHelper.isEndOfStreamReached()) {
                     LogHelper.getInstance().d(TAG, "End of bluetooth stream reached.");
                     isEndOfStreamReached = true;
@@ -83,10 +85,19 @@ public class BluetoothReaderWriter {
      * @return true if the message was written successfully.
      * */
     public boolean writeBlocking(byte[] message) {
+        return writeBlocking(MessageFrame.wrap(message));
+    }
+
+    /**
+     * Writes the given frame directly from its buffer to the connected socket and blocks until it was written.
+     * 
+     * @return true if the frame was written successfully.
+     * */
+    public boolean writeBlocking(MessageFrame frame) {
 
         try {
             if (isConnected() && out != null) {
-                out.write(message);
+                frame.writeTo(out);
                 out.flush();
                 LogHelper.getInstance().d(TAG, "Wrote message.");
                 return true;
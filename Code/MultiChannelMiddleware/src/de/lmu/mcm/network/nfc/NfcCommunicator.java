@@ -20,6 +20,7 @@ import de.lmu.mcm.helper.LogHelper;
 import de.lmu.mcm.network.AbstractCommunicationModule;
 import de.lmu.mcm.network.Enums;
 import de.lmu.mcm.network.Enums.MessageOrigin;
+import de.lmu.mcm.network.InboundWorker;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
 import de.lmu.mcm.network.ServiceDescription;
@@ -54,6 +55,7 @@ public class NfcCommunicator extends AbstractCommunicationModule implements Crea
     private boolean isReadingData = false;
     private boolean isSendingData = false;
     private byte[] dataToSend = null;
+    private long sendIdOfDataToSend = 0;
     private ServiceDescription serviceDescription;
     // Caches the current activity. As we unregister this variable in onPause and reregister it in onResume it should
     // always contain a fresh constant of the current activity. This also guarantees that this variable is set to null
@@ -216,61 +218,70 @@ public class NfcCommunicator extends AbstractCommunicationModule implements Crea
     }
 
     /**
-     * Processes an intent that contains NFC data. Notifies the daemon about the received data.
+     * Processes an intent that contains NFC data. The NDEF messages are read on the {@link InboundWorker}, which
+     * notifies the daemon about the received data.
      * */
     public void processNfcIntent(Activity activity, Intent intent, String action) {
+        LogHelper.getInstance().d(TAG, "nfcIntentDetected: " + action);
+
+        final Parcelable[] messages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+        if (messages != null) {
+            InboundWorker.getInstance().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    readNdefMessages(messages);
+                }
+            });
+        }
+
+        // intent.removeExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+        // activity.setIntent(intent);
+    }
+
+    /**
+     * Concatenates the payloads of the NDEF records to a frame and notifies the daemon about it.
+     * */
+    private void readNdefMessages(Parcelable[] messages) {
 
         // This method is based on
         // https://code.google.com/p/ndef-tools-for-android/source/browse/ndeftools-util/src/org/ndeftools/util/activity/NfcReaderActivity.java
 
-        LogHelper.getInstance().d(TAG, "nfcIntentDetected: " + action);
+        if (messages.length > 0) {
 
-        Parcelable[] messages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
-        if (messages != null) {
-            NdefMessage[] ndefMessages = new NdefMessage[messages.length];
+            LogHelper.getInstance().d(TAG, "Starting to read NDEF");
+            ByteBuffer b = null;
             for (int i = 0; i < messages.length; i++) {
-                ndefMessages[i] = (NdefMessage) messages[i];
-            }
-
-            if (ndefMessages.length > 0) {
-
-                LogHelper.getInstance().d(TAG, "Starting to read NDEF");
-                ByteBuffer b = null;
-                for (int i = 0; i < messages.length; i++) {
-                    NdefMessage ndefMessage = (NdefMessage) messages[i];
-
-                    for (NdefRecord ndefRecord : ndefMessage.getRecords()) {
-                        byte[] payload = ndefRecord.getPayload();
-                        try {
-                            if (b == null) {
-                                b = ByteBuffer.wrap(payload);
-                                int lengthIndicator = b.getInt();
-                                LogHelper.getInstance().d(TAG, "NDEF contains " + lengthIndicator + " bytes");
-                                // We add 4+1 bytes because the length indicator consumes 4 bytes and the message code 1
-                                // byte:
-                                lengthIndicator += 4 + 1;
-
-                                b = ByteBuffer.allocate(lengthIndicator);
-                            }
-                            b.put(payload);
-                        } catch (Exception e) {
-                            LogHelper.getInstance().e(TAG, "Error while trying to parse NDEF", e);
+                NdefMessage ndefMessage = (NdefMessage) messages[i];
+
+                for (NdefRecord ndefRecord : ndefMessage.getRecords()) {
+                    byte[] payload = ndefRecord.getPayload();
+                    try {
+                        if (b == null) {
+                            b = ByteBuffer.wrap(payload);
+                            int lengthIndicator = b.getInt();
+                            LogHelper.getInstance().d(TAG, "NDEF contains " + lengthIndicator + " bytes");
+                            // We add 4+1 bytes because the length indicator consumes 4 bytes and the message code 1
+                            // byte:
+                            lengthIndicator += 4 + 1;
+
+                            b = ByteBuffer.allocate(lengthIndicator);
                         }
-
+                        b.put(payload);
+                    } catch (Exception e) {
+                        LogHelper.getInstance().e(TAG, "Error while trying to parse NDEF", e);
                     }
+
                 }
-                if (b != null) {
-                    LogHelper.getInstance().d(TAG, "Finished reading NDEF");
-                    ProtocolMessage protoMsg = new ProtocolMessage(MessageOrigin.REMOTE, b.array());
-                    notifyDaemonAboutReceivedData(protoMsg);
-                } else {
-                    LogHelper.getInstance().e(TAG, "Could not read NDEF message");
-                }
+            }
+            if (b != null) {
+                LogHelper.getInstance().d(TAG, "Finished reading NDEF");
+                ProtocolMessage protoMsg = new ProtocolMessage(MessageOrigin.REMOTE, b.array());
+                notifyDaemonAboutDataReceivedOnWorker(protoMsg);
+            } else {
+                LogHelper.getInstance().e(TAG, "Could not read NDEF message");
             }
         }
-
-        // intent.removeExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
-        // activity.setIntent(intent);
     }
 
     // -------------------------------------------------
@@ -285,13 +296,19 @@ public class NfcCommunicator extends AbstractCommunicationModule implements Crea
      * Caches the data which will be sent when a device comes in range. Also sets up the NdefPushMessageCallback that
      * initiates the sending of NFC data when two devices are held together.
      * */
-    @SuppressLint("NewApi")
     @Override
     public boolean sendData(Activity activity, byte[] data) {
+        return sendData(activity, data, 0);
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    protected boolean sendData(Activity activity, byte[] data, long sendId) {
 
         int apiVersion = android.os.Build.VERSION.SDK_INT;
         if (apiVersion >= 14) {
             this.dataToSend = data;
+            this.sendIdOfDataToSend = sendId;
 
             NfcAdapter nfcAdapter = NfcAdapter.getDefaultAdapter(activity);
             if (!isSendingData && nfcAdapter != null) {
@@ -355,6 +372,7 @@ public class NfcCommunicator extends AbstractCommunicationModule implements Crea
         LogHelper.getInstance().d(TAG, "Finished writing NDEF message");
         if (activity != null) {
             ProtocolMessage protoMessage = new ProtocolMessage(MessageOrigin.SELF, dataToSend);
+            protoMessage.setSendId(sendIdOfDataToSend);
             notifyDaemonAboutSentData(protoMessage, true);
             stopSendingData(activity);
         } else {
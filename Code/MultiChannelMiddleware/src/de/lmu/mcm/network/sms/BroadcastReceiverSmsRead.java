@@ -8,6 +8,7 @@ import android.os.Bundle;
 import android.telephony.SmsMessage;
 import de.lmu.mcm.helper.ByteConverter;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.network.InboundWorker;
 import de.lmu.mcm.network.MultiNetworkAddress;
 import de.lmu.mcm.network.ProtocolMessage;
 import de.lmu.mcm.network.Enums.MessageOrigin;
@@ -27,35 +28,46 @@ public class BroadcastReceiverSmsRead extends BroadcastReceiver {
         return filter;
     }
 
+    /**
+     * Reads the SMS on the {@link InboundWorker}, so that decoding them does not block the UI. The broadcast ends as
+     * soon as the PDUs were handed to the worker, whose queue holds them while the daemon is busy.
+     * */
     @Override
     public void onReceive(Context context, Intent intent) {
+        final Bundle bundle = intent.getExtras();
+        if (bundle == null || smsCommunication == null) {
+            return;
+        }
+        InboundWorker.getInstance().execute(new Runnable() {
 
-        Bundle bundle = intent.getExtras();
+            @Override
+            public void run() {
+                readSms(bundle);
+            }
+        });
+    }
+
+    private void readSms(Bundle bundle) {
         SmsMessage[] msgs = null;
         String logMessage = "";
-        if (bundle != null) {
-            Object[] pdu = (Object[]) bundle.get("pdus");
-            msgs = new SmsMessage[pdu.length];
-            String sender = null;
-            StringBuilder content = new StringBuilder();
-            for (int i = 0; i < msgs.length; i++) {
-                msgs[i] = SmsMessage.createFromPdu((byte[]) pdu[i]);
-                sender = msgs[i].getOriginatingAddress();
-                // Concatenate multiple SMS into a single message:
-                content.append(msgs[i].getMessageBody().toString());
-                logMessage += "SMS received from " + sender + " :" + content + "\n";
-            }
-            String result = content.toString();
-            byte[] resultInBytes = ByteConverter.decodeBase64String(result);
-            MultiNetworkAddress address = new MultiNetworkAddress();
-            address.setSmsAddress(sender);
-            LogHelper.getInstance().d(TAG, "Received SMS: " + logMessage);
-            if (smsCommunication != null) {
-                ProtocolMessage protocolMsg = new ProtocolMessage(MessageOrigin.REMOTE, address, resultInBytes);
-                smsCommunication.onDataReceived(protocolMsg);
-            }
+        Object[] pdu = (Object[]) bundle.get("pdus");
+        msgs = new SmsMessage[pdu.length];
+        String sender = null;
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = SmsMessage.createFromPdu((byte[]) pdu[i]);
+            sender = msgs[i].getOriginatingAddress();
+            // Concatenate multiple SMS into a single message:
+            content.append(msgs[i].getMessageBody().toString());
+            logMessage += "SMS received from " + sender + " :" + content + "\n";
         }
-
+        String result = content.toString();
+        byte[] resultInBytes = ByteConverter.decodeBase64String(result);
+        MultiNetworkAddress address = new MultiNetworkAddress();
+        address.setSmsAddress(sender);
+        LogHelper.getInstance().d(TAG, "Received SMS: " + logMessage);
+        ProtocolMessage protocolMsg = new ProtocolMessage(MessageOrigin.REMOTE, address, resultInBytes);
+        smsCommunication.onDataReceived(protocolMsg);
     }
 
     /**
@@ -17,6 +17,7 @@ public class BroadcastReceiverSmsSent extends BroadcastReceiver {
     public static final String ACTION_SMS_DELIVERED = "action sms delivered";
     public static final String EXTRA_MSG_CONTENT = "msg content";
     public static final String EXTRA_SENDER_ADDRESS = "sender number";
+    public static final String EXTRA_SEND_ID = "send id";
     private static final String TAG = "SMS";
 
     private static IntentFilter filter;
@@ -52,6 +53,7 @@ public class BroadcastReceiverSmsSent extends BroadcastReceiver {
                 result = "SMS sent successfully";
                 if (smsCommunication != null) {
                     ProtocolMessage protocolMsg = new ProtocolMessage(MessageOrigin.SELF, senderAddress, msg);
+                    protocolMsg.setSendId(bundle.getLong(EXTRA_SEND_ID));
                     smsCommunication.onDataSent(protocolMsg);
                 }
                 error = false;
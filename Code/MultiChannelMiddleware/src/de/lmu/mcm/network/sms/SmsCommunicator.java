@@ -66,15 +66,22 @@ public class SmsCommunicator extends AbstractCommunicationModule {
 
     @Override
     public boolean sendData(Activity activity, byte[] data) {
+        return sendData(activity, data, 0);
+    }
+
+    @Override
+    protected boolean sendData(Activity activity, byte[] data, long sendId) {
         if (isReadyToExchangeData()) {
             SmsManager smsManager = SmsManager.getDefault();
             String base64Encoded = ByteConverter.encodeAsBase64String(data);
 
-            // To receive a notification when the SMS was sent:
+            // To receive a notification when the SMS was sent. Every tracked SMS gets its own request code, otherwise
+            // the intent of the previous SMS would be canceled before it reported the send:
             Intent intent = new Intent(BroadcastReceiverSmsSent.ACTION_SMS_SENT);
             intent.putExtra(BroadcastReceiverSmsSent.EXTRA_MSG_CONTENT, data);
             intent.putExtra(BroadcastReceiverSmsSent.EXTRA_SENDER_ADDRESS, serviceAddress);
-            PendingIntent sentIntent = PendingIntent.getBroadcast(activity, 0, intent,
+            intent.putExtra(BroadcastReceiverSmsSent.EXTRA_SEND_ID, sendId);
+            PendingIntent sentIntent = PendingIntent.getBroadcast(activity, (int) sendId, intent,
                     PendingIntent.FLAG_CANCEL_CURRENT);
 
             // To receive a notification when the SMS was delivered:
@@ -166,7 +173,7 @@ public class SmsCommunicator extends AbstractCommunicationModule {
         // if (serviceDescription.getRole() == Role.SERVER) {
         // serviceAddress = protocolMsg.getAddress();
         // }
-        notifyDaemonAboutReceivedData(protocolMsg);
+        notifyDaemonAboutDataReceivedOnWorker(protocolMsg);
     }
 
     @Override
@@ -9,6 +9,8 @@ import java.net.Socket;
 
 import de.lmu.mcm.helper.InputStreamHelper;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.MultiNetworkAddress;
 
 /**
@@ -62,12 +64,12 @@ public abstract class AbstractWifiReaderWriter {
     /**
      * Reads blocking from the socket which was set up in {@link #onConnected(Socket)}.
      * 
-     * @return the read message from the connected socket or null if something went wrong.
+     * @return the read frame from the connected socket or null if something went wrong.
      * */
-    public byte[] readBlocking() {
+    public ReceivedFrame readBlocking() {
         try {
             if (isConnected() && in != null) {
-                byte[] readBytes = inHelper.readNextBytes(in);
+                ReceivedFrame readBytes = inHelper.readNextFrame(in);
                 if (inHelper.isEndOfStreamReached()) {
                     isEndOfStreamReached = true;
                     return null;
@@ -91,10 +93,22 @@ public abstract class AbstractWifiReaderWriter {
      * @return true if the message was written successfully.
      * */
     public boolean writeBlocking(byte[] message) {
+        return writeBlocking(MessageFrame.wrap(message));
+    }
+
+    /**
+     * Writes the given frame blocking to the socket that was set up in {@link #onConnected(Socket)}. The frame is
+     * written directly from its buffer.
+     * 
+     * @param frame
+     *            the frame that should be sent
+     * @return true if the frame was written successfully.
+     * */
+    public boolean writeBlocking(MessageFrame frame) {
 
         try {
             if (isConnected() && out != null) {
-                out.write(message);
+                frame.writeTo(out);
                 out.flush();
                 LogHelper.getInstance().d(TAG, "Wrote message");
                 InetAddress address = outgoingSocket.getInetAddress();
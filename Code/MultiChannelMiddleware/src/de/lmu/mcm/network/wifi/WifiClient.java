@@ -6,6 +6,7 @@ import java.net.Socket;
 import java.net.SocketAddress;
 
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.MultiNetworkAddress;
 
 /**
@@ -86,7 +87,7 @@ public class WifiClient extends AbstractWifiReaderWriter {
      * 
      * @return the read message from the connected socket or null if something went wrong.
      * */
-    public byte[] readBlocking() {
+    public ReceivedFrame readBlocking() {
         return super.readBlocking();
     }
 
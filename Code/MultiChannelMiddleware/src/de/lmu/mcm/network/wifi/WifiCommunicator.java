@@ -8,11 +8,14 @@ import android.content.Intent;
 import de.lmu.mcm.helper.CancelableThread;
 import de.lmu.mcm.helper.InterfaceAvailabilityChecker;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.network.AbstractCommunicationModule;
 import de.lmu.mcm.network.Enums;
 import de.lmu.mcm.network.Enums.InterfaceIdentifier;
 import de.lmu.mcm.network.Enums.MessageOrigin;
 import de.lmu.mcm.network.Enums.Role;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
 import de.lmu.mcm.network.MultiNetworkAddress;
 import de.lmu.mcm.network.NetworkDaemon;
 import de.lmu.mcm.network.ProtocolMessage;
@@ -30,7 +33,7 @@ public class WifiCommunicator extends AbstractCommunicationModule {
     // Objects that facilitate network communication:
     private JmdnsHelper jmdnsHelper = null;
     private WifiClient client = null;
-    private WifiServer server = null;
+    private WifiHubServer server = null;
 
     // Used to setup the connection:
     private ServiceDescription serviceDescription;
@@ -45,9 +48,9 @@ public class WifiCommunicator extends AbstractCommunicationModule {
     private ServiceDiscoveryListenerThread serviceDiscoveryListenerThread;
     private WaitForClientConnectionThread waitForClientConnectionThread;
     private ConnectToServerThread connectToServerThread;
-    private WriteThread writeThread;
     private ReadThread readThread;
     private boolean isCanceled = false;
+    private static final long READ_RETRY_DELAY_IN_MS = 100;
 
     public WifiCommunicator(Activity activity, NetworkDaemon daemon) {
         super(activity, daemon);
@@ -119,7 +122,7 @@ public class WifiCommunicator extends AbstractCommunicationModule {
 
             } else {
                 // SERVER
-                server = new WifiServer();
+                server = createServer();
                 if (useSD) {
                     cancelThread(serviceDiscoveryAdvertisingThread);
                     serviceDiscoveryAdvertisingThread = new ServiceDiscoveryAdvertisingThread(activity,
@@ -140,20 +143,77 @@ public class WifiCommunicator extends AbstractCommunicationModule {
 
     @Override
     public boolean sendData(Activity activity, byte[] data) {
-        if (isReadyToExchangeData()) {
-            cancelThread(writeThread);
-            writeThread = new WriteThread(data);
-            writeThread.start();
-            return true;
+        return sendFrame(activity, MessageFrame.wrap(data));
+    }
+
+    /**
+     * Sends the frame to the server or, if we are the server, to all connected clients.
+     * */
+    @Override
+    public boolean sendFrame(Activity activity, MessageFrame frame) {
+        if (!isClient && isReadyToExchangeData()) {
+            // The server sends the frame to all connected clients without blocking
+            if (server.sendToAll(frame)) {
+                return true;
+            }
+            notifyDaemonAboutSentData(null, false);
+            return false;
+        } else if (isReadyToExchangeData()) {
+            return enqueueFrame(frame);
         } else {
             LogHelper.getInstance().e(TAG, "Cannot send data because not connection is set up");
+            frame.release();
             notifyDaemonAboutSentData(null, false);
             return false;
         }
     }
 
+    /**
+     * Sends the frame to the server or, if we are the server, only to the client with the given address.
+     * */
+    @Override
+    public boolean sendFrame(Activity activity, MultiNetworkAddress address, MessageFrame frame) {
+        if (isClient || address == null) {
+            return sendFrame(activity, frame);
+        }
+        WifiHubServer currentServer = server;
+        if (currentServer != null && currentServer.sendTo(address, frame)) {
+            return true;
+        }
+        if (currentServer == null) {
+            LogHelper.getInstance().e(TAG, "Cannot send data because the server is not running");
+            frame.release();
+        }
+        notifyDaemonAboutSentData(null, false);
+        return false;
+    }
+
+    /**
+     * Also limits the write queues of the clients of the server.
+     * */
+    @Override
+    public synchronized void setSendQueuePolicy(SendQueuePolicy policy, int capacity) {
+        super.setSendQueuePolicy(policy, capacity);
+        if (server != null) {
+            server.setWriteQueuePolicy(policy, capacity);
+        }
+    }
+
+    /**
+     * Creates a server whose write queues follow the send queue policy of this interface.
+     * */
+    private WifiHubServer createServer() {
+        WifiHubServer hubServer = new WifiHubServer(new HubListener());
+        hubServer.setWriteQueuePolicy(getSendQueuePolicy(), getSendQueueCapacity());
+        return hubServer;
+    }
+
     @Override
     public boolean listenForMessages(Activity activity) {
+        if (!isClient) {
+            // The event loops of the server read from all clients all the time
+            return server != null && server.isRunning();
+        }
         cancelThread(readThread);
         readThread = new ReadThread();
         readThread.start();
@@ -181,13 +241,12 @@ public class WifiCommunicator extends AbstractCommunicationModule {
     }
 
     /**
-     * Thread that waits for a client to connect.
+     * Thread that starts the server and waits for the first client to connect. Further clients are accepted by the
+     * {@link WifiHubServer} without this thread.
      * 
      */
     public class WaitForClientConnectionThread extends CancelableThread {
 
-        private Socket clientSocket;
-
         @Override
         public void run() {
             LogHelper.getInstance().d(TAG, "Waiting for client to connect...");
@@ -195,40 +254,62 @@ public class WifiCommunicator extends AbstractCommunicationModule {
             if (isCanceled) {
                 LogHelper.getInstance().d(TAG,
                         "Did not wait for the client to connect because the interface was already canceled.");
-            } else if (server != null && !server.isConnected() && !server.isCurrentlyWaitingForClientToConnect()) {
-                clientSocket = server.waitForClientToConnectBlocking(serverPort, timeoutInSeconds, maxRetries);
-                if (clientSocket != null && clientSocket.isConnected()) {
-                    MultiNetworkAddress multiAddress = new MultiNetworkAddress();
-                    multiAddress.setIpAddress(clientSocket.getInetAddress());
-                    multiAddress.setIpPort(clientSocket.getPort());
-                    LogHelper.getInstance().d(TAG,
-                            "Client connected! " + multiAddress.getIpAddress() + ":" + multiAddress.getIpPort());
-                    listenForMessages(null);
-                    notifyDaemonConnectionIsSetUp(multiAddress);
-                } else {
+            } else if (server != null && !server.isRunning()) {
+                serverPort = server.start(serverPort, maxRetries);
+                boolean clientConnected = false;
+                try {
+                    clientConnected = serverPort != -1 && server.waitForFirstClient(timeoutInSeconds);
+                } catch (InterruptedException e) {
+                    LogHelper.getInstance().d(TAG, "Stopped waiting for client to connect.");
+                }
+                if (!clientConnected) {
                     LogHelper.getInstance().e(TAG, "Client did not connect.");
+                    if (server != null) {
+                        server.stop();
+                    }
                     notifyDaemonConnectionSetupFailed(null);
                 }
-
             } else {
-                LogHelper.getInstance().e(TAG, "Already have client connection or are already waiting.");
+                LogHelper.getInstance().e(TAG, "Server is already running.");
             }
             LogHelper.getInstance().stopToMeasureTime(TAG, 532);
         }
 
         public void cancel() {
-            if (clientSocket != null) {
-                try {
-                    clientSocket.close();
-                } catch (Exception e) {
-                    LogHelper.getInstance().e(TAG, "Error closing client socket.");
-                }
-            }
             hardCancel();
         }
 
     };
 
+    /**
+     * Receives the callbacks of the {@link WifiHubServer} and passes them on to the daemon.
+     * */
+    private class HubListener implements WifiHubServer.HubListener {
+
+        @Override
+        public void onClientConnected(MultiNetworkAddress address) {
+            LogHelper.getInstance().d(TAG, "Client connected! " + address.getIpAddress() + ":" + address.getIpPort());
+            notifyDaemonConnectionIsSetUp(address);
+        }
+
+        @Override
+        public void onClientDisconnected(MultiNetworkAddress address) {
+            LogHelper.getInstance().d(TAG, "Client disconnected: " + address.getIpAddress());
+        }
+
+        @Override
+        public boolean onFrameReceived(MultiNetworkAddress address, ReceivedFrame frame, Runnable resumeReading) {
+            LogHelper.getInstance().d(TAG, "Read message as server from " + address.getIpAddress());
+            return notifyDaemonAboutReceivedData(new ProtocolMessage(MessageOrigin.REMOTE, address, frame),
+                    resumeReading);
+        }
+
+        @Override
+        public void onFrameWritten(MultiNetworkAddress address, MessageFrame frame, boolean success) {
+            notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, address, frame), success);
+        }
+    }
+
     /**
      * Thread which starts to advertise the service with {@link JmdnsHelper}.
      * */
@@ -256,7 +337,7 @@ public class WifiCommunicator extends AbstractCommunicationModule {
                     sd.getDescription());
 
             if (server == null) {
-                server = new WifiServer();
+                server = createServer();
             }
             server.setJmdns(jmdnsHelper);
             cancelThread(waitForClientConnectionThread);
@@ -383,63 +464,36 @@ public class WifiCommunicator extends AbstractCommunicationModule {
     }
 
     /**
-     * Thread to write data to the connected client/server.
+     * Writes a frame from the send queue to the server. The server writes with the event loops of the
+     * {@link WifiHubServer}.
      */
-    public class WriteThread extends CancelableThread {
-
-        private boolean isServer;
-        private byte[] message;
-
-        /**
-         * @param message
-         *            the message to write
-         */
-        public WriteThread(byte[] message) {
-            this.message = message;
-        }
-
-        @Override
-        public void run() {
-            isServer = serviceDescription.getRole() == Role.SERVER;
-            String role = isServer ? "server" : "client";
-            boolean success = false;
-            if (serviceDescription.getRole() == Role.SERVER) {
-                success = server.writeBlocking(message);
-            } else {
-                success = client.writeBlocking(message);
-            }
-            if (success) {
-                LogHelper.getInstance().d(TAG, "Wrote message as  " + role + ": " + message);
-                try {
-                    MultiNetworkAddress address = new MultiNetworkAddress();
-                    Socket socket = null;
-                    if (serviceDescription.getRole() == Role.SERVER) {
-                        socket = server.getRemoteSocket();
-                    } else {
-                        socket = client.getRemoteSocket();
-                    }
-                    address.setIpAddress(socket.getInetAddress());
-                    address.setIpPort(socket.getPort());
-                    ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.SELF, address, message);
-                    notifyDaemonAboutSentData(protocolMessage, true);
-                } catch (Exception e) {
-                    // Just in case the socket is closed while we try to notify the daemon
-                    LogHelper.getInstance().e(TAG, "Error trying to notify daemon that message was written.", e);
-                    notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, message), false);
-                }
-            } else {
-                LogHelper.getInstance().e(TAG, "Could not write message as  " + role + ": " + message);
-                notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, message), false);
+    @Override
+    protected boolean writeFrameBlocking(MessageFrame frame) {
+        WifiClient currentClient = client;
+        boolean success = currentClient != null && currentClient.writeBlocking(frame);
+        if (success) {
+            LogHelper.getInstance().d(TAG, "Wrote message as client: " + frame);
+            try {
+                MultiNetworkAddress address = new MultiNetworkAddress();
+                Socket socket = currentClient.getRemoteSocket();
+                address.setIpAddress(socket.getInetAddress());
+                address.setIpPort(socket.getPort());
+                ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.SELF, address, frame);
+                notifyDaemonAboutSentData(protocolMessage, true);
+            } catch (Exception e) {
+                // Just in case the socket is closed while we try to notify the daemon
+                LogHelper.getInstance().e(TAG, "Error trying to notify daemon that message was written.", e);
+                notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, null, frame), false);
             }
+        } else {
+            LogHelper.getInstance().e(TAG, "Could not write message as client: " + frame);
+            notifyDaemonAboutSentData(new ProtocolMessage(MessageOrigin.SELF, null, frame), false);
         }
-
-        public void cancel() {
-            hardCancel();
-        }
+        return success;
     }
 
     /**
-     * Thread to read data from the connected client/server.
+     * Thread to read data from the server. The server reads with the event loops of the {@link WifiHubServer}.
      */
     public class ReadThread extends CancelableThread {
 
@@ -448,19 +502,17 @@ public class WifiCommunicator extends AbstractCommunicationModule {
         @Override
         public void run() {
             while (listenForMessages && !isCanceled) {
-                boolean isServer = serviceDescription.getRole() == Role.SERVER;
-                String role = isServer ? "server" : "client";
-                byte[] readMsg = null;
+                String role = "client";
+                ReceivedFrame readMsg = null;
                 InetAddress remoteAddress = null;
                 int port = -1;
 
-                AbstractWifiReaderWriter reader = null;
-                if (isServer) {
-                    reader = server;
+                AbstractWifiReaderWriter reader = client;
+                if (reader == null) {
+                    // Without this check the loop would spin as long as the thread is not canceled
+                    listenForMessages = false;
+                    LogHelper.getInstance().e(TAG, "Stopping to listen for messages because the client was closed");
                 } else {
-                    reader = client;
-                }
-                if (reader != null) {
                     readMsg = reader.readBlocking();
                     if (reader != null && reader.getRemoteSocket() != null && reader.getRemoteSocket().isConnected()) {
                         remoteAddress = reader.getRemoteSocket().getInetAddress();
@@ -482,8 +534,14 @@ public class WifiCommunicator extends AbstractCommunicationModule {
                     address.setIpPort(port);
                     ProtocolMessage protocolMessage = new ProtocolMessage(MessageOrigin.REMOTE, address, readMsg);
                     notifyDaemonAboutReceivedData(protocolMessage);
-                } else {
+                } else if (listenForMessages) {
+                    // A broken frame was skipped. Back off a little so that a misbehaving peer can not keep us busy.
                     LogHelper.getInstance().e(TAG, "Could not read message as  " + role);
+                    try {
+                        Thread.sleep(READ_RETRY_DELAY_IN_MS);
+                    } catch (InterruptedException e) {
+                        listenForMessages = false;
+                    }
                 }
             }
         }
@@ -507,7 +565,7 @@ public class WifiCommunicator extends AbstractCommunicationModule {
         if (isClient) {
             return client != null && client.isConnected();
         } else {
-            return server != null && server.isConnected();
+            return server != null && server.getConnectionCount() > 0;
         }
     }
 
@@ -531,7 +589,7 @@ public class WifiCommunicator extends AbstractCommunicationModule {
             }
         } else {
             if (server != null) {
-                server.disconnectAndTerminate();
+                server.stop();
                 server = null;
             }
         }
@@ -558,8 +616,8 @@ public class WifiCommunicator extends AbstractCommunicationModule {
         cancelThread(serviceDiscoveryListenerThread);
         cancelThread(waitForClientConnectionThread);
         cancelThread(connectToServerThread);
-        cancelThread(writeThread);
         cancelThread(readThread);
+        stopSendQueue();
     }
 
     @Override
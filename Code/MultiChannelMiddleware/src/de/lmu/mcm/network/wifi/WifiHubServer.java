@@ -0,0 +1,747 @@
+package de.lmu.mcm.network.wifi;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.lmu.mcm.helper.InputStreamHelper;
+import de.lmu.mcm.helper.InterfaceAvailabilityChecker;
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.network.SendQueue;
+
+/**
+ * Non-blocking wifi server that accepts any number of clients. Connections are distributed over a fixed number of
+ * event loops (one per core), each loop multiplexes its connections with a {@link Selector}. Frames are read
+ * incrementally into a buffer per connection, so a slow client never blocks the other clients. Frames are either sent
+ * to a single client, which is identified by the address that was passed to
+ * {@link HubListener#onClientConnected(MultiNetworkAddress)}, or to all clients.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class WifiHubServer {
+
+    private String TAG = "WIFI Hub ";
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // How often a producer that waits for space in a write queue checks whether the connection was closed:
+    private static final long BLOCKED_WRITE_CHECK_INTERVAL_IN_MS = 100;
+
+    /**
+     * Callbacks of the {@link WifiHubServer}. All methods are called from the event loop threads and must not block.
+     * */
+    public interface HubListener {
+
+        public void onClientConnected(MultiNetworkAddress address);
+
+        public void onClientDisconnected(MultiNetworkAddress address);
+
+        /**
+         * Called for every complete frame. Reading from the client stops if false is returned, it continues when
+         * resumeReading is run, which may happen on any thread.
+         * 
+         * @return false if no further frames of the client can be accepted for now
+         * */
+        public boolean onFrameReceived(MultiNetworkAddress address, ReceivedFrame frame, Runnable resumeReading);
+
+        /**
+         * Called after a frame was written to all clients it was sent to. The frame is released afterwards.
+         * 
+         * @param address
+         *            the address of the client or null if the frame was sent to more than one client
+         * @param success
+         *            false if the frame could not be written to at least one client
+         * */
+        public void onFrameWritten(MultiNetworkAddress address, MessageFrame frame, boolean success);
+    }
+
+    private HubListener listener;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private AtomicInteger nextEventLoop = new AtomicInteger();
+    private CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private ConcurrentHashMap<String, Connection> connectionsByAddress = new ConcurrentHashMap<String, Connection>();
+    private volatile boolean running = false;
+    private JmdnsHelper jmdns;
+    private int maxFrameSize = InputStreamHelper.getDefaultMaxFrameSize();
+    private int spillThreshold = InputStreamHelper.DEFAULT_SPILL_THRESHOLD;
+    private volatile SendQueuePolicy writeQueuePolicy = SendQueuePolicy.BLOCK;
+    private volatile int writeQueueCapacity = SendQueue.DEFAULT_CAPACITY;
+    // Used to wait for the first client:
+    private final Object connectionLock = new Object();
+
+    public WifiHubServer(HubListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Binds the server to the given port and starts the event loops. Does not block until a client connects.
+     * 
+     * @param port
+     *            the port on which we wait for clients
+     * @param maxRetries
+     *            the maximum number of ports that are tried if the port is already in use
+     * @return the port the server is bound to or -1 if the server could not be started
+     * */
+    public synchronized int start(int port, int maxRetries) {
+        if (running) {
+            return serverChannel.socket().getLocalPort();
+        }
+        while (maxRetries > 0) {
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.configureBlocking(false);
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(new InetSocketAddress(port));
+                break;
+            } catch (BindException e) {
+                closeServerChannel();
+                int oldPort = port;
+                // Address already in use
+                port = InterfaceAvailabilityChecker.getRandomPortNumber();
+                LogHelper.getInstance()
+                        .e(TAG, "Port " + oldPort + " was already in use. Trying again on port: " + port);
+                maxRetries--;
+                if (jmdns != null) {
+                    jmdns.restartAdvertisingOnNewPort(port);
+                }
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while opening server on port " + port, e);
+                closeServerChannel();
+                maxRetries--;
+            }
+        }
+        if (serverChannel == null) {
+            return -1;
+        }
+
+        try {
+            int numberOfLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+            eventLoops = new EventLoop[numberOfLoops];
+            for (int i = 0; i < numberOfLoops; i++) {
+                eventLoops[i] = new EventLoop(i);
+            }
+            // The first loop also accepts new clients
+            serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            LogHelper.getInstance().e(TAG, "Could not open selectors", e);
+            stop();
+            return -1;
+        }
+        running = true;
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+        LogHelper.getInstance().d(TAG, "Started on port " + port + " with " + eventLoops.length + " event loops");
+        return port;
+    }
+
+    /**
+     * Blocks until at least one client is connected.
+     * 
+     * @param timeoutInSeconds
+     *            the maximum time to wait, use 0 for no timeout
+     * @return true if a client is connected
+     * */
+    public boolean waitForFirstClient(int timeoutInSeconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInSeconds * 1000L;
+        synchronized (connectionLock) {
+            while (running && connections.isEmpty()) {
+                if (timeoutInSeconds <= 0) {
+                    connectionLock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    connectionLock.wait(remaining);
+                }
+            }
+        }
+        return !connections.isEmpty();
+    }
+
+    /**
+     * Sends the frame to the client with the given address. The frame is released after it was written.
+     * 
+     * @param address
+     *            the address of the client as passed to {@link HubListener#onClientConnected(MultiNetworkAddress)}
+     * @return false if the client is not connected or its write queue is full. The frame was released in this case.
+     * */
+    public boolean sendTo(MultiNetworkAddress address, MessageFrame frame) {
+        Connection connection = running && address != null ? connectionsByAddress.get(getAddressKey(address)) : null;
+        if (connection == null) {
+            LogHelper.getInstance().e(TAG, "Can not send frame, client is not connected: " + address);
+            frame.release();
+            return false;
+        }
+        if (!connection.enqueue(new PendingWrite(frame, 1))) {
+            frame.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the frame to all connected clients. Only use this for frames that are meant for every client. The frame is
+     * released after it was written to every client.
+     * 
+     * @return false if no client is connected
+     * */
+    public boolean sendToAll(MessageFrame frame) {
+        if (!running || connections.isEmpty()) {
+            frame.release();
+            return false;
+        }
+        // Take a snapshot so that the number of recipients does not change while we enqueue
+        Object[] recipients = connections.toArray();
+        PendingWrite pendingWrite = new PendingWrite(frame, recipients.length);
+        for (Object recipient : recipients) {
+            Connection connection = (Connection) recipient;
+            if (!connection.enqueue(pendingWrite)) {
+                pendingWrite.onWritten(connection.address, false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes all connections and the server socket and stops the event loops.
+     * */
+    public synchronized void stop() {
+        running = false;
+        closeServerChannel();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                if (loop != null) {
+                    loop.selector.wakeup();
+                }
+            }
+        }
+        synchronized (connectionLock) {
+            connectionLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the client with the given address is connected
+     * */
+    public boolean isConnected(MultiNetworkAddress address) {
+        return address != null && connectionsByAddress.containsKey(getAddressKey(address));
+    }
+
+    /**
+     * @return the number of connected clients
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return true if the server was started and not stopped yet
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * If this method was called with a valid {@link JmdnsHelper} this helper will be used to update the mDNS messages
+     * if the server has to change its port.
+     */
+    public void setJmdns(JmdnsHelper jmdns) {
+        this.jmdns = jmdns;
+    }
+
+    /**
+     * @param spillThreshold
+     *            frames whose content is larger than this number of bytes are cached in a memory mapped file.
+     * */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @param maxFrameSize
+     *            connections that announce a frame whose content is larger than this number of bytes are closed.
+     * */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Limits the number of frames that wait to be written to a single client.
+     * 
+     * @param policy
+     *            what happens if a frame is sent to a client whose write queue is full
+     * @param capacity
+     *            the maximum number of frames that wait to be written to a single client
+     * */
+    public void setWriteQueuePolicy(SendQueuePolicy policy, int capacity) {
+        this.writeQueuePolicy = policy;
+        this.writeQueueCapacity = capacity;
+    }
+
+    /**
+     * @return the key under which the connection of the client with the given address is stored
+     * */
+    private static String getAddressKey(MultiNetworkAddress address) {
+        String host = address.getIpAddress() == null ? null : address.getIpAddress().getHostAddress();
+        return host + ":" + address.getIpPort();
+    }
+
+    private void closeServerChannel() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while closing server channel.", e);
+            }
+            serverChannel = null;
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            int index = Math.abs(nextEventLoop.getAndIncrement() % eventLoops.length);
+            eventLoops[index].register(channel);
+        } catch (IOException e) {
+            LogHelper.getInstance().e(TAG, "Error while accepting client.", e);
+        }
+    }
+
+    /**
+     * A thread that handles the I/O of its connections.
+     * */
+    private class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        public EventLoop(int index) throws IOException {
+            super("WifiHubServer-" + index);
+            selector = Selector.open();
+        }
+
+        /**
+         * Executes the given task on this event loop.
+         * */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection connection = new Connection(channel, EventLoop.this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        connections.add(connection);
+                        connectionsByAddress.put(getAddressKey(connection.address), connection);
+                        synchronized (connectionLock) {
+                            connectionLock.notifyAll();
+                        }
+                        LogHelper.getInstance().d(TAG, "Client connected: " + connection.address);
+                        listener.onClientConnected(connection.address);
+                    } catch (ClosedChannelException e) {
+                        LogHelper.getInstance().e(TAG, "Client disconnected before it was registered.");
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Error in event loop " + getName(), e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while closing selector.", e);
+            }
+        }
+    }
+
+    /**
+     * A frame that is written to one or more clients.
+     * */
+    private class PendingWrite {
+
+        private final MessageFrame frame;
+        private final int recipients;
+        private final AtomicInteger remainingRecipients;
+        private volatile boolean success = true;
+
+        public PendingWrite(MessageFrame frame, int recipients) {
+            this.frame = frame;
+            this.recipients = recipients;
+            this.remainingRecipients = new AtomicInteger(recipients);
+        }
+
+        public void onWritten(MultiNetworkAddress address, boolean written) {
+            if (!written) {
+                success = false;
+            }
+            if (remainingRecipients.decrementAndGet() == 0) {
+                listener.onFrameWritten(recipients == 1 ? address : null, frame, success);
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * State of a single client connection. Reading and writing happens on its event loop, closing can happen on any
+     * thread.
+     * */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final MultiNetworkAddress address = new MultiNetworkAddress();
+        private SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer header = ByteBuffer.allocate(MessageFrame.HEADER_LENGTH);
+        private ByteBuffer content;
+        private byte messageType;
+        private boolean contentSpilled;
+        // True while the listener can not accept further frames of this client:
+        private boolean readingPaused = false;
+        private final Runnable resumeReading = new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReadingResumed();
+                    }
+                });
+            }
+        };
+
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final LinkedBlockingDeque<PendingWrite> writeQueue = new LinkedBlockingDeque<PendingWrite>(
+                writeQueueCapacity);
+        private PendingWrite currentWrite;
+        private ByteBuffer currentData;
+        private volatile boolean closed = false;
+
+        public Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            Socket socket = channel.socket();
+            address.setIpAddress(socket.getInetAddress());
+            address.setIpPort(socket.getPort());
+        }
+
+        /**
+         * Adds the frame to the write queue of this client. If the queue is full the write queue policy of the server
+         * decides whether the caller waits, the oldest frame is dropped or the frame is rejected. The event loop never
+         * waits, it rejects the frame instead.
+         * 
+         * @return false if the frame was not added because the queue is full or the connection was closed
+         * */
+        public boolean enqueue(PendingWrite pendingWrite) {
+            if (!offer(pendingWrite)) {
+                return false;
+            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Connection.this) {
+                        if (!closed && key != null && key.isValid()) {
+                            updateInterestOps(true);
+                        } else {
+                            failPendingWrites();
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+
+        private boolean offer(PendingWrite pendingWrite) {
+            if (closed) {
+                return false;
+            }
+            if (writeQueue.offer(pendingWrite)) {
+                return true;
+            }
+            switch (writeQueuePolicy) {
+            case BLOCK:
+                if (Thread.currentThread() == loop) {
+                    LogHelper.getInstance().e(TAG, "Write queue of " + address + " is full, rejecting frame.");
+                    return false;
+                }
+                LogHelper.getInstance().d(TAG, "Write queue of " + address + " is full, waiting...");
+                try {
+                    while (!closed && running) {
+                        boolean added = writeQueue.offer(pendingWrite, BLOCKED_WRITE_CHECK_INTERVAL_IN_MS,
+                                TimeUnit.MILLISECONDS);
+                        if (added) {
+                            return true;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LogHelper.getInstance().e(TAG, "Interrupted while waiting for the write queue of " + address);
+                }
+                return false;
+            case DROP_OLDEST:
+                while (!writeQueue.offer(pendingWrite)) {
+                    PendingWrite oldest = writeQueue.pollFirst();
+                    if (oldest != null) {
+                        LogHelper.getInstance().e(TAG, "Write queue of " + address + " is full, dropping oldest.");
+                        oldest.onWritten(address, false);
+                    }
+                }
+                return true;
+            default:
+                LogHelper.getInstance().e(TAG, "Write queue of " + address + " is full, rejecting frame.");
+                return false;
+            }
+        }
+
+        /**
+         * Sets the operations the selector waits for. Reading is left out while it is paused.
+         * */
+        private void updateInterestOps(boolean write) {
+            int ops = readingPaused ? 0 : SelectionKey.OP_READ;
+            if (write) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        public synchronized void onReadable() {
+            if (readingPaused) {
+                return;
+            }
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while reading from " + address, e);
+                close();
+                return;
+            }
+            if (read < 0) {
+                LogHelper.getInstance().d(TAG, "End of stream reached for " + address);
+                close();
+                return;
+            }
+            processReadBuffer();
+        }
+
+        /**
+         * Parses the frames in the read buffer until it is empty or reading was paused.
+         * */
+        private void processReadBuffer() {
+            readBuffer.flip();
+            try {
+                while (readBuffer.hasRemaining() && !closed && !readingPaused) {
+                    if (content == null) {
+                        transfer(readBuffer, header);
+                        if (!header.hasRemaining()) {
+                            onHeaderComplete();
+                        }
+                    } else {
+                        transfer(readBuffer, content);
+                        if (!content.hasRemaining()) {
+                            onContentComplete();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Could not cache frame of " + address, e);
+                close();
+            }
+            readBuffer.compact();
+        }
+
+        private void onHeaderComplete() throws IOException {
+            header.flip();
+            int lengthIndicator = header.getInt();
+            messageType = header.get();
+            header.clear();
+            if (lengthIndicator <= 0 || lengthIndicator > maxFrameSize) {
+                // We can not find the start of the next frame, so the connection is useless
+                LogHelper.getInstance().e(TAG, "Invalid length indicator " + lengthIndicator + " from " + address);
+                close();
+                return;
+            }
+            contentSpilled = lengthIndicator > spillThreshold;
+            content = contentSpilled ? InputStreamHelper.mapTemporaryFile(lengthIndicator) : ByteBuffer
+                    .allocate(lengthIndicator);
+        }
+
+        private void onContentComplete() {
+            content.flip();
+            ReceivedFrame frame = new ReceivedFrame(messageType, content, contentSpilled);
+            content = null;
+            if (!listener.onFrameReceived(address, frame, resumeReading)) {
+                LogHelper.getInstance().d(TAG, "Pausing to read from " + address);
+                readingPaused = true;
+                if (key.isValid()) {
+                    updateInterestOps(!writeQueue.isEmpty() || currentWrite != null);
+                }
+            }
+        }
+
+        /**
+         * Continues with the frames that were read before reading was paused and waits for new data again.
+         * */
+        private synchronized void onReadingResumed() {
+            if (closed || !readingPaused) {
+                return;
+            }
+            LogHelper.getInstance().d(TAG, "Resuming to read from " + address);
+            readingPaused = false;
+            processReadBuffer();
+            if (!closed && key.isValid()) {
+                updateInterestOps(!writeQueue.isEmpty() || currentWrite != null);
+            }
+        }
+
+        public synchronized void onWritable() {
+            try {
+                while (true) {
+                    if (currentWrite == null) {
+                        currentWrite = writeQueue.poll();
+                        currentData = currentWrite == null ? null : currentWrite.frame.getSlice();
+                    }
+                    if (currentData != null) {
+                        transfer(currentData, writeBuffer);
+                    }
+                    writeBuffer.flip();
+                    if (!writeBuffer.hasRemaining()) {
+                        writeBuffer.clear();
+                        break;
+                    }
+                    channel.write(writeBuffer);
+                    boolean flushed = !writeBuffer.hasRemaining();
+                    writeBuffer.compact();
+                    if (currentWrite != null && !currentData.hasRemaining() && flushed) {
+                        currentWrite.onWritten(address, true);
+                        currentWrite = null;
+                        currentData = null;
+                    }
+                    if (!flushed) {
+                        // The socket buffer is full, we continue when the channel is writable again
+                        return;
+                    }
+                }
+                if (writeQueue.isEmpty() && key.isValid()) {
+                    updateInterestOps(false);
+                    // A frame might have been added after we checked the queue
+                    if (!writeQueue.isEmpty()) {
+                        updateInterestOps(true);
+                    }
+                }
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while writing to " + address, e);
+                close();
+            }
+        }
+
+        /**
+         * Copies as many bytes as possible from source to target.
+         * */
+        private void transfer(ByteBuffer source, ByteBuffer target) {
+            int count = Math.min(source.remaining(), target.remaining());
+            ByteBuffer part = source.duplicate();
+            part.limit(part.position() + count);
+            target.put(part);
+            source.position(source.position() + count);
+        }
+
+        private void failPendingWrites() {
+            if (currentWrite != null) {
+                currentWrite.onWritten(address, false);
+                currentWrite = null;
+                currentData = null;
+            }
+            PendingWrite pendingWrite;
+            while ((pendingWrite = writeQueue.poll()) != null) {
+                pendingWrite.onWritten(address, false);
+            }
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LogHelper.getInstance().e(TAG, "Error while closing connection to " + address, e);
+            }
+            connections.remove(this);
+            connectionsByAddress.remove(getAddressKey(address), this);
+            failPendingWrites();
+            listener.onClientDisconnected(address);
+        }
+    }
+
+}
@@ -1,14 +1,19 @@
 package de.lmu.mcm.security;
 
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 
 /**
@@ -19,9 +24,21 @@ import javax.crypto.spec.IvParameterSpec;
 public class AesHelper {
 
     private Cipher cipher;
+    private Cipher authenticatedCipher;
+    private Cipher unpaddedCipher;
     private final String DEFAULT_CYPHER_ALGO = "AES/CBC/PKCS5Padding";
+    // Same as the default algorithm, but the padding is removed by this class:
+    private final String UNPADDED_CYPHER_ALGO = "AES/CBC/NoPadding";
+    private final String AUTHENTICATED_CYPHER_ALGO = "AES/GCM/NoPadding";
+    // Random nonce that is sent in front of every message that is encrypted with AES/GCM:
+    public static final int NONCE_LENGTH = 12;
+    // Authentication tag that AES/GCM appends to the encrypted bytes:
+    public static final int TAG_LENGTH = 16;
+    private static final int BLOCK_SIZE = 16;
     private byte[] iv = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
     IvParameterSpec ivspec = new IvParameterSpec(iv);
+    // Constructor of GCMParameterSpec(int, byte[]) or null if the class is not available (API level < 19):
+    private static final Constructor<?> GCM_PARAMETER_SPEC_CONSTRUCTOR = findGcmParameterSpecConstructor();
 
     public AesHelper() throws NoSuchAlgorithmException, NoSuchPaddingException {
         cipher = Cipher.getInstance(DEFAULT_CYPHER_ALGO);
@@ -44,6 +61,153 @@ public class AesHelper {
         return cipher.doFinal(bytes);
     }
 
+    /**
+     * Encrypts the remaining bytes of the input buffer with AES/CBC/PKCS5Padding and writes the result to the output
+     * buffer. The output buffer needs at least {@link #getEncryptedLength(int)} remaining bytes.
+     * 
+     * @param input
+     *            the bytes to encrypt
+     * @param output
+     *            the buffer the encrypted bytes are written to
+     * @param symmetricKey
+     *            the key to use
+     * 
+     * @return the number of bytes written to the output buffer
+     * 
+     * */
+    public int encrypt(ByteBuffer input, ByteBuffer output, Key symmetricKey) throws InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, ShortBufferException {
+        cipher.init(Cipher.ENCRYPT_MODE, symmetricKey, ivspec);
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * @param plainLength
+     *            the number of bytes to encrypt
+     * @return the number of bytes that are returned when encrypting the given number of bytes. PKCS5 always adds
+     *         between 1 and 16 bytes of padding.
+     * */
+    public static int getEncryptedLength(int plainLength) {
+        return (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts and authenticates the remaining bytes of the input buffer with AES/GCM in a single pass. The nonce and
+     * the encrypted bytes with the authentication tag are written to the output buffer, which needs at least
+     * {@link #getAuthenticatedLength(int)} remaining bytes.
+     * 
+     * @param input
+     *            the bytes to encrypt
+     * @param output
+     *            the buffer the nonce and the encrypted bytes are written to
+     * @param symmetricKey
+     *            the key to use
+     * @param random
+     *            the source of the nonce. A nonce must never be used twice with the same key.
+     * 
+     * @return the number of bytes written to the output buffer
+     * 
+     * */
+    public int encryptAuthenticated(ByteBuffer input, ByteBuffer output, Key symmetricKey, SecureRandom random)
+            throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+            InvalidAlgorithmParameterException, ShortBufferException, NoSuchAlgorithmException,
+            NoSuchPaddingException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher gcm = getAuthenticatedCipher();
+        gcm.init(Cipher.ENCRYPT_MODE, symmetricKey, createGcmParameters(nonce));
+        output.put(nonce);
+        return NONCE_LENGTH + gcm.doFinal(input, output);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input buffer (nonce, encrypted bytes and authentication tag) with AES/GCM
+     * and verifies the authentication tag in the same pass.
+     * 
+     * @param input
+     *            the nonce and the encrypted bytes
+     * @param symmetricKey
+     *            the key to use
+     * 
+     * @return the decrypted bytes
+     * @throws BadPaddingException
+     *             if the authentication tag did not match
+     * 
+     * */
+    public byte[] decryptAuthenticated(ByteBuffer input, Key symmetricKey) throws InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, ShortBufferException,
+            NoSuchAlgorithmException, NoSuchPaddingException {
+        if (input.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+            throw new IllegalBlockSizeException("Message is too short for nonce and tag: " + input.remaining());
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        input.get(nonce);
+        Cipher gcm = getAuthenticatedCipher();
+        gcm.init(Cipher.DECRYPT_MODE, symmetricKey, createGcmParameters(nonce));
+        ByteBuffer output = ByteBuffer.allocate(gcm.getOutputSize(input.remaining()));
+        gcm.doFinal(input, output);
+        if (output.hasRemaining()) {
+            byte[] decrypted = new byte[output.position()];
+            System.arraycopy(output.array(), 0, decrypted, 0, decrypted.length);
+            return decrypted;
+        }
+        return output.array();
+    }
+
+    /**
+     * @param plainLength
+     *            the number of bytes to encrypt
+     * @return the number of bytes {@link #encryptAuthenticated(ByteBuffer, ByteBuffer, Key, SecureRandom)} writes
+     *         for the given number of bytes.
+     * */
+    public static int getAuthenticatedLength(int plainLength) {
+        return NONCE_LENGTH + plainLength + TAG_LENGTH;
+    }
+
+    /**
+     * GCMParameterSpec is only available from API level 19 on. Older providers take the nonce as IvParameterSpec and
+     * use a tag of 128 bit.
+     * */
+    private AlgorithmParameterSpec createGcmParameters(byte[] nonce) {
+        if (GCM_PARAMETER_SPEC_CONSTRUCTOR != null) {
+            try {
+                return (AlgorithmParameterSpec) GCM_PARAMETER_SPEC_CONSTRUCTOR.newInstance(TAG_LENGTH * 8, nonce);
+            } catch (Exception e) {
+                // Fall back to the nonce only
+            }
+        }
+        return new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Looks up the constructor of GCMParameterSpec once, so that encrypting a message does not use reflection to find
+     * it.
+     * 
+     * @return the constructor or null if the class is not available
+     * */
+    private static Constructor<?> findGcmParameterSpecConstructor() {
+        try {
+            Class<?> specClass = Class.forName("javax.crypto.spec.GCMParameterSpec");
+            return specClass.getConstructor(int.class, byte[].class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Cipher getUnpaddedCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (unpaddedCipher == null) {
+            unpaddedCipher = Cipher.getInstance(UNPADDED_CYPHER_ALGO);
+        }
+        return unpaddedCipher;
+    }
+
+    private Cipher getAuthenticatedCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (authenticatedCipher == null) {
+            authenticatedCipher = Cipher.getInstance(AUTHENTICATED_CYPHER_ALGO);
+        }
+        return authenticatedCipher;
+    }
+
     /**
      * Decrypts the given bytes with AES/CBC/PKCS5Padding
      * 
@@ -57,8 +221,100 @@ public class AesHelper {
      * */
     public byte[] decrypt(byte[] encrypted, Key symmetricKey) throws IllegalBlockSizeException, BadPaddingException,
             InvalidKeyException, InvalidAlgorithmParameterException {
+        return decrypt(encrypted, 0, encrypted.length, symmetricKey);
+    }
+
+    /**
+     * Decrypts a part of the given array with AES/CBC/PKCS5Padding
+     * 
+     * @param encrypted
+     *            the array that contains the bytes to decrypt
+     * @param offset
+     *            the index of the first byte to decrypt
+     * @param length
+     *            the number of bytes to decrypt
+     * @param symmetricKey
+     *            the key to use
+     * 
+     * @return the decrypted bytes
+     * 
+     * */
+    public byte[] decrypt(byte[] encrypted, int offset, int length, Key symmetricKey)
+            throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+            InvalidAlgorithmParameterException {
         this.cipher.init(Cipher.DECRYPT_MODE, symmetricKey, ivspec);
-        return cipher.doFinal(encrypted);
+        return cipher.doFinal(encrypted, offset, length);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input buffer with AES/CBC/PKCS5Padding, e.g. directly from a received frame.
+     * The last decrypted bytes are written to the given trailer (e.g. a hash) and the bytes in front of it are returned
+     * in an array of their exact length, so neither the input nor the result has to be copied again.
+     * 
+     * The last block is decrypted first to find out the length of the padding. In CBC mode its IV is the block in front
+     * of it.
+     * 
+     * @param input
+     *            the bytes to decrypt
+     * @param symmetricKey
+     *            the key to use
+     * @param trailer
+     *            receives the last decrypted bytes
+     * 
+     * @return the decrypted bytes in front of the trailer
+     * @throws BadPaddingException
+     *             if the padding was invalid or the decrypted bytes were shorter than the trailer
+     * 
+     * */
+    public byte[] decrypt(ByteBuffer input, Key symmetricKey, byte[] trailer) throws IllegalBlockSizeException,
+            BadPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, ShortBufferException,
+            NoSuchAlgorithmException, NoSuchPaddingException {
+        int length = input.remaining();
+        if (length == 0 || length % BLOCK_SIZE != 0) {
+            throw new IllegalBlockSizeException("Length is not a multiple of the block size: " + length);
+        }
+        Cipher unpadded = getUnpaddedCipher();
+        int lastBlock = input.position() + length - BLOCK_SIZE;
+        byte[] ivOfLastBlock = iv;
+        if (length > BLOCK_SIZE) {
+            ivOfLastBlock = new byte[BLOCK_SIZE];
+            ByteBuffer previousBlock = input.duplicate();
+            previousBlock.position(lastBlock - BLOCK_SIZE);
+            previousBlock.get(ivOfLastBlock);
+        }
+        ByteBuffer lastBlockInput = input.duplicate();
+        lastBlockInput.position(lastBlock);
+        byte[] lastBlockDecrypted = new byte[BLOCK_SIZE];
+        unpadded.init(Cipher.DECRYPT_MODE, symmetricKey, new IvParameterSpec(ivOfLastBlock));
+        unpadded.doFinal(lastBlockInput, ByteBuffer.wrap(lastBlockDecrypted));
+
+        int paddingLength = lastBlockDecrypted[BLOCK_SIZE - 1] & 0xFF;
+        if (paddingLength < 1 || paddingLength > BLOCK_SIZE) {
+            throw new BadPaddingException("Invalid padding length: " + paddingLength);
+        }
+        for (int i = BLOCK_SIZE - paddingLength; i < BLOCK_SIZE; i++) {
+            if (lastBlockDecrypted[i] != (byte) paddingLength) {
+                throw new BadPaddingException("Invalid padding");
+            }
+        }
+        if (length - paddingLength < trailer.length) {
+            throw new BadPaddingException("Decrypted bytes are shorter than the trailer: " + (length - paddingLength));
+        }
+
+        // Whole blocks are decrypted directly into the result, the rest into a small array that is split afterwards:
+        byte[] decrypted = new byte[length - paddingLength - trailer.length];
+        int directLength = decrypted.length / BLOCK_SIZE * BLOCK_SIZE;
+        ByteBuffer blocks = input.duplicate();
+        blocks.limit(blocks.position() + directLength);
+        unpadded.init(Cipher.DECRYPT_MODE, symmetricKey, ivspec);
+        unpadded.update(blocks, ByteBuffer.wrap(decrypted, 0, directLength));
+        blocks.limit(input.limit());
+        byte[] rest = new byte[length - directLength];
+        unpadded.doFinal(blocks, ByteBuffer.wrap(rest));
+        System.arraycopy(rest, 0, decrypted, directLength, decrypted.length - directLength);
+        System.arraycopy(rest, decrypted.length - directLength, trailer, 0, trailer.length);
+        input.position(input.limit());
+        return decrypted;
     }
 
 }
@@ -0,0 +1,171 @@
+package de.lmu.mcm.security;
+
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+import de.lmu.mcm.network.Enums.KeySuite;
+
+/**
+ * Keeps the Cipher, MessageDigest and KeyFactory instances of the current thread, so that the providers are only
+ * looked up once per thread instead of once per message. These objects are not thread safe, so never pass the returned
+ * instances to another thread. Each thread (e.g. every read and write thread of the interfaces) gets its own context.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class CryptoContext {
+
+    private static final ThreadLocal<CryptoContext> contexts = new ThreadLocal<CryptoContext>() {
+        @Override
+        protected CryptoContext initialValue() {
+            return new CryptoContext();
+        }
+    };
+
+    private RsaHelper rsaHelper;
+    private AesHelper aesHelper;
+    private MessageDigest sha1Digest;
+    private KeyFactory rsaKeyFactory;
+    private KeyGenerator aesKeyGenerator;
+    private SecureRandom secureRandom;
+    private Signature rsaSignature;
+    private EcHelper ecHelper;
+    private KeyFactory ecKeyFactory;
+    private Signature ecdsaSignature;
+    private Mac hmacSha256;
+
+    private CryptoContext() {
+    }
+
+    /**
+     * @return the context of the current thread
+     */
+    public static CryptoContext getInstance() {
+        return contexts.get();
+    }
+
+    /**
+     * @return the RSA helper of the current thread
+     * */
+    public RsaHelper getRsaHelper() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (rsaHelper == null) {
+            rsaHelper = new RsaHelper();
+        }
+        return rsaHelper;
+    }
+
+    /**
+     * @return the AES helper of the current thread
+     * */
+    public AesHelper getAesHelper() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (aesHelper == null) {
+            aesHelper = new AesHelper();
+        }
+        return aesHelper;
+    }
+
+    /**
+     * @return a SHA-1 digest of the current thread that was reset
+     * */
+    public MessageDigest getSha1Digest() throws NoSuchAlgorithmException {
+        if (sha1Digest == null) {
+            sha1Digest = MessageDigest.getInstance("SHA-1");
+        }
+        sha1Digest.reset();
+        return sha1Digest;
+    }
+
+    /**
+     * @return the RSA key factory of the current thread
+     * */
+    public KeyFactory getRsaKeyFactory() throws NoSuchAlgorithmException {
+        if (rsaKeyFactory == null) {
+            rsaKeyFactory = KeyFactory.getInstance("RSA");
+        }
+        return rsaKeyFactory;
+    }
+
+    /**
+     * @return a generator for AES keys with {@link KeyHolder#AES_KEY_LENGTH} bits
+     * */
+    public KeyGenerator getAesKeyGenerator() throws NoSuchAlgorithmException {
+        if (aesKeyGenerator == null) {
+            aesKeyGenerator = KeyGenerator.getInstance("AES");
+            aesKeyGenerator.init(KeyHolder.AES_KEY_LENGTH, getSecureRandom());
+        }
+        return aesKeyGenerator;
+    }
+
+    /**
+     * @return the SHA256withRSA signature of the current thread. Call initSign or initVerify before using it.
+     * */
+    public Signature getRsaSignature() throws NoSuchAlgorithmException {
+        if (rsaSignature == null) {
+            rsaSignature = Signature.getInstance("SHA256withRSA");
+        }
+        return rsaSignature;
+    }
+
+    /**
+     * @return the signature of the current thread that matches the algorithm of the given key (SHA256withRSA or
+     *         SHA256withECDSA). Call initSign or initVerify before using it.
+     * */
+    public Signature getSignature(Key key) throws NoSuchAlgorithmException {
+        if (KeySuite.fromKey(key) == KeySuite.EC) {
+            if (ecdsaSignature == null) {
+                ecdsaSignature = Signature.getInstance("SHA256withECDSA");
+            }
+            return ecdsaSignature;
+        }
+        return getRsaSignature();
+    }
+
+    /**
+     * @return the EC helper of the current thread
+     * */
+    public EcHelper getEcHelper() throws NoSuchAlgorithmException {
+        if (ecHelper == null) {
+            ecHelper = new EcHelper();
+        }
+        return ecHelper;
+    }
+
+    /**
+     * @return the EC key factory of the current thread
+     * */
+    public KeyFactory getEcKeyFactory() throws NoSuchAlgorithmException {
+        if (ecKeyFactory == null) {
+            ecKeyFactory = KeyFactory.getInstance("EC");
+        }
+        return ecKeyFactory;
+    }
+
+    /**
+     * @return the HmacSHA256 of the current thread. Call init before using it.
+     * */
+    public Mac getHmacSha256() throws NoSuchAlgorithmException {
+        if (hmacSha256 == null) {
+            hmacSha256 = Mac.getInstance("HmacSHA256");
+        }
+        return hmacSha256;
+    }
+
+    /**
+     * @return the SecureRandom of the current thread
+     * */
+    public SecureRandom getSecureRandom() {
+        if (secureRandom == null) {
+            secureRandom = new SecureRandom();
+        }
+        return secureRandom;
+    }
+
+}
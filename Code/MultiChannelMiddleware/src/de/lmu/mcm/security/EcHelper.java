@@ -0,0 +1,117 @@
+package de.lmu.mcm.security;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A helper class to encrypt messages for the owner of an EC public key (ECDH key agreement and AES/GCM). For every
+ * message a new ephemeral key pair is generated. The AES key is the SHA-256 hash of the ECDH secret and the ephemeral
+ * public key, so only the owner of the private key of the receiver can derive it.
+ *
+ * @author Thomas Bornschlegel
+ * */
+public class EcHelper {
+
+    // The ephemeral public key is prefixed with its length as a short:
+    public static final int EPHEMERAL_KEY_LENGTH_INDICATOR = 2;
+    // Length of an X.509 encoded public key on the curve secp521r1, the largest curve that is supported:
+    public static final int MAX_ENCODED_KEY_LENGTH = 158;
+
+    private final KeyPairGenerator keyPairGenerator;
+    private final KeyAgreement keyAgreement;
+    private final MessageDigest sha256;
+
+    public EcHelper() throws NoSuchAlgorithmException {
+        keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyAgreement = KeyAgreement.getInstance("ECDH");
+        sha256 = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Encrypts the remaining bytes of the input buffer for the owner of the given public key. Writes the length of the
+     * ephemeral public key, the X.509 encoded ephemeral public key and the output of
+     * {@link AesHelper#encryptAuthenticated(ByteBuffer, ByteBuffer, java.security.Key, SecureRandom)} to the output
+     * buffer, which needs at least {@link #getEncryptedLength(int)} remaining bytes.
+     *
+     * @return the number of bytes written to the output buffer
+     * */
+    public int encrypt(ByteBuffer input, ByteBuffer output, PublicKey receiverKey, AesHelper aes, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+            BadPaddingException, ShortBufferException, NoSuchAlgorithmException, NoSuchPaddingException {
+        keyPairGenerator.initialize(((ECPublicKey) receiverKey).getParams(), random);
+        KeyPair ephemeralKeyPair = keyPairGenerator.generateKeyPair();
+        byte[] ephemeralKey = ephemeralKeyPair.getPublic().getEncoded();
+        SecretKey messageKey = deriveKey(ephemeralKeyPair.getPrivate(), receiverKey, ephemeralKey);
+
+        output.putShort((short) ephemeralKey.length);
+        output.put(ephemeralKey);
+        return EPHEMERAL_KEY_LENGTH_INDICATOR + ephemeralKey.length
+                + aes.encryptAuthenticated(input, output, messageKey, random);
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input buffer that were encrypted with
+     * {@link #encrypt(ByteBuffer, ByteBuffer, PublicKey, AesHelper, SecureRandom)}.
+     *
+     * @return the decrypted bytes
+     * @throws BadPaddingException
+     *             if the message was not encrypted for the given key or was modified
+     * */
+    public byte[] decrypt(ByteBuffer input, PrivateKey ownKey, AesHelper aes) throws InvalidKeyException,
+            InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
+            InvalidAlgorithmParameterException, ShortBufferException, NoSuchAlgorithmException,
+            NoSuchPaddingException {
+        if (input.remaining() < EPHEMERAL_KEY_LENGTH_INDICATOR) {
+            throw new IllegalBlockSizeException("Message is too short for the ephemeral key: " + input.remaining());
+        }
+        int ephemeralKeyLength = input.getShort() & 0xFFFF;
+        if (ephemeralKeyLength > input.remaining()) {
+            throw new IllegalBlockSizeException("Invalid length of the ephemeral key: " + ephemeralKeyLength);
+        }
+        byte[] ephemeralKey = new byte[ephemeralKeyLength];
+        input.get(ephemeralKey);
+        PublicKey senderKey = CryptoContext.getInstance().getEcKeyFactory()
+                .generatePublic(new X509EncodedKeySpec(ephemeralKey));
+        return aes.decryptAuthenticated(input, deriveKey(ownKey, senderKey, ephemeralKey));
+    }
+
+    /**
+     * @param plainLength
+     *            the number of bytes to encrypt
+     * @return the maximum number of bytes {@link #encrypt(ByteBuffer, ByteBuffer, PublicKey, AesHelper, SecureRandom)}
+     *         writes for the given number of bytes.
+     * */
+    public static int getEncryptedLength(int plainLength) {
+        return EPHEMERAL_KEY_LENGTH_INDICATOR + MAX_ENCODED_KEY_LENGTH + AesHelper.getAuthenticatedLength(plainLength);
+    }
+
+    private SecretKey deriveKey(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey)
+            throws InvalidKeyException {
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true);
+        sha256.reset();
+        sha256.update(keyAgreement.generateSecret());
+        sha256.update(ephemeralKey);
+        return new SecretKeySpec(sha256.digest(), "AES");
+    }
+
+}
@@ -0,0 +1,629 @@
+package de.lmu.mcm.security;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.NoSuchPaddingException;
+
+import android.content.Context;
+import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.HandshakeNextAction;
+import de.lmu.mcm.network.Enums.HandshakeRole;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.HandshakeMessage1;
+import de.lmu.mcm.security.byteproto.ResumptionRequestMessage;
+
+/**
+ * Runs handshakes with many users at the same time. There is one {@link HandshakeStateHolder} per pair of local and
+ * remote UUID. Received frames are decrypted and processed on a pool of worker threads, the next messages are
+ * encrypted there as well and handed to the {@link HandshakeCallback}.
+ *
+ * The sender of a received frame does not have to be known: the first message of a handshake contains the id of A,
+ * the other messages are matched by their nonces (see {@link HandshakeStateHolder#isExpectedMessage(BasicMessage)}).
+ * Each handshake remembers the address it last received a valid message from. Frames from this address are passed to
+ * this handshake first, so signed messages are only checked with the key of its user. Handshakes that did not receive
+ * a message yet are tried after that.
+ *
+ * Handshakes that do not make progress within the handshake timeout fail. Finished handshakes are removed after the
+ * idle timeout. A running handshake is never replaced or evicted: at most {@link #MAX_ENTRIES} handshakes are kept and
+ * new handshakes are rejected while all of them are running. Users that have no handshake yet can start at most
+ * {@link #DEFAULT_MAX_NEW_HANDSHAKES_PER_SECOND} handshakes per second.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class HandshakeRegistry {
+
+    /**
+     * Receives the results of the registry. The methods are called from the worker threads.
+     * */
+    public interface HandshakeCallback {
+
+        /**
+         * Sends the frame to the given user. The frame has to be released after it was written.
+         * 
+         * @param address
+         *            the address the user sent its last message from or null if it did not send a message yet
+         * */
+        public void sendFrame(UUID remoteId, MultiNetworkAddress address, MessageFrame frame);
+
+        /**
+         * Called once per handshake when it completed, failed or timed out.
+         * */
+        public void onHandshakeFinished(UUID remoteId, boolean success);
+    }
+
+    public static final int DEFAULT_WORKER_THREADS = 2;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_IN_MS = 30 * 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT_IN_MS = 5 * 60 * 1000;
+    public static final int MAX_ENTRIES = 256;
+    public static final int DEFAULT_MAX_NEW_HANDSHAKES_PER_SECOND = 16;
+    private static final long SWEEP_INTERVAL_IN_MS = 1000;
+
+    private final String TAG = "HandshakeRegistry";
+    private final Context context;
+    private final UUID localId;
+    private final HandshakeCallback callback;
+    private final MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService sweeper;
+    private volatile long handshakeTimeoutInMs = DEFAULT_HANDSHAKE_TIMEOUT_IN_MS;
+    private volatile long idleTimeoutInMs = DEFAULT_IDLE_TIMEOUT_IN_MS;
+    private volatile int maxNewHandshakesPerSecond = DEFAULT_MAX_NEW_HANDSHAKES_PER_SECOND;
+
+    // Least recently used first. The lock of the map is never held while the lock of an entry is acquired.
+    private final Map<PeerKey, Entry> entries = new LinkedHashMap<PeerKey, Entry>(16, 0.75f, true);
+    // Guarded by the lock of entries:
+    private final Map<String, Entry> entriesByAddress = new HashMap<String, Entry>();
+    private long rateWindowStart = 0;
+    private int newHandshakesInRateWindow = 0;
+
+    /**
+     * @param context
+     *            the context that is used to access the keys
+     * @param localId
+     *            the own UUID
+     * @param callback
+     *            sends the frames and receives the results
+     * @param workerThreads
+     *            the number of threads that encrypt and decrypt the messages
+     * */
+    public HandshakeRegistry(Context context, UUID localId, HandshakeCallback callback, int workerThreads) {
+        this.context = context;
+        this.localId = localId;
+        this.callback = callback;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor();
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_IN_MS, SWEEP_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param handshakeTimeoutInMs
+     *            the time a handshake may wait for the next message before it fails
+     * @param idleTimeoutInMs
+     *            the time a finished handshake is kept before it is removed
+     * */
+    public void setTimeouts(long handshakeTimeoutInMs, long idleTimeoutInMs) {
+        this.handshakeTimeoutInMs = handshakeTimeoutInMs;
+        this.idleTimeoutInMs = idleTimeoutInMs;
+    }
+
+    /**
+     * @param maxNewHandshakesPerSecond
+     *            the number of handshakes per second that users without a handshake may start. Further first messages
+     *            are dropped.
+     * */
+    public void setMaxNewHandshakesPerSecond(int maxNewHandshakesPerSecond) {
+        this.maxNewHandshakesPerSecond = maxNewHandshakesPerSecond;
+    }
+
+    /**
+     * @param keyPair
+     *            the RSA key pair of the local user if it is not the saved key pair of this device
+     * */
+    public void setOwnKeyPair(KeyPair keyPair) {
+        encryptionHandler.setOwnKeyPair(keyPair);
+    }
+
+    /**
+     * @return true if frames of the given type belong to a handshake and should be passed to
+     *         {@link #onFrameReceived(MultiNetworkAddress, byte[])}
+     * */
+    public static boolean isHandshakeMessageType(byte messageType) {
+        return messageType >= 1 && messageType <= 4
+                || messageType == MessageEncryptionHandler.MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4
+                || messageType == MessageEncryptionHandler.MESSAGE_TYPE_RESUMPTION_REQUEST
+                || messageType == MessageEncryptionHandler.MESSAGE_TYPE_RESUMPTION_RESPONSE;
+    }
+
+    /**
+     * Starts a handshake with the given user, unless one is running already. Like in the HandshakeActivity the party
+     * with the greater UUID is A and sends the first message, the other party waits for it.
+     * */
+    public void startHandshake(final UUID remoteId) {
+        final PeerKey key = new PeerKey(localId, remoteId);
+        synchronized (entries) {
+            Entry existing = entries.get(key);
+            if (existing != null && !existing.finished) {
+                return;
+            }
+        }
+        final HandshakeRole role = localId.compareTo(remoteId) > 0 ? HandshakeRole.A : HandshakeRole.B;
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Entry entry = createEntry(key, role);
+                if (entry != null && role == HandshakeRole.A) {
+                    synchronized (entry) {
+                        sendNextMessages(entry);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decrypts the frame on a worker thread and passes it to the handshake it belongs to.
+     *
+     * @param address
+     *            the address the frame was received from or null if it is not known
+     * @param frame
+     *            the received frame including the header
+     * */
+    public void onFrameReceived(final MultiNetworkAddress address, final byte[] frame) {
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                handleFrame(address, frame);
+            }
+        });
+    }
+
+    /**
+     * Passes an already decrypted message to the handshake with the given user on a worker thread.
+     *
+     * @param remoteId
+     *            the sender or null if it is not known
+     * */
+    public void onMessageReceived(final UUID remoteId, final BasicMessage message) {
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                route(remoteId, null, message);
+            }
+        });
+    }
+
+    /**
+     * @return the state of the handshake with the given user or null if there is none. Do not modify it.
+     * */
+    public HandshakeStateHolder getHandshake(UUID remoteId) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(new PeerKey(localId, remoteId));
+        }
+        return entry == null ? null : entry.holder;
+    }
+
+    /**
+     * @return the number of handshakes that are kept, including finished ones
+     * */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Stops the worker threads. Running handshakes are not finished.
+     * */
+    public void shutdown() {
+        sweeper.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void handleFrame(MultiNetworkAddress address, byte[] frame) {
+        try {
+            byte messageType = frame[MessageFrame.HEADER_LENGTH - 1];
+            if (!encryptionHandler.isSenderRequired(messageType)) {
+                BasicMessage message = encryptionHandler.extractReceivedMessage(context, null, frame);
+                if (message != null) {
+                    route(null, address, message);
+                }
+                return;
+            }
+            // Signed messages can only be checked with the key of the sender, the address tells us who it is:
+            Entry entryOfAddress = getEntryOfAddress(address);
+            if (entryOfAddress != null && deliverFrame(entryOfAddress, address, frame)) {
+                return;
+            }
+            for (Entry entry : getWaitingEntries()) {
+                if (entry.addressKey == null && deliverFrame(entry, address, frame)) {
+                    return;
+                }
+            }
+            LogHelper.getInstance().e(TAG, "No handshake matched the received frame of type " + messageType);
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error while handling received frame", e);
+        }
+    }
+
+    private boolean deliverFrame(Entry entry, MultiNetworkAddress address, byte[] frame) throws Exception {
+        if (entry.finished) {
+            return false;
+        }
+        BasicMessage message = encryptionHandler.extractReceivedMessage(context, entry.key.remoteId, frame);
+        return message != null && deliver(entry, address, message);
+    }
+
+    /**
+     * Finds the handshake the message belongs to and processes the message. A first message of an unknown user starts
+     * a new handshake in which this party is B.
+     * */
+    private void route(UUID remoteId, MultiNetworkAddress address, BasicMessage message) {
+        Entry entry = null;
+        if (remoteId != null) {
+            synchronized (entries) {
+                entry = entries.get(new PeerKey(localId, remoteId));
+            }
+        } else {
+            Entry entryOfAddress = getEntryOfAddress(address);
+            if (entryOfAddress != null && isExpectedBy(entryOfAddress, message)) {
+                entry = entryOfAddress;
+            } else {
+                for (Entry candidate : getWaitingEntries()) {
+                    if (isExpectedBy(candidate, message)) {
+                        entry = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+
+        UUID initiator = getInitiator(message);
+        if (initiator != null && (entry == null || !isExpectedBy(entry, message))) {
+            entry = acceptHandshake(initiator);
+        }
+        if (entry == null || !deliver(entry, address, message)) {
+            LogHelper.getInstance().e(TAG, "No handshake matched the received " + message.getClass().getSimpleName());
+        }
+    }
+
+    private boolean isExpectedBy(Entry entry, BasicMessage message) {
+        synchronized (entry) {
+            return !entry.finished && entry.holder.isExpectedMessage(message);
+        }
+    }
+
+    /**
+     * @return the id of A if the message starts a handshake, otherwise null
+     * */
+    private UUID getInitiator(BasicMessage message) {
+        if (message instanceof HandshakeMessage1) {
+            return ((HandshakeMessage1) message).getIdA();
+        } else if (message instanceof ResumptionRequestMessage) {
+            return ((ResumptionRequestMessage) message).getIdA();
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new handshake with the initiator in which this party is B. A running handshake with the initiator is
+     * never replaced, as anybody can send a first message. Initiators without a handshake are rate limited.
+     *
+     * @return the new handshake or null if the message is dropped
+     * */
+    private Entry acceptHandshake(UUID initiator) {
+        PeerKey key = new PeerKey(localId, initiator);
+        synchronized (entries) {
+            Entry existing = entries.get(key);
+            if (existing != null && !existing.finished) {
+                LogHelper.getInstance().d(TAG, "Ignoring handshake of " + initiator + ", a handshake is running.");
+                return null;
+            }
+            if (existing == null && !isNewHandshakeAllowed()) {
+                LogHelper.getInstance().e(TAG, "Too many new handshakes, ignoring handshake of " + initiator);
+                return null;
+            }
+        }
+        return createEntry(key, HandshakeRole.B);
+    }
+
+    /**
+     * Counts the new handshake against the limit of the current second. Has to be called while holding the lock of
+     * {@link #entries}.
+     *
+     * @return false if the limit is reached
+     * */
+    private boolean isNewHandshakeAllowed() {
+        long now = System.currentTimeMillis();
+        if (now - rateWindowStart >= 1000) {
+            rateWindowStart = now;
+            newHandshakesInRateWindow = 0;
+        }
+        if (newHandshakesInRateWindow >= maxNewHandshakesPerSecond) {
+            return false;
+        }
+        newHandshakesInRateWindow++;
+        return true;
+    }
+
+    /**
+     * Processes the message if the handshake expects it and sends the next messages. The handshake remembers the
+     * address of a valid message.
+     *
+     * @return true if the message was processed
+     * */
+    private boolean deliver(Entry entry, MultiNetworkAddress address, BasicMessage message) {
+        synchronized (entry) {
+            if (entry.finished || !entry.holder.isExpectedMessage(message)) {
+                return false;
+            }
+            try {
+                if (!entry.holder.processReceivedMessage(context, message)) {
+                    return false;
+                }
+            } catch (Exception e) {
+                LogHelper.getInstance().e(TAG, "Error while processing message of " + entry.key, e);
+                return false;
+            }
+            if (address != null) {
+                bindAddress(entry, address);
+            }
+            entry.lastActivity = System.currentTimeMillis();
+            sendNextMessages(entry);
+            return true;
+        }
+    }
+
+    /**
+     * Encrypts and sends messages until the handshake waits for the other party. Has to be called while holding the
+     * lock of the entry.
+     * */
+    private void sendNextMessages(Entry entry) {
+        HandshakeStateHolder holder = entry.holder;
+        while (!holder.isHandshakeComplete() && holder.getNextAction() == HandshakeNextAction.SEND) {
+            MessageFrame frame = null;
+            try {
+                BasicMessage message = holder.getNextMessageToSend(context);
+                if (message != null) {
+                    frame = encryptionHandler.prepareFrameForSending(context, entry.key.remoteId, message,
+                            holder.getMessageTypeForMessageToSend());
+                }
+            } catch (Exception e) {
+                LogHelper.getInstance().e(TAG, "Error while preparing message for " + entry.key, e);
+            }
+            if (frame == null) {
+                finish(entry, false);
+                return;
+            }
+            entry.lastActivity = System.currentTimeMillis();
+            callback.sendFrame(entry.key.remoteId, entry.address, frame);
+        }
+        if (holder.isHandshakeComplete()) {
+            finish(entry, true);
+        }
+    }
+
+    /**
+     * Has to be called while holding the lock of the entry.
+     * */
+    private void finish(Entry entry, boolean success) {
+        if (entry.finished) {
+            return;
+        }
+        entry.finished = true;
+        entry.lastActivity = System.currentTimeMillis();
+        LogHelper.getInstance().d(TAG, "Handshake with " + entry.key.remoteId + " finished with success=" + success);
+        callback.onHandshakeFinished(entry.key.remoteId, success);
+    }
+
+    private Entry createEntry(PeerKey key, HandshakeRole role) {
+        HandshakeStateHolder holder;
+        try {
+            if (role == HandshakeRole.A) {
+                holder = new HandshakeStateHolder(key.localId, key.remoteId, role);
+            } else {
+                holder = new HandshakeStateHolder(key.remoteId, key.localId, role);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            LogHelper.getInstance().e(TAG, "Could not create handshake with " + key.remoteId, e);
+            return null;
+        } catch (NoSuchPaddingException e) {
+            LogHelper.getInstance().e(TAG, "Could not create handshake with " + key.remoteId, e);
+            return null;
+        }
+        Entry entry = new Entry(key, holder);
+        synchronized (entries) {
+            Entry existing = entries.get(key);
+            if (existing != null && !existing.finished) {
+                LogHelper.getInstance().d(TAG, "Handshake with " + key.remoteId + " is running already.");
+                return null;
+            }
+            if (existing != null) {
+                removeEntry(existing);
+            } else if (entries.size() >= MAX_ENTRIES && !removeEldestFinishedEntry()) {
+                LogHelper.getInstance().e(TAG, "Too many running handshakes, rejecting handshake with " + key.remoteId);
+                return null;
+            }
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the finished handshake that was used least recently. Has to be called while holding the lock of
+     * {@link #entries}.
+     *
+     * @return false if all handshakes are running
+     * */
+    private boolean removeEldestFinishedEntry() {
+        for (Entry entry : entries.values()) {
+            if (entry.finished) {
+                removeEntry(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Has to be called while holding the lock of {@link #entries}.
+     * */
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.key);
+        if (entry.addressKey != null && entriesByAddress.get(entry.addressKey) == entry) {
+            entriesByAddress.remove(entry.addressKey);
+        }
+    }
+
+    /**
+     * Frames from the address are passed to the given handshake first from now on.
+     * */
+    private void bindAddress(Entry entry, MultiNetworkAddress address) {
+        String addressKey = address.toString();
+        synchronized (entries) {
+            if (addressKey.equals(entry.addressKey) || entries.get(entry.key) != entry) {
+                return;
+            }
+            if (entry.addressKey != null && entriesByAddress.get(entry.addressKey) == entry) {
+                entriesByAddress.remove(entry.addressKey);
+            }
+            entry.addressKey = addressKey;
+            entry.address = address;
+            entriesByAddress.put(addressKey, entry);
+        }
+    }
+
+    /**
+     * @return the handshake that last received a valid message from the address or null
+     * */
+    private Entry getEntryOfAddress(MultiNetworkAddress address) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (entries) {
+            return entriesByAddress.get(address.toString());
+        }
+    }
+
+    /**
+     * @return the handshakes that did not finish yet
+     * */
+    private List<Entry> getWaitingEntries() {
+        List<Entry> waiting = new ArrayList<Entry>();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                if (!entry.finished) {
+                    waiting.add(entry);
+                }
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Fails the handshakes that timed out and removes the finished handshakes that were idle for too long.
+     * */
+    private void sweep() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<Entry>(entries.values());
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : all) {
+            boolean remove;
+            synchronized (entry) {
+                if (!entry.finished && now - entry.lastActivity > handshakeTimeoutInMs) {
+                    LogHelper.getInstance().e(TAG, "Handshake with " + entry.key.remoteId + " timed out in step "
+                            + entry.holder.getCurrentStep());
+                    finish(entry, false);
+                }
+                remove = entry.finished && now - entry.lastActivity > idleTimeoutInMs;
+            }
+            if (remove) {
+                synchronized (entries) {
+                    // Only if it was not replaced by a new handshake in the meantime:
+                    if (entries.get(entry.key) == entry) {
+                        removeEntry(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The pair of local and remote UUID a handshake is stored with.
+     * */
+    private static class PeerKey {
+
+        private final UUID localId;
+        private final UUID remoteId;
+
+        public PeerKey(UUID localId, UUID remoteId) {
+            this.localId = localId;
+            this.remoteId = remoteId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof PeerKey) {
+                PeerKey other = (PeerKey) o;
+                return localId.equals(other.localId) && remoteId.equals(other.remoteId);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * localId.hashCode() + remoteId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return localId + "/" + remoteId;
+        }
+    }
+
+    /**
+     * A handshake together with the time of its last progress. The fields are guarded by the lock of the entry, except
+     * the address, which is guarded by the lock of {@link HandshakeRegistry#entries}. The volatile fields are read
+     * without lock.
+     * */
+    private static class Entry {
+
+        private final PeerKey key;
+        private final HandshakeStateHolder holder;
+        private long lastActivity = System.currentTimeMillis();
+        private volatile boolean finished = false;
+        private volatile String addressKey;
+        private volatile MultiNetworkAddress address;
+
+        public Entry(PeerKey key, HandshakeStateHolder holder) {
+            this.key = key;
+            this.holder = holder;
+        }
+    }
+
+}
@@ -1,7 +1,8 @@
 package de.lmu.mcm.security;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.UUID;
 
 import javax.crypto.NoSuchPaddingException;
@@ -10,14 +11,18 @@ import javax.crypto.SecretKey;
 import org.json.JSONException;
 
 import android.content.Context;
+import de.lmu.mcm.helper.ByteConverter;
 import de.lmu.mcm.helper.LogHelper;
 import de.lmu.mcm.network.Enums.HandshakeNextAction;
 import de.lmu.mcm.network.Enums.HandshakeRole;
+import de.lmu.mcm.security.KeyHolder.SymmetricKeyWrapper;
 import de.lmu.mcm.security.byteproto.BasicMessage;
 import de.lmu.mcm.security.byteproto.HandshakeMessage1;
 import de.lmu.mcm.security.byteproto.HandshakeMessage2;
 import de.lmu.mcm.security.byteproto.HandshakeMessage3;
 import de.lmu.mcm.security.byteproto.HandshakeMessage4;
+import de.lmu.mcm.security.byteproto.ResumptionRequestMessage;
+import de.lmu.mcm.security.byteproto.ResumptionResponseMessage;
 
 /**
  * This class helps to initiate a handshake and symmetric key exchange between to parties A and B. In short the
@@ -27,9 +32,25 @@ import de.lmu.mcm.security.byteproto.HandshakeMessage4;
  * 1. A => pubB(idA, nonceA) => B
  * 2. B => pubA(nonceA, nonceB) => A
  * 3. A => pubB(nonceB) => B
- * 4. B => pubA(privB(symmetricKey, A, B, timestamp))
+ * 4. B => pubA(privB(symmetricKey, A, B, timestamp, ticket))
  * </pre>
  * 
+ * If A still has a valid ticket of B from an earlier handshake, the session is resumed with one round trip instead (see
+ * {@link ResumptionTicket}):
+ * 
+ * <pre>
+ * 1. A => idA, nonceA, mac(idA, nonceA), ticket => B
+ * 2. B => nonceA, nonceB, mac(nonceA, nonceB, newTicket), newTicket => A
+ * </pre>
+ * 
+ * If B does not accept the ticket because it is unknown or expired, it answers with a rejection and both parties fall
+ * back to the full handshake. The rejection is not authenticated, so A keeps its ticket until the full handshake issued
+ * a new one.
+ * 
+ * B only accepts tickets that are not older than the session key it currently shares with A. Every resumption stores
+ * a newer key, so a replayed request can not replace the session key. Resumption is disabled by default, because peers
+ * that do not know it never answer the request (see {@link #setSessionResumptionEnabled(boolean)}).
+ * 
  * @author Thomas Bornschlegel
  * 
  */
@@ -50,7 +71,11 @@ public class HandshakeStateHolder {
     private BasicMessage message3FromAToB;
     private BasicMessage message4FromBToA;
 
-    private SecureRandom random = new SecureRandom();
+    private byte messageTypeToSend;
+    private boolean resumptionEnabled = false;
+    // A: the ticket that was sent to B. B: the ticket of A that was accepted.
+    private ResumptionTicket resumptionTicket;
+    private ResumptionRequestMessage receivedResumptionRequest;
 
     /**
      * Constructs a fresh handshake holder
@@ -109,9 +134,18 @@ public class HandshakeStateHolder {
         }
         try {
             BasicMessage msg = null;
+            messageTypeToSend = step;
             if (step == 1 && role == HandshakeRole.A) {
                 step = 2;
-                msg = getMessage1FromAtoB();
+                msg = getResumptionRequestFromAtoB(context);
+                if (msg != null) {
+                    messageTypeToSend = MessageEncryptionHandler.MESSAGE_TYPE_RESUMPTION_REQUEST;
+                } else {
+                    msg = getMessage1FromAtoB();
+                }
+            } else if (step == 2 && role == HandshakeRole.B && receivedResumptionRequest != null) {
+                messageTypeToSend = MessageEncryptionHandler.MESSAGE_TYPE_RESUMPTION_RESPONSE;
+                msg = getResumptionResponseFromBtoA(context);
             } else if (step == 2 && role == HandshakeRole.B) {
                 step = 3;
                 msg = getMessage2FromBtoA();
@@ -120,7 +154,7 @@ public class HandshakeStateHolder {
                 msg = getMessage3FromAtoB();
             } else if (step == 4 && role == HandshakeRole.B) {
                 step = 5;
-                msg = getMessage4FromBtoA();
+                msg = getMessage4FromBtoA(context);
             }
             if (msg != null) {
                 return msg;
@@ -132,8 +166,29 @@ public class HandshakeStateHolder {
         return null;
     }
 
+    /**
+     * @return the message type of the message that was returned by the last call of
+     *         {@link #getNextMessageToSend(Context)}
+     * */
     public byte getMessageTypeForMessageToSend() {
-        return (byte) (step - 1);
+        return messageTypeToSend;
+    }
+
+    /**
+     * @param enabled
+     *            if true A tries to resume the session with a ticket of B before it starts a full handshake and B issues
+     *            a ticket with the fourth message of a full handshake. Only enable this if the other party supports
+     *            session resumption, older versions do not answer the request. Default: false
+     * */
+    public void setSessionResumptionEnabled(boolean enabled) {
+        this.resumptionEnabled = enabled;
+    }
+
+    /**
+     * @return true if the handshake was completed by resuming an earlier session
+     * */
+    public boolean isSessionResumed() {
+        return isHandshakeComplete() && resumptionTicket != null;
     }
 
     /**
@@ -158,7 +213,18 @@ public class HandshakeStateHolder {
             return false;
         }
         try {
-            if (step == 1 && role == HandshakeRole.B) {
+            if (step == 1 && role == HandshakeRole.B && msg instanceof ResumptionRequestMessage) {
+                processResumptionRequest(context, (ResumptionRequestMessage) msg);
+                step = 2;
+                return true;
+            } else if (step == 2 && role == HandshakeRole.A && resumptionTicket != null) {
+                if (!(msg instanceof ResumptionResponseMessage)) {
+                    LogHelper.getInstance().e(TAG,
+                            "Resumption response was of wrong type: " + msg.getClass().getSimpleName());
+                    return false;
+                }
+                return processResumptionResponse(context, (ResumptionResponseMessage) msg);
+            } else if (step == 1 && role == HandshakeRole.B) {
                 if (!(msg instanceof HandshakeMessage1)) {
                     LogHelper.getInstance().e(TAG, "Message 1 was of wrong type: " + msg.getClass().getSimpleName());
                     return false;
@@ -211,7 +277,15 @@ public class HandshakeStateHolder {
                     LogHelper.getInstance().e(TAG, "ID of B in forth message was wrong!");
                     return false;
                 }
-                KeyHolder.getInstance().storeSymmetricKey(idB, msg4.getSymmetricKey(), msg4.getTimestamp());
+                KeyHolder.getInstance().storeSymmetricKey(context, idB, msg4.getSymmetricKey(), msg4.getTimestamp());
+                if (msg4.getTicket() != null) {
+                    byte[] resumptionSecret = ResumptionTicket.deriveResumptionSecret(msg4.getSymmetricKey());
+                    KeyHolder.getInstance().storeResumptionTicket(context, idB,
+                            new ResumptionTicket(msg4.getTicket(), resumptionSecret, msg4.getTimestamp()));
+                } else {
+                    // B would not accept the old ticket any more:
+                    KeyHolder.getInstance().removeResumptionTicket(context, idB);
+                }
                 step = 5;
                 return true;
             }
@@ -263,22 +337,151 @@ public class HandshakeStateHolder {
     /**
      * @return the fourth message from B to A. Contains "B => pubA(privB(symmetricKey, A, B, timestamp))"
      * */
-    private BasicMessage getMessage4FromBtoA() throws Exception {
+    private BasicMessage getMessage4FromBtoA(Context context) throws Exception {
 
         if (message4FromBToA == null) {
             // Generate key
-            SecretKey symmetricKey = KeyHolder.getInstance().generateRandomSymmetricKey();
+            SecretKey symmetricKey = KeyMaterialService.getInstance().takeSymmetricKey();
             long timeStamp = System.currentTimeMillis();
-            KeyHolder.getInstance().storeSymmetricKey(idA, symmetricKey, timeStamp);
+            KeyHolder.getInstance().storeSymmetricKey(context, idA, symmetricKey, timeStamp);
+            ResumptionTicket ticket = null;
+            if (resumptionEnabled) {
+                ticket = ResumptionTicket.issue(context, idA, idB, ResumptionTicket.deriveResumptionSecret(symmetricKey),
+                        timeStamp);
+            }
 
             // Generate message
-            message4FromBToA = new HandshakeMessage4(idA, idB, timeStamp, symmetricKey);
+            message4FromBToA = new HandshakeMessage4(idA, idB, timeStamp, symmetricKey, ticket == null ? null
+                    : ticket.getTicket());
         }
         return message4FromBToA;
     }
 
+    /**
+     * @return the request to resume the session with the ticket of B or null if no valid ticket is available. Contains
+     *         "A => idA, nonceA, mac(idA, nonceA), ticket => B"
+     * */
+    private BasicMessage getResumptionRequestFromAtoB(Context context) throws Exception {
+        if (!resumptionEnabled) {
+            return null;
+        }
+        resumptionTicket = KeyHolder.getInstance().getResumptionTicket(context, idB);
+        if (resumptionTicket == null) {
+            LogHelper.getInstance().d(TAG, "No ticket available, starting full handshake.");
+            return null;
+        }
+        this.nonceFromFirstMessageA = generateNonce();
+        byte[] mac = ResumptionTicket.mac(resumptionTicket.getResumptionSecret(), "request",
+                ByteConverter.serializeUUID(idA), longToBytes(nonceFromFirstMessageA));
+        return new ResumptionRequestMessage(idA, nonceFromFirstMessageA, mac, resumptionTicket.getTicket());
+    }
+
+    /**
+     * Checks the ticket and the proof of A. If they are valid {@link #resumptionTicket} is set, otherwise it stays null
+     * and A is told to start a full handshake.
+     * */
+    private void processResumptionRequest(Context context, ResumptionRequestMessage request) throws Exception {
+        receivedResumptionRequest = request;
+        resumptionTicket = null;
+        // Echoed in the rejection as well, so that A can match the response to its request:
+        this.nonceFromFirstMessageA = request.getNonceA();
+        if (!idA.equals(request.getIdA())) {
+            LogHelper.getInstance().e(TAG, "ID of A in resumption request was wrong!");
+            return;
+        }
+        ResumptionTicket ticket = ResumptionTicket.open(context, request.getTicket(), idA, idB);
+        if (ticket == null) {
+            LogHelper.getInstance().d(TAG, "Ticket was unknown or expired, rejecting resumption.");
+            return;
+        }
+        byte[] expectedMac = ResumptionTicket.mac(ticket.getResumptionSecret(), "request",
+                ByteConverter.serializeUUID(idA), longToBytes(request.getNonceA()));
+        if (!MessageDigest.isEqual(expectedMac, request.getMac())) {
+            LogHelper.getInstance().e(TAG, "Proof of resumption request was wrong, rejecting resumption.");
+            return;
+        }
+        SymmetricKeyWrapper currentKey = KeyHolder.getInstance().getSymmetricKey(context, idA);
+        if (currentKey != null && ticket.getIssueTime() < currentKey.getTimestamp()) {
+            // The ticket was already used or replaced by a later handshake, the request might be replayed
+            LogHelper.getInstance().e(TAG, "Ticket is older than the current session key, rejecting resumption.");
+            return;
+        }
+        resumptionTicket = ticket;
+    }
+
+    /**
+     * @return the answer to the resumption request of A. If the ticket was accepted the new session key is stored,
+     *         otherwise B waits for the first message of the full handshake. Contains
+     *         "B => nonceB, mac(nonceA, nonceB, newTicket), newTicket => A" or the rejection.
+     * */
+    private BasicMessage getResumptionResponseFromBtoA(Context context) throws Exception {
+        receivedResumptionRequest = null;
+        if (resumptionTicket == null) {
+            step = 1;
+            return new ResumptionResponseMessage(nonceFromFirstMessageA);
+        }
+        this.nonceFromSecondMessageB = generateNonce();
+        SecretKey symmetricKey = ResumptionTicket.deriveSessionKey(resumptionTicket.getResumptionSecret(),
+                nonceFromFirstMessageA, nonceFromSecondMessageB);
+        // Newer than the accepted ticket, so that the same ticket is not accepted again:
+        long timeStamp = Math.max(System.currentTimeMillis(), resumptionTicket.getIssueTime() + 1);
+        KeyHolder.getInstance().storeSymmetricKey(context, idA, symmetricKey, timeStamp);
+        ResumptionTicket newTicket = ResumptionTicket.issue(context, idA, idB,
+                ResumptionTicket.deriveResumptionSecret(symmetricKey), timeStamp);
+        byte[] bytesOfNewTicket = newTicket == null ? new byte[0] : newTicket.getTicket();
+        byte[] mac = ResumptionTicket.mac(resumptionTicket.getResumptionSecret(), "response",
+                longToBytes(nonceFromFirstMessageA), longToBytes(nonceFromSecondMessageB), bytesOfNewTicket);
+        step = 5;
+        return new ResumptionResponseMessage(nonceFromFirstMessageA, nonceFromSecondMessageB, mac, bytesOfNewTicket);
+    }
+
+    /**
+     * Derives the new session key if B accepted the ticket and proved that it could read it. If B rejected the ticket,
+     * the full handshake starts. The ticket is kept, as anybody could have sent the rejection.
+     * 
+     * @return false if the response was forged
+     * */
+    private boolean processResumptionResponse(Context context, ResumptionResponseMessage response) throws Exception {
+        if (response.getNonceA() != nonceFromFirstMessageA) {
+            LogHelper.getInstance().e(TAG, "Received nonce in resumption response was wrong!");
+            return false;
+        }
+        if (!response.isAccepted()) {
+            LogHelper.getInstance().d(TAG, "Ticket was rejected, falling back to full handshake.");
+            resumptionTicket = null;
+            // The ticket is not sent again in this handshake:
+            resumptionEnabled = false;
+            step = 1;
+            return true;
+        }
+        byte[] secret = resumptionTicket.getResumptionSecret();
+        byte[] expectedMac = ResumptionTicket.mac(secret, "response", longToBytes(nonceFromFirstMessageA),
+                longToBytes(response.getNonceB()), response.getTicket());
+        if (!MessageDigest.isEqual(expectedMac, response.getMac())) {
+            LogHelper.getInstance().e(TAG, "Proof of resumption response was wrong!");
+            return false;
+        }
+        this.nonceFromSecondMessageB = response.getNonceB();
+        SecretKey symmetricKey = ResumptionTicket.deriveSessionKey(secret, nonceFromFirstMessageA,
+                nonceFromSecondMessageB);
+        long timeStamp = System.currentTimeMillis();
+        KeyHolder.getInstance().storeSymmetricKey(context, idB, symmetricKey, timeStamp);
+        if (response.getTicket().length > 0) {
+            KeyHolder.getInstance().storeResumptionTicket(context, idB, new ResumptionTicket(response.getTicket(),
+                    ResumptionTicket.deriveResumptionSecret(symmetricKey), timeStamp));
+        } else {
+            KeyHolder.getInstance().removeResumptionTicket(context, idB);
+        }
+        step = 5;
+        return true;
+    }
+
+    private byte[] longToBytes(long value) {
+        return ByteBuffer.allocate(Long.SIZE / 8).putLong(value).array();
+    }
+
     private Long generateNonce() {
-        return random.nextLong();
+        return KeyMaterialService.getInstance().takeNonce();
     }
 
     private UUID getUuidOfReceiver() {
@@ -297,6 +500,52 @@ public class HandshakeStateHolder {
         }
     }
 
+    /**
+     * Checks whether the given message is the one this party waits for, judged by its type, the ids and the nonces.
+     * This is used to find the handshake a message belongs to if its sender is not known. The message is not
+     * processed.
+     * 
+     * @return true if {@link #processReceivedMessage(Context, BasicMessage)} would accept the message
+     * */
+    public boolean isExpectedMessage(BasicMessage msg) {
+        if (isHandshakeComplete() || getNextAction() != HandshakeNextAction.RECEIVE) {
+            return false;
+        }
+        if (step == 1 && role == HandshakeRole.B) {
+            if (msg instanceof ResumptionRequestMessage) {
+                return idA.equals(((ResumptionRequestMessage) msg).getIdA());
+            }
+            return msg instanceof HandshakeMessage1 && idA.equals(((HandshakeMessage1) msg).getIdA());
+        } else if (step == 2 && role == HandshakeRole.A && resumptionTicket != null) {
+            return msg instanceof ResumptionResponseMessage
+                    && ((ResumptionResponseMessage) msg).getNonceA() == nonceFromFirstMessageA;
+        } else if (step == 2 && role == HandshakeRole.A) {
+            return msg instanceof HandshakeMessage2 && ((HandshakeMessage2) msg).getNonceA() == nonceFromFirstMessageA;
+        } else if (step == 3 && role == HandshakeRole.B) {
+            return msg instanceof HandshakeMessage3
+                    && ((HandshakeMessage3) msg).getNonceB() == nonceFromSecondMessageB;
+        } else if (step == 4 && role == HandshakeRole.A) {
+            return msg instanceof HandshakeMessage4 && idA.equals(((HandshakeMessage4) msg).getIdA())
+                    && idB.equals(((HandshakeMessage4) msg).getIdB());
+        }
+        return false;
+    }
+
+    public UUID getIdA() {
+        return idA;
+    }
+
+    public UUID getIdB() {
+        return idB;
+    }
+
+    /**
+     * @return the role of this party in the handshake
+     */
+    public HandshakeRole getRole() {
+        return role;
+    }
+
     /**
      * @return the current step of the handshake. Returns 5 if the handshake is completed
      */
@@ -2,34 +2,52 @@ package de.lmu.mcm.security;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.content.Context;
+import de.lmu.mcm.helper.ByteConverter;
 import de.lmu.mcm.helper.LogHelper;
 import de.lmu.mcm.helper.PrefsHelper;
+import de.lmu.mcm.network.Enums.KeySuite;
 
 /**
  * Helper class that provides methods to create, store and access the asymmetric and symmetric keys.
@@ -44,9 +62,49 @@ public class KeyHolder {
 
     public static final int AES_KEY_LENGTH = 256;
     public static int RSA_KEY_LENGTH = 1024;
+    public static final String EC_CURVE_NAME = "secp256r1";
+    // The suite of the own public key that is shared with users whose suite is not known yet. The suite of a peer is
+    // the suite of its key. RSA stays the default, as older versions can only import RSA keys:
+    private volatile KeySuite defaultKeySuite = KeySuite.RSA;
     private final String fileNamePrivateKey = "private.key";
     private final String fileNamePublicKey = "public.key";
+    private final String fileNameSymmetricKeys = "symmetric.keys";
+    private final String fileNameEcPrivateKey = "ec_private.key";
+    private final String fileNameEcPublicKey = "ec_public.key";
+    // Files of EC keys start with this marker, followed by the encoded key instead of the numbers of an RSA key:
+    private static final String EC_FILE_MARKER = "EC";
+    // Encrypted files are written to a file with this suffix first:
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
     private Map<UUID, SymmetricKeyWrapper> symmetricKeys = new HashMap<UUID, SymmetricKeyWrapper>();
+    // Symmetric keys are not used any more when they are older than this:
+    public static long SYMMETRIC_KEY_LIFETIME_IN_MS = 24 * 60 * 60 * 1000L;
+    // A new key epoch is started when the current one is older than this or encrypted this many frames:
+    public static long REKEY_INTERVAL_IN_MS = 60 * 60 * 1000L;
+    public static int REKEY_AFTER_FRAMES = 1 << 20;
+    // Frames of the previous epoch are still decrypted this long after the other user confirmed the new one:
+    public static long REKEY_GRACE_PERIOD_IN_MS = 60 * 1000L;
+    // Frames of epochs that are further ahead are rejected, so that a forged epoch can not cause much work:
+    private static final int MAX_EPOCH_SKIP = 16;
+    // Files of symmetric keys with epochs start with this marker instead of the number of keys:
+    private static final int SYMMETRIC_KEYS_FORMAT_WITH_EPOCHS = -1;
+    private boolean symmetricKeysLoaded = false;
+    // Session resumption tickets that other users issued to this device:
+    private final String fileNameResumptionTickets = "resumption.tickets";
+    private Map<UUID, ResumptionTicket> resumptionTickets = new HashMap<UUID, ResumptionTicket>();
+    private boolean resumptionTicketsLoaded = false;
+
+    // Keys that were read from the internal storage, so that they are only read once:
+    public static final int MAX_CACHED_PUBLIC_KEYS = 64;
+    private volatile KeyPair ownKeyPair;
+    private volatile KeyPair ownEcKeyPair;
+    private final Map<UUID, PublicKey> publicKeyCache = new LinkedHashMap<UUID, PublicKey>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, PublicKey> eldest) {
+            return size() > MAX_CACHED_PUBLIC_KEYS;
+        }
+    };
 
     private KeyHolder() {
     }
@@ -73,21 +131,515 @@ public class KeyHolder {
      * 
      * */
     public void storeSymmetricKey(UUID remoteUserId, Key secretKey, long timestamp) {
-        SymmetricKeyWrapper key = new SymmetricKeyWrapper(secretKey, timestamp);
-        symmetricKeys.put(remoteUserId, key);
+        storeSymmetricKey(null, remoteUserId, secretKey, timestamp);
+    }
+
+    /**
+     * Stores a symmetric key in the memory and in an encrypted file in the app's internal storage, so that it is still
+     * available after the app was restarted. The key expires {@link #SYMMETRIC_KEY_LIFETIME_IN_MS} after the given
+     * timestamp.
+     * 
+     * @param context
+     *            if null the key is only stored in the memory
+     * @param remoteUserId
+     *            the UUID of the user that also has this key
+     * @param secretKey
+     *            the key
+     * @param timestamp
+     *            creation time of the key
+     * 
+     * */
+    public void storeSymmetricKey(Context context, UUID remoteUserId, Key secretKey, long timestamp) {
+        synchronized (symmetricKeys) {
+            if (context != null) {
+                loadSymmetricKeysIfNecessary(context);
+            }
+            symmetricKeys.put(remoteUserId, new SymmetricKeyWrapper(secretKey, timestamp));
+            if (context != null) {
+                saveSymmetricKeys(context);
+            }
+        }
     }
 
     /**
-     * Retrieves a key that was stored earlier.
+     * Retrieves a key that was stored earlier in the current session.
      * 
-     * @return the symmetric key or null if none exists for this user
+     * @return the symmetric key or null if none exists for this user or the key expired
      * */
     public SymmetricKeyWrapper getSymmetricKey(UUID remoteUserId) {
-        return symmetricKeys.get(remoteUserId);
+        return getSymmetricKey(null, remoteUserId);
+    }
+
+    /**
+     * Retrieves a key that was stored earlier. The stored keys are read from the internal storage on first use.
+     * 
+     * @param context
+     *            if null only the keys in the memory are searched
+     * @return the symmetric key or null if none exists for this user or the key expired
+     * */
+    public SymmetricKeyWrapper getSymmetricKey(Context context, UUID remoteUserId) {
+        synchronized (symmetricKeys) {
+            if (context != null) {
+                loadSymmetricKeysIfNecessary(context);
+            }
+            SymmetricKeyWrapper key = symmetricKeys.get(remoteUserId);
+            if (key != null && key.isExpired()) {
+                LogHelper.getInstance().d(TAG, "Symmetric key of user " + remoteUserId + " expired.");
+                symmetricKeys.remove(remoteUserId);
+                return null;
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Returns the key frames to the given user are encrypted with. A new key epoch is started if the current one is
+     * older than {@link #REKEY_INTERVAL_IN_MS} or encrypted {@link #REKEY_AFTER_FRAMES} frames. The key of the new
+     * epoch is derived from the current one, so the other user can derive it as soon as it receives the first frame of
+     * the new epoch and no handshake is necessary.<br>
+     * The other user can only learn about a new epoch from a frame of it, so one epoch is started ahead of the other
+     * user. No further epoch is started before {@link #confirmKeyEpoch(Context, UUID, int)} was called for it, i.e. a
+     * frame of the other user showed that it switched as well. Until then the key of the last confirmed epoch is kept
+     * to decrypt the frames of the other user.
+     * 
+     * @return the key of the current epoch or null if none exists for this user or the key expired
+     * */
+    public SymmetricKeyWrapper getSymmetricKeyForSending(Context context, UUID remoteUserId) {
+        synchronized (symmetricKeys) {
+            SymmetricKeyWrapper key = getSymmetricKey(context, remoteUserId);
+            if (key == null) {
+                return null;
+            }
+            if (key.confirmedAt > 0
+                    && (key.framesSent >= REKEY_AFTER_FRAMES || System.currentTimeMillis() - key.epochStart
+                            > REKEY_INTERVAL_IN_MS)) {
+                try {
+                    int epoch = key.epoch + 1;
+                    key = startEpoch(context, remoteUserId, key, deriveKeyOfEpoch(key, epoch), epoch);
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Could not derive next key epoch, keeping the current one.", e);
+                }
+            }
+            key.framesSent++;
+            return key;
+        }
+    }
+
+    /**
+     * Returns the key a frame of the given epoch was encrypted with: the current key, the previous key until
+     * {@link #REKEY_GRACE_PERIOD_IN_MS} after the other user confirmed the current epoch or the key of a newer epoch
+     * the other user started. Newer epochs are only used for further frames after
+     * {@link #confirmKeyEpoch(Context, UUID, int)} was called.
+     * 
+     * @return the key or null if there is no key for this user or the epoch is too old or too far ahead
+     * */
+    public Key getSymmetricKeyOfEpoch(Context context, UUID remoteUserId, int epoch) {
+        synchronized (symmetricKeys) {
+            SymmetricKeyWrapper key = getSymmetricKey(context, remoteUserId);
+            if (key == null) {
+                return null;
+            } else if (epoch == key.epoch) {
+                return key.getKey();
+            } else if (epoch == key.epoch - 1 && key.previousKey != null
+                    && (key.confirmedAt == 0 || System.currentTimeMillis() - key.confirmedAt
+                            <= REKEY_GRACE_PERIOD_IN_MS)) {
+                return key.previousKey;
+            } else if (epoch > key.epoch && epoch - key.epoch <= MAX_EPOCH_SKIP) {
+                try {
+                    return deriveKeyOfEpoch(key, epoch);
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Could not derive key of epoch " + epoch, e);
+                    return null;
+                }
+            }
+            LogHelper.getInstance().e(TAG, "No key of epoch " + epoch + " for user " + remoteUserId
+                    + ", current epoch is " + key.epoch);
+            return null;
+        }
+    }
+
+    /**
+     * Has to be called after a frame of the given epoch was authenticated. Switches to the epoch if the other user
+     * started it, so that both users use the newer key from now on, and marks the current epoch as confirmed by the
+     * other user. Older epochs are ignored.
+     * */
+    public void confirmKeyEpoch(Context context, UUID remoteUserId, int epoch) {
+        synchronized (symmetricKeys) {
+            SymmetricKeyWrapper key = getSymmetricKey(context, remoteUserId);
+            if (key == null || epoch < key.epoch || epoch - key.epoch > MAX_EPOCH_SKIP) {
+                return;
+            }
+            if (epoch == key.epoch) {
+                if (key.confirmedAt == 0) {
+                    key.confirmedAt = System.currentTimeMillis();
+                    LogHelper.getInstance().d(TAG, "User " + remoteUserId + " confirmed key epoch " + epoch);
+                }
+                return;
+            }
+            try {
+                SymmetricKeyWrapper next = startEpoch(context, remoteUserId, key, deriveKeyOfEpoch(key, epoch), epoch);
+                next.confirmedAt = next.epochStart;
+            } catch (Exception e) {
+                LogHelper.getInstance().e(TAG, "Could not derive key of epoch " + epoch, e);
+            }
+        }
+    }
+
+    /**
+     * key(n + 1) = HMAC(key(n), "rekey", n + 1), truncated to the length of the current key. As the HMAC can not be
+     * reversed, older keys can not be calculated from newer ones.
+     * */
+    private Key deriveKeyOfEpoch(SymmetricKeyWrapper current, int epoch) throws NoSuchAlgorithmException,
+            InvalidKeyException {
+        byte[] key = current.getKey().getEncoded();
+        int length = key.length;
+        for (int i = current.epoch + 1; i <= epoch; i++) {
+            byte[] derived = ResumptionTicket.mac(key, "rekey", ByteBuffer.allocate(4).putInt(i).array());
+            key = Arrays.copyOf(derived, Math.min(length, derived.length));
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Replaces the key of the user by the key of the new epoch and keeps the current key as previous key. The new
+     * epoch is not confirmed by the other user yet. Has to be called while holding the lock of {@link #symmetricKeys}.
+     * */
+    private SymmetricKeyWrapper startEpoch(Context context, UUID remoteUserId, SymmetricKeyWrapper current, Key newKey,
+            int epoch) {
+        SymmetricKeyWrapper next = new SymmetricKeyWrapper(newKey, current.getTimestamp(), epoch);
+        next.previousKey = epoch == current.epoch + 1 ? current.getKey() : null;
+        symmetricKeys.put(remoteUserId, next);
+        LogHelper.getInstance().d(TAG, "Started key epoch " + epoch + " with user " + remoteUserId);
+        if (context != null) {
+            saveSymmetricKeys(context);
+        }
+        return next;
+    }
+
+    /**
+     * Reads the symmetric keys from the internal storage, unless this was done before. Keys in the memory are not
+     * overwritten, expired keys are skipped. Has to be called while holding the lock of {@link #symmetricKeys}.
+     * */
+    private void loadSymmetricKeysIfNecessary(Context context) {
+        if (symmetricKeysLoaded) {
+            return;
+        }
+        try {
+            if (getSavedKeyPair(context) == null) {
+                return;
+            }
+            symmetricKeysLoaded = true;
+            byte[] decrypted = readEncryptedFile(context, fileNameSymmetricKeys);
+            if (decrypted == null) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(decrypted);
+            int count = buffer.getInt();
+            // Older files contain no epochs, their keys belong to epoch 0:
+            boolean withEpochs = count == SYMMETRIC_KEYS_FORMAT_WITH_EPOCHS;
+            if (withEpochs) {
+                count = buffer.getInt();
+            }
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] uuid = new byte[16];
+                buffer.get(uuid);
+                long timestamp = buffer.getLong();
+                int epoch = withEpochs ? buffer.getInt() : 0;
+                byte[] rawKey = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(rawKey);
+                UUID remoteUserId = ByteConverter.deserializeUUID(uuid);
+                SymmetricKeyWrapper key = new SymmetricKeyWrapper(new SecretKeySpec(rawKey, "AES"), timestamp, epoch);
+                if (!key.isExpired() && !symmetricKeys.containsKey(remoteUserId)) {
+                    symmetricKeys.put(remoteUserId, key);
+                    loaded++;
+                }
+            }
+            LogHelper.getInstance().d(TAG, "Loaded " + loaded + " of " + count + " stored symmetric keys.");
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error reading symmetric keys", e);
+        }
+    }
+
+    /**
+     * Writes the symmetric keys that did not expire yet, encrypted with AES/GCM, to the internal storage. Has to be
+     * called while holding the lock of {@link #symmetricKeys}.
+     * */
+    private void saveSymmetricKeys(Context context) {
+        if (!symmetricKeysLoaded) {
+            // Otherwise we would overwrite the keys we could not read:
+            LogHelper.getInstance().e(TAG, "Symmetric keys are only stored in the memory.");
+            return;
+        }
+        try {
+            int count = 0;
+            int length = 4 + 4;
+            for (SymmetricKeyWrapper key : symmetricKeys.values()) {
+                if (!key.isExpired()) {
+                    count++;
+                    length += 16 + 8 + 4 + 2 + key.getKey().getEncoded().length;
+                }
+            }
+            ByteBuffer plain = ByteBuffer.allocate(length);
+            plain.putInt(SYMMETRIC_KEYS_FORMAT_WITH_EPOCHS);
+            plain.putInt(count);
+            for (Map.Entry<UUID, SymmetricKeyWrapper> entry : symmetricKeys.entrySet()) {
+                SymmetricKeyWrapper key = entry.getValue();
+                if (!key.isExpired()) {
+                    byte[] rawKey = key.getKey().getEncoded();
+                    plain.put(ByteConverter.serializeUUID(entry.getKey()));
+                    plain.putLong(key.getTimestamp());
+                    plain.putInt(key.getEpoch());
+                    plain.putShort((short) rawKey.length);
+                    plain.put(rawKey);
+                }
+            }
+            plain.flip();
+            writeEncryptedFile(context, fileNameSymmetricKeys, plain);
+            LogHelper.getInstance().d(TAG, "Saved " + count + " symmetric keys.");
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error saving symmetric keys", e);
+        }
     }
 
+    /**
+     * Stores a session resumption ticket that the given user issued, in the memory and in an encrypted file in the
+     * app's internal storage. Replaces the previous ticket of this user.
+     * 
+     * @param context
+     *            if null the ticket is only stored in the memory
+     * */
+    public void storeResumptionTicket(Context context, UUID remoteUserId, ResumptionTicket ticket) {
+        synchronized (resumptionTickets) {
+            if (context != null) {
+                loadResumptionTicketsIfNecessary(context);
+            }
+            resumptionTickets.put(remoteUserId, ticket);
+            if (context != null) {
+                saveResumptionTickets(context);
+            }
+        }
+    }
+
+    /**
+     * @param context
+     *            if null only the tickets in the memory are searched
+     * @return the session resumption ticket the given user issued or null if none exists or it expired
+     * */
+    public ResumptionTicket getResumptionTicket(Context context, UUID remoteUserId) {
+        synchronized (resumptionTickets) {
+            if (context != null) {
+                loadResumptionTicketsIfNecessary(context);
+            }
+            ResumptionTicket ticket = resumptionTickets.get(remoteUserId);
+            if (ticket != null && ticket.isExpired()) {
+                LogHelper.getInstance().d(TAG, "Resumption ticket of user " + remoteUserId + " expired.");
+                resumptionTickets.remove(remoteUserId);
+                return null;
+            }
+            return ticket;
+        }
+    }
+
+    /**
+     * Removes the session resumption ticket of the given user, e.g. because the user did not accept it.
+     * */
+    public void removeResumptionTicket(Context context, UUID remoteUserId) {
+        synchronized (resumptionTickets) {
+            if (context != null) {
+                loadResumptionTicketsIfNecessary(context);
+            }
+            if (resumptionTickets.remove(remoteUserId) != null && context != null) {
+                saveResumptionTickets(context);
+            }
+        }
+    }
+
+    /**
+     * Reads the resumption tickets from the internal storage like {@link #loadSymmetricKeysIfNecessary(Context)}. Has
+     * to be called while holding the lock of {@link #resumptionTickets}.
+     * */
+    private void loadResumptionTicketsIfNecessary(Context context) {
+        if (resumptionTicketsLoaded) {
+            return;
+        }
+        try {
+            if (getSavedKeyPair(context) == null) {
+                return;
+            }
+            resumptionTicketsLoaded = true;
+            byte[] decrypted = readEncryptedFile(context, fileNameResumptionTickets);
+            if (decrypted == null) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(decrypted);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] uuid = new byte[16];
+                buffer.get(uuid);
+                long issueTime = buffer.getLong();
+                byte[] secret = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(secret);
+                byte[] ticket = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(ticket);
+                UUID remoteUserId = ByteConverter.deserializeUUID(uuid);
+                ResumptionTicket resumptionTicket = new ResumptionTicket(ticket, secret, issueTime);
+                if (!resumptionTicket.isExpired() && !resumptionTickets.containsKey(remoteUserId)) {
+                    resumptionTickets.put(remoteUserId, resumptionTicket);
+                }
+            }
+            LogHelper.getInstance().d(TAG, "Loaded " + resumptionTickets.size() + " resumption tickets.");
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error reading resumption tickets", e);
+        }
+    }
+
+    /**
+     * Writes the resumption tickets that did not expire yet to the internal storage. Has to be called while holding the
+     * lock of {@link #resumptionTickets}.
+     * */
+    private void saveResumptionTickets(Context context) {
+        if (!resumptionTicketsLoaded) {
+            LogHelper.getInstance().e(TAG, "Resumption tickets are only stored in the memory.");
+            return;
+        }
+        try {
+            int count = 0;
+            int length = 4;
+            for (ResumptionTicket ticket : resumptionTickets.values()) {
+                if (!ticket.isExpired()) {
+                    count++;
+                    length += 16 + 8 + 2 + ticket.getResumptionSecret().length + 2 + ticket.getTicket().length;
+                }
+            }
+            ByteBuffer plain = ByteBuffer.allocate(length);
+            plain.putInt(count);
+            for (Map.Entry<UUID, ResumptionTicket> entry : resumptionTickets.entrySet()) {
+                ResumptionTicket ticket = entry.getValue();
+                if (!ticket.isExpired()) {
+                    plain.put(ByteConverter.serializeUUID(entry.getKey()));
+                    plain.putLong(ticket.getIssueTime());
+                    plain.putShort((short) ticket.getResumptionSecret().length);
+                    plain.put(ticket.getResumptionSecret());
+                    plain.putShort((short) ticket.getTicket().length);
+                    plain.put(ticket.getTicket());
+                }
+            }
+            plain.flip();
+            writeEncryptedFile(context, fileNameResumptionTickets, plain);
+            LogHelper.getInstance().d(TAG, "Saved " + count + " resumption tickets.");
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error saving resumption tickets", e);
+        }
+    }
+
+    /**
+     * @param purpose
+     *            a name that is unique for every use of the key, e.g. the name of the file that is encrypted with it
+     * @return a key for the given purpose or null if the own private key is not available. It is derived from the own
+     *         private key, so it never has to be stored and never leaves this device. The private key is stored
+     *         unencrypted in the same internal storage, so files encrypted with this key are only protected against
+     *         modification and accidental disclosure: anyone who can read the internal storage (root, backups of
+     *         rooted devices) can derive the key as well. This is no confidentiality at rest.
+     * */
+    public SecretKey deriveLocalKey(Context context, String purpose) throws NoSuchAlgorithmException {
+        KeyPair keyPair = getSavedKeyPair(context);
+        if (keyPair == null || keyPair.getPrivate() == null) {
+            return null;
+        }
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(purpose.getBytes());
+        sha256.update(keyPair.getPrivate().getEncoded());
+        return new SecretKeySpec(sha256.digest(), "AES");
+    }
+
+    /**
+     * Encrypts the remaining bytes of the buffer with AES/GCM and a key derived from the file name (see
+     * {@link #deriveLocalKey(Context, String)}) and writes them to the file in the internal storage. The bytes are
+     * written to a temporary file first that replaces the file afterwards, so an interrupted write never leaves a
+     * truncated file behind.
+     * */
+    private void writeEncryptedFile(Context context, String fileName, ByteBuffer plain) throws Exception {
+        SecretKey storageKey = deriveLocalKey(context, fileName);
+        if (storageKey == null) {
+            throw new InvalidKeyException("Own private key is not available.");
+        }
+        CryptoContext cryptoContext = CryptoContext.getInstance();
+        ByteBuffer encrypted = ByteBuffer.allocate(AesHelper.getAuthenticatedLength(plain.remaining()));
+        cryptoContext.getAesHelper().encryptAuthenticated(plain, encrypted, storageKey,
+                cryptoContext.getSecureRandom());
+        String tempFileName = fileName + TEMP_FILE_SUFFIX;
+        FileOutputStream outputStream = context.openFileOutput(tempFileName, Context.MODE_PRIVATE);
+        try {
+            outputStream.write(encrypted.array(), 0, encrypted.position());
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!context.getFileStreamPath(tempFileName).renameTo(context.getFileStreamPath(fileName))) {
+            context.deleteFile(tempFileName);
+            throw new IOException("Could not replace " + fileName);
+        }
+    }
+
+    /**
+     * @return the decrypted content of a file that was written with
+     *         {@link #writeEncryptedFile(Context, String, ByteBuffer)} or null if it does not exist.
+     * */
+    private byte[] readEncryptedFile(Context context, String fileName) throws Exception {
+        SecretKey storageKey = deriveLocalKey(context, fileName);
+        if (storageKey == null) {
+            throw new InvalidKeyException("Own private key is not available.");
+        }
+        byte[] encrypted = readFile(context, fileName);
+        if (encrypted == null) {
+            return null;
+        }
+        return CryptoContext.getInstance().getAesHelper().decryptAuthenticated(ByteBuffer.wrap(encrypted), storageKey);
+    }
+
+    /**
+     * @return the content of the file or null if it does not exist.
+     * */
+    private byte[] readFile(Context context, String fileName) throws IOException {
+        InputStream in;
+        try {
+            in = context.openFileInput(fileName);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the own RSA key pair or generates it if there is none. Callers that arrive while the pair is generated
+     * (e.g. by the {@link KeyMaterialService}) wait for it instead of generating a second one.
+     * 
+     * @return true if the key pair is available
+     * */
     public boolean makeSureOwnKeyPairIsAvailable(Context context) {
-        if (isPrivateKeyPairAvailable(context)) {
+        if (ownKeyPair != null) {
+            return true;
+        }
+        synchronized (this) {
+            return loadOrGenerateOwnKeyPair(context);
+        }
+    }
+
+    private boolean loadOrGenerateOwnKeyPair(Context context) {
+        if (ownKeyPair != null) {
+            return true;
+        } else if (isPrivateKeyPairAvailable(context)) {
             LogHelper.getInstance().d(TAG, "Private/public keys were generated before.");
             LogHelper.getInstance().d(TAG, "Loading private/public keys from internal storage...");
             boolean success = getSavedKeyPair(context) != null;
@@ -126,6 +678,7 @@ public class KeyHolder {
             LogHelper.getInstance().d(TAG, "Saved private key.");
             savePublicKey(context, fileNamePublicKey, keypair.getPublic());
             LogHelper.getInstance().d(TAG, "Saved public key.");
+            ownKeyPair = keypair;
             return true;
         } catch (Exception e) {
             LogHelper.getInstance().e(TAG, "Error creating new key pair", e);
@@ -137,16 +690,145 @@ public class KeyHolder {
      * @return the saved private/public key pair or null if no pair was generated.
      * */
     public KeyPair getSavedKeyPair(Context context) {
+        KeyPair keyPair = ownKeyPair;
+        if (keyPair != null) {
+            return keyPair;
+        }
+        synchronized (this) {
+            if (ownKeyPair == null) {
+                try {
+                    PrivateKey privateKey = readPrivateKey(context, fileNamePrivateKey);
+                    PublicKey publicKey = readPublicKey(context, fileNamePublicKey);
+                    ownKeyPair = new KeyPair(publicKey, privateKey);
+                } catch (Exception e) {
+                    LogHelper.getInstance().e(TAG, "Error creating new key pair", e);
+                }
+            }
+            return ownKeyPair;
+        }
+    }
+
+    /**
+     * @return the own key pair of the given suite or null if it could not be loaded. The EC key pair is generated on
+     *         first use, which takes only a few milliseconds.
+     * */
+    public KeyPair getOwnKeyPair(Context context, KeySuite suite) {
+        if (suite == KeySuite.RSA) {
+            return getSavedKeyPair(context);
+        }
+        KeyPair keyPair = ownEcKeyPair;
+        if (keyPair != null) {
+            return keyPair;
+        }
+        synchronized (this) {
+            if (ownEcKeyPair == null) {
+                ownEcKeyPair = readOrGenerateEcKeyPair(context);
+            }
+            return ownEcKeyPair;
+        }
+    }
+
+    /**
+     * @return the EC key pair from the internal storage or a new one if none was saved before.
+     * */
+    private KeyPair readOrGenerateEcKeyPair(Context context) {
         try {
-            PrivateKey privateKey = readPrivateKey(context, fileNamePrivateKey);
-            PublicKey publicKey = readPublicKey(context, fileNamePublicKey);
+            PrivateKey privateKey = readPrivateKey(context, fileNameEcPrivateKey);
+            PublicKey publicKey = readPublicKey(context, fileNameEcPublicKey);
             return new KeyPair(publicKey, privateKey);
         } catch (Exception e) {
-            LogHelper.getInstance().e(TAG, "Error creating new key pair", e);
+            LogHelper.getInstance().d(TAG, "No EC keys found, generating them...");
+        }
+        try {
+            KeyPair keyPair = generateRandomEcKeyPair();
+            savePrivateKey(context, fileNameEcPrivateKey, keyPair.getPrivate());
+            savePublicKey(context, fileNameEcPublicKey, keyPair.getPublic());
+            LogHelper.getInstance().d(TAG, "Generated and saved new EC keys.");
+            return keyPair;
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Error creating new EC key pair", e);
         }
         return null;
     }
 
+    /**
+     * @return the suite of the own public key that is shared with users whose suite is not known yet
+     * */
+    public KeySuite getDefaultKeySuite() {
+        return defaultKeySuite;
+    }
+
+    /**
+     * @param suite
+     *            the suite of the own public key that is shared with users whose suite is not known yet. Only use EC
+     *            if these users support it.
+     * */
+    public void setDefaultKeySuite(KeySuite suite) {
+        this.defaultKeySuite = suite;
+    }
+
+    /**
+     * Remembers which of the own public keys the given user received, so that messages to the user are signed with the
+     * matching private key.
+     * */
+    public void storeOwnKeySuiteForUser(Context context, UUID uuid, KeySuite suite) {
+        PrefsHelper.storeOwnKeySuiteForUser(context, uuid, suite.name());
+    }
+
+    /**
+     * @return the suite of the own key pair that signs the messages to the given user: the suite that was stored for
+     *         the user, otherwise RSA for users that shared an RSA key (they may not support EC) and the default suite
+     *         for all other users.
+     * */
+    public KeySuite getOwnKeySuiteForUser(Context context, UUID uuid) {
+        if (uuid == null) {
+            return defaultKeySuite;
+        }
+        String storedSuite = PrefsHelper.getOwnKeySuiteForUser(context, uuid);
+        if (storedSuite != null) {
+            try {
+                return KeySuite.valueOf(storedSuite);
+            } catch (IllegalArgumentException e) {
+                LogHelper.getInstance().e(TAG, "Unknown key suite " + storedSuite + " of user " + uuid);
+            }
+        }
+        if (getPublicKeyOfOtherUser(context, uuid) != null && getKeySuiteOfOtherUser(context, uuid) == KeySuite.RSA) {
+            return KeySuite.RSA;
+        }
+        return defaultKeySuite;
+    }
+
+    /**
+     * @return the suite of the public key that was stored for the given user. Users without a key use RSA.
+     * */
+    public KeySuite getKeySuiteOfOtherUser(Context context, UUID uuid) {
+        PublicKey publicKey = uuid == null ? null : getPublicKeyOfOtherUser(context, uuid);
+        return KeySuite.fromKey(publicKey);
+    }
+
+    /**
+     * Loads the own key pair and the public keys of the known users into the memory on a background thread, so that
+     * encrypting and decrypting messages does not have to read the keys from the internal storage.
+     * */
+    public void warmUpKeyCacheInBackground(final Context context) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                getSavedKeyPair(context);
+                int loaded = 0;
+                for (UUID userId : PrefsHelper.getUserIdsWithPublicKey(context)) {
+                    if (loaded >= MAX_CACHED_PUBLIC_KEYS) {
+                        break;
+                    }
+                    if (getPublicKeyOfOtherUser(context, userId) != null) {
+                        loaded++;
+                    }
+                }
+                LogHelper.getInstance().d(TAG, "Loaded own key pair and " + loaded + " public keys into the cache.");
+            }
+        }, "KeyCacheWarmUp").start();
+    }
+
     /**
      * Stores the key of the given user on the device. This key will also be available in future sessions.
      * 
@@ -157,6 +839,9 @@ public class KeyHolder {
             String randomFileName = UUID.randomUUID().toString();
             savePublicKey(context, randomFileName, publicKey);
             PrefsHelper.storeFilenamePublicKey(context, userid.toString(), randomFileName);
+            synchronized (publicKeyCache) {
+                publicKeyCache.put(userid, publicKey);
+            }
             return true;
         } catch (Exception e) {
             LogHelper.getInstance().e(TAG, "Error saving public key of user: " + userid, e);
@@ -171,11 +856,23 @@ public class KeyHolder {
      * */
     public PublicKey getPublicKeyOfOtherUser(Context context, UUID uuid) {
         String userid = uuid.toString();
+        synchronized (publicKeyCache) {
+            PublicKey cachedKey = publicKeyCache.get(uuid);
+            if (cachedKey != null) {
+                return cachedKey;
+            }
+        }
         try {
             String fileName = PrefsHelper.getFilenamePublicKey(context, uuid);
             if (fileName != null) {
                 PublicKey publicKey = readPublicKey(context, fileName);
-                return publicKey;
+                synchronized (publicKeyCache) {
+                    // Do not overwrite a key that was stored while we were reading:
+                    if (!publicKeyCache.containsKey(uuid)) {
+                        publicKeyCache.put(uuid, publicKey);
+                    }
+                    return publicKeyCache.get(uuid);
+                }
             }
             LogHelper.getInstance().d(TAG, "No key found for user: " + userid);
         } catch (Exception e) {
@@ -201,64 +898,107 @@ public class KeyHolder {
      * Generates a new random AES key.
      * */
     public SecretKey generateRandomSymmetricKey() throws NoSuchAlgorithmException {
-        SecureRandom secureRandom = new SecureRandom();
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(AES_KEY_LENGTH, secureRandom);
-
-        return keyGenerator.generateKey();
+        return CryptoContext.getInstance().getAesKeyGenerator().generateKey();
     }
 
     /**
      * Generates a new random RSA key pair.
      * */
     public KeyPair generateRandomKeyPair() throws NoSuchAlgorithmException {
-        SecureRandom secureRandom = new SecureRandom();
+        SecureRandom secureRandom = KeyMaterialService.getInstance().getSecureRandom();
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
         keyGen.initialize(RSA_KEY_LENGTH, secureRandom);
         return keyGen.genKeyPair();
     }
 
+    /**
+     * Generates a new random EC key pair on the curve {@link #EC_CURVE_NAME}.
+     * */
+    public KeyPair generateRandomEcKeyPair() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        SecureRandom secureRandom = KeyMaterialService.getInstance().getSecureRandom();
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(new ECGenParameterSpec(EC_CURVE_NAME), secureRandom);
+        return keyGen.genKeyPair();
+    }
+
     /**
      * @param publicKeyEncoded
-     *            the key in X509 encoding
+     *            the RSA or EC key in X509 encoding
      * @return a public key generated from the given bytes
      * */
     public PublicKey generatePublicKeyFromBytes(byte[] publicKeyEncoded) throws InvalidKeySpecException,
             NoSuchAlgorithmException {
         // For further infos on X509 see http://docs.oracle.com/javase/tutorial/security/apisign/vstep2.html
         // Maybe useful for the concept of the middleware to define the format of the transfered key.
-        PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKeyEncoded));
-        return publicKey;
+        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(publicKeyEncoded);
+        try {
+            return CryptoContext.getInstance().getRsaKeyFactory().generatePublic(keySpec);
+        } catch (InvalidKeySpecException e) {
+            // Not an RSA key:
+            return CryptoContext.getInstance().getEcKeyFactory().generatePublic(keySpec);
+        }
     }
 
     /**
      * Saves a private key with the given fileName on the file system.
      * */
     private void savePrivateKey(Context context, String fileName, PrivateKey privateKey) throws Exception {
-        KeyFactory fact = KeyFactory.getInstance("RSA");
-        RSAPrivateKeySpec priv = fact.getKeySpec(privateKey, RSAPrivateKeySpec.class);
-        saveToFile(context, fileName, priv.getModulus(), priv.getPrivateExponent());
+        KeyFactory fact = CryptoContext.getInstance().getRsaKeyFactory();
+        if (privateKey instanceof ECPrivateKey) {
+            saveEncodedKeyToFile(context, fileName, privateKey.getEncoded());
+        } else if (privateKey instanceof RSAPrivateCrtKey) {
+            // Modulus and private exponent come first, so that older versions can still read the file:
+            RSAPrivateCrtKeySpec priv = fact.getKeySpec(privateKey, RSAPrivateCrtKeySpec.class);
+            saveToFile(context, fileName, priv.getModulus(), priv.getPrivateExponent(), priv.getPublicExponent(),
+                    priv.getPrimeP(), priv.getPrimeQ(), priv.getPrimeExponentP(), priv.getPrimeExponentQ(),
+                    priv.getCrtCoefficient());
+        } else {
+            RSAPrivateKeySpec priv = fact.getKeySpec(privateKey, RSAPrivateKeySpec.class);
+            saveToFile(context, fileName, priv.getModulus(), priv.getPrivateExponent());
+        }
     }
 
     /**
      * Saves a public key with the given fileName on the file system.
      * */
     private void savePublicKey(Context context, String fileName, PublicKey publicKey) throws Exception {
-        KeyFactory fact = KeyFactory.getInstance("RSA");
+        if (publicKey instanceof ECPublicKey) {
+            saveEncodedKeyToFile(context, fileName, publicKey.getEncoded());
+            return;
+        }
+        KeyFactory fact = CryptoContext.getInstance().getRsaKeyFactory();
         RSAPublicKeySpec pub = fact.getKeySpec(publicKey, RSAPublicKeySpec.class);
         saveToFile(context, fileName, pub.getModulus(), pub.getPublicExponent());
     }
 
     /**
-     * Saves the two prime numbers identifying a public/private key to a file.
+     * Saves the numbers identifying a public/private key to a file. The first two numbers are always the modulus and
+     * the exponent.
      * */
-    private void saveToFile(Context context, String fileName, BigInteger mod, BigInteger exp) throws Exception {
+    private void saveToFile(Context context, String fileName, BigInteger... numbers) throws Exception {
         // Based on source taken from http://stackoverflow.com/a/9890863
         FileOutputStream outputStream = context.openFileOutput(fileName, Context.MODE_PRIVATE);
         ObjectOutputStream oout = new ObjectOutputStream(new BufferedOutputStream(outputStream));
         try {
-            oout.writeObject(mod);
-            oout.writeObject(exp);
+            for (BigInteger number : numbers) {
+                oout.writeObject(number);
+            }
+        } catch (IOException e) {
+            throw new Exception(e);
+        } finally {
+            oout.close();
+        }
+    }
+
+    /**
+     * Saves an encoded EC key (X.509 for public keys, PKCS#8 for private keys) behind the {@link #EC_FILE_MARKER}.
+     * */
+    private void saveEncodedKeyToFile(Context context, String fileName, byte[] encodedKey) throws Exception {
+        FileOutputStream outputStream = context.openFileOutput(fileName, Context.MODE_PRIVATE);
+        ObjectOutputStream oout = new ObjectOutputStream(new BufferedOutputStream(outputStream));
+        try {
+            oout.writeObject(EC_FILE_MARKER);
+            oout.writeObject(encodedKey);
         } catch (IOException e) {
             throw new Exception(e);
         } finally {
@@ -274,10 +1014,16 @@ public class KeyHolder {
         InputStream in = context.openFileInput(fileName);
         ObjectInputStream oin = new ObjectInputStream(new BufferedInputStream(in));
         try {
-            BigInteger m = (BigInteger) oin.readObject();
+            Object first = oin.readObject();
+            if (EC_FILE_MARKER.equals(first)) {
+                byte[] encodedKey = (byte[]) oin.readObject();
+                return CryptoContext.getInstance().getEcKeyFactory()
+                        .generatePublic(new X509EncodedKeySpec(encodedKey));
+            }
+            BigInteger m = (BigInteger) first;
             BigInteger e = (BigInteger) oin.readObject();
             RSAPublicKeySpec keySpec = new RSAPublicKeySpec(m, e);
-            KeyFactory fact = KeyFactory.getInstance("RSA");
+            KeyFactory fact = CryptoContext.getInstance().getRsaKeyFactory();
             PublicKey pubKey = fact.generatePublic(keySpec);
             return pubKey;
         } catch (Exception e) {
@@ -288,37 +1034,128 @@ public class KeyHolder {
     }
 
     /**
-     * Reads a private key from a file.
+     * Reads a private key from a file. Files that were written by older versions only contain the modulus and the
+     * private exponent. They are migrated to the CRT format, because private key operations with the Chinese Remainder
+     * Theorem are about 3-4 times faster.
      * */
     private PrivateKey readPrivateKey(Context context, String fileName) throws Exception {
         // Based on source taken from http://stackoverflow.com/a/9890863
         InputStream in = context.openFileInput(fileName);
         ObjectInputStream oin = new ObjectInputStream(new BufferedInputStream(in));
+        BigInteger m;
+        BigInteger d;
+        BigInteger[] crtParameters = new BigInteger[6];
+        boolean hasCrtParameters;
         try {
-            BigInteger m = (BigInteger) oin.readObject();
-            BigInteger e = (BigInteger) oin.readObject();
-            RSAPrivateKeySpec keySpec = new RSAPrivateKeySpec(m, e);
-            KeyFactory fact = KeyFactory.getInstance("RSA");
-            PrivateKey privateKey = fact.generatePrivate(keySpec);
-            return privateKey;
+            Object first = oin.readObject();
+            if (EC_FILE_MARKER.equals(first)) {
+                byte[] encodedKey = (byte[]) oin.readObject();
+                return CryptoContext.getInstance().getEcKeyFactory()
+                        .generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+            }
+            m = (BigInteger) first;
+            d = (BigInteger) oin.readObject();
+            hasCrtParameters = readOptionalNumbers(oin, crtParameters);
         } catch (Exception e) {
             throw new Exception(e);
         } finally {
             oin.close();
         }
+
+        KeyFactory fact = CryptoContext.getInstance().getRsaKeyFactory();
+        if (hasCrtParameters) {
+            return fact.generatePrivate(new RSAPrivateCrtKeySpec(m, crtParameters[0], d, crtParameters[1],
+                    crtParameters[2], crtParameters[3], crtParameters[4], crtParameters[5]));
+        }
+
+        PrivateKey privateKey = fact.generatePrivate(new RSAPrivateKeySpec(m, d));
+        PublicKey publicKey = fileNamePrivateKey.equals(fileName) ? readPublicKey(context, fileNamePublicKey) : null;
+        if (publicKey instanceof RSAPublicKey) {
+            RSAPrivateCrtKeySpec crtKeySpec = recoverCrtKeySpec(m, ((RSAPublicKey) publicKey).getPublicExponent(), d);
+            if (crtKeySpec != null) {
+                privateKey = fact.generatePrivate(crtKeySpec);
+                savePrivateKey(context, fileName, privateKey);
+                LogHelper.getInstance().d(TAG, "Migrated private key to CRT format.");
+            } else {
+                LogHelper.getInstance().e(TAG, "Could not recover the CRT parameters of the private key.");
+            }
+        }
+        return privateKey;
+    }
+
+    /**
+     * Fills the given array with the numbers that follow in the stream.
+     * 
+     * @return false if the stream ended before the array was filled.
+     * */
+    private boolean readOptionalNumbers(ObjectInputStream oin, BigInteger[] numbers) throws IOException,
+            ClassNotFoundException {
+        try {
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = (BigInteger) oin.readObject();
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
     }
 
     /**
-     * Wrapper class to link a symmetric key to a timestamp.
+     * Recovers the prime factors of the modulus from the public and the private exponent (see Boneh, "Twenty Years of
+     * Attacks on the RSA Cryptosystem", Fact 1) and calculates the CRT parameters from them.
+     * 
+     * @return the complete key spec or null if the factors could not be found.
+     * */
+    private RSAPrivateCrtKeySpec recoverCrtKeySpec(BigInteger n, BigInteger e, BigInteger d) {
+        // d * e - 1 = 2^s * t with an odd t
+        BigInteger k = d.multiply(e).subtract(BigInteger.ONE);
+        BigInteger t = k.shiftRight(k.getLowestSetBit());
+        BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+        SecureRandom random = CryptoContext.getInstance().getSecureRandom();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            BigInteger g = new BigInteger(n.bitLength() - 1, random).add(BigInteger.valueOf(2));
+            BigInteger x = g.modPow(t, n);
+            for (int i = 0; i < k.getLowestSetBit(); i++) {
+                BigInteger y = x.multiply(x).mod(n);
+                if (y.equals(BigInteger.ONE) && !x.equals(BigInteger.ONE) && !x.equals(nMinusOne)) {
+                    // x is a non trivial square root of 1, so gcd(x - 1, n) is a factor of n
+                    BigInteger p = x.subtract(BigInteger.ONE).gcd(n);
+                    BigInteger q = n.divide(p);
+                    return new RSAPrivateCrtKeySpec(n, e, d, p, q, d.mod(p.subtract(BigInteger.ONE)),
+                            d.mod(q.subtract(BigInteger.ONE)), q.modInverse(p));
+                }
+                x = y;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wrapper class to link a symmetric key to a timestamp and its key epoch. The epoch is 0 for the key of the
+     * handshake and increases with every rekeying (see {@link KeyHolder#getSymmetricKeyForSending(Context, UUID)}).
      * */
     public class SymmetricKeyWrapper {
         private Key key;
         private long timestamp;
+        private int epoch;
+        // The fields below are guarded by the lock of the symmetric keys:
+        private Key previousKey;
+        private long epochStart = System.currentTimeMillis();
+        private int framesSent = 0;
+        // When the other user was seen using this epoch, 0 if not yet. Both users start with epoch 0:
+        private long confirmedAt;
 
         public SymmetricKeyWrapper(Key key, long timestamp) {
+            this(key, timestamp, 0);
+        }
+
+        public SymmetricKeyWrapper(Key key, long timestamp, int epoch) {
             super();
             this.key = key;
             this.timestamp = timestamp;
+            this.epoch = epoch;
+            this.confirmedAt = epoch == 0 ? epochStart : 0;
         }
 
         public Key getKey() {
@@ -329,5 +1166,16 @@ public class KeyHolder {
             return timestamp;
         }
 
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return true if the key is older than {@link KeyHolder#SYMMETRIC_KEY_LIFETIME_IN_MS}.
+         * */
+        public boolean isExpired() {
+            return System.currentTimeMillis() - timestamp > SYMMETRIC_KEY_LIFETIME_IN_MS;
+        }
+
     }
 }
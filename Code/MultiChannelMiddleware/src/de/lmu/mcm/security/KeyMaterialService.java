@@ -0,0 +1,173 @@
+package de.lmu.mcm.security;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import android.content.Context;
+import android.os.Process;
+import de.lmu.mcm.helper.LogHelper;
+
+/**
+ * Prepares key material on a background thread with low priority, so that handshakes and hybrid encryption do not
+ * have to wait for it:
+ * <ul>
+ * <li>The own key pairs are loaded or generated when the app starts, see {@link #start(Context, OwnKeysListener)}.
+ * </li>
+ * <li>A few AES keys and nonces are generated in advance and refilled after they were taken.</li>
+ * </ul>
+ * All key material is generated with one SecureRandom that is seeded once on the background thread. If a pool is empty
+ * the caller generates the key or nonce itself instead of waiting.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class KeyMaterialService {
+
+    /**
+     * Is informed on the background thread when the own key pairs were loaded or generated.
+     * */
+    public interface OwnKeysListener {
+        public void onOwnKeysAvailable(boolean success);
+    }
+
+    public static final int SYMMETRIC_KEY_POOL_SIZE = 8;
+    public static final int NONCE_POOL_SIZE = 32;
+
+    private static final String TAG = "KeyMaterialService ";
+    private static final KeyMaterialService instance = new KeyMaterialService();
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final BlockingQueue<SecretKey> symmetricKeys = new ArrayBlockingQueue<SecretKey>(SYMMETRIC_KEY_POOL_SIZE);
+    private final BlockingQueue<Long> nonces = new ArrayBlockingQueue<Long>(NONCE_POOL_SIZE);
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private final ExecutorService worker;
+    // Only used on the worker thread:
+    private KeyGenerator aesKeyGenerator;
+
+    private KeyMaterialService() {
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "KeyMaterialService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static KeyMaterialService getInstance() {
+        return instance;
+    }
+
+    /**
+     * Seeds the SecureRandom, loads or generates the own key pairs and fills the pools in the background. Should be
+     * called as early as possible, e.g. when the first activity is created.
+     *
+     * @param listener
+     *            is informed when the own key pairs are available, may be null
+     * */
+    public void start(final Context context, final OwnKeysListener listener) {
+        worker.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                // The first call seeds the generator:
+                secureRandom.nextLong();
+                KeyHolder keyHolder = KeyHolder.getInstance();
+                boolean success = keyHolder.makeSureOwnKeyPairIsAvailable(context)
+                        && keyHolder.getOwnKeyPair(context, keyHolder.getDefaultKeySuite()) != null;
+                LogHelper.getInstance().d(TAG, "Own keys available after " + (System.currentTimeMillis() - start)
+                        + " ms, success=" + success);
+                if (listener != null) {
+                    listener.onOwnKeysAvailable(success);
+                }
+            }
+        });
+        requestRefill();
+    }
+
+    /**
+     * @return the SecureRandom that is used for all key material. It is thread safe.
+     * */
+    public SecureRandom getSecureRandom() {
+        return secureRandom;
+    }
+
+    /**
+     * @return a new AES key with {@link KeyHolder#AES_KEY_LENGTH} bits that was not returned before
+     * */
+    public SecretKey takeSymmetricKey() throws NoSuchAlgorithmException {
+        SecretKey key = symmetricKeys.poll();
+        requestRefill();
+        if (key == null) {
+            LogHelper.getInstance().d(TAG, "No symmetric key prepared, generating one.");
+            key = KeyHolder.getInstance().generateRandomSymmetricKey();
+        }
+        return key;
+    }
+
+    /**
+     * @return a random nonce that was not returned before
+     * */
+    public long takeNonce() {
+        Long nonce = nonces.poll();
+        requestRefill();
+        if (nonce == null) {
+            return secureRandom.nextLong();
+        }
+        return nonce;
+    }
+
+    private void requestRefill() {
+        if (refillScheduled.compareAndSet(false, true)) {
+            worker.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    refill();
+                }
+            });
+        }
+    }
+
+    /**
+     * Fills both pools. Runs on the worker thread.
+     * */
+    private void refill() {
+        // Reset first, so that keys taken while refilling schedule the next run:
+        refillScheduled.set(false);
+        try {
+            if (aesKeyGenerator == null) {
+                aesKeyGenerator = KeyGenerator.getInstance("AES");
+                aesKeyGenerator.init(KeyHolder.AES_KEY_LENGTH, secureRandom);
+            }
+            while (symmetricKeys.remainingCapacity() > 0) {
+                symmetricKeys.offer(aesKeyGenerator.generateKey());
+            }
+        } catch (NoSuchAlgorithmException e) {
+            LogHelper.getInstance().e(TAG, "Could not generate symmetric keys", e);
+        }
+        while (nonces.remainingCapacity() > 0) {
+            nonces.offer(secureRandom.nextLong());
+        }
+    }
+
+}
@@ -3,22 +3,36 @@ package de.lmu.mcm.security;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.content.Context;
 import de.lmu.mcm.helper.ByteConverter;
+import de.lmu.mcm.helper.FrameBufferPool;
 import de.lmu.mcm.helper.LogHelper;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
+import de.lmu.mcm.network.Enums.KeySuite;
+import de.lmu.mcm.network.Enums.SecurityLevel;
 import de.lmu.mcm.security.KeyHolder.SymmetricKeyWrapper;
 import de.lmu.mcm.security.byteproto.BasicMessage;
 import de.lmu.mcm.security.byteproto.CustomMessage;
@@ -27,6 +41,8 @@ import de.lmu.mcm.security.byteproto.HandshakeMessage2;
 import de.lmu.mcm.security.byteproto.HandshakeMessage3;
 import de.lmu.mcm.security.byteproto.HandshakeMessage4;
 import de.lmu.mcm.security.byteproto.PublicKeyExchangeMessage;
+import de.lmu.mcm.security.byteproto.ResumptionRequestMessage;
+import de.lmu.mcm.security.byteproto.ResumptionResponseMessage;
 
 /**
  * Used to encode and decode messages.
@@ -36,6 +52,110 @@ import de.lmu.mcm.security.byteproto.PublicKeyExchangeMessage;
  */
 public class MessageEncryptionHandler {
     private final String TAG = MessageEncryptionHandler.class.getSimpleName();
+    // Length of the SHA-1 hash that is appended to the content of every message:
+    private static final int HASH_LENGTH = 20;
+
+    // Hybrid variant of the message type 5: the content is encrypted with a fresh AES key per message and only this
+    // key is encrypted with RSA. Peers that do not know this type can still use 5.
+    public static final byte MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER = 9;
+    // Type 10 wrapped the AES key with the private key of the sender. As everybody can unwrap such a key with the
+    // public key, the frame could be forged. Large messages of type 6 are signed instead and type 10 is rejected.
+    private static final byte MESSAGE_TYPE_REJECTED_HYBRID_OWN_PRIVATE_KEY = 10;
+    // Symmetric encryption with AES/GCM: the content is the nonce and the encrypted message with the authentication
+    // tag. No SHA-1 hash is appended because the tag already protects the integrity of the message.
+    public static final byte MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED = 11;
+    // Signed variants of the message types 4 and 6: instead of encrypting the whole message with the private key of
+    // the sender, the content starts with a signature of the frame. It is followed by the type and the content of a
+    // body frame of another type, e.g. 5, 8, 9 or 11.
+    public static final byte MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 = 12;
+    public static final byte MESSAGE_TYPE_SIGNED = 13;
+    // Replaces the message types 1, 2, 3, 5 and 9 for receivers with an EC key: the content is encrypted with ECDH and
+    // AES/GCM (see EcHelper). The first encrypted byte is the replaced message type, no SHA-1 hash is appended.
+    public static final byte MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER = 14;
+    // Session resumption (see HandshakeStateHolder): the content is not encrypted and followed by the SHA-1 hash like
+    // type 8. The ticket is encrypted by its issuer and both messages are authenticated with the resumption secret.
+    public static final byte MESSAGE_TYPE_RESUMPTION_REQUEST = 15;
+    public static final byte MESSAGE_TYPE_RESUMPTION_RESPONSE = 16;
+    // Like MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED, but the content starts with the key epoch as an int (see
+    // KeyHolder#getSymmetricKeyForSending), so that frames of the previous and the next epoch can be decrypted while
+    // the key is replaced. Type 7 has no epoch and always uses the key of the current epoch.
+    public static final byte MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH = 17;
+    private static final int KEY_EPOCH_LENGTH = 4;
+    // Returned by selectMessageType if no message type provides the requested security level:
+    public static final byte MESSAGE_TYPE_UNAVAILABLE = -1;
+    // The RSA encrypted AES key of a hybrid message is prefixed with its length as a short:
+    private static final int WRAPPED_KEY_LENGTH_INDICATOR = 2;
+    // The signature of a signed message is prefixed with its length as a short:
+    private static final int SIGNATURE_LENGTH_INDICATOR = 2;
+
+    // Receivers that support MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER:
+    private final Set<UUID> hybridEncryptionReceivers = Collections.synchronizedSet(new HashSet<UUID>());
+    // Receivers that support MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 and MESSAGE_TYPE_SIGNED:
+    private final Set<UUID> signatureReceivers = Collections.synchronizedSet(new HashSet<UUID>());
+    // Receivers that support MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH:
+    private final Set<UUID> keyEpochReceivers = Collections.synchronizedSet(new HashSet<UUID>());
+    // Replaces the saved RSA key pair if set:
+    private volatile KeyPair ownKeyPair;
+
+    /**
+     * @param keyPair
+     *            the own RSA key pair that is used instead of the saved one, e.g. if this handler acts for another
+     *            local user. If null (default) the key pair of the {@link KeyHolder} is used.
+     * */
+    public void setOwnKeyPair(KeyPair keyPair) {
+        this.ownKeyPair = keyPair;
+    }
+
+    /**
+     * @param uuidOfReceiver
+     *            the receiver the setting applies to
+     * @param enabled
+     *            if true messages of type 5 to the receiver that do not fit into a single RSA block of its key are sent
+     *            as type {@link #MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER} and messages of type 6 that do not fit
+     *            into a single RSA block of the own key are signed. Disabled by default, only enable this if the
+     *            receiver supports these message types.
+     * */
+    public void setHybridEncryptionEnabled(UUID uuidOfReceiver, boolean enabled) {
+        if (enabled) {
+            hybridEncryptionReceivers.add(uuidOfReceiver);
+        } else {
+            hybridEncryptionReceivers.remove(uuidOfReceiver);
+        }
+    }
+
+    /**
+     * @param uuidOfReceiver
+     *            the receiver the setting applies to
+     * @param enabled
+     *            if true messages of type 4 to the receiver are sent as {@link #MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4}
+     *            with a body of type 5 and messages of type 6 are sent as {@link #MESSAGE_TYPE_SIGNED} with a body of
+     *            type 8. Disabled by default, only enable this if the receiver supports these message types. Receivers
+     *            that shared an EC key support them anyway, so their messages are always signed, just like the
+     *            messages of users who share an EC key.
+     * */
+    public void setSignaturesEnabled(UUID uuidOfReceiver, boolean enabled) {
+        if (enabled) {
+            signatureReceivers.add(uuidOfReceiver);
+        } else {
+            signatureReceivers.remove(uuidOfReceiver);
+        }
+    }
+
+    /**
+     * @param uuidOfReceiver
+     *            the receiver the setting applies to
+     * @param enabled
+     *            if true messages of type {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED} to the receiver are sent as
+     *            {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH} and the symmetric key is replaced periodically.
+     *            Disabled by default, only enable this if the receiver supports this message type.
+     * */
+    public void setKeyEpochsEnabled(UUID uuidOfReceiver, boolean enabled) {
+        if (enabled) {
+            keyEpochReceivers.add(uuidOfReceiver);
+        } else {
+            keyEpochReceivers.remove(uuidOfReceiver);
+        }
+    }
 
     /**
      * Inserts the length indicator and the message type to the front of the bytes of the given message. Also performs
@@ -43,17 +163,185 @@ public class MessageEncryptionHandler {
      * 
      * @param uuidOfReceiver
      *            can be null if the receiver is not specified (this is only possible for messages without encryption)
+     * @return the complete frame or null if the message could not be encrypted
      * 
      * */
     public byte[] prepareMessageForSending(Context context, UUID uuidOfReceiver, BasicMessage message, byte messageType)
             throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException,
             BadPaddingException, InvalidAlgorithmParameterException {
-        byte[] encryptedMessage = encryptMessage(context, uuidOfReceiver, message, messageType);
-        ByteBuffer buffer = ByteBuffer.allocate(encryptedMessage.length + Integer.SIZE / 8 + Byte.SIZE / 8);
-        buffer.putInt(encryptedMessage.length);
-        buffer.put(messageType);
-        buffer.put(encryptedMessage);
-        return buffer.array();
+        MessageFrame frame = prepareFrameForSending(context, uuidOfReceiver, message, messageType);
+        if (frame == null) {
+            return null;
+        }
+        byte[] frameInBytes = frame.toByteArray();
+        frame.release();
+        return frameInBytes;
+    }
+
+    /**
+     * Same as {@link #prepareMessageForSending(Context, UUID, BasicMessage, byte)}, but the length indicator, the
+     * message type and the content with its SHA-1 hash are written into a single buffer that is taken from the
+     * {@link FrameBufferPool}. Call {@link MessageFrame#release()} after the frame was written.
+     * 
+     * @param uuidOfReceiver
+     *            can be null if the receiver is not specified (this is only possible for messages without encryption)
+     * @return the frame or null if the message could not be encrypted
+     * 
+     * */
+    public MessageFrame prepareFrameForSending(Context context, UUID uuidOfReceiver, BasicMessage message,
+            byte messageType) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        boolean sign = messageType == MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 || messageType == MESSAGE_TYPE_SIGNED;
+        if (messageType == 4 || messageType == 6) {
+            // EC keys can not be used to encrypt with the private key:
+            sign = signatureReceivers.contains(uuidOfReceiver) || isEcReceiver(context, uuidOfReceiver)
+                    || KeyHolder.getInstance().getOwnKeySuiteForUser(context, uuidOfReceiver) == KeySuite.EC;
+        }
+        if (messageType == 6 && !sign && hybridEncryptionReceivers.contains(uuidOfReceiver)) {
+            // Large messages are signed instead of encrypting every block with the private key:
+            PrivateKey ownPrivateKey = getOwnPrivateKey(context, KeyHolder.getInstance());
+            sign = ownPrivateKey != null && message.getMessageContentAsBytes().length + HASH_LENGTH > RsaHelper
+                    .getPlainBlockLength(ownPrivateKey);
+        }
+        if (sign && (messageType == 4 || messageType == MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4)) {
+            return prepareSignedFrame(context, uuidOfReceiver, message, (byte) 5,
+                    MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4);
+        } else if (sign) {
+            return prepareSignedFrame(context, uuidOfReceiver, message, (byte) 8, MESSAGE_TYPE_SIGNED);
+        }
+        return prepareUnsignedFrame(context, uuidOfReceiver, message, messageType);
+    }
+
+    /**
+     * Picks the cheapest message type that provides the given security level for the receiver. A symmetric session
+     * with the receiver is always preferred over RSA or EC operations:
+     * 
+     * <pre>
+     * NONE            8
+     * AUTHENTICATED   11 if a symmetric key exists, otherwise 6 (signed if enabled, see setSignaturesEnabled)
+     * CONFIDENTIAL    11 if a symmetric key exists, otherwise 5 (hybrid or EC for large messages and EC keys)
+     * </pre>
+     * 
+     * @return the message type or {@link #MESSAGE_TYPE_UNAVAILABLE} if the level can not be provided, e.g. because no
+     *         key of the receiver is known yet
+     * */
+    public byte selectMessageType(Context context, UUID uuidOfReceiver, SecurityLevel level) {
+        if (level == SecurityLevel.NONE) {
+            return 8;
+        } else if (uuidOfReceiver == null) {
+            LogHelper.getInstance().e(TAG, "No receiver known, can not send message with security level " + level);
+            return MESSAGE_TYPE_UNAVAILABLE;
+        }
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        if (keyHolder.getSymmetricKey(context, uuidOfReceiver) != null) {
+            return MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED;
+        } else if (level == SecurityLevel.AUTHENTICATED) {
+            // Only the own private key is needed:
+            return 6;
+        } else if (keyHolder.getPublicKeyOfOtherUser(context, uuidOfReceiver) != null) {
+            return 5;
+        }
+        LogHelper.getInstance().e(TAG, "No key of user " + uuidOfReceiver + " for security level " + level);
+        return MESSAGE_TYPE_UNAVAILABLE;
+    }
+
+    /**
+     * Signs the given message with the own private key and encrypts it according to the given body message type, e.g.
+     * 7 or {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED} to send a signed message that only the receiver can read.
+     * The frame has the type {@link #MESSAGE_TYPE_SIGNED}.
+     * 
+     * @param bodyMessageType
+     *            the message type that is used to encrypt the message. The types 0, 4, 6, 10 and the signed types are
+     *            not allowed.
+     * @return the frame or null if the message could not be signed or encrypted
+     * */
+    public MessageFrame prepareSignedFrameForSending(Context context, UUID uuidOfReceiver, BasicMessage message,
+            byte bodyMessageType) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        if (bodyMessageType < 1 || bodyMessageType == 4 || bodyMessageType == 6
+                || bodyMessageType == MESSAGE_TYPE_REJECTED_HYBRID_OWN_PRIVATE_KEY
+                || (bodyMessageType > MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED
+                        && bodyMessageType != MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH)) {
+            LogHelper.getInstance().e(TAG, "Message type " + bodyMessageType + " can not be used for a signed message");
+            return null;
+        }
+        return prepareSignedFrame(context, uuidOfReceiver, message, bodyMessageType, MESSAGE_TYPE_SIGNED);
+    }
+
+    /**
+     * Builds a frame of the given type that contains the message without a signature.
+     * 
+     * @return the frame or null if the message could not be encrypted
+     * */
+    private MessageFrame prepareUnsignedFrame(Context context, UUID uuidOfReceiver, BasicMessage message,
+            byte messageType) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        FrameBufferPool pool = FrameBufferPool.getInstance();
+        byte[] messageBytes = message.getMessageContentAsBytes();
+        int contentLength = messageBytes.length + HASH_LENGTH;
+
+        if (messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED
+                || messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH) {
+            boolean withEpoch = messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH
+                    || keyEpochReceivers.contains(uuidOfReceiver);
+            return encryptAuthenticatedIntoFrame(context, uuidOfReceiver, messageBytes, withEpoch, pool);
+        } else if (isEcEncryptedMessageType(messageType) || messageType == MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER) {
+            if (isEcReceiver(context, uuidOfReceiver)) {
+                byte innerMessageType = messageType == MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER ? 5 : messageType;
+                return encryptEcIntoFrame(context, uuidOfReceiver, messageBytes, innerMessageType, pool);
+            }
+        }
+
+        if (messageType == 5 && hybridEncryptionReceivers.contains(uuidOfReceiver)) {
+            // One RSA operation for the key instead of one per block of the content:
+            PublicKey receiverKey = KeyHolder.getInstance().getPublicKeyOfOtherUser(context, uuidOfReceiver);
+            if (receiverKey != null && contentLength > RsaHelper.getPlainBlockLength(receiverKey)) {
+                messageType = MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER;
+            }
+        }
+
+        if (!isEncryptedMessageType(messageType)) {
+            if (messageType == 0) {
+                LogHelper.getInstance().i(TAG, "No encryption neccessary for public key exchange.");
+            } else if (messageType == 8) {
+                LogHelper.getInstance().i(TAG, "No encryption neccessary for message without encryption");
+            } else if (isResumptionMessageType(messageType)) {
+                LogHelper.getInstance().i(TAG, "No encryption neccessary for session resumption.");
+            } else {
+                LogHelper.getInstance().e(TAG, "Wrong message type! Returning raw message without encryption.");
+            }
+            // Header, content and hash are written in one pass:
+            ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + contentLength);
+            frame.putInt(contentLength);
+            frame.put(messageType);
+            putContentWithHash(frame, messageBytes);
+            frame.flip();
+            return new MessageFrame(frame, pool);
+        }
+
+        ByteBuffer content = pool.acquire(contentLength);
+        try {
+            putContentWithHash(content, messageBytes);
+            content.flip();
+            if (messageType == 7) {
+                return encryptSymmetricIntoFrame(context, uuidOfReceiver, content, messageType, pool);
+            } else if (messageType == MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER) {
+                return encryptHybridIntoFrame(context, uuidOfReceiver, content, messageType, pool);
+            }
+            byte[] encrypted = encryptAsymmetric(context, uuidOfReceiver, content.array(), content.arrayOffset(),
+                    content.limit(), messageType);
+            if (encrypted == null) {
+                return null;
+            }
+            ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + encrypted.length);
+            frame.putInt(encrypted.length);
+            frame.put(messageType);
+            frame.put(encrypted);
+            frame.flip();
+            return new MessageFrame(frame, pool);
+        } finally {
+            pool.release(content);
+        }
     }
 
     /**
@@ -76,10 +364,6 @@ public class MessageEncryptionHandler {
                 ByteBuffer buffer = ByteBuffer.wrap(rawMessageInBytes);
                 int messageLength = buffer.getInt();
                 byte messageType = buffer.get();
-                if (messageType < 0 || messageType > 8) {
-                    LogHelper.getInstance().e(TAG, "Invalid message type: " + messageType + "!");
-                    return null;
-                }
                 // The length indicator and the message type are not counted
                 int lengthOfMessageTypeAndContent = rawMessageInBytes.length - 4 - 1;
                 if (lengthOfMessageTypeAndContent != messageLength) {
@@ -89,50 +373,8 @@ public class MessageEncryptionHandler {
                                     + " content=" + lengthOfMessageTypeAndContent);
                     return null;
                 } else {
-                    byte[] messageContent = new byte[messageLength];
-                    buffer.get(messageContent);
-
-                    byte[] unencryptedContent = decryptMessage(context, uuidOfSender, messageContent, messageType);
-
-                    if (unencryptedContent == null) {
-                        return null;
-                    }
-
-                    buffer = ByteBuffer.wrap(unencryptedContent);
-                    int lengthOfHash = 20;
-                    byte[] messageContentWithoutHash = new byte[unencryptedContent.length - lengthOfHash];
-                    byte[] receivedHash = new byte[lengthOfHash];
-
-                    buffer.get(messageContentWithoutHash);
-                    buffer.get(receivedHash);
-
-                    byte[] calculatedHash = getSha1HashOfMessage(messageContentWithoutHash);
-
-                    boolean hashesMatch = Arrays.equals(receivedHash, calculatedHash);
-
-                    if (!hashesMatch) {
-                        LogHelper.getInstance().e(TAG, "Hashes did not match!");
-                        ByteConverter.printBytes("Received hash", receivedHash);
-                        ByteConverter.printBytes("Calculated hash", calculatedHash);
-                        return null;
-                    } else {
-                        LogHelper.getInstance().d(TAG, "Hashes matched");
-                    }
-
-                    switch (messageType) {
-                    case 0:
-                        return new PublicKeyExchangeMessage(messageContentWithoutHash);
-                    case 1:
-                        return new HandshakeMessage1(messageContentWithoutHash);
-                    case 2:
-                        return new HandshakeMessage2(messageContentWithoutHash);
-                    case 3:
-                        return new HandshakeMessage3(messageContentWithoutHash);
-                    case 4:
-                        return new HandshakeMessage4(messageContentWithoutHash);
-                    default:
-                        return new CustomMessage(messageContentWithoutHash);
-                    }
+                    return extractReceivedMessage(context, uuidOfSender, new ReceivedFrame(messageType, buffer,
+                            false));
                 }
             } else {
                 LogHelper.getInstance().e(TAG,
@@ -145,6 +387,265 @@ public class MessageEncryptionHandler {
 
     }
 
+    /**
+     * Same as {@link #extractReceivedMessage(Context, UUID, byte[])} for a frame that was read by the
+     * {@link de.lmu.mcm.helper.InputStreamHelper InputStreamHelper}. Unencrypted content is read directly from the
+     * frame, so it is only copied once into the returned message.
+     * 
+     * @param uuidOfSender
+     *            can be null if the sender is not specified (this is only possible for messages without encryption)
+     * @return the parsed message or null if an error occured
+     * 
+     * */
+    public BasicMessage extractReceivedMessage(Context context, UUID uuidOfSender, ReceivedFrame frame)
+            throws InvalidKeySpecException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        if (frame == null || frame.getContent() == null) {
+            LogHelper.getInstance().e(TAG, "Frame was null, can not return content!");
+            return null;
+        }
+        byte messageType = frame.getMessageType();
+        if (messageType == MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 || messageType == MESSAGE_TYPE_SIGNED) {
+            // The signature is checked first, so that forged frames are never decrypted:
+            ReceivedFrame body = verifySignedFrame(context, uuidOfSender, frame);
+            byte[] message = body == null ? null : extractMessageContent(context, uuidOfSender, body);
+            if (message == null) {
+                return null;
+            }
+            return messageType == MESSAGE_TYPE_SIGNED ? new CustomMessage(message) : new HandshakeMessage4(message);
+        }
+
+        byte[] messageContentWithoutHash;
+        if (messageType == MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER) {
+            // The replaced message type is encrypted together with the content:
+            byte[] decrypted = decryptEc(context, frame.getContent());
+            if (decrypted == null) {
+                return null;
+            }
+            messageType = decrypted[0];
+            messageContentWithoutHash = Arrays.copyOfRange(decrypted, 1, decrypted.length);
+        } else {
+            messageContentWithoutHash = extractMessageContent(context, uuidOfSender, frame);
+            if (messageContentWithoutHash == null) {
+                return null;
+            }
+        }
+
+        switch (messageType) {
+        case 0:
+            return new PublicKeyExchangeMessage(messageContentWithoutHash);
+        case 1:
+            return new HandshakeMessage1(messageContentWithoutHash);
+        case 2:
+            return new HandshakeMessage2(messageContentWithoutHash);
+        case 3:
+            return new HandshakeMessage3(messageContentWithoutHash);
+        case 4:
+            return new HandshakeMessage4(messageContentWithoutHash);
+        case MESSAGE_TYPE_RESUMPTION_REQUEST:
+            return new ResumptionRequestMessage(messageContentWithoutHash);
+        case MESSAGE_TYPE_RESUMPTION_RESPONSE:
+            return new ResumptionResponseMessage(messageContentWithoutHash);
+        default:
+            return new CustomMessage(messageContentWithoutHash);
+        }
+    }
+
+    /**
+     * Decrypts the content of an unsigned frame and checks its hash.
+     * 
+     * @return the content of the message without the hash or null if it could not be decrypted or was modified.
+     * */
+    private byte[] extractMessageContent(Context context, UUID uuidOfSender, ReceivedFrame frame)
+            throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
+            BadPaddingException, InvalidAlgorithmParameterException {
+        byte messageType = frame.getMessageType();
+        if (messageType < 0 || messageType > MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH
+                || messageType == MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 || messageType == MESSAGE_TYPE_SIGNED) {
+            LogHelper.getInstance().e(TAG, "Invalid message type: " + messageType + "!");
+            return null;
+        } else if (messageType == MESSAGE_TYPE_REJECTED_HYBRID_OWN_PRIVATE_KEY) {
+            LogHelper.getInstance().e(TAG, "Message type " + messageType + " can be forged, rejecting message!");
+            return null;
+        } else if (messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED
+                || messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH) {
+            return decryptAuthenticated(context, uuidOfSender, frame.getContent(),
+                    messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH);
+        } else if (messageType == MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER) {
+            byte[] decrypted = decryptEc(context, frame.getContent());
+            return decrypted == null ? null : Arrays.copyOfRange(decrypted, 1, decrypted.length);
+        }
+
+        byte[] receivedHash = new byte[HASH_LENGTH];
+        if (isSymmetricMessageType(messageType)) {
+            // Large messages are decrypted straight from the frame and the hash is split off while decrypting:
+            byte[] decrypted = decryptSymmetric(context, uuidOfSender, frame.getContent(), messageType, receivedHash);
+            if (decrypted == null || !hashMatches(ByteBuffer.wrap(decrypted), receivedHash)) {
+                return null;
+            }
+            return decrypted;
+        }
+
+        ByteBuffer unencryptedContent;
+        if (messageType == 0 || messageType == 8 || isResumptionMessageType(messageType)) {
+            LogHelper.getInstance().i(TAG, "No decryption neccessary for message type " + messageType);
+            unencryptedContent = frame.getContent();
+        } else {
+            // RSA encrypted messages are not larger than a few blocks:
+            byte[] messageContent = new byte[frame.getContentLength()];
+            frame.getContent().get(messageContent);
+            byte[] decrypted = decryptMessage(context, uuidOfSender, messageContent, messageType);
+            if (decrypted == null) {
+                return null;
+            }
+            unencryptedContent = ByteBuffer.wrap(decrypted);
+        }
+
+        if (unencryptedContent.remaining() < HASH_LENGTH) {
+            LogHelper.getInstance().e(TAG, "Message was too short to contain a hash!");
+            return null;
+        }
+        int lengthWithoutHash = unencryptedContent.remaining() - HASH_LENGTH;
+        ByteBuffer contentWithoutHash = unencryptedContent.duplicate();
+        contentWithoutHash.limit(contentWithoutHash.position() + lengthWithoutHash);
+        unencryptedContent.position(unencryptedContent.position() + lengthWithoutHash);
+        unencryptedContent.get(receivedHash);
+        if (!hashMatches(contentWithoutHash.duplicate(), receivedHash)) {
+            return null;
+        }
+
+        byte[] messageContentWithoutHash = new byte[lengthWithoutHash];
+        contentWithoutHash.get(messageContentWithoutHash);
+        return messageContentWithoutHash;
+    }
+
+    /**
+     * Compares the SHA-1 hash of the remaining bytes of the content with the received hash.
+     * */
+    private boolean hashMatches(ByteBuffer content, byte[] receivedHash) throws NoSuchAlgorithmException {
+        MessageDigest md = CryptoContext.getInstance().getSha1Digest();
+        md.update(content);
+        byte[] calculatedHash = md.digest();
+
+        if (!Arrays.equals(receivedHash, calculatedHash)) {
+            LogHelper.getInstance().e(TAG, "Hashes did not match!");
+            ByteConverter.printBytes("Received hash", receivedHash);
+            ByteConverter.printBytes("Calculated hash", calculatedHash);
+            return false;
+        }
+        LogHelper.getInstance().d(TAG, "Hashes matched");
+        return true;
+    }
+
+    /**
+     * @return true for the message types whose content is encrypted with AES/CBC and may be large
+     * */
+    private boolean isSymmetricMessageType(byte messageType) {
+        return messageType == 7 || messageType == MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER;
+    }
+
+    /**
+     * Signs the frame type, the body type and the encrypted body with the own private key of the suite the receiver has
+     * (see {@link KeyHolder#getOwnKeySuiteForUser(Context, UUID)}), as the receiver only has the public key that we
+     * shared. The signature is computed over the encrypted body, so that the receiver can check it before decrypting
+     * anything.
+     * 
+     * @return the frame or null if the message could not be signed or encrypted
+     * */
+    private MessageFrame prepareSignedFrame(Context context, UUID uuidOfReceiver, BasicMessage message,
+            byte bodyMessageType, byte messageType) throws InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        // The receiver verifies the signature with the public key we shared, whatever the suite of its own key is:
+        KeySuite suite = KeyHolder.getInstance().getOwnKeySuiteForUser(context, uuidOfReceiver);
+        KeyPair signingKeyPair = getOwnKeyPair(context, suite);
+        if (signingKeyPair == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve own " + suite + " private key!");
+            return null;
+        }
+        PrivateKey ownPrivateKey = signingKeyPair.getPrivate();
+        MessageFrame body = prepareUnsignedFrame(context, uuidOfReceiver, message, bodyMessageType);
+        if (body == null) {
+            return null;
+        }
+        try {
+            // The body type can differ from the requested type, e.g. if hybrid encryption is used:
+            byte bodyType = body.getMessageType();
+            ByteBuffer bodyContent = body.getSlice();
+            bodyContent.position(MessageFrame.HEADER_LENGTH);
+
+            Signature signature = CryptoContext.getInstance().getSignature(ownPrivateKey);
+            signature.initSign(ownPrivateKey);
+            signature.update(messageType);
+            signature.update(bodyType);
+            signature.update(bodyContent.duplicate());
+            byte[] signatureBytes = signature.sign();
+
+            int contentLength = SIGNATURE_LENGTH_INDICATOR + signatureBytes.length + 1 + bodyContent.remaining();
+            FrameBufferPool pool = FrameBufferPool.getInstance();
+            ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + contentLength);
+            frame.putInt(contentLength);
+            frame.put(messageType);
+            frame.putShort((short) signatureBytes.length);
+            frame.put(signatureBytes);
+            frame.put(bodyType);
+            frame.put(bodyContent);
+            frame.flip();
+            LogHelper.getInstance().d(TAG, "Signed message with own " + suite + " private key");
+            return new MessageFrame(frame, pool);
+        } catch (SignatureException e) {
+            LogHelper.getInstance().e(TAG, "Could not sign message!", e);
+            return null;
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Checks the signature of a frame of type {@link #MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4} or
+     * {@link #MESSAGE_TYPE_SIGNED} with the public key of the sender.
+     * 
+     * @return the body of the frame or null if the signature did not match.
+     * */
+    private ReceivedFrame verifySignedFrame(Context context, UUID uuidOfSender, ReceivedFrame frame)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        ByteBuffer content = frame.getContent();
+        if (content.remaining() < SIGNATURE_LENGTH_INDICATOR) {
+            LogHelper.getInstance().e(TAG, "Message was too short to contain a signature!");
+            return null;
+        }
+        int signatureLength = content.getShort() & 0xFFFF;
+        if (signatureLength + 1 > content.remaining()) {
+            LogHelper.getInstance().e(TAG, "Invalid length of the signature: " + signatureLength);
+            return null;
+        }
+        byte[] signatureBytes = new byte[signatureLength];
+        content.get(signatureBytes);
+        byte bodyType = content.get();
+
+        PublicKey key = uuidOfSender == null ? null : KeyHolder.getInstance().getPublicKeyOfOtherUser(context,
+                uuidOfSender);
+        if (key == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve public key of user: " + uuidOfSender);
+            return null;
+        }
+        Signature signature = CryptoContext.getInstance().getSignature(key);
+        signature.initVerify(key);
+        try {
+            signature.update(frame.getMessageType());
+            signature.update(bodyType);
+            signature.update(content.duplicate());
+            if (!signature.verify(signatureBytes)) {
+                LogHelper.getInstance().e(TAG, "Signature did not match!");
+                return null;
+            }
+        } catch (SignatureException e) {
+            LogHelper.getInstance().e(TAG, "Could not verify signature!", e);
+            return null;
+        }
+        LogHelper.getInstance().d(TAG, "Verified signature of user: " + uuidOfSender);
+        return new ReceivedFrame(bodyType, content, frame.isSpilledToDisk());
+    }
+
     /**
      * 
      * @param uuidOfReceiver
@@ -156,21 +657,34 @@ public class MessageEncryptionHandler {
     private byte[] encryptMessage(Context context, UUID uuidOfReceiver, BasicMessage message, byte messageType)
             throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
             BadPaddingException, InvalidAlgorithmParameterException {
+        MessageFrame frame = prepareUnsignedFrame(context, uuidOfReceiver, message, messageType);
+        if (frame == null) {
+            return null;
+        }
+        ByteBuffer slice = frame.getSlice();
+        slice.position(MessageFrame.HEADER_LENGTH);
+        byte[] encrypted = new byte[slice.remaining()];
+        slice.get(encrypted);
+        frame.release();
+        return encrypted;
+    }
 
-        KeyHolder keyHolder = KeyHolder.getInstance();
-        RsaHelper rsa = new RsaHelper();
+    /**
+     * Encrypts the content (message and hash) with RSA according to the message types 1 to 6.
+     * 
+     * @return null if the message could not be encrypted. Otherwise the encrypted message in bytes
+     * */
+    private byte[] encryptAsymmetric(Context context, UUID uuidOfReceiver, byte[] content, int offset, int length,
+            byte messageType) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException {
 
-        // Append the SHA-1-Hash of the message:
-        byte[] messageBytes = message.getMessageContentAsBytes();
-        byte[] messageHash = getSha1HashOfMessage(messageBytes);
-        messageBytes = ByteConverter.combineMultipleByteArrays(messageBytes, messageHash);
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        RsaHelper rsa = CryptoContext.getInstance().getRsaHelper();
 
-        if (messageType == 0) {
-            LogHelper.getInstance().i(TAG, "No encryption neccessary for public key exchange.");
-            return messageBytes;
-        } else if (messageType == 1 || messageType == 2 || messageType == 3) {
+        if (messageType == 1 || messageType == 2 || messageType == 3) {
             // Asymmetric encryption with public key of receiver
-            return encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, messageBytes, rsa, keyHolder);
+            return encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, content, offset, length, rsa,
+                    keyHolder);
         } else if (messageType == 4) {
             // Asymmetric encryption with own private key and afterwards with the public key of the receiver
             PrivateKey ownPrivateKey = getOwnPrivateKey(context, keyHolder);
@@ -178,21 +692,22 @@ public class MessageEncryptionHandler {
                 LogHelper.getInstance().e(TAG, "Could not retrieve own private key!");
                 return null;
             }
-            byte[] encrypted = rsa.encrypt(messageBytes, ownPrivateKey);
+            byte[] encrypted = rsa.encrypt(content, offset, length, ownPrivateKey);
             LogHelper.getInstance().d(TAG, "Encrypted message with own private key");
             if (encrypted != null) {
-                byte[] secondEncryption = encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, encrypted,
-                        rsa, keyHolder);
+                byte[] secondEncryption = encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, encrypted, 0,
+                        encrypted.length, rsa, keyHolder);
                 return secondEncryption;
             }
             LogHelper.getInstance().e(TAG, "Encrypted message with own private key was null!");
             return null;
         } else if (messageType == 5) {
-            return encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, messageBytes, rsa, keyHolder);
+            return encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, content, offset, length, rsa,
+                    keyHolder);
         } else if (messageType == 6) {
             PrivateKey ownPrivateKey = getOwnPrivateKey(context, keyHolder);
             if (ownPrivateKey != null) {
-                byte[] encrypted = rsa.encrypt(messageBytes, ownPrivateKey);
+                byte[] encrypted = rsa.encrypt(content, offset, length, ownPrivateKey);
                 if (encrypted != null) {
                     return encrypted;
                 } else {
@@ -202,24 +717,292 @@ public class MessageEncryptionHandler {
                 LogHelper.getInstance().e(TAG, "Own private key was null!");
             }
             return null;
-        } else if (messageType == 7) {
-            AesHelper aes = new AesHelper();
-            SymmetricKeyWrapper keyWrapper = keyHolder.getSymmetricKey(uuidOfReceiver);
+        }
+        LogHelper.getInstance().e(TAG, "Message type " + messageType + " is not encrypted with RSA!");
+        return null;
+    }
+
+    /**
+     * Encrypts the content with the symmetric key of the receiver (message type 7) and writes it directly behind the
+     * header of a new frame.
+     * 
+     * @return the frame or null if the message could not be encrypted
+     * */
+    private MessageFrame encryptSymmetricIntoFrame(Context context, UUID uuidOfReceiver, ByteBuffer content,
+            byte messageType, FrameBufferPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        SymmetricKeyWrapper keyWrapper = KeyHolder.getInstance().getSymmetricKey(context, uuidOfReceiver);
+        if (keyWrapper == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve symmetric key of user: " + uuidOfReceiver);
+            return null;
+        }
+        AesHelper aes = CryptoContext.getInstance().getAesHelper();
+        ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH
+                + AesHelper.getEncryptedLength(content.remaining()));
+        frame.position(MessageFrame.HEADER_LENGTH);
+        try {
+            int encryptedLength = aes.encrypt(content, frame, keyWrapper.getKey());
+            frame.putInt(0, encryptedLength);
+            frame.put(MessageFrame.HEADER_LENGTH - 1, messageType);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Frame buffer was too small for the encrypted message!", e);
+            pool.release(frame);
+            return null;
+        }
+        frame.flip();
+        LogHelper.getInstance().d(TAG, "Encrypted message with symmetric key of user: " + uuidOfReceiver);
+        return new MessageFrame(frame, pool);
+    }
+
+    /**
+     * Encrypts the message with the symmetric key of the receiver and AES/GCM (message type
+     * {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED} or {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH}) and writes
+     * the key epoch, the nonce and the encrypted message directly behind the header of a new frame.
+     * 
+     * @param withEpoch
+     *            if true the key is replaced periodically and its epoch is written in front of the nonce
+     * @return the frame or null if the message could not be encrypted
+     * */
+    private MessageFrame encryptAuthenticatedIntoFrame(Context context, UUID uuidOfReceiver, byte[] messageBytes,
+            boolean withEpoch, FrameBufferPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        SymmetricKeyWrapper keyWrapper = withEpoch ? keyHolder.getSymmetricKeyForSending(context, uuidOfReceiver)
+                : keyHolder.getSymmetricKey(context, uuidOfReceiver);
+        if (keyWrapper == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve symmetric key of user: " + uuidOfReceiver);
+            return null;
+        }
+        CryptoContext cryptoContext = CryptoContext.getInstance();
+        AesHelper aes = cryptoContext.getAesHelper();
+        int epochLength = withEpoch ? KEY_EPOCH_LENGTH : 0;
+        ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + epochLength
+                + AesHelper.getAuthenticatedLength(messageBytes.length));
+        frame.position(MessageFrame.HEADER_LENGTH);
+        if (withEpoch) {
+            frame.putInt(keyWrapper.getEpoch());
+        }
+        try {
+            int encryptedLength = aes.encryptAuthenticated(ByteBuffer.wrap(messageBytes), frame, keyWrapper.getKey(),
+                    cryptoContext.getSecureRandom());
+            frame.putInt(0, epochLength + encryptedLength);
+            frame.put(MessageFrame.HEADER_LENGTH - 1, withEpoch ? MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH
+                    : MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Frame buffer was too small for the encrypted message!", e);
+            pool.release(frame);
+            return null;
+        }
+        frame.flip();
+        LogHelper.getInstance().d(TAG, "Encrypted message with AES/GCM and symmetric key of user: " + uuidOfReceiver);
+        return new MessageFrame(frame, pool);
+    }
+
+    /**
+     * Encrypts the message type and the message with ECDH and AES/GCM for the EC key of the receiver (message type
+     * {@link #MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER}) and writes them directly behind the header of a new frame.
+     * 
+     * @return the frame or null if the message could not be encrypted
+     * */
+    private MessageFrame encryptEcIntoFrame(Context context, UUID uuidOfReceiver, byte[] messageBytes,
+            byte innerMessageType, FrameBufferPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        PublicKey key = KeyHolder.getInstance().getPublicKeyOfOtherUser(context, uuidOfReceiver);
+        if (key == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve public key of user: " + uuidOfReceiver);
+            return null;
+        }
+        CryptoContext cryptoContext = CryptoContext.getInstance();
+        ByteBuffer content = pool.acquire(1 + messageBytes.length);
+        content.put(innerMessageType);
+        content.put(messageBytes);
+        content.flip();
+        ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + EcHelper.getEncryptedLength(content.remaining()));
+        frame.position(MessageFrame.HEADER_LENGTH);
+        try {
+            int encryptedLength = cryptoContext.getEcHelper().encrypt(content, frame, key,
+                    cryptoContext.getAesHelper(), cryptoContext.getSecureRandom());
+            frame.putInt(0, encryptedLength);
+            frame.put(MessageFrame.HEADER_LENGTH - 1, MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Frame buffer was too small for the encrypted message!", e);
+            pool.release(frame);
+            return null;
+        } finally {
+            pool.release(content);
+        }
+        frame.flip();
+        LogHelper.getInstance().d(TAG, "Encrypted message with EC key of user: " + uuidOfReceiver);
+        return new MessageFrame(frame, pool);
+    }
+
+    /**
+     * Decrypts the content of a message of type {@link #MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER} with the own EC private
+     * key.
+     * 
+     * @return null if the message could not be decrypted or was modified. Otherwise the replaced message type followed
+     *         by the decrypted message
+     * */
+    private byte[] decryptEc(Context context, ByteBuffer content) throws NoSuchAlgorithmException,
+            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
+        KeyPair ecKeyPair = KeyHolder.getInstance().getOwnKeyPair(context, KeySuite.EC);
+        if (ecKeyPair == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve own EC private key!");
+            return null;
+        }
+        try {
+            CryptoContext cryptoContext = CryptoContext.getInstance();
+            byte[] decrypted = cryptoContext.getEcHelper().decrypt(content, ecKeyPair.getPrivate(),
+                    cryptoContext.getAesHelper());
+            if (decrypted.length == 0 || !isEcEncryptedMessageType(decrypted[0])) {
+                LogHelper.getInstance().e(TAG, "Invalid message type in EC encrypted message!");
+                return null;
+            }
+            LogHelper.getInstance().d(TAG, "Decrypted message with own EC private key");
+            return decrypted;
+        } catch (BadPaddingException e) {
+            LogHelper.getInstance().e(TAG, "Authentication tag did not match!", e);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Buffer was too small for the decrypted message!", e);
+        } catch (InvalidKeySpecException e) {
+            LogHelper.getInstance().e(TAG, "Invalid ephemeral key!", e);
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts the content of a message of type {@link #MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED} and verifies its
+     * authentication tag.
+     * 
+     * @return null if the message could not be decrypted or was modified. Otherwise the decrypted message in bytes
+     * */
+    private byte[] decryptAuthenticated(Context context, UUID uuidOfSender, ByteBuffer content, boolean withEpoch)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
+            InvalidAlgorithmParameterException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        Key key;
+        int epoch = 0;
+        if (withEpoch) {
+            if (content.remaining() < KEY_EPOCH_LENGTH) {
+                LogHelper.getInstance().e(TAG, "Message was too short to contain a key epoch!");
+                return null;
+            }
+            epoch = content.getInt();
+            key = keyHolder.getSymmetricKeyOfEpoch(context, uuidOfSender, epoch);
+        } else {
+            SymmetricKeyWrapper keyWrapper = keyHolder.getSymmetricKey(context, uuidOfSender);
+            key = keyWrapper == null ? null : keyWrapper.getKey();
+        }
+        if (key == null) {
+            LogHelper.getInstance().e(TAG, "Could not retrieve symmetric key of user: " + uuidOfSender);
+            return null;
+        }
+        try {
+            byte[] decrypted = CryptoContext.getInstance().getAesHelper().decryptAuthenticated(content, key);
+            if (withEpoch) {
+                // Only authenticated frames may start a new epoch:
+                keyHolder.confirmKeyEpoch(context, uuidOfSender, epoch);
+            }
+            LogHelper.getInstance().d(TAG, "Decrypted message with AES/GCM and symmetric key of user: " + uuidOfSender);
+            return decrypted;
+        } catch (BadPaddingException e) {
+            LogHelper.getInstance().e(TAG, "Authentication tag did not match!", e);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Buffer was too small for the decrypted message!", e);
+        }
+        return null;
+    }
+
+    /**
+     * Encrypts the content with a new random AES key and writes it directly behind the header and the key, which is
+     * encrypted with the public key of the receiver (message type {@link #MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER}).
+     * As every key is used only once the constant IV of the {@link AesHelper} does not weaken the encryption.
+     * 
+     * @return the frame or null if the message could not be encrypted
+     * */
+    private MessageFrame encryptHybridIntoFrame(Context context, UUID uuidOfReceiver, ByteBuffer content,
+            byte messageType, FrameBufferPool pool) throws NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        RsaHelper rsa = CryptoContext.getInstance().getRsaHelper();
+        SecretKey messageKey = KeyMaterialService.getInstance().takeSymmetricKey();
+        byte[] rawKey = messageKey.getEncoded();
+
+        byte[] wrappedKey = encryptMessageWithPublicKeyOfReceiver(context, uuidOfReceiver, rawKey, 0, rawKey.length,
+                rsa, keyHolder);
+        if (wrappedKey == null) {
+            LogHelper.getInstance().e(TAG, "Could not encrypt the key of the message!");
+            return null;
+        }
+
+        AesHelper aes = CryptoContext.getInstance().getAesHelper();
+        ByteBuffer frame = pool.acquire(MessageFrame.HEADER_LENGTH + WRAPPED_KEY_LENGTH_INDICATOR + wrappedKey.length
+                + AesHelper.getEncryptedLength(content.remaining()));
+        frame.position(MessageFrame.HEADER_LENGTH);
+        frame.putShort((short) wrappedKey.length);
+        frame.put(wrappedKey);
+        try {
+            aes.encrypt(content, frame, messageKey);
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Frame buffer was too small for the encrypted message!", e);
+            pool.release(frame);
+            return null;
+        }
+        frame.putInt(0, frame.position() - MessageFrame.HEADER_LENGTH);
+        frame.put(MessageFrame.HEADER_LENGTH - 1, messageType);
+        frame.flip();
+        LogHelper.getInstance().d(TAG, "Encrypted message with hybrid encryption, type " + messageType);
+        return new MessageFrame(frame, pool);
+    }
+
+    /**
+     * Decrypts the content of a message of type 7 or {@link #MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER} without
+     * copying it first.
+     * 
+     * @param trailer
+     *            receives the last decrypted bytes (the hash of the message)
+     * @return null if the message could not be decrypted. Otherwise the decrypted bytes in front of the trailer
+     * */
+    private byte[] decryptSymmetric(Context context, UUID uuidOfSender, ByteBuffer content, byte messageType,
+            byte[] trailer) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        Key key;
+        if (messageType == 7) {
+            SymmetricKeyWrapper keyWrapper = keyHolder.getSymmetricKey(context, uuidOfSender);
             if (keyWrapper == null) {
-                LogHelper.getInstance()
-                        .e(TAG, "Could not retrieve symmetric key of user: " + uuidOfReceiver.toString());
+                LogHelper.getInstance().e(TAG, "Could not retrieve symmetric key of user: " + uuidOfSender);
                 return null;
             }
-            byte[] encrypted = aes.encrypt(messageBytes, keyWrapper.getKey());
-            LogHelper.getInstance()
-                    .d(TAG, "Encrypted message with symmetric key of user: " + uuidOfReceiver.toString());
-            return encrypted;
-        } else if (messageType == 8) {
-            LogHelper.getInstance().i(TAG, "No encryption neccessary for message without encryption");
-            return messageBytes;
+            key = keyWrapper.getKey();
+        } else {
+            if (content.remaining() < WRAPPED_KEY_LENGTH_INDICATOR) {
+                LogHelper.getInstance().e(TAG, "Message was too short to contain a key!");
+                return null;
+            }
+            int wrappedKeyLength = content.getShort() & 0xFFFF;
+            if (wrappedKeyLength > content.remaining()) {
+                LogHelper.getInstance().e(TAG, "Invalid length of the encrypted key: " + wrappedKeyLength);
+                return null;
+            }
+            byte[] wrappedKey = new byte[wrappedKeyLength];
+            content.get(wrappedKey);
+
+            RsaHelper rsa = CryptoContext.getInstance().getRsaHelper();
+            byte[] rawKey = decryptMesssageWithOwnPrivateKey(context, wrappedKey, rsa, keyHolder);
+            if (rawKey == null) {
+                return null;
+            }
+            key = new SecretKeySpec(rawKey, "AES");
+        }
+        try {
+            byte[] decrypted = CryptoContext.getInstance().getAesHelper().decrypt(content, key, trailer);
+            LogHelper.getInstance().d(TAG, "Decrypted message of type " + messageType + " of user: " + uuidOfSender);
+            return decrypted;
+        } catch (ShortBufferException e) {
+            LogHelper.getInstance().e(TAG, "Buffer was too small for the decrypted message!", e);
+            return null;
         }
-        LogHelper.getInstance().e(TAG, "Wrong message type! Returning raw message without encryption.");
-        return messageBytes;
     }
 
     /**
@@ -233,7 +1016,7 @@ public class MessageEncryptionHandler {
             BadPaddingException, InvalidAlgorithmParameterException {
 
         KeyHolder keyHolder = KeyHolder.getInstance();
-        RsaHelper rsa = new RsaHelper();
+        RsaHelper rsa = CryptoContext.getInstance().getRsaHelper();
 
         if (messageType == 1 || messageType == 2 || messageType == 3) {
             // Asymmetric decryption with own private key
@@ -256,16 +1039,8 @@ public class MessageEncryptionHandler {
         } else if (messageType == 6) {
             // Asymmetric decryption with public key of sender
             return decryptMessageWithPublicKeyOfSender(context, uuidOfSender, message, rsa, keyHolder);
-        } else if (messageType == 7) {
-            AesHelper aes = new AesHelper();
-            SymmetricKeyWrapper keyWrapper = keyHolder.getSymmetricKey(uuidOfSender);
-            if (keyWrapper == null) {
-                LogHelper.getInstance().e(TAG, "Could not retrieve symmetric key of user: " + uuidOfSender.toString());
-                return null;
-            }
-            byte[] decrypted = aes.decrypt(message, keyWrapper.getKey());
-            LogHelper.getInstance().d(TAG, "Decrypted message with symmetric key of user: " + uuidOfSender.toString());
-            return decrypted;
+        } else if (isSymmetricMessageType(messageType)) {
+            return decryptSymmetric(context, uuidOfSender, ByteBuffer.wrap(message), messageType, new byte[0]);
         } else if (messageType == 8) {
             LogHelper.getInstance().i(TAG, "No encryption neccessary for message without encryption");
             return message;
@@ -299,28 +1074,93 @@ public class MessageEncryptionHandler {
         return decrypted;
     }
 
-    private byte[] encryptMessageWithPublicKeyOfReceiver(Context context, UUID receiver, byte[] message, RsaHelper rsa,
-            KeyHolder keyHolder) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    private byte[] encryptMessageWithPublicKeyOfReceiver(Context context, UUID receiver, byte[] message, int offset,
+            int length, RsaHelper rsa, KeyHolder keyHolder) throws InvalidKeyException, IllegalBlockSizeException,
+            BadPaddingException {
         PublicKey key = keyHolder.getPublicKeyOfOtherUser(context, receiver);
         if (key == null) {
             LogHelper.getInstance().e(TAG, "Could not retrieve public key of user: " + receiver.toString());
             return null;
         }
-        byte[] encrypted = rsa.encrypt(message, key);
+        byte[] encrypted = rsa.encrypt(message, offset, length, key);
         LogHelper.getInstance().d(TAG, "Encrypted message with public key of user: " + receiver.toString());
         return encrypted;
     }
 
     private PrivateKey getOwnPrivateKey(Context context, KeyHolder keyHolder) {
-        KeyPair keyPair = keyHolder.getSavedKeyPair(context);
+        KeyPair keyPair = ownKeyPair;
+        if (keyPair == null) {
+            keyPair = keyHolder.getSavedKeyPair(context);
+        }
         if (keyPair == null) {
             return null;
         }
         return keyPair.getPrivate();
     }
 
+    /**
+     * @return the key pair set with {@link #setOwnKeyPair(KeyPair)} for RSA, otherwise the key pair of the
+     *         {@link KeyHolder}
+     * */
+    private KeyPair getOwnKeyPair(Context context, KeySuite suite) {
+        KeyPair keyPair = ownKeyPair;
+        if (suite == KeySuite.RSA && keyPair != null) {
+            return keyPair;
+        }
+        return KeyHolder.getInstance().getOwnKeyPair(context, suite);
+    }
+
+    /**
+     * @return true if the given user has an EC key, so messages to this user are encrypted and signed with EC.
+     * */
+    private boolean isEcReceiver(Context context, UUID uuidOfReceiver) {
+        return KeyHolder.getInstance().getKeySuiteOfOtherUser(context, uuidOfReceiver) == KeySuite.EC;
+    }
+
+    /**
+     * @return true if messages of the given type are sent as {@link #MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER} to
+     *         receivers with an EC key.
+     * */
+    private boolean isEcEncryptedMessageType(byte messageType) {
+        return messageType == 1 || messageType == 2 || messageType == 3 || messageType == 5;
+    }
+
+    /**
+     * @return true if the sender has to be known to extract messages of the given type, because they are signed by the
+     *         sender or encrypted with a key of the sender. All other messages can be extracted with the own keys only.
+     * */
+    public boolean isSenderRequired(byte messageType) {
+        return messageType == 4 || messageType == 6 || messageType == 7
+                || messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED
+                || messageType == MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH
+                || messageType == MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4 || messageType == MESSAGE_TYPE_SIGNED;
+    }
+
+    /**
+     * @return true if the message type is {@link #MESSAGE_TYPE_RESUMPTION_REQUEST} or
+     *         {@link #MESSAGE_TYPE_RESUMPTION_RESPONSE}.
+     * */
+    private boolean isResumptionMessageType(byte messageType) {
+        return messageType == MESSAGE_TYPE_RESUMPTION_REQUEST || messageType == MESSAGE_TYPE_RESUMPTION_RESPONSE;
+    }
+
+    /**
+     * @return true if the content of messages with the given type is encrypted.
+     * */
+    private boolean isEncryptedMessageType(byte messageType) {
+        return (messageType >= 1 && messageType <= 7) || messageType == MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER;
+    }
+
+    /**
+     * Writes the given content and its SHA-1 hash to the buffer.
+     * */
+    private void putContentWithHash(ByteBuffer target, byte[] content) throws NoSuchAlgorithmException {
+        target.put(content);
+        target.put(getSha1HashOfMessage(content));
+    }
+
     private byte[] getSha1HashOfMessage(byte[] message) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        MessageDigest md = CryptoContext.getInstance().getSha1Digest();
         md.update(message, 0, message.length);
         return md.digest();
     }
@@ -343,6 +1183,24 @@ public class MessageEncryptionHandler {
             return "Content encrypted with symmetric key.";
         case 7:
             return "Unencrypted content.";
+        case MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER:
+            return "Content encrypted with a message key that is encrypted with the public key of receiver.";
+        case MESSAGE_TYPE_REJECTED_HYBRID_OWN_PRIVATE_KEY:
+            return "Content encrypted with a message key that is encrypted with the private key of sender (rejected).";
+        case MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED:
+            return "Content encrypted and authenticated with symmetric key.";
+        case MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4:
+            return "Handshake Message 4 signed by sender.";
+        case MESSAGE_TYPE_SIGNED:
+            return "Content signed by sender.";
+        case MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER:
+            return "Content encrypted with EC key of receiver.";
+        case MESSAGE_TYPE_RESUMPTION_REQUEST:
+            return "Session resumption request with ticket.";
+        case MESSAGE_TYPE_RESUMPTION_RESPONSE:
+            return "Session resumption response.";
+        case MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH:
+            return "Content encrypted and authenticated with symmetric key of a key epoch.";
         }
 
         return "Unknown type";
@@ -0,0 +1,186 @@
+package de.lmu.mcm.security;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+
+/**
+ * Encodes public keys as compact as possible for channels with little space like barcodes, NFC and SMS. The first byte
+ * of an encoded key is its format:
+ *
+ * <pre>
+ * 0x01 RSA modulus, the public exponent is 65537
+ * 0x02 RSA public exponent (length as short and bytes) followed by the modulus
+ * 0x03 compressed point on the curve secp256r1 (33 bytes)
+ * 0x30 X.509 encoding (the first byte of the ASN.1 sequence, so keys of older versions are read as well)
+ * </pre>
+ *
+ * A 1024 bit RSA key needs 129 instead of 162 bytes, an EC key 34 instead of 91 bytes.
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class PublicKeyEncoder {
+
+    public static final byte FORMAT_RSA_MODULUS = 0x01;
+    public static final byte FORMAT_RSA_MODULUS_AND_EXPONENT = 0x02;
+    public static final byte FORMAT_EC_COMPRESSED_SECP256R1 = 0x03;
+    public static final byte FORMAT_X509 = 0x30;
+
+    private static final BigInteger DEFAULT_RSA_EXPONENT = BigInteger.valueOf(65537);
+    // Domain parameters of the curve secp256r1 (see SEC 2, section 2.4.2):
+    private static final ECParameterSpec SECP256R1 = new ECParameterSpec(new EllipticCurve(new ECFieldFp(
+            new BigInteger("FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFF", 16)), new BigInteger(
+            "FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFC", 16), new BigInteger(
+            "5AC635D8AA3A93E7B3EBBD55769886BC651D06B0CC53B0F63BCE3C3E27D2604B", 16)), new ECPoint(new BigInteger(
+            "6B17D1F2E12C4247F8BCE6E563A440F277037D812DEB33A0F4A13945D898C296", 16), new BigInteger(
+            "4FE342E2FE1A7F9B8EE7EB4A7C0F9E162BCE33576B315ECECBB6406837BF51F5", 16)), new BigInteger(
+            "FFFFFFFF00000000FFFFFFFFFFFFFFFFBCE6FAADA7179E84F3B9CAC2FC632551", 16), 1);
+    private static final int SECP256R1_COORDINATE_LENGTH = 32;
+
+    private PublicKeyEncoder() {
+    }
+
+    /**
+     * @return the key in the most compact format that is available for it. Keys that can not be compressed are
+     *         returned in X.509 encoding.
+     * */
+    public static byte[] encode(PublicKey key) {
+        if (key instanceof RSAPublicKey) {
+            RSAPublicKey rsaKey = (RSAPublicKey) key;
+            byte[] modulus = toUnsignedBytes(rsaKey.getModulus());
+            if (DEFAULT_RSA_EXPONENT.equals(rsaKey.getPublicExponent())) {
+                ByteBuffer buffer = ByteBuffer.allocate(1 + modulus.length);
+                buffer.put(FORMAT_RSA_MODULUS);
+                buffer.put(modulus);
+                return buffer.array();
+            }
+            byte[] exponent = toUnsignedBytes(rsaKey.getPublicExponent());
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + exponent.length + modulus.length);
+            buffer.put(FORMAT_RSA_MODULUS_AND_EXPONENT);
+            buffer.putShort((short) exponent.length);
+            buffer.put(exponent);
+            buffer.put(modulus);
+            return buffer.array();
+        } else if (key instanceof ECPublicKey && isSecp256r1(((ECPublicKey) key).getParams())) {
+            ECPoint point = ((ECPublicKey) key).getW();
+            ByteBuffer buffer = ByteBuffer.allocate(2 + SECP256R1_COORDINATE_LENGTH);
+            buffer.put(FORMAT_EC_COMPRESSED_SECP256R1);
+            // Only x is sent, the prefix tells which of the two possible y coordinates is the right one:
+            buffer.put((byte) (point.getAffineY().testBit(0) ? 0x03 : 0x02));
+            buffer.put(toUnsignedBytes(point.getAffineX(), SECP256R1_COORDINATE_LENGTH));
+            return buffer.array();
+        }
+        return key.getEncoded();
+    }
+
+    /**
+     * @param encodedKey
+     *            a key that was encoded with {@link #encode(PublicKey)} or in X.509 encoding
+     * @return the decoded key
+     * @throws InvalidKeySpecException
+     *             if the format is unknown or the key is invalid
+     * */
+    public static PublicKey decode(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        if (encodedKey == null || encodedKey.length < 2) {
+            throw new InvalidKeySpecException("Encoded key is too short");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encodedKey, 1, encodedKey.length - 1);
+        switch (encodedKey[0]) {
+        case FORMAT_X509:
+            return KeyHolder.getInstance().generatePublicKeyFromBytes(encodedKey);
+        case FORMAT_RSA_MODULUS:
+            RSAPublicKeySpec keySpec = new RSAPublicKeySpec(readUnsigned(buffer, buffer.remaining()),
+                    DEFAULT_RSA_EXPONENT);
+            return CryptoContext.getInstance().getRsaKeyFactory().generatePublic(keySpec);
+        case FORMAT_RSA_MODULUS_AND_EXPONENT:
+            if (buffer.remaining() < 2) {
+                throw new InvalidKeySpecException("Encoded key is too short");
+            }
+            int exponentLength = buffer.getShort() & 0xFFFF;
+            if (exponentLength >= buffer.remaining()) {
+                throw new InvalidKeySpecException("Invalid length of the exponent: " + exponentLength);
+            }
+            BigInteger exponent = readUnsigned(buffer, exponentLength);
+            BigInteger modulus = readUnsigned(buffer, buffer.remaining());
+            return CryptoContext.getInstance().getRsaKeyFactory()
+                    .generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        case FORMAT_EC_COMPRESSED_SECP256R1:
+            if (buffer.remaining() != 1 + SECP256R1_COORDINATE_LENGTH) {
+                throw new InvalidKeySpecException("Invalid length of the compressed point: " + buffer.remaining());
+            }
+            byte prefix = buffer.get();
+            if (prefix != 0x02 && prefix != 0x03) {
+                throw new InvalidKeySpecException("Invalid prefix of the compressed point: " + prefix);
+            }
+            BigInteger x = readUnsigned(buffer, SECP256R1_COORDINATE_LENGTH);
+            ECPoint point = decompressSecp256r1(x, prefix == 0x03);
+            return CryptoContext.getInstance().getEcKeyFactory().generatePublic(new ECPublicKeySpec(point, SECP256R1));
+        }
+        throw new InvalidKeySpecException("Unknown key format: " + encodedKey[0]);
+    }
+
+    /**
+     * Calculates y from y^2 = x^3 + ax + b. As p = 3 mod 4 for secp256r1 the square root is (x^3 + ax + b)^((p+1)/4).
+     * */
+    private static ECPoint decompressSecp256r1(BigInteger x, boolean yIsOdd) throws InvalidKeySpecException {
+        EllipticCurve curve = SECP256R1.getCurve();
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        if (x.compareTo(p) >= 0) {
+            throw new InvalidKeySpecException("x is not in the field of the curve");
+        }
+        BigInteger ySquare = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+        BigInteger y = ySquare.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+        if (!y.multiply(y).mod(p).equals(ySquare)) {
+            throw new InvalidKeySpecException("Point is not on the curve");
+        }
+        if (y.testBit(0) != yIsOdd) {
+            y = p.subtract(y);
+        }
+        return new ECPoint(x, y);
+    }
+
+    private static boolean isSecp256r1(ECParameterSpec params) {
+        return SECP256R1.getCurve().equals(params.getCurve()) && SECP256R1.getGenerator().equals(params.getGenerator())
+                && SECP256R1.getOrder().equals(params.getOrder());
+    }
+
+    private static BigInteger readUnsigned(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * @return the number without the sign byte that BigInteger adds if the highest bit is set.
+     * */
+    private static byte[] toUnsignedBytes(BigInteger number) {
+        byte[] bytes = number.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number as unsigned bytes with leading zeros, so that the array has the given length.
+     * */
+    private static byte[] toUnsignedBytes(BigInteger number, int length) {
+        byte[] bytes = toUnsignedBytes(number);
+        byte[] padded = new byte[length];
+        System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+        return padded;
+    }
+
+}
@@ -0,0 +1,168 @@
+package de.lmu.mcm.security;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import de.lmu.mcm.helper.ByteConverter;
+import de.lmu.mcm.helper.LogHelper;
+
+/**
+ * A session resumption ticket that B issued to A after a handshake, together with the resumption secret that only A
+ * and B know. The ticket itself is the resumption secret, the ids of A and B and the issue time, encrypted with a key
+ * that never leaves B's device. So B does not have to store anything and A can not read or modify the ticket.
+ *
+ * <pre>
+ * secret     = HMAC(sessionKey, "resumption")
+ * ticket     = AES/GCM(ticketKeyB, idA, idB, issueTime, secret)
+ * newSession = HMAC(secret, "session key", nonceA, nonceB)
+ * </pre>
+ *
+ * @author Thomas Bornschlegel
+ *
+ */
+public class ResumptionTicket {
+
+    private static final String TAG = "Resumption Ticket ";
+    // Tickets are not accepted any more when they are older than this:
+    public static long TICKET_LIFETIME_IN_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final String TICKET_KEY_PURPOSE = "resumption.ticket";
+
+    private final byte[] ticket;
+    private final byte[] resumptionSecret;
+    private final long issueTime;
+
+    public ResumptionTicket(byte[] ticket, byte[] resumptionSecret, long issueTime) {
+        this.ticket = ticket;
+        this.resumptionSecret = resumptionSecret;
+        this.issueTime = issueTime;
+    }
+
+    /**
+     * @return the encrypted ticket that is sent to the issuer
+     * */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    public long getIssueTime() {
+        return issueTime;
+    }
+
+    /**
+     * @return true if the ticket is older than {@link #TICKET_LIFETIME_IN_MS}
+     * */
+    public boolean isExpired() {
+        return System.currentTimeMillis() - issueTime > TICKET_LIFETIME_IN_MS;
+    }
+
+    /**
+     * @return the resumption secret that belongs to the given session key
+     * */
+    public static byte[] deriveResumptionSecret(Key sessionKey) throws NoSuchAlgorithmException, InvalidKeyException {
+        return mac(sessionKey.getEncoded(), "resumption");
+    }
+
+    /**
+     * Called by B to issue a ticket for A.
+     *
+     * @return the ticket or null if the own private key is not available
+     * */
+    public static ResumptionTicket issue(Context context, UUID idA, UUID idB, byte[] resumptionSecret, long issueTime)
+            throws Exception {
+        SecretKey ticketKey = KeyHolder.getInstance().deriveLocalKey(context, TICKET_KEY_PURPOSE);
+        if (ticketKey == null) {
+            LogHelper.getInstance().e(TAG, "Can not issue ticket without own private key.");
+            return null;
+        }
+        ByteBuffer plain = ByteBuffer.allocate(16 + 16 + Long.SIZE / 8 + resumptionSecret.length);
+        plain.put(ByteConverter.serializeUUID(idA));
+        plain.put(ByteConverter.serializeUUID(idB));
+        plain.putLong(issueTime);
+        plain.put(resumptionSecret);
+        plain.flip();
+
+        CryptoContext cryptoContext = CryptoContext.getInstance();
+        ByteBuffer encrypted = ByteBuffer.allocate(AesHelper.getAuthenticatedLength(plain.remaining()));
+        int length = cryptoContext.getAesHelper().encryptAuthenticated(plain, encrypted, ticketKey,
+                cryptoContext.getSecureRandom());
+        byte[] ticket = new byte[length];
+        System.arraycopy(encrypted.array(), 0, ticket, 0, length);
+        return new ResumptionTicket(ticket, resumptionSecret, issueTime);
+    }
+
+    /**
+     * Called by B to read a ticket it issued earlier.
+     *
+     * @return the ticket with its resumption secret or null if it was not issued by this device for A and B, was
+     *         modified or expired.
+     * */
+    public static ResumptionTicket open(Context context, byte[] ticket, UUID idA, UUID idB) {
+        try {
+            SecretKey ticketKey = KeyHolder.getInstance().deriveLocalKey(context, TICKET_KEY_PURPOSE);
+            if (ticketKey == null) {
+                return null;
+            }
+            ByteBuffer plain = ByteBuffer.wrap(CryptoContext.getInstance().getAesHelper()
+                    .decryptAuthenticated(ByteBuffer.wrap(ticket), ticketKey));
+            byte[] bytesOfUuid = new byte[16];
+            plain.get(bytesOfUuid);
+            UUID ticketIdA = ByteConverter.deserializeUUID(bytesOfUuid);
+            plain.get(bytesOfUuid);
+            UUID ticketIdB = ByteConverter.deserializeUUID(bytesOfUuid);
+            long issueTime = plain.getLong();
+            byte[] resumptionSecret = new byte[plain.remaining()];
+            plain.get(resumptionSecret);
+            if (!idA.equals(ticketIdA) || !idB.equals(ticketIdB)) {
+                LogHelper.getInstance().e(TAG, "Ticket was issued for other users.");
+                return null;
+            }
+            ResumptionTicket resumptionTicket = new ResumptionTicket(ticket, resumptionSecret, issueTime);
+            if (resumptionTicket.isExpired()) {
+                LogHelper.getInstance().d(TAG, "Ticket expired.");
+                return null;
+            }
+            return resumptionTicket;
+        } catch (Exception e) {
+            LogHelper.getInstance().e(TAG, "Ticket could not be decrypted: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the session key of a resumed session
+     * */
+    public static SecretKey deriveSessionKey(byte[] resumptionSecret, long nonceA, long nonceB)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        ByteBuffer nonces = ByteBuffer.allocate(2 * Long.SIZE / 8);
+        nonces.putLong(nonceA);
+        nonces.putLong(nonceB);
+        return new SecretKeySpec(mac(resumptionSecret, "session key", nonces.array()), "AES");
+    }
+
+    /**
+     * @return the HmacSHA256 of the label and the given parts with the given secret as key
+     * */
+    public static byte[] mac(byte[] secret, String label, byte[]... parts) throws NoSuchAlgorithmException,
+            InvalidKeyException {
+        Mac mac = CryptoContext.getInstance().getHmacSha256();
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(label.getBytes());
+        for (byte[] part : parts) {
+            mac.update(part);
+        }
+        return mac.doFinal();
+    }
+
+}
@@ -3,13 +3,14 @@ package de.lmu.mcm.security;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAKey;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-
-import de.lmu.mcm.helper.ByteConverter;
+import javax.crypto.ShortBufferException;
 
 /**
  * A helper class to encrypt messages with RSA (public/private key).
@@ -20,6 +21,8 @@ public class RsaHelper {
 
     private Cipher cipher;
     public static final String DEFAULT_CYPHER_ALGO = "RSA/ECB/PKCS1Padding";
+    // PKCS1 padding needs 11 bytes of every block, the remaining bytes (modulus length - 11) are used for the data:
+    private static final int PKCS1_PADDING_LENGTH = 11;
 
     // ECB/NoPadding";//
 
@@ -40,9 +43,29 @@ public class RsaHelper {
      * */
     public byte[] encrypt(byte[] bytes, Key key) throws InvalidKeyException, IllegalBlockSizeException,
             BadPaddingException {
+        return encrypt(bytes, 0, bytes.length, key);
+    }
+
+    /**
+     * Encrypts a part of the given array with RSA/ECB/PKCS1Padding
+     * 
+     * @param bytes
+     *            the array that contains the bytes to encrypt
+     * @param offset
+     *            the index of the first byte to encrypt
+     * @param length
+     *            the number of bytes to encrypt
+     * @param key
+     *            the key to use
+     * 
+     * @return the encrypted bytes
+     * 
+     * */
+    public byte[] encrypt(byte[] bytes, int offset, int length, Key key) throws InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException {
         cipher.init(Cipher.ENCRYPT_MODE, key);
 
-        return blockCipher(bytes, Cipher.ENCRYPT_MODE);
+        return blockCipher(bytes, offset, length, key, Cipher.ENCRYPT_MODE);
     }
 
     /**
@@ -60,76 +83,80 @@ public class RsaHelper {
             InvalidKeyException {
         this.cipher.init(Cipher.DECRYPT_MODE, key);
 
-        return blockCipher(encrypted, Cipher.DECRYPT_MODE);
+        return blockCipher(encrypted, 0, encrypted.length, key, Cipher.DECRYPT_MODE);
     }
 
     /**
-     * Encodes/decodes an arbitrary length of bytes. The Bouncy Castle implementation of AES which is used in Android
-     * only supports the encryption/decryption of at most 127 bytes (see question 5 at
-     * http://www.bouncycastle.org/wiki/display/JA1/Frequently+Asked+Questions).
+     * Encodes/decodes an arbitrary length of bytes. The Bouncy Castle implementation of RSA which is used in Android
+     * only supports the encryption/decryption of one block per call (see question 5 at
+     * http://www.bouncycastle.org/wiki/display/JA1/Frequently+Asked+Questions), so the bytes are split into blocks
+     * whose size is derived from the modulus of the key. All blocks are written into one preallocated array.
      * 
      * @param bytes
      *            the bytes to encrypt/decrypt
+     * @param offset
+     *            the index of the first byte to encrypt/decrypt
+     * @param count
+     *            the number of bytes to encrypt/decrypt
+     * @param key
+     *            the key the cipher was initialized with
      * @param mode
      *            either Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
      * 
      * @return the encrypted/decrypted bytes
      * 
      * */
-    private byte[] blockCipher(byte[] bytes, int mode) throws IllegalBlockSizeException, BadPaddingException {
-        // The source of this method is taken from http://coding.westreicher.org/?p=23
-
-        // string initialize 2 buffers.
-        // scrambled will hold intermediate results
-        byte[] scrambled = new byte[0];
-
-        // toReturn will hold the total result
-        byte[] toReturn = new byte[0];
-
-        // TODO This value has to be adjusted if we use smaller key sizes than 1024.
-        // For background info read this article:
-        // http://www.obviex.com/articles/ciphertextsize.aspx
-        // But as we only use 1024 Bit keys this should be fine:
-
-        // if we encrypt we use 117 byte long blocks. Decryption requires 128 byte long blocks (because of RSA)
-        int length = (mode == Cipher.ENCRYPT_MODE) ? 117 : 128;
-
-        // another buffer. this one will hold the bytes that have to be modified in this step
-        byte[] buffer = new byte[(bytes.length > length ? length : bytes.length)];
-        // byte[] buffer = new byte[length];
-
-        for (int i = 0; i < bytes.length; i++) {
-
-            // if we filled our buffer array we have our block ready for de- or encryption
-            if ((i > 0) && (i % length == 0)) {
-                // execute the operation
-                scrambled = cipher.doFinal(buffer);
-                // add the result to our total result.
-                toReturn = ByteConverter.combineMultipleByteArrays(toReturn, scrambled);
-                // here we calculate the length of the next buffer required
-                int newlength = length;
-
-                // if newlength would be longer than remaining bytes in the bytes array we shorten it.
-                if (i + length > bytes.length) {
-                    newlength = bytes.length - i;
-                }
-                // clean the buffer array
-                // buffer = new byte[(bytes.length > length ? length : bytes.length)];
-                buffer = new byte[newlength];
+    private byte[] blockCipher(byte[] bytes, int offset, int count, Key key, int mode)
+            throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException {
+        int modulusLength = getModulusLengthInBytes(key);
+        int plainBlockLength = modulusLength - PKCS1_PADDING_LENGTH;
+        int inputBlockLength = (mode == Cipher.ENCRYPT_MODE) ? plainBlockLength : modulusLength;
+        int outputBlockLength = (mode == Cipher.ENCRYPT_MODE) ? modulusLength : plainBlockLength;
+
+        if (mode == Cipher.DECRYPT_MODE && count % modulusLength != 0) {
+            throw new IllegalBlockSizeException("Encrypted data of " + count
+                    + " bytes is not a multiple of the key size " + modulusLength);
+        }
+        // Even empty input is encrypted as one block:
+        int blocks = Math.max(1, (count + inputBlockLength - 1) / inputBlockLength);
+        // The cipher expects space for a whole modulus behind the last decrypted block, although it writes less:
+        byte[] output = new byte[blocks * outputBlockLength + (modulusLength - outputBlockLength)];
+
+        int outputLength = 0;
+        try {
+            for (int block = 0; block < blocks; block++) {
+                int position = block * inputBlockLength;
+                int length = Math.min(inputBlockLength, count - position);
+                outputLength += cipher.doFinal(bytes, offset + position, length, output, outputLength);
             }
-            // copy byte into our buffer.
-            buffer[i % length] = bytes[i];
+        } catch (ShortBufferException e) {
+            // Can not happen because the output is large enough for the largest possible blocks:
+            throw new IllegalBlockSizeException(e.getMessage());
         }
 
-        // this step is needed if we had a trailing buffer. should only happen when encrypting.
-        // example: we encrypt 110 bytes. 100 bytes per run means we "forgot" the last 10 bytes. they are in the buffer
-        // array
-        scrambled = cipher.doFinal(buffer);
+        if (outputLength == output.length) {
+            return output;
+        }
+        // Decrypted blocks can be shorter than the maximum:
+        return Arrays.copyOf(output, outputLength);
+    }
 
-        // final step before we can return the modified data.
-        toReturn = ByteConverter.combineMultipleByteArrays(toReturn, scrambled);
+    /**
+     * @return the maximum number of bytes that are encrypted in one block with the given RSA key, e.g. 117 bytes for a
+     *         key of 1024 bit
+     * */
+    public static int getPlainBlockLength(Key key) throws InvalidKeyException {
+        return getModulusLengthInBytes(key) - PKCS1_PADDING_LENGTH;
+    }
 
-        return toReturn;
+    /**
+     * @return the number of bytes the modulus of the given RSA key uses. This is the size of an encrypted block.
+     * */
+    private static int getModulusLengthInBytes(Key key) throws InvalidKeyException {
+        if (!(key instanceof RSAKey)) {
+            throw new InvalidKeyException("Not an RSA key: " + key);
+        }
+        return (((RSAKey) key).getModulus().bitLength() + 7) / 8;
     }
 
 }
@@ -2,6 +2,7 @@ package de.lmu.mcm.security.byteproto;
 
 import java.nio.ByteBuffer;
 import java.security.Key;
+import java.util.Arrays;
 import java.util.UUID;
 
 import javax.crypto.spec.SecretKeySpec;
@@ -13,6 +14,8 @@ import de.lmu.mcm.security.KeyHolder;
  * 
  * Encapsulates the fourth message from A to B that contains "B => pubA(privB(symmetricKey, A, B, timestamp))"
  * 
+ * Optionally a session resumption ticket of B follows the key. Older versions ignore it.
+ * 
  * @author Thomas Bornschlegel
  * 
  */
@@ -22,13 +25,23 @@ public class HandshakeMessage4 implements BasicMessage {
     private UUID idB;
     private long timestamp;
     private Key symmetricKey;
+    private byte[] ticket;
 
     public HandshakeMessage4(UUID idA, UUID idB, long timestamp, Key symmetricKey) {
+        this(idA, idB, timestamp, symmetricKey, null);
+    }
+
+    /**
+     * @param ticket
+     *            the ticket A can use to resume the session or null
+     * */
+    public HandshakeMessage4(UUID idA, UUID idB, long timestamp, Key symmetricKey, byte[] ticket) {
         super();
         this.idA = idA;
         this.idB = idB;
         this.timestamp = timestamp;
         this.symmetricKey = symmetricKey;
+        this.ticket = ticket;
     }
 
     public HandshakeMessage4(byte[] rawMessage) {
@@ -50,6 +63,12 @@ public class HandshakeMessage4 implements BasicMessage {
         byte[] bytesOfKey = new byte[keyLength];
         buffer.get(bytesOfKey, 0, keyLength);
         symmetricKey = new SecretKeySpec(bytesOfKey, "AES");
+
+        // Retrieve optional ticket
+        if (buffer.hasRemaining()) {
+            ticket = new byte[buffer.remaining()];
+            buffer.get(ticket);
+        }
     }
 
     @Override
@@ -57,12 +76,16 @@ public class HandshakeMessage4 implements BasicMessage {
         byte[] bytesOfIdA = ByteConverter.serializeUUID(idA);
         byte[] bytesOfIdB = ByteConverter.serializeUUID(idB);
         byte[] bytesOfKey = symmetricKey.getEncoded();
+        int ticketLength = ticket == null ? 0 : ticket.length;
         ByteBuffer buffer = ByteBuffer.allocate(bytesOfIdA.length + bytesOfIdB.length + Long.SIZE / 8
-                + bytesOfKey.length);
+                + bytesOfKey.length + ticketLength);
         buffer.put(bytesOfIdA);
         buffer.put(bytesOfIdB);
         buffer.putLong(timestamp);
         buffer.put(bytesOfKey);
+        if (ticket != null) {
+            buffer.put(ticket);
+        }
         return buffer.array();
     }
 
@@ -82,12 +105,19 @@ public class HandshakeMessage4 implements BasicMessage {
         return symmetricKey;
     }
 
+    /**
+     * @return the session resumption ticket or null if B did not issue one
+     * */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof HandshakeMessage4) {
             HandshakeMessage4 otherMsg = (HandshakeMessage4) o;
             boolean basicMatch = idA.equals(otherMsg.getIdA()) && idB.equals(otherMsg.getIdB())
-                    && timestamp == otherMsg.getTimestamp();
+                    && timestamp == otherMsg.getTimestamp() && Arrays.equals(ticket, otherMsg.getTicket());
             byte[] keyRaw = symmetricKey.getEncoded();
             byte[] otherKeyRaw = otherMsg.getSymmetricKey().getEncoded();
 
@@ -8,7 +8,7 @@ import java.util.Arrays;
 import java.util.UUID;
 
 import de.lmu.mcm.helper.ByteConverter;
-import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.PublicKeyEncoder;
 
 /**
  * 
@@ -26,6 +26,7 @@ public class PublicKeyExchangeMessage implements BasicMessage {
     private byte[] bluetoothDeviceAddress;
 
     private byte[] emptyAddress = new byte[6];
+    private boolean useX509Encoding = true;
 
     /**
      * @param uuidOfKeyOwner
@@ -83,20 +84,18 @@ public class PublicKeyExchangeMessage implements BasicMessage {
             }
         }
 
-        // Retrieve key
-        // TODO key is larger than 128 Bytes because we use X.509 Encoding. Is it possible to send the raw key instead?
-        // int lengthKey = 162;
+        // Retrieve key (in compact encoding or X.509 encoding, see PublicKeyEncoder)
         int lengthLeft = buffer.remaining();
         int lengthKey = lengthLeft;
         byte[] keyInBytes = new byte[lengthKey];
         buffer.get(keyInBytes, 0, lengthKey);
-        asymmetricKey = KeyHolder.getInstance().generatePublicKeyFromBytes(keyInBytes);
+        asymmetricKey = PublicKeyEncoder.decode(keyInBytes);
     }
 
     @Override
     public byte[] getMessageContentAsBytes() {
         byte[] bytesOfUuidOfKeyOwner = ByteConverter.serializeUUID(uuidOfKeyOwner);
-        byte[] bytesOfKey = asymmetricKey.getEncoded();
+        byte[] bytesOfKey = useX509Encoding ? asymmetricKey.getEncoded() : PublicKeyEncoder.encode(asymmetricKey);
         ByteBuffer buffer = ByteBuffer.allocate(bytesOfUuidOfKeyOwner.length + Long.SIZE / 8 + 6 + bytesOfKey.length);
         buffer.put(bytesOfUuidOfKeyOwner);
         buffer.putLong(telephoneNumber);
@@ -105,6 +104,16 @@ public class PublicKeyExchangeMessage implements BasicMessage {
         return buffer.array();
     }
 
+    /**
+     * @param useX509Encoding
+     *            if true (default) the key is sent in X.509 encoding, which every version can read. Pass false to send
+     *            the compact encoding of the {@link PublicKeyEncoder}, but only if the receiver is known to support it.
+     *            Both encodings are accepted when receiving.
+     * */
+    public void setUseX509Encoding(boolean useX509Encoding) {
+        this.useX509Encoding = useX509Encoding;
+    }
+
     public UUID getUuidOfKeyOwner() {
         return uuidOfKeyOwner;
     }
@@ -0,0 +1,83 @@
+package de.lmu.mcm.security.byteproto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import de.lmu.mcm.helper.ByteConverter;
+
+/**
+ * 
+ * Encapsulates the request from A to B to resume a session: "A => idA, nonceA, mac(idA, nonceA), ticket => B". The
+ * ticket was issued by B in an earlier handshake, the mac proves that A knows the resumption secret of the ticket.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class ResumptionRequestMessage implements BasicMessage {
+
+    public static final int MAC_LENGTH = 32;
+
+    private UUID idA;
+    private long nonceA;
+    private byte[] mac;
+    private byte[] ticket;
+
+    public ResumptionRequestMessage(UUID idA, long nonceA, byte[] mac, byte[] ticket) {
+        super();
+        this.idA = idA;
+        this.nonceA = nonceA;
+        this.mac = mac;
+        this.ticket = ticket;
+    }
+
+    public ResumptionRequestMessage(byte[] rawMessage) {
+        ByteBuffer buffer = ByteBuffer.wrap(rawMessage);
+        byte[] bytesOfUuid = new byte[16];
+        buffer.get(bytesOfUuid);
+        idA = ByteConverter.deserializeUUID(bytesOfUuid);
+        nonceA = buffer.getLong();
+        mac = new byte[MAC_LENGTH];
+        buffer.get(mac);
+        // The ticket is opaque for A, it fills the rest of the message:
+        ticket = new byte[buffer.remaining()];
+        buffer.get(ticket);
+    }
+
+    @Override
+    public byte[] getMessageContentAsBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + Long.SIZE / 8 + mac.length + ticket.length);
+        buffer.put(ByteConverter.serializeUUID(idA));
+        buffer.putLong(nonceA);
+        buffer.put(mac);
+        buffer.put(ticket);
+        return buffer.array();
+    }
+
+    public UUID getIdA() {
+        return idA;
+    }
+
+    public long getNonceA() {
+        return nonceA;
+    }
+
+    public byte[] getMac() {
+        return mac;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ResumptionRequestMessage) {
+            ResumptionRequestMessage otherMsg = (ResumptionRequestMessage) o;
+            return idA.equals(otherMsg.getIdA()) && nonceA == otherMsg.getNonceA()
+                    && Arrays.equals(mac, otherMsg.getMac()) && Arrays.equals(ticket, otherMsg.getTicket());
+        }
+        return false;
+    }
+
+}
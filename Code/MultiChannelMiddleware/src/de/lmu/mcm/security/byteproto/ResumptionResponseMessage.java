@@ -0,0 +1,112 @@
+package de.lmu.mcm.security.byteproto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 
+ * Encapsulates the answer of B to a {@link ResumptionRequestMessage}. If B accepted the ticket it contains
+ * "B => nonceA, nonceB, mac(nonceA, nonceB, newTicket), newTicket => A", otherwise only the rejection and nonceA, after
+ * which A starts a full handshake. A finds the request that was answered by nonceA.
+ * 
+ * @author Thomas Bornschlegel
+ * 
+ */
+public class ResumptionResponseMessage implements BasicMessage {
+
+    private boolean accepted;
+    private long nonceA;
+    private long nonceB;
+    private byte[] mac;
+    private byte[] ticket;
+
+    /**
+     * Creates the response to an accepted ticket.
+     * */
+    public ResumptionResponseMessage(long nonceA, long nonceB, byte[] mac, byte[] ticket) {
+        super();
+        this.accepted = true;
+        this.nonceA = nonceA;
+        this.nonceB = nonceB;
+        this.mac = mac;
+        this.ticket = ticket;
+    }
+
+    /**
+     * Creates the response to a ticket that was unknown, expired or not proven.
+     * */
+    public ResumptionResponseMessage(long nonceA) {
+        super();
+        this.accepted = false;
+        this.nonceA = nonceA;
+        this.mac = new byte[0];
+        this.ticket = new byte[0];
+    }
+
+    public ResumptionResponseMessage(byte[] rawMessage) {
+        ByteBuffer buffer = ByteBuffer.wrap(rawMessage);
+        accepted = buffer.get() == 1;
+        nonceA = buffer.getLong();
+        if (accepted) {
+            nonceB = buffer.getLong();
+            mac = new byte[ResumptionRequestMessage.MAC_LENGTH];
+            buffer.get(mac);
+            ticket = new byte[buffer.remaining()];
+            buffer.get(ticket);
+        } else {
+            mac = new byte[0];
+            ticket = new byte[0];
+        }
+    }
+
+    @Override
+    public byte[] getMessageContentAsBytes() {
+        if (!accepted) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + Long.SIZE / 8);
+            buffer.put((byte) 0);
+            buffer.putLong(nonceA);
+            return buffer.array();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 * Long.SIZE / 8 + mac.length + ticket.length);
+        buffer.put((byte) 1);
+        buffer.putLong(nonceA);
+        buffer.putLong(nonceB);
+        buffer.put(mac);
+        buffer.put(ticket);
+        return buffer.array();
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    public long getNonceA() {
+        return nonceA;
+    }
+
+    public long getNonceB() {
+        return nonceB;
+    }
+
+    public byte[] getMac() {
+        return mac;
+    }
+
+    /**
+     * @return the ticket for the next resumption
+     * */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ResumptionResponseMessage) {
+            ResumptionResponseMessage otherMsg = (ResumptionResponseMessage) o;
+            return accepted == otherMsg.isAccepted() && nonceA == otherMsg.getNonceA() && nonceB == otherMsg.getNonceB()
+                    && Arrays.equals(mac, otherMsg.getMac()) && Arrays.equals(ticket, otherMsg.getTicket());
+        }
+        return false;
+    }
+
+}
@@ -1,6 +1,8 @@
 package de.lmu.mcm.test;
 
+import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.Key;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
@@ -18,8 +20,11 @@ import android.bluetooth.BluetoothAdapter;
 import android.test.AndroidTestCase;
 import android.util.Log;
 import de.lmu.mcm.helper.ByteConverter;
+import de.lmu.mcm.helper.InputStreamHelper;
 import de.lmu.mcm.helper.PrefsHelper;
+import de.lmu.mcm.helper.ReceivedFrame;
 import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.PublicKeyEncoder;
 
 public class ByteEncodingTests extends AndroidTestCase {
 
@@ -77,6 +82,27 @@ public class ByteEncodingTests extends AndroidTestCase {
         Log.d(TAG, "Asymmetric key successfully (de)serialized");
     }
 
+    public void testCompactKeyEncoding() throws NoSuchAlgorithmException, InvalidKeySpecException,
+            InvalidAlgorithmParameterException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+
+        PublicKey rsaKey = keyHolder.generateRandomKeyPair().getPublic();
+        byte[] rsaKeyInBytes = PublicKeyEncoder.encode(rsaKey);
+        assertEquals(PublicKeyEncoder.FORMAT_RSA_MODULUS, rsaKeyInBytes[0]);
+        assertEquals(1 + KeyHolder.RSA_KEY_LENGTH / 8, rsaKeyInBytes.length);
+        assertEquals(rsaKey, PublicKeyEncoder.decode(rsaKeyInBytes));
+
+        PublicKey ecKey = keyHolder.generateRandomEcKeyPair().getPublic();
+        byte[] ecKeyInBytes = PublicKeyEncoder.encode(ecKey);
+        assertEquals(PublicKeyEncoder.FORMAT_EC_COMPRESSED_SECP256R1, ecKeyInBytes[0]);
+        assertEquals(34, ecKeyInBytes.length);
+        assertEquals(ecKey, PublicKeyEncoder.decode(ecKeyInBytes));
+
+        // Keys in X.509 encoding are still accepted:
+        assertEquals(rsaKey, PublicKeyEncoder.decode(rsaKey.getEncoded()));
+        assertEquals(ecKey, PublicKeyEncoder.decode(ecKey.getEncoded()));
+    }
+
     public void testArrayCopying() {
         byte[] startBytes = { 1, 2, 3, 4 };
         byte[] result = Arrays.copyOf(startBytes, 10);
@@ -239,4 +265,37 @@ public class ByteEncodingTests extends AndroidTestCase {
         }
 
     }
+
+    public void testReadingOfSplitFrames() {
+        InputStreamHelper.setSpillDirectory(getContext().getCacheDir());
+        int[] contentLengths = { 100, 20000 };
+        for (int contentLength : contentLengths) {
+            byte[] content = new byte[contentLength];
+            new SecureRandom().nextBytes(content);
+            ByteBuffer frame = ByteBuffer.allocate(contentLength + 5);
+            frame.putInt(contentLength);
+            frame.put((byte) 8);
+            frame.put(content);
+
+            // Simulates a socket that returns at most 7 bytes per read:
+            ByteArrayInputStream in = new ByteArrayInputStream(frame.array()) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+            InputStreamHelper helper = new InputStreamHelper("Test ");
+            helper.setSpillThreshold(10000);
+            ReceivedFrame receivedFrame = helper.readNextFrame(in);
+
+            assertNotNull(receivedFrame);
+            assertEquals(contentLength > 10000, receivedFrame.isSpilledToDisk());
+            assertEquals(8, receivedFrame.getMessageType());
+            assertEquals(contentLength, receivedFrame.getContentLength());
+            byte[] readContent = new byte[contentLength];
+            receivedFrame.getContent().get(readContent);
+            assertTrue(Arrays.equals(content, readContent));
+            receivedFrame.release();
+        }
+    }
 }
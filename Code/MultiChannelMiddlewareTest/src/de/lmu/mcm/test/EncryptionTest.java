@@ -1,9 +1,20 @@
 package de.lmu.mcm.test;
 
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPrivateKeySpec;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -14,9 +25,12 @@ import org.json.JSONException;
 
 import android.test.AndroidTestCase;
 import de.lmu.mcm.helper.ByteConverter;
+import de.lmu.mcm.helper.MessageFrame;
 import de.lmu.mcm.security.AesHelper;
 import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.MessageEncryptionHandler;
 import de.lmu.mcm.security.RsaHelper;
+import de.lmu.mcm.security.byteproto.CustomMessage;
 
 public class EncryptionTest extends AndroidTestCase {
 
@@ -46,6 +60,199 @@ public class EncryptionTest extends AndroidTestCase {
 
     }
 
+    public void testRsaWithLargerKeys() throws NoSuchAlgorithmException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException {
+        RsaHelper rsa = new RsaHelper();
+        for (int keyLength : new int[] { 1024, 2048 }) {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(keyLength);
+            KeyPair keys = keyGen.genKeyPair();
+
+            // Lengths around the block sizes of both keys:
+            for (int length : new int[] { 1, 117, 118, 245, 246, 1000 }) {
+                byte[] toEncrypt = getRandomString(length).getBytes();
+                byte[] encrypted = rsa.encrypt(toEncrypt, keys.getPublic());
+                assertEquals(0, encrypted.length % (keyLength / 8));
+                byte[] decrypted = rsa.decrypt(encrypted, keys.getPrivate());
+                assertTrue(Arrays.equals(toEncrypt, decrypted));
+            }
+        }
+    }
+
+    /**
+     * Compares private key operations with and without the CRT parameters (the format in which older versions stored
+     * the private key).
+     * */
+    public void testPrivateKeyCrtBenchmark() throws Exception {
+        KeyPair keys = KeyHolder.getInstance().generateRandomKeyPair();
+        KeyFactory fact = KeyFactory.getInstance("RSA");
+        RSAPrivateKeySpec spec = fact.getKeySpec(keys.getPrivate(), RSAPrivateKeySpec.class);
+        PrivateKey crtKey = keys.getPrivate();
+        PrivateKey nonCrtKey = fact.generatePrivate(new RSAPrivateKeySpec(spec.getModulus(), spec
+                .getPrivateExponent()));
+        assertTrue(crtKey instanceof RSAPrivateCrtKey);
+        assertFalse(nonCrtKey instanceof RSAPrivateCrtKey);
+
+        RsaHelper rsa = new RsaHelper();
+        byte[] toEncrypt = getRandomString(100).getBytes();
+        byte[] encrypted = rsa.encrypt(toEncrypt, keys.getPublic());
+        int operations = 50;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            assertTrue(Arrays.equals(toEncrypt, rsa.decrypt(encrypted, crtKey)));
+        }
+        long crtTime = (System.nanoTime() - start) / operations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            assertTrue(Arrays.equals(toEncrypt, rsa.decrypt(encrypted, nonCrtKey)));
+        }
+        long nonCrtTime = (System.nanoTime() - start) / operations;
+
+        System.out.println("Private key decryption: " + crtTime / 1000 + " us with CRT, " + nonCrtTime / 1000
+                + " us without CRT");
+    }
+
+    public void testSymmetricKeyExpiry() throws NoSuchAlgorithmException {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        keyHolder.makeSureOwnKeyPairIsAvailable(getContext());
+        UUID validUser = UUID.randomUUID();
+        UUID expiredUser = UUID.randomUUID();
+        SecretKey key = keyHolder.generateRandomSymmetricKey();
+        long now = System.currentTimeMillis();
+
+        keyHolder.storeSymmetricKey(getContext(), validUser, key, now);
+        keyHolder.storeSymmetricKey(getContext(), expiredUser, keyHolder.generateRandomSymmetricKey(), now
+                - KeyHolder.SYMMETRIC_KEY_LIFETIME_IN_MS - 1);
+
+        assertEquals(key, keyHolder.getSymmetricKey(getContext(), validUser).getKey());
+        assertNull(keyHolder.getSymmetricKey(getContext(), expiredUser));
+    }
+
+    public void testSymmetricKeysSurviveReload() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        keyHolder.makeSureOwnKeyPairIsAvailable(getContext());
+        UUID user = UUID.randomUUID();
+        SecretKey key = keyHolder.generateRandomSymmetricKey();
+        long timestamp = System.currentTimeMillis();
+        keyHolder.storeSymmetricKey(getContext(), user, key, timestamp);
+
+        // Forget the keys in the memory, so that they are read from the file again:
+        Field keysField = KeyHolder.class.getDeclaredField("symmetricKeys");
+        keysField.setAccessible(true);
+        Field loadedField = KeyHolder.class.getDeclaredField("symmetricKeysLoaded");
+        loadedField.setAccessible(true);
+        Object keys = keysField.get(keyHolder);
+        synchronized (keys) {
+            ((Map<?, ?>) keys).clear();
+            loadedField.setBoolean(keyHolder, false);
+        }
+
+        KeyHolder.SymmetricKeyWrapper reloaded = keyHolder.getSymmetricKey(getContext(), user);
+        assertNotNull(reloaded);
+        assertTrue(Arrays.equals(key.getEncoded(), reloaded.getKey().getEncoded()));
+        assertEquals(timestamp, reloaded.getTimestamp());
+        assertEquals(0, reloaded.getEpoch());
+        // The temporary file was renamed over the stored keys:
+        assertFalse(getContext().getFileStreamPath("symmetric.keys.tmp").exists());
+        assertTrue(getContext().getFileStreamPath("symmetric.keys").exists());
+    }
+
+    public void testRekeyingWithFramesInFlight() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        keyHolder.makeSureOwnKeyPairIsAvailable(getContext());
+        // Both users on this device: frames to B are encrypted with the key of B and decrypted with the key of A.
+        UUID idA = UUID.randomUUID();
+        UUID idB = UUID.randomUUID();
+        SecretKey key = keyHolder.generateRandomSymmetricKey();
+        long now = System.currentTimeMillis();
+        keyHolder.storeSymmetricKey(getContext(), idA, key, now);
+        keyHolder.storeSymmetricKey(getContext(), idB, key, now);
+
+        int rekeyAfterFrames = KeyHolder.REKEY_AFTER_FRAMES;
+        KeyHolder.REKEY_AFTER_FRAMES = 10;
+        try {
+            MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+            encryptionHandler.setKeyEpochsEnabled(idB, true);
+            // Ten frames are always in flight, so the receiver gets frames of the previous epoch after the switch:
+            LinkedList<byte[]> inFlight = new LinkedList<byte[]>();
+            for (int i = 0; i < 100; i++) {
+                inFlight.add(encryptionHandler.prepareMessageForSending(getContext(), idB, new CustomMessage(
+                        new byte[] { (byte) i }), MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED));
+                if (inFlight.size() > 10) {
+                    assertNotNull(encryptionHandler.extractReceivedMessage(getContext(), idA, inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                assertNotNull(encryptionHandler.extractReceivedMessage(getContext(), idA, inFlight.poll()));
+            }
+        } finally {
+            KeyHolder.REKEY_AFTER_FRAMES = rekeyAfterFrames;
+        }
+        assertTrue(keyHolder.getSymmetricKey(getContext(), idB).getEpoch() > 0);
+        assertEquals(keyHolder.getSymmetricKey(getContext(), idB).getEpoch(), keyHolder.getSymmetricKey(getContext(),
+                idA).getEpoch());
+        assertEquals(keyHolder.getSymmetricKey(getContext(), idB).getKey(), keyHolder.getSymmetricKey(getContext(),
+                idA).getKey());
+        assertFalse(key.equals(keyHolder.getSymmetricKey(getContext(), idA).getKey()));
+    }
+
+    public void testRekeyingWithUsersOnDifferentEpochs() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        keyHolder.makeSureOwnKeyPairIsAvailable(getContext());
+        // Both users on this device: the key of B is the key A uses for B and the other way around.
+        UUID idA = UUID.randomUUID();
+        UUID idB = UUID.randomUUID();
+        SecretKey key = keyHolder.generateRandomSymmetricKey();
+        long now = System.currentTimeMillis();
+        keyHolder.storeSymmetricKey(getContext(), idA, key, now);
+        keyHolder.storeSymmetricKey(getContext(), idB, key, now);
+
+        int rekeyAfterFrames = KeyHolder.REKEY_AFTER_FRAMES;
+        long gracePeriod = KeyHolder.REKEY_GRACE_PERIOD_IN_MS;
+        KeyHolder.REKEY_AFTER_FRAMES = 2;
+        KeyHolder.REKEY_GRACE_PERIOD_IN_MS = 0;
+        try {
+            MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+            encryptionHandler.setKeyEpochsEnabled(idA, true);
+            encryptionHandler.setKeyEpochsEnabled(idB, true);
+
+            // A starts epoch 1, but not epoch 2 as long as B did not confirm epoch 1
+            byte[] fromA = null;
+            for (int i = 0; i < 10; i++) {
+                fromA = sendEpochFrame(encryptionHandler, idB);
+            }
+            assertEquals(1, keyHolder.getSymmetricKey(getContext(), idB).getEpoch());
+            assertEquals(0, keyHolder.getSymmetricKey(getContext(), idA).getEpoch());
+
+            // B still sends in epoch 0, A decrypts it although the grace period is over
+            assertNotNull(encryptionHandler.extractReceivedMessage(getContext(), idB, sendEpochFrame(
+                    encryptionHandler, idA)));
+            assertEquals(1, keyHolder.getSymmetricKey(getContext(), idB).getEpoch());
+
+            // B switches with the frame of A and confirms epoch 1 with its next frame
+            assertNotNull(encryptionHandler.extractReceivedMessage(getContext(), idA, fromA));
+            assertEquals(1, keyHolder.getSymmetricKey(getContext(), idA).getEpoch());
+            assertNotNull(encryptionHandler.extractReceivedMessage(getContext(), idB, sendEpochFrame(
+                    encryptionHandler, idA)));
+
+            // Now A may start the next epoch
+            sendEpochFrame(encryptionHandler, idB);
+            assertEquals(2, keyHolder.getSymmetricKey(getContext(), idB).getEpoch());
+        } finally {
+            KeyHolder.REKEY_AFTER_FRAMES = rekeyAfterFrames;
+            KeyHolder.REKEY_GRACE_PERIOD_IN_MS = gracePeriod;
+        }
+    }
+
+    private byte[] sendEpochFrame(MessageEncryptionHandler encryptionHandler, UUID receiver) throws Exception {
+        byte[] frame = encryptionHandler.prepareMessageForSending(getContext(), receiver, new CustomMessage(
+                new byte[] { 1 }), MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED);
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED_EPOCH, frame[4]);
+        return frame;
+    }
+
     public void testAes() throws Exception {
         String plainText = getRandomString(100);
         SecretKey key = KeyHolder.getInstance().generateRandomSymmetricKey();
@@ -70,6 +277,49 @@ public class EncryptionTest extends AndroidTestCase {
         assertEquals(decryptedString, plainText);
     }
 
+    public void testAesDecryptionFromBuffer() throws Exception {
+        SecretKey key = KeyHolder.getInstance().generateRandomSymmetricKey();
+        AesHelper aes = new AesHelper();
+        Random random = new Random();
+        // Covers contents that end within, at and behind a block border:
+        for (int length = 20; length < 80; length++) {
+            byte[] plain = new byte[length];
+            random.nextBytes(plain);
+            byte[] encrypted = aes.encrypt(plain, key);
+            // The buffer may start anywhere in the frame:
+            ByteBuffer input = ByteBuffer.allocate(encrypted.length + 7);
+            input.position(7);
+            input.put(encrypted);
+            input.position(7);
+
+            byte[] trailer = new byte[20];
+            byte[] decrypted = aes.decrypt(input, key, trailer);
+            assertFalse(input.hasRemaining());
+            assertTrue(Arrays.equals(Arrays.copyOf(plain, length - trailer.length), decrypted));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(plain, length - trailer.length, length), trailer));
+        }
+
+        byte[] encrypted = aes.encrypt(new byte[10], key);
+        try {
+            aes.decrypt(ByteBuffer.wrap(encrypted), key, new byte[20]);
+            fail("Decrypted bytes are shorter than the trailer");
+        } catch (BadPaddingException e) {
+        }
+
+        // Frames of type 7 are decrypted straight from the received frame:
+        UUID peer = UUID.randomUUID();
+        KeyHolder.getInstance().storeSymmetricKey(getContext(), peer, key, System.currentTimeMillis());
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        byte[] content = new byte[100];
+        random.nextBytes(content);
+        byte[] frame = encryptionHandler.prepareMessageForSending(getContext(), peer, new CustomMessage(content),
+                (byte) 7);
+        assertTrue(Arrays.equals(content, encryptionHandler.extractReceivedMessage(getContext(), peer, frame)
+                .getMessageContentAsBytes()));
+        frame[MessageFrame.HEADER_LENGTH] ^= 1;
+        assertNull(encryptionHandler.extractReceivedMessage(getContext(), peer, frame));
+    }
+
     public String getRandomString(int length) {
 
         char[] alphabet = { 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r',
@@ -0,0 +1,354 @@
+package de.lmu.mcm.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.test.AndroidTestCase;
+import de.lmu.mcm.network.DaemonListener;
+import de.lmu.mcm.network.Enums.HandshakeRole;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.HandshakeDriver;
+import de.lmu.mcm.network.HandshakeDriver.HandshakeListener;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.network.NetworkDaemon;
+import de.lmu.mcm.network.ProtocolMessage;
+import de.lmu.mcm.security.HandshakeStateHolder;
+import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+
+public class HandshakeDriverTest extends AndroidTestCase {
+
+    private static final long TIMEOUT = 1000;
+    private static final InterfaceIdentifier INTERFACE = InterfaceIdentifier.BLUETOOTH;
+
+    private UUID idA;
+    private UUID idB;
+    private ManualTimer timer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        KeyHolder.getInstance().makeSureOwnKeyPairIsAvailable(getContext());
+        idA = UUID.randomUUID();
+        idB = UUID.randomUUID();
+        timer = new ManualTimer();
+    }
+
+    public void testLostMessageIsRetransmitted() throws Exception {
+        Party a = new Party(HandshakeRole.A);
+        Party b = new Party(HandshakeRole.B);
+        a.driver.start();
+        b.driver.start();
+        assertEquals(1, a.daemon.sent.size());
+
+        // The first message is lost, A sends it again after the timeout:
+        timer.advance(TIMEOUT - 1);
+        assertEquals(1, a.daemon.sent.size());
+        timer.advance(1);
+        assertEquals(2, a.daemon.sent.size());
+
+        deliver(a, b);
+        deliver(b, a);
+        deliver(a, b);
+        deliver(b, a);
+        assertTrue(a.driver.isSuccessful());
+        assertTrue(b.driver.isSuccessful());
+        assertEquals(Boolean.TRUE, a.listener.result);
+        assertEquals(Boolean.TRUE, b.listener.result);
+
+        // A is done and gave the daemon back, B waits for the quiet period:
+        assertSame(a.listener, a.daemon.getListener());
+        assertSame(b.driver, b.daemon.getListener());
+        timer.advance(TIMEOUT * 10);
+        // The first message twice and the third message, no retransmissions after the handshake completed:
+        assertEquals(3, a.daemon.sent.size());
+        assertSame(b.listener, b.daemon.getListener());
+        assertEquals(0, timer.getPendingTasks());
+        assertFalse(a.daemon.calledWhileLocked || b.daemon.calledWhileLocked);
+        assertFalse(a.listener.calledWhileLocked || b.listener.calledWhileLocked);
+    }
+
+    public void testRetransmissionsStopAfterLimit() throws Exception {
+        Party a = new Party(HandshakeRole.A);
+        a.driver.setRetransmissionPolicy(TIMEOUT, 2);
+        a.driver.start();
+        for (int i = 0; i < 5; i++) {
+            timer.advance(TIMEOUT);
+        }
+        // The first message and two retransmissions:
+        assertEquals(3, a.daemon.sent.size());
+        assertTrue(a.driver.isFinished());
+        assertFalse(a.driver.isSuccessful());
+        assertEquals(Boolean.FALSE, a.listener.result);
+        assertSame(a.listener, a.daemon.getListener());
+        assertEquals(0, timer.getPendingTasks());
+        assertFalse(a.daemon.calledWhileLocked || a.listener.calledWhileLocked);
+    }
+
+    public void testQuietTimeoutEndsHandshake() throws Exception {
+        Party a = new Party(HandshakeRole.A);
+        Party b = new Party(HandshakeRole.B);
+        a.driver.start();
+        b.driver.start();
+        deliver(a, b);
+        assertEquals(1, b.daemon.sent.size());
+
+        // A disappears after the first message, B gives up after the quiet period:
+        timer.advance(TIMEOUT * 3 - 1);
+        assertFalse(b.driver.isFinished());
+        timer.advance(1);
+        assertTrue(b.driver.isFinished());
+        assertFalse(b.driver.isSuccessful());
+        assertEquals(Boolean.FALSE, b.listener.result);
+        assertSame(b.listener, b.daemon.getListener());
+        a.driver.stop();
+        assertEquals(0, timer.getPendingTasks());
+    }
+
+    public void testDuplicateMessagesAreIgnored() throws Exception {
+        Party a = new Party(HandshakeRole.A);
+        Party b = new Party(HandshakeRole.B);
+        a.driver.start();
+        b.driver.start();
+        deliver(a, b);
+        BasicMessage message2 = b.daemon.sent.get(0);
+        a.driver.onDataReceived(INTERFACE, message2);
+        assertEquals(2, a.daemon.sent.size());
+        int progressOfA = a.listener.progress.size();
+
+        // A second copy of the message is passed on, but not answered:
+        a.driver.onDataReceived(INTERFACE, message2);
+        assertEquals(2, a.daemon.sent.size());
+        assertEquals(progressOfA, a.listener.progress.size());
+        assertEquals(2, a.listener.received.size());
+
+        // The handshake still completes:
+        deliver(a, b);
+        deliver(b, a);
+        assertTrue(a.driver.isSuccessful());
+        assertTrue(b.driver.isSuccessful());
+    }
+
+    /**
+     * Passes the last message the sender sent to the receiver.
+     * */
+    private void deliver(Party sender, Party receiver) {
+        List<BasicMessage> sent = sender.daemon.sent;
+        receiver.driver.onDataReceived(INTERFACE, sent.get(sent.size() - 1));
+    }
+
+    /**
+     * One side of the handshake with its own daemon.
+     * */
+    private class Party {
+
+        private final FakeDaemon daemon = new FakeDaemon();
+        private final RecordingListener listener = new RecordingListener();
+        private final HandshakeDriver driver;
+
+        public Party(HandshakeRole role) throws Exception {
+            HandshakeStateHolder stateHolder = new HandshakeStateHolder(idA, idB, role);
+            driver = new HandshakeDriver(daemon, stateHolder, null, listener, listener, timer);
+            driver.setInterface(INTERFACE);
+            driver.setRetransmissionPolicy(TIMEOUT, HandshakeDriver.DEFAULT_MAX_RETRANSMISSIONS);
+            driver.setQuietPeriod(TIMEOUT * 3);
+            daemon.driver = driver;
+            listener.driver = driver;
+            daemon.setListener(listener);
+        }
+    }
+
+    /**
+     * Remembers the sent messages instead of sending them.
+     * */
+    private static class FakeDaemon extends NetworkDaemon {
+
+        private final List<BasicMessage> sent = new ArrayList<BasicMessage>();
+        private HandshakeDriver driver;
+        private boolean calledWhileLocked = false;
+
+        public FakeDaemon() {
+            super(null);
+        }
+
+        @Override
+        public void sendData(BasicMessage message, byte messageType, InterfaceIdentifier interfaceName,
+                Activity activity) {
+            calledWhileLocked |= Thread.holdsLock(driver);
+            sent.add(message);
+        }
+    }
+
+    /**
+     * Receives the callbacks of the daemon and the driver.
+     * */
+    private static class RecordingListener implements DaemonListener, HandshakeListener {
+
+        private final List<Integer> progress = new ArrayList<Integer>();
+        private final List<BasicMessage> received = new ArrayList<BasicMessage>();
+        private HandshakeDriver driver;
+        private Boolean result;
+        private boolean calledWhileLocked = false;
+
+        @Override
+        public void onHandshakeProgress(int step) {
+            calledWhileLocked |= Thread.holdsLock(driver);
+            progress.add(step);
+        }
+
+        @Override
+        public void onHandshakeFinished(boolean success) {
+            calledWhileLocked |= Thread.holdsLock(driver);
+            assertNull("The result is reported once", result);
+            result = success;
+        }
+
+        @Override
+        public void onDataReceived(InterfaceIdentifier interfaceName, BasicMessage message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onDataSent(InterfaceIdentifier interfaceName, ProtocolMessage message) {
+            // Nothing to do here
+        }
+
+        @Override
+        public void onInterfaceConnectionClosed(InterfaceIdentifier interfaceName) {
+            // Nothing to do here
+        }
+
+        @Override
+        public void onInterfaceDestroyed(InterfaceIdentifier interfaceName) {
+            // Nothing to do here
+        }
+
+        @Override
+        public void onConnectionSetupFailed(InterfaceIdentifier interfaceName, MultiNetworkAddress address) {
+            // Nothing to do here
+        }
+
+        @Override
+        public void onConnectionIsSetUp(InterfaceIdentifier interfaceName, MultiNetworkAddress address) {
+            // Nothing to do here
+        }
+    }
+
+    /**
+     * Runs the scheduled tasks on the calling thread when the time is advanced.
+     * */
+    private static class ManualTimer extends ScheduledThreadPoolExecutor {
+
+        private final List<ManualTask> tasks = new ArrayList<ManualTask>();
+        private long now = 0;
+
+        public ManualTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ManualTask task = new ManualTask(command, now + unit.toMillis(delay));
+            tasks.add(task);
+            return task;
+        }
+
+        /**
+         * Runs all tasks that are due until the given time passed, including the ones they schedule.
+         * */
+        public void advance(long timeInMs) {
+            long end = now + timeInMs;
+            ManualTask next;
+            while ((next = getNextTask(end)) != null) {
+                tasks.remove(next);
+                now = next.dueTime;
+                next.command.run();
+            }
+            now = end;
+        }
+
+        /**
+         * @return the number of tasks that are neither canceled nor done
+         * */
+        public int getPendingTasks() {
+            removeCanceledTasks();
+            return tasks.size();
+        }
+
+        private ManualTask getNextTask(long end) {
+            removeCanceledTasks();
+            ManualTask next = null;
+            for (ManualTask task : tasks) {
+                if (task.dueTime <= end && (next == null || task.dueTime < next.dueTime)) {
+                    next = task;
+                }
+            }
+            return next;
+        }
+
+        private void removeCanceledTasks() {
+            Iterator<ManualTask> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().canceled) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private class ManualTask implements ScheduledFuture<Object> {
+
+            private final Runnable command;
+            private final long dueTime;
+            private boolean canceled = false;
+
+            public ManualTask(Runnable command, long dueTime) {
+                this.command = command;
+                this.dueTime = dueTime;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(dueTime - now, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                canceled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return canceled;
+            }
+
+            @Override
+            public boolean isDone() {
+                return canceled || !tasks.contains(this);
+            }
+
+            @Override
+            public Object get() {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) {
+                return null;
+            }
+        }
+    }
+}
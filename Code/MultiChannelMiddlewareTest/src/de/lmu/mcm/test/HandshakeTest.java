@@ -10,7 +10,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -18,18 +26,34 @@ import javax.crypto.NoSuchPaddingException;
 
 import android.content.Context;
 import android.test.AndroidTestCase;
+import de.lmu.mcm.helper.MessageFrame;
 import de.lmu.mcm.helper.PrefsHelper;
+import de.lmu.mcm.network.Enums.HandshakeNextAction;
+import de.lmu.mcm.network.Enums.HandshakeRole;
+import de.lmu.mcm.network.Enums.KeySuite;
+import de.lmu.mcm.network.Enums.SecurityLevel;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.security.HandshakeRegistry;
+import de.lmu.mcm.security.HandshakeRegistry.HandshakeCallback;
+import de.lmu.mcm.security.HandshakeStateHolder;
 import de.lmu.mcm.security.MessageEncryptionHandler;
 import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.ResumptionTicket;
 import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.CustomMessage;
 import de.lmu.mcm.security.byteproto.HandshakeMessage1;
 import de.lmu.mcm.security.byteproto.HandshakeMessage2;
 import de.lmu.mcm.security.byteproto.HandshakeMessage3;
 import de.lmu.mcm.security.byteproto.HandshakeMessage4;
 import de.lmu.mcm.security.byteproto.PublicKeyExchangeMessage;
+import de.lmu.mcm.security.byteproto.ResumptionRequestMessage;
+import de.lmu.mcm.security.byteproto.ResumptionResponseMessage;
 
 public class HandshakeTest extends AndroidTestCase {
 
+    // Length of the SHA-1 hash that MessageEncryptionHandler appends before encrypting:
+    private static final int HASH_LENGTH = 20;
+
     public void setUp() throws Exception {
 
     }
@@ -56,6 +80,393 @@ public class HandshakeTest extends AndroidTestCase {
         assertTrue(message.equals(receivedMessage));
     }
 
+    public void testSendingOfPooledFrame() throws InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        UUID ownId = setupEncryptionParameters();
+        KeyHolder.getInstance().storeSymmetricKey(ownId, KeyHolder.getInstance().generateRandomSymmetricKey(),
+                System.currentTimeMillis());
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        byte[] content = "Some content that is sent with a pooled frame".getBytes();
+
+        for (byte messageType = 5; messageType <= 8; messageType++) {
+            MessageFrame frame = encryptionHandler.prepareFrameForSending(getContext(), ownId,
+                    new CustomMessage(content), messageType);
+            // Signatures are disabled by default, so every frame keeps the requested type:
+            assertEquals(messageType, frame.getMessageType());
+            byte[] toSend = frame.toByteArray();
+            assertEquals(frame.getLength(), toSend.length);
+            frame.release();
+            assertTrue(frame.isReleased());
+
+            BasicMessage receivedMessage = encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend);
+            assertTrue(Arrays.equals(content, receivedMessage.getMessageContentAsBytes()));
+        }
+    }
+
+    public void testHybridEncryptionOfLargeMessages() throws InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        UUID ownId = setupEncryptionParameters();
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        byte[] content = new byte[10 * 1024];
+        new SecureRandom().nextBytes(content);
+
+        // Peers that do not know the hybrid type get the old format by default:
+        MessageFrame frame = encryptionHandler.prepareFrameForSending(getContext(), ownId, new CustomMessage(content),
+                (byte) 5);
+        assertEquals(5, frame.getMessageType());
+        frame.release();
+
+        // Large messages of type 6 are signed instead of encrypted with a key that everybody can unwrap:
+        encryptionHandler.setHybridEncryptionEnabled(ownId, true);
+        byte[][] sentAndExpectedTypes = { { 5, MessageEncryptionHandler.MESSAGE_TYPE_HYBRID_PUBLIC_KEY_OF_RECEIVER },
+                { 6, MessageEncryptionHandler.MESSAGE_TYPE_SIGNED } };
+        for (byte[] types : sentAndExpectedTypes) {
+            frame = encryptionHandler.prepareFrameForSending(getContext(), ownId, new CustomMessage(content),
+                    types[0]);
+            assertEquals(types[1], frame.getMessageType());
+            byte[] toSend = frame.toByteArray();
+            frame.release();
+
+            BasicMessage receivedMessage = encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend);
+            assertTrue(Arrays.equals(content, receivedMessage.getMessageContentAsBytes()));
+        }
+
+        // Small messages still fit into one RSA block:
+        frame = encryptionHandler.prepareFrameForSending(getContext(), ownId, new CustomMessage(new byte[10]),
+                (byte) 5);
+        assertEquals(5, frame.getMessageType());
+        frame.release();
+
+        // Frames whose key was wrapped with the private key of the sender are rejected:
+        byte[] forged = encryptionHandler.prepareMessageForSending(getContext(), ownId, new CustomMessage(content),
+                (byte) 5);
+        forged[4] = 10;
+        assertNull(encryptionHandler.extractReceivedMessage(getContext(), ownId, forged));
+    }
+
+    public void testAuthenticatedSymmetricEncryption() throws InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        UUID ownId = setupEncryptionParameters();
+        KeyHolder.getInstance().storeSymmetricKey(ownId, KeyHolder.getInstance().generateRandomSymmetricKey(),
+                System.currentTimeMillis());
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        byte[] content = "Some content that is encrypted and authenticated in one pass".getBytes();
+        byte messageType = MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED;
+        // Without key epochs (default) the frame keeps the requested type:
+
+        byte[] toSend = encryptionHandler.prepareMessageForSending(getContext(), ownId, new CustomMessage(content),
+                messageType);
+        assertEquals(messageType, toSend[4]);
+        BasicMessage receivedMessage = encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend);
+        assertTrue(Arrays.equals(content, receivedMessage.getMessageContentAsBytes()));
+
+        // A modified message has to be rejected:
+        toSend[toSend.length - 1] ^= 1;
+        assertNull(encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend));
+    }
+
+    public void testSignedMessages() throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        UUID ownId = setupEncryptionParameters();
+        KeyHolder.getInstance().storeSymmetricKey(ownId, KeyHolder.getInstance().generateRandomSymmetricKey(),
+                System.currentTimeMillis());
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        byte[] content = new byte[10 * 1024];
+        new SecureRandom().nextBytes(content);
+
+        // Receivers that did not enable signatures get the old format:
+        byte[] toSend = encryptionHandler.prepareMessageForSending(getContext(), ownId, new CustomMessage(content),
+                (byte) 6);
+        assertEquals(6, toSend[4]);
+
+        encryptionHandler.setSignaturesEnabled(ownId, true);
+        toSend = encryptionHandler.prepareMessageForSending(getContext(), ownId, new CustomMessage(content),
+                (byte) 6);
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SIGNED, toSend[4]);
+        BasicMessage receivedMessage = encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend);
+        assertTrue(Arrays.equals(content, receivedMessage.getMessageContentAsBytes()));
+
+        // Signed and encrypted with the symmetric key:
+        MessageFrame frame = encryptionHandler.prepareSignedFrameForSending(getContext(), ownId, new CustomMessage(
+                content), MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED);
+        toSend = frame.toByteArray();
+        frame.release();
+        receivedMessage = encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend);
+        assertTrue(Arrays.equals(content, receivedMessage.getMessageContentAsBytes()));
+
+        // A modified message has to be rejected:
+        toSend[toSend.length - 1] ^= 1;
+        assertNull(encryptionHandler.extractReceivedMessage(getContext(), ownId, toSend));
+    }
+
+    public void testEcKeySuite() throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        setupEncryptionParameters();
+        UUID peerId = UUID.randomUUID();
+        KeyPair ecKeyPair = KeyHolder.getInstance().getOwnKeyPair(getContext(), KeySuite.EC);
+        assertTrue(ecKeyPair.getPublic().getEncoded().length < 100);
+        KeyHolder.getInstance().storePublicKeyOfOtherUser(getContext(), peerId, ecKeyPair.getPublic());
+        assertEquals(KeySuite.EC, KeyHolder.getInstance().getKeySuiteOfOtherUser(getContext(), peerId));
+        // Until we know which of our keys the peer received it gets the default suite:
+        assertEquals(KeyHolder.getInstance().getDefaultKeySuite(), KeyHolder.getInstance().getOwnKeySuiteForUser(
+                getContext(), peerId));
+        // We shared our EC key and the peer owns our EC key pair, so that we can decrypt the messages we send to it:
+        KeyHolder.getInstance().storeOwnKeySuiteForUser(getContext(), peerId, KeySuite.EC);
+        assertEquals(KeySuite.EC, KeyHolder.getInstance().getOwnKeySuiteForUser(getContext(), peerId));
+
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        HandshakeMessage1 message1 = new HandshakeMessage1(System.currentTimeMillis(), peerId);
+        byte[] toSend = encryptionHandler.prepareMessageForSending(getContext(), peerId, message1, (byte) 1);
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_EC_PUBLIC_KEY_OF_RECEIVER, toSend[4]);
+        assertTrue(message1.equals(encryptionHandler.extractReceivedMessage(getContext(), peerId, toSend)));
+
+        HandshakeMessage4 message4 = new HandshakeMessage4(peerId, peerId, System.currentTimeMillis(), KeyHolder
+                .getInstance().generateRandomSymmetricKey());
+        toSend = encryptionHandler.prepareMessageForSending(getContext(), peerId, message4, (byte) 4);
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SIGNED_HANDSHAKE_MESSAGE_4, toSend[4]);
+        assertTrue(message4.equals(encryptionHandler.extractReceivedMessage(getContext(), peerId, toSend)));
+
+        // A modified message has to be rejected:
+        toSend[toSend.length - 1] ^= 1;
+        assertNull(encryptionHandler.extractReceivedMessage(getContext(), peerId, toSend));
+    }
+
+    public void testSelectMessageType() throws Exception {
+        setupEncryptionParameters();
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        UUID peerId = UUID.randomUUID();
+
+        // Without any key of the peer only plain and signed messages are possible:
+        assertEquals(8, encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.NONE));
+        assertEquals(6, encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.AUTHENTICATED));
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE,
+                encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.CONFIDENTIAL));
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_UNAVAILABLE,
+                encryptionHandler.selectMessageType(getContext(), null, SecurityLevel.AUTHENTICATED));
+
+        keyHolder.storePublicKeyOfOtherUser(getContext(), peerId, keyHolder.getSavedKeyPair(getContext()).getPublic());
+        assertEquals(5, encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.CONFIDENTIAL));
+
+        // A symmetric session replaces all RSA operations:
+        keyHolder.storeSymmetricKey(peerId, keyHolder.generateRandomSymmetricKey(), System.currentTimeMillis());
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED,
+                encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.AUTHENTICATED));
+        assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED,
+                encryptionHandler.selectMessageType(getContext(), peerId, SecurityLevel.CONFIDENTIAL));
+    }
+
+    public void testSessionResumption() throws Exception {
+        setupEncryptionParameters();
+        // A and B both own our key pair, so that this device can play both roles:
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        UUID idA = UUID.randomUUID();
+        UUID idB = UUID.randomUUID();
+        PublicKey publicKey = keyHolder.getSavedKeyPair(getContext()).getPublic();
+        keyHolder.storePublicKeyOfOtherUser(getContext(), idA, publicKey);
+        keyHolder.storePublicKeyOfOtherUser(getContext(), idB, publicKey);
+
+        // Without resumption the full handshake issues no ticket:
+        assertEquals(4, runHandshake(idA, idB, false, false));
+        assertNull(keyHolder.getResumptionTicket(getContext(), idB));
+
+        // With resumption the full handshake issues a ticket:
+        assertEquals(4, runHandshake(idA, idB, true, false));
+        assertNotNull(keyHolder.getResumptionTicket(getContext(), idB));
+        Key oldKey = keyHolder.getSymmetricKey(getContext(), idB).getKey();
+
+        // The next handshake only needs one round trip and derives a new key:
+        assertEquals(2, runHandshake(idA, idB, true, true));
+        Key newKey = keyHolder.getSymmetricKey(getContext(), idB).getKey();
+        assertFalse(oldKey.equals(newKey));
+        assertTrue(newKey.equals(keyHolder.getSymmetricKey(getContext(), idA).getKey()));
+
+        // A ticket B can not read is rejected and the full handshake follows:
+        keyHolder.storeResumptionTicket(getContext(), idB, new ResumptionTicket(new byte[100], new byte[32],
+                System.currentTimeMillis()));
+        assertEquals(6, runHandshake(idA, idB, true, false));
+        assertTrue(keyHolder.getSymmetricKey(getContext(), idB).getKey()
+                .equals(keyHolder.getSymmetricKey(getContext(), idA).getKey()));
+
+        // A replayed request is rejected and does not replace the session key of B:
+        HandshakeStateHolder a = new HandshakeStateHolder(idA, idB, HandshakeRole.A);
+        a.setSessionResumptionEnabled(true);
+        ResumptionRequestMessage request = (ResumptionRequestMessage) a.getNextMessageToSend(getContext());
+        HandshakeStateHolder b = new HandshakeStateHolder(idA, idB, HandshakeRole.B);
+        assertTrue(b.processReceivedMessage(getContext(), request));
+        assertTrue(((ResumptionResponseMessage) b.getNextMessageToSend(getContext())).isAccepted());
+        Key keyOfB = keyHolder.getSymmetricKey(getContext(), idA).getKey();
+        HandshakeStateHolder replayedB = new HandshakeStateHolder(idA, idB, HandshakeRole.B);
+        assertTrue(replayedB.processReceivedMessage(getContext(), request));
+        assertFalse(((ResumptionResponseMessage) replayedB.getNextMessageToSend(getContext())).isAccepted());
+        assertEquals(keyOfB, keyHolder.getSymmetricKey(getContext(), idA).getKey());
+
+        // A keeps its ticket when it gets a rejection, which anybody could have sent:
+        ResumptionTicket ticket = keyHolder.getResumptionTicket(getContext(), idB);
+        a = new HandshakeStateHolder(idA, idB, HandshakeRole.A);
+        a.setSessionResumptionEnabled(true);
+        request = (ResumptionRequestMessage) a.getNextMessageToSend(getContext());
+        assertTrue(a.processReceivedMessage(getContext(), new ResumptionResponseMessage(request.getNonceA())));
+        assertEquals(HandshakeNextAction.SEND, a.getNextAction());
+        assertSame(ticket, keyHolder.getResumptionTicket(getContext(), idB));
+
+        // Resumption is only tried if it was enabled:
+        a = new HandshakeStateHolder(idA, idB, HandshakeRole.A);
+        assertTrue(a.getNextMessageToSend(getContext()) instanceof HandshakeMessage1);
+    }
+
+    public void testHandshakeRegistry() throws Exception {
+        setupEncryptionParameters();
+        final KeyHolder keyHolder = KeyHolder.getInstance();
+        final int peers = 5;
+        final CountDownLatch finished = new CountDownLatch(2 * peers);
+        final AtomicInteger successful = new AtomicInteger();
+        final Map<UUID, HandshakeRegistry> registries = new ConcurrentHashMap<UUID, HandshakeRegistry>();
+
+        // Every registry delivers its frames directly to the registry of the receiver:
+        UUID hubId = UUID.randomUUID();
+        List<UUID> peerIds = new ArrayList<UUID>();
+        for (int i = 0; i <= peers; i++) {
+            UUID id = i == 0 ? hubId : UUID.randomUUID();
+            // Every user has its own key pair:
+            KeyPair keyPair = keyHolder.generateRandomKeyPair();
+            keyHolder.storePublicKeyOfOtherUser(getContext(), id, keyPair.getPublic());
+            final MultiNetworkAddress ownAddress = new MultiNetworkAddress();
+            ownAddress.setSmsAddress(id.toString());
+            HandshakeRegistry registry = new HandshakeRegistry(getContext(), id, new HandshakeCallback() {
+
+                @Override
+                public void sendFrame(UUID remoteId, MultiNetworkAddress address, MessageFrame frame) {
+                    byte[] bytes = frame.toByteArray();
+                    frame.release();
+                    registries.get(remoteId).onFrameReceived(ownAddress, bytes);
+                }
+
+                @Override
+                public void onHandshakeFinished(UUID remoteId, boolean success) {
+                    if (success) {
+                        successful.incrementAndGet();
+                    }
+                    finished.countDown();
+                }
+            }, HandshakeRegistry.DEFAULT_WORKER_THREADS);
+            registry.setOwnKeyPair(keyPair);
+            registries.put(id, registry);
+            if (i > 0) {
+                peerIds.add(id);
+            }
+        }
+
+        // Only the party with the greater UUID sends the first message, the other one waits for it:
+        for (UUID peerId : peerIds) {
+            registries.get(hubId).startHandshake(peerId);
+            registries.get(peerId).startHandshake(hubId);
+        }
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        assertEquals(2 * peers, successful.get());
+        assertEquals(peers, registries.get(hubId).size());
+        for (UUID peerId : peerIds) {
+            assertTrue(registries.get(hubId).getHandshake(peerId).isHandshakeComplete());
+        }
+        for (HandshakeRegistry registry : registries.values()) {
+            registry.shutdown();
+        }
+    }
+
+    public void testHandshakeRegistryLimitsUnknownInitiators() throws Exception {
+        UUID ownId = setupEncryptionParameters();
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        final AtomicInteger sentFrames = new AtomicInteger();
+        HandshakeRegistry registry = new HandshakeRegistry(getContext(), ownId, new HandshakeCallback() {
+
+            @Override
+            public void sendFrame(UUID remoteId, MultiNetworkAddress address, MessageFrame frame) {
+                frame.release();
+                sentFrames.incrementAndGet();
+            }
+
+            @Override
+            public void onHandshakeFinished(UUID remoteId, boolean success) {
+            }
+        }, 1);
+        registry.setMaxNewHandshakesPerSecond(2);
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        SecureRandom random = new SecureRandom();
+
+        // Only two of the initiators can start a handshake, the others are dropped:
+        List<UUID> initiators = new ArrayList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            UUID initiator = UUID.randomUUID();
+            initiators.add(initiator);
+            keyHolder.storePublicKeyOfOtherUser(getContext(), initiator, keyHolder.generateRandomKeyPair()
+                    .getPublic());
+            MultiNetworkAddress address = new MultiNetworkAddress();
+            address.setSmsAddress(initiator.toString());
+            registry.onFrameReceived(address, encryptionHandler.prepareMessageForSending(getContext(), ownId,
+                    new HandshakeMessage1(random.nextLong(), initiator), (byte) 1));
+        }
+        for (int i = 0; i < 100 && sentFrames.get() < 2; i++) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        assertEquals(2, sentFrames.get());
+        assertEquals(2, registry.size());
+
+        // A new first message does not replace the running handshake of the same initiator:
+        UUID running = null;
+        for (UUID initiator : initiators) {
+            if (registry.getHandshake(initiator) != null) {
+                running = initiator;
+            }
+        }
+        HandshakeStateHolder handshake = registry.getHandshake(running);
+        Thread.sleep(1000);
+        registry.onFrameReceived(null, encryptionHandler.prepareMessageForSending(getContext(), ownId,
+                new HandshakeMessage1(random.nextLong(), running), (byte) 1));
+        Thread.sleep(500);
+        assertSame(handshake, registry.getHandshake(running));
+        assertEquals(2, sentFrames.get());
+        registry.shutdown();
+    }
+
+    /**
+     * Exchanges the handshake messages between A and B on this device until both completed the handshake.
+     *
+     * @param resumptionEnabled
+     *            enables session resumption for A and B
+     * @return the number of messages that were sent
+     * */
+    private int runHandshake(UUID idA, UUID idB, boolean resumptionEnabled, boolean expectResumption)
+            throws Exception {
+        HandshakeStateHolder a = new HandshakeStateHolder(idA, idB, HandshakeRole.A);
+        a.setSessionResumptionEnabled(resumptionEnabled);
+        HandshakeStateHolder b = new HandshakeStateHolder(idA, idB, HandshakeRole.B);
+        b.setSessionResumptionEnabled(resumptionEnabled);
+        MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        int sentMessages = 0;
+        while (!a.isHandshakeComplete() || !b.isHandshakeComplete()) {
+            boolean aSends = a.getNextAction() == HandshakeNextAction.SEND;
+            HandshakeStateHolder sender = aSends ? a : b;
+            HandshakeStateHolder receiver = aSends ? b : a;
+            BasicMessage message = sender.getNextMessageToSend(getContext());
+            byte[] toSend = encryptionHandler.prepareMessageForSending(getContext(), aSends ? idB : idA, message,
+                    sender.getMessageTypeForMessageToSend());
+            BasicMessage received = encryptionHandler.extractReceivedMessage(getContext(), aSends ? idA : idB,
+                    toSend);
+            assertTrue(receiver.processReceivedMessage(getContext(), received));
+            sentMessages++;
+            assertTrue(sentMessages < 10);
+        }
+        assertEquals(expectResumption, a.isSessionResumed());
+        assertEquals(expectResumption, b.isSessionResumed());
+        return sentMessages;
+    }
+
     public void testEncryptionAndDecryptionHanshakeMsg1() throws InvalidKeyException, NoSuchAlgorithmException,
             NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
             IllegalArgumentException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
@@ -203,6 +614,13 @@ public class HandshakeTest extends AndroidTestCase {
         byte[] msgInBytes = message.getMessageContentAsBytes();
         PublicKeyExchangeMessage messageRestored = new PublicKeyExchangeMessage(msgInBytes);
         assertTrue(message.equals(messageRestored));
+        // X.509 is sent by default, the compact encoding only on request:
+        assertTrue(Arrays.equals(publicKey.getEncoded(), Arrays.copyOfRange(msgInBytes, msgInBytes.length
+                - publicKey.getEncoded().length, msgInBytes.length)));
+        message.setUseX509Encoding(false);
+        byte[] compactMsgInBytes = message.getMessageContentAsBytes();
+        assertTrue(compactMsgInBytes.length < msgInBytes.length);
+        assertTrue(message.equals(new PublicKeyExchangeMessage(compactMsgInBytes)));
     }
 
     /**
@@ -232,9 +650,12 @@ public class HandshakeTest extends AndroidTestCase {
         Object[] argObjects = { context, uuid, message, messageType };
         Method method = MessageEncryptionHandler.class.getDeclaredMethod("decryptMessage", argClasses);
         method.setAccessible(true);
-        Object result = method.invoke(encryptionHandler, argObjects);
-
-        return (byte[]) result;
+        byte[] result = (byte[]) method.invoke(encryptionHandler, argObjects);
+        if (result == null) {
+            return null;
+        }
+        // The decrypted message ends with its hash:
+        return Arrays.copyOf(result, result.length - HASH_LENGTH);
     }
 
 }
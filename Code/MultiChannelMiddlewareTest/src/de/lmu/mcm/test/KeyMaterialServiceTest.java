@@ -0,0 +1,47 @@
+package de.lmu.mcm.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.KeyMaterialService;
+import de.lmu.mcm.security.KeyMaterialService.OwnKeysListener;
+
+public class KeyMaterialServiceTest extends AndroidTestCase {
+
+    public void testKeyMaterialService() throws Exception {
+        KeyMaterialService service = KeyMaterialService.getInstance();
+        final CountDownLatch ownKeysAvailable = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+        service.start(getContext(), new OwnKeysListener() {
+
+            @Override
+            public void onOwnKeysAvailable(boolean success) {
+                result[0] = success;
+                ownKeysAvailable.countDown();
+            }
+        });
+        assertTrue(ownKeysAvailable.await(60, TimeUnit.SECONDS));
+        assertTrue(result[0]);
+        assertNotNull(KeyHolder.getInstance().getSavedKeyPair(getContext()));
+
+        // Taking more keys and nonces than the pools hold must never return the same value twice:
+        Set<String> keys = new HashSet<String>();
+        Set<Long> nonces = new HashSet<Long>();
+        int count = 4 * KeyMaterialService.NONCE_POOL_SIZE;
+        for (int i = 0; i < count; i++) {
+            SecretKey key = service.takeSymmetricKey();
+            assertEquals(KeyHolder.AES_KEY_LENGTH / 8, key.getEncoded().length);
+            keys.add(Arrays.toString(key.getEncoded()));
+            nonces.add(service.takeNonce());
+        }
+        assertEquals(count, keys.size());
+        assertEquals(count, nonces.size());
+    }
+}
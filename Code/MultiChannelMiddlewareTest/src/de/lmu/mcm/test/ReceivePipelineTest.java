@@ -0,0 +1,197 @@
+package de.lmu.mcm.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.Enums.MessageOrigin;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.network.ProtocolMessage;
+import de.lmu.mcm.network.ReceivePipeline;
+import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.MessageEncryptionHandler;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.CustomMessage;
+
+public class ReceivePipelineTest extends AndroidTestCase {
+
+    public void testKeepsOrderAndLimitsQueue() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        final UUID peer = UUID.randomUUID();
+        keyHolder.storeSymmetricKey(getContext(), peer, keyHolder.generateRandomSymmetricKey(),
+                System.currentTimeMillis());
+        final MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        final Random random = new Random();
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch deliveryAllowed = new CountDownLatch(1);
+
+        final ReceivePipeline pipeline = new ReceivePipeline(new ReceivePipeline.MessageStage() {
+
+            @Override
+            public BasicMessage decode(InterfaceIdentifier interfaceName, ProtocolMessage message) throws Exception {
+                Thread.sleep(random.nextInt(5));
+                return encryptionHandler.extractReceivedMessage(getContext(), peer, message.getRawMessageInBytes());
+            }
+
+            @Override
+            public void deliver(InterfaceIdentifier interfaceName, BasicMessage message) {
+                try {
+                    deliveryAllowed.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delivered.add(new String(message.getMessageContentAsBytes()));
+            }
+        }, 4);
+        pipeline.setQueueLimits(4, 6);
+
+        // Two senders with the same key, so that every frame can be decrypted:
+        final MultiNetworkAddress[] senders = new MultiNetworkAddress[] { new MultiNetworkAddress(),
+                new MultiNetworkAddress() };
+        senders[0].setSmsAddress("+49 1");
+        senders[1].setSmsAddress("+49 2");
+        final int messagesPerSender = 50;
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < messagesPerSender; i++) {
+            for (int sender = 0; sender < senders.length; sender++) {
+                frames.add(encryptionHandler.prepareMessageForSending(getContext(), peer, new CustomMessage((sender
+                        + ":" + i).getBytes()), MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED));
+            }
+        }
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frames.size(); i++) {
+                    pipeline.submit(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE,
+                            senders[i % senders.length], frames.get(i)));
+                }
+            }
+        };
+        reader.start();
+
+        // The reader is blocked while nothing is delivered:
+        Thread.sleep(500);
+        assertTrue(reader.isAlive());
+        assertTrue(pipeline.getQueuedFrames() <= 6);
+        deliveryAllowed.countDown();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        for (int i = 0; i < 100 && pipeline.getQueuedFrames() > 0; i++) {
+            Thread.sleep(50);
+        }
+        pipeline.shutdown();
+
+        assertEquals(frames.size(), delivered.size());
+        int[] next = new int[senders.length];
+        for (String message : delivered) {
+            String[] parts = message.split(":");
+            int sender = Integer.parseInt(parts[0]);
+            assertEquals(next[sender]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    public void testPausesReaderWithoutBlocking() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        final UUID peer = UUID.randomUUID();
+        keyHolder.storeSymmetricKey(getContext(), peer, keyHolder.generateRandomSymmetricKey(),
+                System.currentTimeMillis());
+        final MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch decodingAllowed = new CountDownLatch(1);
+
+        ReceivePipeline pipeline = new ReceivePipeline(new ReceivePipeline.MessageStage() {
+
+            @Override
+            public BasicMessage decode(InterfaceIdentifier interfaceName, ProtocolMessage message) throws Exception {
+                decodingAllowed.await();
+                return encryptionHandler.extractReceivedMessage(getContext(), peer, message.getRawMessageInBytes());
+            }
+
+            @Override
+            public void deliver(InterfaceIdentifier interfaceName, BasicMessage message) {
+                delivered.add(new String(message.getMessageContentAsBytes()));
+            }
+        }, 2);
+        pipeline.setQueueLimits(2, 10);
+
+        MultiNetworkAddress[] senders = new MultiNetworkAddress[] { new MultiNetworkAddress(),
+                new MultiNetworkAddress() };
+        senders[0].setSmsAddress("+49 1");
+        senders[1].setSmsAddress("+49 2");
+        final CountDownLatch resumed = new CountDownLatch(1);
+        Runnable resumeReading = new Runnable() {
+            @Override
+            public void run() {
+                resumed.countDown();
+            }
+        };
+        byte[][] frames = new byte[3][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = encryptionHandler.prepareMessageForSending(getContext(), peer, new CustomMessage(("" + i)
+                    .getBytes()), MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED);
+        }
+
+        // The second frame of the first sender reaches its limit, the other sender is not affected:
+        assertTrue(pipeline.submitWithoutBlocking(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE,
+                senders[0], frames[0]), resumeReading));
+        assertFalse(pipeline.submitWithoutBlocking(InterfaceIdentifier.SMS, new ProtocolMessage(
+                MessageOrigin.REMOTE, senders[0], frames[1]), resumeReading));
+        assertTrue(pipeline.submitWithoutBlocking(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE,
+                senders[1], frames[2]), resumeReading));
+        Thread.sleep(200);
+        assertEquals(1, resumed.getCount());
+
+        decodingAllowed.countDown();
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && pipeline.getQueuedFrames() > 0; i++) {
+            Thread.sleep(50);
+        }
+        pipeline.shutdown();
+        assertEquals(3, delivered.size());
+        assertTrue(delivered.indexOf("0") < delivered.indexOf("1"));
+    }
+
+    public void testDropsFrameIfPipelineStaysFull() throws Exception {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch decodingAllowed = new CountDownLatch(1);
+        ReceivePipeline pipeline = new ReceivePipeline(new ReceivePipeline.MessageStage() {
+
+            @Override
+            public BasicMessage decode(InterfaceIdentifier interfaceName, ProtocolMessage message) throws Exception {
+                decodingAllowed.await();
+                return new CustomMessage(message.getRawMessageInBytes());
+            }
+
+            @Override
+            public void deliver(InterfaceIdentifier interfaceName, BasicMessage message) {
+                delivered.add(new String(message.getMessageContentAsBytes()));
+            }
+        }, 1);
+        pipeline.setQueueLimits(1, 1);
+        MultiNetworkAddress sender = new MultiNetworkAddress();
+        sender.setSmsAddress("+49 1");
+
+        assertTrue(pipeline.submit(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE, sender, "0"
+                .getBytes()), 200));
+        long start = System.currentTimeMillis();
+        assertFalse(pipeline.submit(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE, sender, "1"
+                .getBytes()), 200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+
+        decodingAllowed.countDown();
+        assertTrue(pipeline.submit(InterfaceIdentifier.SMS, new ProtocolMessage(MessageOrigin.REMOTE, sender, "2"
+                .getBytes()), 5000));
+        for (int i = 0; i < 100 && pipeline.getQueuedFrames() > 0; i++) {
+            Thread.sleep(50);
+        }
+        pipeline.shutdown();
+        assertEquals(Arrays.asList("0", "2"), delivered);
+    }
+}
@@ -0,0 +1,87 @@
+package de.lmu.mcm.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.SendPipeline;
+import de.lmu.mcm.network.SendPipeline.SendHandle;
+import de.lmu.mcm.security.KeyHolder;
+import de.lmu.mcm.security.MessageEncryptionHandler;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.CustomMessage;
+
+public class SendPipelineTest extends AndroidTestCase {
+
+    public void testKeepsOrderPerPeer() throws Exception {
+        KeyHolder keyHolder = KeyHolder.getInstance();
+        final UUID[] peers = new UUID[] { UUID.randomUUID(), UUID.randomUUID() };
+        for (UUID peer : peers) {
+            keyHolder.storeSymmetricKey(getContext(), peer, keyHolder.generateRandomSymmetricKey(),
+                    System.currentTimeMillis());
+        }
+        final MessageEncryptionHandler encryptionHandler = new MessageEncryptionHandler();
+        final Map<UUID, List<Integer>> delivered = new HashMap<UUID, List<Integer>>();
+        for (UUID peer : peers) {
+            delivered.put(peer, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final Random random = new Random();
+
+        SendPipeline<Integer> pipeline = new SendPipeline<Integer>(new SendPipeline.FrameStage<Integer>() {
+
+            @Override
+            public MessageFrame prepareFrame(InterfaceIdentifier interfaceName, UUID peer, Integer message)
+                    throws Exception {
+                // Later messages are often finished first:
+                Thread.sleep(random.nextInt(5));
+                CustomMessage content = new CustomMessage(ByteBuffer.allocate(4).putInt(message).array());
+                return encryptionHandler.prepareFrameForSending(getContext(), peer, content,
+                        MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED);
+            }
+
+            @Override
+            public void deliverFrame(InterfaceIdentifier interfaceName, UUID peer, Integer message,
+                    MessageFrame frame) {
+                // Failed assertions would not fail the test on this thread, the messages are checked afterwards:
+                try {
+                    BasicMessage decrypted = encryptionHandler.extractReceivedMessage(getContext(), peer,
+                            frame.toByteArray());
+                    if (ByteBuffer.wrap(decrypted.getMessageContentAsBytes()).getInt() == message) {
+                        delivered.get(peer).add(message);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    frame.release();
+                }
+            }
+        }, 4);
+
+        int messagesPerPeer = 100;
+        List<SendHandle> handles = new ArrayList<SendHandle>();
+        for (int i = 0; i < messagesPerPeer; i++) {
+            for (UUID peer : peers) {
+                handles.add(pipeline.submit(InterfaceIdentifier.WIFI, peer, i));
+            }
+        }
+        for (SendHandle handle : handles) {
+            assertEquals(MessageEncryptionHandler.MESSAGE_TYPE_SYMMETRIC_AUTHENTICATED, handle.await(10000));
+        }
+        pipeline.shutdown();
+        for (UUID peer : peers) {
+            List<Integer> messages = delivered.get(peer);
+            assertEquals(messagesPerPeer, messages.size());
+            for (int i = 0; i < messagesPerPeer; i++) {
+                assertEquals(i, messages.get(i).intValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package de.lmu.mcm.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
+import de.lmu.mcm.network.SendQueue;
+
+public class SendQueueTest extends AndroidTestCase {
+
+    public void testBlockWaitsForWriter() throws Exception {
+        GatedWriter writer = new GatedWriter();
+        final SendQueue queue = new SendQueue("TEST", writer, SendQueuePolicy.BLOCK, 1);
+        try {
+            fillQueue(queue, writer);
+            Producer producer = new Producer(queue, createFrame(3));
+            producer.start();
+            producer.join(300);
+            assertTrue("The producer has to wait while the queue is full", producer.isAlive());
+
+            writer.gate.countDown();
+            producer.join(2000);
+            assertFalse(producer.isAlive());
+            assertTrue(producer.added.get());
+            waitUntilWritten(writer, 3);
+            assertEquals(3, writer.written.get(2)[5]);
+            assertTrue(writer.discarded.isEmpty());
+        } finally {
+            writer.gate.countDown();
+            queue.stop();
+        }
+    }
+
+    public void testDropOldest() throws Exception {
+        GatedWriter writer = new GatedWriter();
+        SendQueue queue = new SendQueue("TEST", writer, SendQueuePolicy.DROP_OLDEST, 1);
+        try {
+            fillQueue(queue, writer);
+            assertTrue(queue.enqueue(MessageFrame.wrap(createFrame(3))));
+            assertEquals(1, writer.discarded.size());
+            assertEquals(2, writer.discarded.get(0)[5]);
+            assertEquals(1, queue.getDiscardedFrames());
+
+            writer.gate.countDown();
+            waitUntilWritten(writer, 2);
+            assertEquals(1, writer.written.get(0)[5]);
+            assertEquals(3, writer.written.get(1)[5]);
+        } finally {
+            writer.gate.countDown();
+            queue.stop();
+        }
+    }
+
+    public void testFailFast() throws Exception {
+        GatedWriter writer = new GatedWriter();
+        SendQueue queue = new SendQueue("TEST", writer, SendQueuePolicy.FAIL_FAST, 1);
+        try {
+            fillQueue(queue, writer);
+            assertFalse(queue.enqueue(MessageFrame.wrap(createFrame(3))));
+            assertEquals(1, writer.discarded.size());
+            assertEquals(3, writer.discarded.get(0)[5]);
+
+            writer.gate.countDown();
+            waitUntilWritten(writer, 2);
+            assertEquals(1, writer.written.get(0)[5]);
+            assertEquals(2, writer.written.get(1)[5]);
+        } finally {
+            writer.gate.countDown();
+            queue.stop();
+        }
+    }
+
+    public void testStopWakesBlockedProducer() throws Exception {
+        GatedWriter writer = new GatedWriter();
+        SendQueue queue = new SendQueue("TEST", writer, SendQueuePolicy.BLOCK, 1);
+        try {
+            fillQueue(queue, writer);
+            Producer producer = new Producer(queue, createFrame(3));
+            producer.start();
+            producer.join(300);
+            assertTrue(producer.isAlive());
+
+            queue.stop();
+            producer.join(2000);
+            assertFalse("Stopping the queue has to wake the producer", producer.isAlive());
+            assertFalse(producer.added.get());
+            // The waiting frame and the frame of the producer were discarded:
+            assertEquals(2, writer.discarded.size());
+        } finally {
+            writer.gate.countDown();
+            queue.stop();
+        }
+    }
+
+    /**
+     * Lets the writer take the first frame and block on it, then adds a second frame so that the queue is full.
+     * */
+    private void fillQueue(SendQueue queue, GatedWriter writer) throws InterruptedException {
+        assertTrue(queue.enqueue(MessageFrame.wrap(createFrame(1))));
+        assertTrue(writer.writing.await(2, TimeUnit.SECONDS));
+        assertTrue(queue.enqueue(MessageFrame.wrap(createFrame(2))));
+        assertEquals(1, queue.getDepth());
+    }
+
+    private void waitUntilWritten(GatedWriter writer, int frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (writer.written.size() < frames && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(frames, writer.written.size());
+    }
+
+    private byte[] createFrame(int number) {
+        return new byte[] { 0, 0, 0, 1, 7, (byte) number };
+    }
+
+    /**
+     * Writes frames only after the gate was opened and remembers the written and discarded frames.
+     * */
+    private static class GatedWriter implements SendQueue.FrameWriter {
+
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final List<byte[]> written = new CopyOnWriteArrayList<byte[]>();
+        private final List<byte[]> discarded = new CopyOnWriteArrayList<byte[]>();
+
+        @Override
+        public boolean writeFrame(MessageFrame frame) {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            written.add(frame.toByteArray());
+            return true;
+        }
+
+        @Override
+        public void onFrameDiscarded(MessageFrame frame) {
+            discarded.add(frame.toByteArray());
+        }
+    }
+
+    /**
+     * Adds a frame to the queue on its own thread.
+     * */
+    private static class Producer extends Thread {
+
+        private final SendQueue queue;
+        private final byte[] frame;
+        private final AtomicBoolean added = new AtomicBoolean();
+
+        public Producer(SendQueue queue, byte[] frame) {
+            this.queue = queue;
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            added.set(queue.enqueue(MessageFrame.wrap(frame)));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.lmu.mcm.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.network.Enums.InterfaceIdentifier;
+import de.lmu.mcm.network.Enums.MessageOrigin;
+import de.lmu.mcm.network.ProtocolMessage;
+import de.lmu.mcm.network.SentMessageTracker;
+import de.lmu.mcm.security.byteproto.BasicMessage;
+import de.lmu.mcm.security.byteproto.CustomMessage;
+
+public class SentMessageTrackerTest extends AndroidTestCase {
+
+    private RecordingListener listener;
+    private SentMessageTracker tracker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        listener = new RecordingListener();
+        tracker = new SentMessageTracker(listener);
+    }
+
+    public void testFrameWrittenToSeveralClients() {
+        BasicMessage message = createMessage(0);
+        MessageFrame frame = createFrame(0);
+        long sendId = tracker.track(InterfaceIdentifier.WIFI, frame, message);
+        assertEquals(sendId, frame.getSendId());
+        for (int client = 0; client < 2; client++) {
+            ProtocolMessage sent = new ProtocolMessage(MessageOrigin.SELF, null, frame);
+            assertTrue(tracker.attachSentMessage(InterfaceIdentifier.WIFI, sent));
+            assertSame(message, sent.getSentMessage());
+            assertTrue(sent.getTransmitTimeInMs() >= 0);
+        }
+    }
+
+    public void testCopiesAreMatchedBySendId() {
+        BasicMessage[] messages = { createMessage(1), createMessage(2) };
+        MessageFrame[] frames = { createFrame(1), createFrame(2) };
+        tracker.track(InterfaceIdentifier.SMS, frames[0], messages[0]);
+        tracker.track(InterfaceIdentifier.SMS, frames[1], messages[1]);
+
+        // The second frame is reported first, equal bytes do not matter:
+        ProtocolMessage sent = new ProtocolMessage(MessageOrigin.SELF, frames[1].toByteArray());
+        sent.setSendId(frames[1].getSendId());
+        assertTrue(tracker.attachSentMessage(InterfaceIdentifier.SMS, sent));
+        assertSame(messages[1], sent.getSentMessage());
+
+        sent = new ProtocolMessage(MessageOrigin.SELF, frames[0].toByteArray());
+        sent.setSendId(frames[0].getSendId());
+        assertTrue(tracker.attachSentMessage(InterfaceIdentifier.SMS, sent));
+        assertSame(messages[0], sent.getSentMessage());
+
+        // A copy without send id is not matched:
+        sent = new ProtocolMessage(MessageOrigin.SELF, frames[0].toByteArray());
+        assertFalse(tracker.attachSentMessage(InterfaceIdentifier.SMS, sent));
+        assertNull(sent.getSentMessage());
+    }
+
+    public void testDiscardedAndUnknownSends() {
+        MessageFrame frame = createFrame(0);
+        long sendId = tracker.track(InterfaceIdentifier.NFC, frame, createMessage(0));
+        tracker.discard(sendId);
+        ProtocolMessage sent = new ProtocolMessage(MessageOrigin.SELF, frame.toByteArray());
+        sent.setSendId(sendId);
+        assertFalse(tracker.attachSentMessage(InterfaceIdentifier.NFC, sent));
+        assertNull(sent.getSentMessage());
+        assertEquals(-1, sent.getTransmitTimeInMs());
+
+        sent = new ProtocolMessage(MessageOrigin.SELF, frame.toByteArray());
+        sent.setSendId(sendId + 1);
+        assertFalse(tracker.attachSentMessage(InterfaceIdentifier.NFC, sent));
+        assertFalse(tracker.attachSentMessage(InterfaceIdentifier.NFC, null));
+        assertTrue(listener.evicted.isEmpty());
+    }
+
+    public void testUnreportedSendsAreEvicted() {
+        BasicMessage first = createMessage(0);
+        MessageFrame firstFrame = createFrame(0);
+        tracker.track(InterfaceIdentifier.BLUETOOTH, firstFrame, first);
+        for (int i = 1; i < SentMessageTracker.MAX_PENDING_SENDS; i++) {
+            tracker.track(InterfaceIdentifier.BLUETOOTH, createFrame(i), createMessage(i));
+        }
+        assertTrue(listener.evicted.isEmpty());
+
+        tracker.track(InterfaceIdentifier.BLUETOOTH, createFrame(0), createMessage(0));
+        assertEquals(1, listener.evicted.size());
+        assertSame(first, listener.evicted.get(0));
+        // The evicted send is not reported a second time:
+        ProtocolMessage sent = new ProtocolMessage(MessageOrigin.SELF, null, firstFrame);
+        assertFalse(tracker.attachSentMessage(InterfaceIdentifier.BLUETOOTH, sent));
+    }
+
+    private BasicMessage createMessage(int number) {
+        return new CustomMessage(("Message " + number).getBytes());
+    }
+
+    private MessageFrame createFrame(int number) {
+        return MessageFrame.wrap(new byte[] { 0, 0, 0, 1, 8, (byte) number });
+    }
+
+    /**
+     * Remembers the messages that were reported as failed.
+     * */
+    private static class RecordingListener implements SentMessageTracker.EvictionListener {
+
+        private final List<BasicMessage> evicted = new ArrayList<BasicMessage>();
+
+        @Override
+        public void onSendEvicted(InterfaceIdentifier interfaceName, BasicMessage message) {
+            evicted.add(message);
+        }
+    }
+}
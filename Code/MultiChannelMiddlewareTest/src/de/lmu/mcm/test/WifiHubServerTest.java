@@ -0,0 +1,162 @@
+package de.lmu.mcm.test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+import de.lmu.mcm.helper.MessageFrame;
+import de.lmu.mcm.helper.ReceivedFrame;
+import de.lmu.mcm.network.Enums.SendQueuePolicy;
+import de.lmu.mcm.network.MultiNetworkAddress;
+import de.lmu.mcm.network.wifi.WifiHubServer;
+
+public class WifiHubServerTest extends AndroidTestCase {
+
+    private static final int PORT = 47211;
+    private static final int NUMBER_OF_CLIENTS = 3;
+
+    public void testSendToSingleClient() throws Exception {
+        RecordingListener listener = new RecordingListener(NUMBER_OF_CLIENTS);
+        WifiHubServer server = new WifiHubServer(listener);
+        int port = server.start(PORT, 5);
+        assertTrue(port > 0);
+        Socket[] clients = new Socket[NUMBER_OF_CLIENTS];
+        try {
+            InetAddress localhost = InetAddress.getByName("127.0.0.1");
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new Socket(localhost, port);
+            }
+            assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+
+            // A frame for one client only reaches that client
+            Socket target = clients[1];
+            MultiNetworkAddress targetAddress = listener.getAddressOfClient(target);
+            assertNotNull(targetAddress);
+            assertTrue(server.isConnected(targetAddress));
+            byte[] addressed = createFrame((byte) 7, "only for client 1");
+            assertTrue(server.sendTo(targetAddress, MessageFrame.wrap(addressed)));
+            assertTrue(Arrays.equals(addressed, readFrame(target, addressed.length)));
+
+            // The broadcast is the first frame the other clients receive
+            byte[] broadcast = createFrame((byte) 8, "for everyone");
+            assertTrue(server.sendToAll(MessageFrame.wrap(broadcast)));
+            for (Socket client : clients) {
+                assertTrue(Arrays.equals(broadcast, readFrame(client, broadcast.length)));
+            }
+
+            // Frames for unknown clients are rejected
+            MultiNetworkAddress unknown = new MultiNetworkAddress();
+            unknown.setIpAddress(localhost);
+            unknown.setIpPort(1);
+            assertFalse(server.sendTo(unknown, MessageFrame.wrap(addressed)));
+        } finally {
+            closeAll(clients);
+            server.stop();
+        }
+    }
+
+    public void testWriteQueueIsBounded() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        WifiHubServer server = new WifiHubServer(listener);
+        server.setWriteQueuePolicy(SendQueuePolicy.FAIL_FAST, 2);
+        int port = server.start(PORT + 1, 5);
+        assertTrue(port > 0);
+        Socket client = null;
+        try {
+            client = new Socket(InetAddress.getByName("127.0.0.1"), port);
+            assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+            MultiNetworkAddress address = listener.getAddressOfClient(client);
+
+            // The client does not read, so the socket buffers fill up and the write queue is rejected eventually
+            byte[] frame = createFrame((byte) 7, new String(new char[256 * 1024]));
+            boolean rejected = false;
+            for (int i = 0; i < 200 && !rejected; i++) {
+                rejected = !server.sendTo(address, MessageFrame.wrap(frame));
+            }
+            assertTrue(rejected);
+        } finally {
+            closeAll(client);
+            server.stop();
+        }
+    }
+
+    private byte[] createFrame(byte type, String content) {
+        byte[] contentBytes = content.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(MessageFrame.HEADER_LENGTH + contentBytes.length);
+        buffer.putInt(contentBytes.length);
+        buffer.put(type);
+        buffer.put(contentBytes);
+        return buffer.array();
+    }
+
+    private byte[] readFrame(Socket socket, int length) throws IOException {
+        socket.setSoTimeout(5000);
+        byte[] frame = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(frame);
+        return frame;
+    }
+
+    private void closeAll(Socket... sockets) {
+        for (Socket socket : sockets) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing to do here
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers the addresses of the connected clients.
+     * */
+    private static class RecordingListener implements WifiHubServer.HubListener {
+
+        private final List<MultiNetworkAddress> addresses = new CopyOnWriteArrayList<MultiNetworkAddress>();
+        private final CountDownLatch connected;
+
+        public RecordingListener(int clients) {
+            connected = new CountDownLatch(clients);
+        }
+
+        public MultiNetworkAddress getAddressOfClient(Socket client) {
+            for (MultiNetworkAddress address : addresses) {
+                if (address.getIpPort() == client.getLocalPort()) {
+                    return address;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void onClientConnected(MultiNetworkAddress address) {
+            addresses.add(address);
+            connected.countDown();
+        }
+
+        @Override
+        public void onClientDisconnected(MultiNetworkAddress address) {
+            addresses.remove(address);
+        }
+
+        @Override
+        public boolean onFrameReceived(MultiNetworkAddress address, ReceivedFrame frame, Runnable resumeReading) {
+            frame.release();
+            return true;
+        }
+
+        @Override
+        public void onFrameWritten(MultiNetworkAddress address, MessageFrame frame, boolean success) {
+            // Nothing to do here
+        }
+    }
+}